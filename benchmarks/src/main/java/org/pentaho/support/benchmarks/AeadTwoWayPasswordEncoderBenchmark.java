@@ -0,0 +1,102 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.encryption.AeadTwoWayPasswordEncoder;
+import org.pentaho.support.encryption.KettleTwoWayPasswordEncoder;
+import org.pentaho.support.encryption.PasswordEncoderException;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of the authenticated cipher encoder, for both ciphers, against the Kettle encoder.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class AeadTwoWayPasswordEncoderBenchmark {
+
+  @Param( { "Kettle", AeadTwoWayPasswordEncoder.AES_GCM, AeadTwoWayPasswordEncoder.CHACHA20_POLY1305 } )
+  public String encoderName;
+
+  @Param( { "8", "32", "128" } )
+  public int passwordLength;
+
+  private TwoWayPasswordEncoderInterface encoder;
+  private String password;
+  private String encoded;
+
+  @Setup
+  public void setup() throws PasswordEncoderException {
+    if ( "Kettle".equals( encoderName ) ) {
+      encoder = new KettleTwoWayPasswordEncoder();
+    } else {
+      Properties settings = new Properties();
+      settings.setProperty( AeadTwoWayPasswordEncoder.KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM, encoderName );
+      encoder = new AeadTwoWayPasswordEncoder( settings );
+    }
+    encoder.init();
+    password = BenchmarkData.password( passwordLength, 42L );
+    encoded = encoder.encode( password );
+  }
+
+  @Benchmark
+  public String encode() {
+    return encoder.encode( password );
+  }
+
+  @Benchmark
+  public String decode() {
+    return encoder.decode( encoded, true );
+  }
+
+  @Benchmark
+  @Threads( Threads.MAX )
+  public String encodeAllThreads() {
+    return encoder.encode( password );
+  }
+
+  @Benchmark
+  @Threads( Threads.MAX )
+  public String decodeAllThreads() {
+    return encoder.decode( encoded, true );
+  }
+}
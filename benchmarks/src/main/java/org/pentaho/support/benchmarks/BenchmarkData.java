@@ -0,0 +1,138 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Reproducible inputs shared by the benchmarks.
+ */
+final class BenchmarkData {
+  static final String PLUGIN_XML = "kettle-password-encoder-plugins.xml";
+
+  private static final String PASSWORD_CHARACTERS =
+    "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!#$&()*+,-./:;<=>?@[]^_|~";
+
+  private BenchmarkData() {
+  }
+
+  /**
+   * @return a random printable password of the given length
+   */
+  static String password( int length, long seed ) {
+    Random random = new Random( seed );
+    StringBuilder password = new StringBuilder( length );
+    for ( int i = 0; i < length; i++ ) {
+      password.append( PASSWORD_CHARACTERS.charAt( random.nextInt( PASSWORD_CHARACTERS.length() ) ) );
+    }
+    return password.toString();
+  }
+
+  /**
+   * @param shape plain, unix, windows, mixed or long
+   * @return a string shaped like the values found in transformation and job settings
+   */
+  static String variableString( String shape ) {
+    switch ( shape ) {
+      case "plain":
+        return "jdbc:postgresql://db.example.com:5432/warehouse?ssl=true";
+      case "unix":
+        return "jdbc:postgresql://${DB_HOST}:${DB_PORT}/${DB_NAME}?user=${DB_USER}";
+      case "windows":
+        return "%%INPUT_DIR%%\\\\files\\\\%%FILE_NAME%%.csv";
+      case "mixed":
+        return "${Internal.Entry.Current.Directory}/out/%%RUN_ID%%/${java.io.tmpdir}/${DB_NAME}.log";
+      case "long":
+        StringBuilder value = new StringBuilder();
+        for ( int i = 0; i < 50; i++ ) {
+          value.append( "segment-" ).append( i ).append( "/${VAR_" ).append( i % 10 ).append( "}/" );
+        }
+        return value.toString();
+      default:
+        throw new IllegalArgumentException( "Unknown shape " + shape );
+    }
+  }
+
+  /**
+   * @return a transformation document with the given number of database connections, each with an encrypted password
+   */
+  static byte[] transformation( int connections, String encryptedPassword ) {
+    StringBuilder xml = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<transformation>\n" );
+    for ( int i = 0; i < connections; i++ ) {
+      xml.append( "  <connection>\n" )
+        .append( "    <name>connection " ).append( i ).append( "</name>\n" )
+        .append( "    <server>${DB_HOST}</server>\n" )
+        .append( "    <type>POSTGRESQL</type>\n" )
+        .append( "    <database>warehouse_" ).append( i ).append( "</database>\n" )
+        .append( "    <username>etl</username>\n" )
+        .append( "    <password>" ).append( encryptedPassword ).append( "</password>\n" )
+        .append( "    <attributes><attribute><code>PORT_NUMBER</code><attribute>5432</attribute></attribute>"
+          + "</attributes>\n" )
+        .append( "  </connection>\n" );
+    }
+    xml.append( "</transformation>\n" );
+    return xml.toString().getBytes( StandardCharsets.UTF_8 );
+  }
+
+  static byte[] resource( String name ) throws IOException {
+    try ( InputStream in = BenchmarkData.class.getResourceAsStream( "/" + name ) ) {
+      if ( in == null ) {
+        throw new IOException( "Resource not found: " + name );
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[ 8192 ];
+      int read;
+      while ( ( read = in.read( buffer ) ) >= 0 ) {
+        out.write( buffer, 0, read );
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * An output stream which only counts the bytes written to it.
+   */
+  static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write( int b ) {
+      count++;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) {
+      count += len;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks. Unless a result format is given on the command line the results are written as JSON to
+ * jmh-result.json so they can be kept and compared between versions.
+ */
+public class BenchmarkMain {
+  private static final String RESULT_FILE = "jmh-result.json";
+
+  private BenchmarkMain() {
+  }
+
+  public static void main( String[] args ) throws Exception {
+    List<String> arguments = new ArrayList<>( Arrays.asList( args ) );
+    if ( !arguments.contains( "-rf" ) && !arguments.contains( "-h" ) && !arguments.contains( "-l" ) ) {
+      arguments.addAll( Arrays.asList( "-rf", "json", "-rff", RESULT_FILE ) );
+    }
+    org.openjdk.jmh.Main.main( arguments.toArray( new String[ 0 ] ) );
+  }
+}
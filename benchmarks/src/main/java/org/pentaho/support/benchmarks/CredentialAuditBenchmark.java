@@ -0,0 +1,101 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.CredentialAuditReport;
+import org.pentaho.support.encryption.CredentialAuditScanner;
+import org.pentaho.support.encryption.Encr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to audit a tree of transformations with the {@link CredentialAuditScanner}, by number of worker threads and
+ * with or without decoding the encrypted values.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CredentialAuditBenchmark {
+  private static final int DIRECTORIES = 20;
+  private static final int FILES_PER_DIRECTORY = 100;
+  private static final int CONNECTIONS = 10;
+
+  @Param( { "1", "4" } )
+  public int threads;
+
+  @Param( { "true", "false" } )
+  public boolean decode;
+
+  private Path directory;
+  private CredentialAuditScanner scanner;
+
+  @Setup
+  public void setup() throws Exception {
+    Encr encr = Encr.getInstance();
+    directory = Files.createTempDirectory( "credential-audit-benchmark" );
+    for ( int d = 0; d < DIRECTORIES; d++ ) {
+      Path subdirectory = Files.createDirectory( directory.resolve( "project" + d ) );
+      for ( int f = 0; f < FILES_PER_DIRECTORY; f++ ) {
+        String encrypted = encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, d * 1000L + f ) );
+        Files.write( subdirectory.resolve( "transformation" + f + ".ktr" ),
+          BenchmarkData.transformation( CONNECTIONS, encrypted ) );
+      }
+    }
+    scanner = new CredentialAuditScanner( encr );
+    scanner.setThreads( threads );
+    scanner.setDecode( decode );
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try ( Stream<Path> paths = Files.walk( directory ) ) {
+      paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+    }
+  }
+
+  @Benchmark
+  public CredentialAuditReport scan() throws IOException {
+    return scanner.scan( directory );
+  }
+}
@@ -0,0 +1,114 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the encoder metrics of {@link Encr}: the same calls with the metrics disabled, enabled with the default
+ * sampled timing and enabled timing every call. Run with a single thread and with all of them, to see the counters
+ * don't contend.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EncoderMetricsBenchmark {
+  private static final int VALUES = 1024;
+
+  /**
+   * "off", "sampled" to time one call in 8 or "every" to time every call
+   */
+  @Param( { "off", "sampled", "every" } )
+  public String metrics;
+
+  private Encr encr;
+  private String password;
+  private String[] encrypted;
+
+  @Setup
+  public void setup() throws Exception {
+    encr = Encr.getInstance();
+    encr.disableDecryptCache();
+    encr.disableMetrics();
+    if ( metrics.equals( "sampled" ) ) {
+      encr.enableMetrics();
+    } else if ( metrics.equals( "every" ) ) {
+      encr.enableMetrics( 1 );
+    }
+    password = BenchmarkData.password( 16, 17L );
+    encrypted = new String[ VALUES ];
+    for ( int i = 0; i < VALUES; i++ ) {
+      encrypted[ i ] = encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, i ) );
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    encr.disableMetrics();
+  }
+
+  @State( Scope.Thread )
+  public static class Cursor {
+    int next;
+  }
+
+  @Benchmark
+  public String encrypt() {
+    return encr.encryptPasswordIfNotUsingVariables( password );
+  }
+
+  @Benchmark
+  public String decrypt( Cursor cursor ) {
+    return encr.decryptPasswordOptionallyEncrypted( encrypted[ cursor.next++ & ( VALUES - 1 ) ] );
+  }
+
+  @Benchmark
+  @Threads( Threads.MAX )
+  public String decryptContended( Cursor cursor ) {
+    return encr.decryptPasswordOptionallyEncrypted( encrypted[ cursor.next++ & ( VALUES - 1 ) ] );
+  }
+
+  @Benchmark
+  public String[] decodeAll() {
+    return encr.decodeAll( encrypted, true );
+  }
+}
@@ -0,0 +1,96 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing a decryption to the threads of the encoder and waiting for it, against decrypting on the calling
+ * thread, and the throughput of a batch of asynchronous decryptions waited for together. The decrypted value cache is
+ * off.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( 4 )
+public class EncrAsyncBenchmark {
+  private static final int BATCH = 64;
+
+  private Encr encr;
+  private String[] encrypted;
+
+  @Setup
+  public void setup() throws Exception {
+    encr = Encr.getInstance();
+    encr.disableDecryptCache();
+    encrypted = new String[ BATCH ];
+    for ( int i = 0; i < BATCH; i++ ) {
+      encrypted[ i ] = encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, i ) );
+    }
+  }
+
+  @Benchmark
+  public String decryptSync() {
+    return encr.decryptPasswordOptionallyEncrypted( "kettle", encrypted[ 0 ] );
+  }
+
+  @Benchmark
+  public String decryptAsync() {
+    return encr.decryptPasswordOptionallyEncryptedAsync( "kettle", encrypted[ 0 ] ).join();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation( BATCH )
+  public int decryptAsyncBatch() {
+    List<CompletableFuture<String>> futures = new ArrayList<>( BATCH );
+    for ( String value : encrypted ) {
+      futures.add( encr.decryptPasswordOptionallyEncryptedAsync( "kettle", value ) );
+    }
+    int length = 0;
+    for ( CompletableFuture<String> future : futures ) {
+      length += future.join().length();
+    }
+    return length;
+  }
+}
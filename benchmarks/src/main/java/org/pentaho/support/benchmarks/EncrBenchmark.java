@@ -0,0 +1,91 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to get the {@link Encr} registry: in a fresh JVM (cold), rebuilt in a warmed up JVM (reload) and once it
+ * exists (warm).
+ */
+@State( Scope.Benchmark )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class EncrBenchmark {
+
+  private Field instanceField;
+
+  @Setup( Level.Trial )
+  public void setup() throws Exception {
+    instanceField = Encr.class.getDeclaredField( "instance" );
+    instanceField.setAccessible( true );
+  }
+
+  /**
+   * The first getInstance() of a new JVM, including class loading and the XML parser lookup.
+   */
+  @Benchmark
+  @BenchmarkMode( Mode.SingleShotTime )
+  @Warmup( iterations = 0 )
+  @Measurement( iterations = 1 )
+  @Fork( 20 )
+  public Encr cold() throws Exception {
+    return Encr.getInstance();
+  }
+
+  /**
+   * Building the registry again in a JVM which has done so before.
+   */
+  @Benchmark
+  @BenchmarkMode( Mode.AverageTime )
+  @Warmup( iterations = 3, time = 2 )
+  @Measurement( iterations = 5, time = 2 )
+  @Fork( 1 )
+  public Encr reload() throws Exception {
+    instanceField.set( null, null );
+    return Encr.getInstance();
+  }
+
+  @Benchmark
+  @BenchmarkMode( Mode.Throughput )
+  @Warmup( iterations = 3, time = 2 )
+  @Measurement( iterations = 5, time = 2 )
+  @Fork( 1 )
+  public Encr warm() throws Exception {
+    return Encr.getInstance();
+  }
+}
@@ -0,0 +1,115 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import jdk.jfr.Recording;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the Flight Recorder events of {@link Encr}: no recording, a recording of the encoder calls with the
+ * default threshold, so none of these calls is recorded, and one recording every call. The "stopped" case starts and
+ * stops a recording first, after which the event stays instrumented.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EncrFlightRecorderBenchmark {
+  private static final String ENCODER_CALL_EVENT = "org.pentaho.support.encryption.EncoderCall";
+  private static final int VALUES = 1024;
+
+  /**
+   * "none", "stopped", "threshold" or "all"
+   */
+  @Param( { "none", "stopped", "threshold", "all" } )
+  public String recording;
+
+  private Encr encr;
+  private String password;
+  private String[] encrypted;
+  private Recording jfr;
+
+  @Setup
+  public void setup() throws Exception {
+    encr = Encr.getInstance();
+    encr.disableDecryptCache();
+    if ( !recording.equals( "none" ) ) {
+      jfr = new Recording();
+      if ( recording.equals( "all" ) ) {
+        jfr.enable( ENCODER_CALL_EVENT ).withThreshold( Duration.ZERO ).withoutStackTrace();
+      } else {
+        jfr.enable( ENCODER_CALL_EVENT );
+      }
+      jfr.start();
+      if ( recording.equals( "stopped" ) ) {
+        jfr.close();
+        jfr = null;
+      }
+    }
+    password = BenchmarkData.password( 16, 17L );
+    encrypted = new String[ VALUES ];
+    for ( int i = 0; i < VALUES; i++ ) {
+      encrypted[ i ] = encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, i ) );
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if ( jfr != null ) {
+      jfr.close();
+    }
+  }
+
+  @State( Scope.Thread )
+  public static class Cursor {
+    int next;
+  }
+
+  @Benchmark
+  public String encrypt() {
+    return encr.encryptPasswordIfNotUsingVariables( password );
+  }
+
+  @Benchmark
+  public String decrypt( Cursor cursor ) {
+    return encr.decryptPasswordOptionallyEncrypted( encrypted[ cursor.next++ & ( VALUES - 1 ) ] );
+  }
+}
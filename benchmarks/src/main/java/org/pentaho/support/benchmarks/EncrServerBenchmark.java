@@ -0,0 +1,133 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+import org.pentaho.support.encryption.EncrClient;
+import org.pentaho.support.encryption.EncrServer;
+import org.pentaho.support.encryption.PasswordEncoderException;
+import org.pentaho.support.utils.XmlParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of encoding one password through an {@link EncrServer}, over a kept connection and over a new one, against
+ * starting a JVM running Encr.main for it. Needs Java 16 or later.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EncrServerBenchmark {
+  private static final String PASSWORD = "benchmark password";
+
+  private Path directory;
+  private Path socket;
+  private EncrServer server;
+  private EncrClient client;
+
+  @Setup
+  public void setup() throws IOException, PasswordEncoderException, XmlParseException {
+    directory = Files.createTempDirectory( "encr-server-benchmark" );
+    socket = directory.resolve( "encr.socket" );
+    server = EncrServer.start( Encr.getInstance(), socket, EncrServer.DEFAULT_THREADS );
+    client = EncrClient.connect( socket );
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    client.close();
+    server.close();
+    Files.deleteIfExists( directory );
+  }
+
+  @Benchmark
+  public String keptConnection() throws IOException, PasswordEncoderException {
+    return client.encode( null, PASSWORD );
+  }
+
+  @Benchmark
+  public String newConnection() throws IOException, PasswordEncoderException {
+    try ( EncrClient connection = EncrClient.connect( socket ) ) {
+      return connection.encode( null, PASSWORD );
+    }
+  }
+
+  /**
+   * What a script calling encr -client pays: a JVM start, without loading the encoders.
+   */
+  @Benchmark
+  @BenchmarkMode( Mode.SingleShotTime )
+  @OutputTimeUnit( TimeUnit.MILLISECONDS )
+  @Warmup( iterations = 2 )
+  @Measurement( iterations = 10 )
+  public int clientMain() throws IOException, InterruptedException {
+    return runEncrMain( "-client", socket.toString(), PASSWORD );
+  }
+
+  /**
+   * What a script calling encr pays today.
+   */
+  @Benchmark
+  @BenchmarkMode( Mode.SingleShotTime )
+  @OutputTimeUnit( TimeUnit.MILLISECONDS )
+  @Warmup( iterations = 2 )
+  @Measurement( iterations = 10 )
+  public int coldEncrMain() throws IOException, InterruptedException {
+    return runEncrMain( "-kettle", PASSWORD );
+  }
+
+  private static int runEncrMain( String... args ) throws IOException, InterruptedException {
+    String[] command = new String[ args.length + 4 ];
+    command[ 0 ] = System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "java";
+    command[ 1 ] = "-cp";
+    command[ 2 ] = System.getProperty( "java.class.path" );
+    command[ 3 ] = Encr.class.getName();
+    System.arraycopy( args, 0, command, 4, args.length );
+    Process process = new ProcessBuilder( command ).redirectOutput( ProcessBuilder.Redirect.DISCARD )
+      .redirectError( ProcessBuilder.Redirect.DISCARD ).start();
+    int exitCode = process.waitFor();
+    if ( exitCode != 0 ) {
+      throw new IllegalStateException( "encr exited with " + exitCode );
+    }
+    return exitCode;
+  }
+}
@@ -0,0 +1,109 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded throughput of the {@link Encr} entry points, for single values and for batches.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( Threads.MAX )
+public class EncrThroughputBenchmark {
+  private static final int BATCH_SIZE = 10000;
+
+  /**
+   * The size of the decrypted value cache, 0 to disable it
+   */
+  @Param( { "0", "1000" } )
+  public int cacheSize;
+
+  private Encr encr;
+  private String password;
+  private String encrypted;
+  private String[] encryptedBatch;
+
+  @Setup
+  public void setup() throws Exception {
+    encr = Encr.getInstance();
+    if ( cacheSize > 0 ) {
+      encr.enableDecryptCache( cacheSize, 0 );
+    } else {
+      encr.disableDecryptCache();
+    }
+    password = BenchmarkData.password( 16, 11L );
+    encrypted = encr.encryptPasswordIfNotUsingVariables( password );
+    encryptedBatch = new String[ BATCH_SIZE ];
+    for ( int i = 0; i < BATCH_SIZE; i++ ) {
+      encryptedBatch[ i ] = encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, i ) );
+    }
+  }
+
+  @Benchmark
+  public String encryptPasswordIfNotUsingVariables() {
+    return encr.encryptPasswordIfNotUsingVariables( password );
+  }
+
+  @Benchmark
+  public String decryptPasswordOptionallyEncrypted() {
+    return encr.decryptPasswordOptionallyEncrypted( encrypted );
+  }
+
+  @Benchmark
+  public String decryptPasswordByPrefix() {
+    return encr.decryptPasswordByPrefix( encrypted );
+  }
+
+  @Benchmark
+  @Threads( 1 )
+  public String[] decodeAll() {
+    return encr.decodeAll( encryptedBatch, true );
+  }
+
+  @Benchmark
+  @Threads( 1 )
+  public String[] decodeAllParallel() {
+    return encr.decodeAll( "kettle", encryptedBatch, true, ForkJoinPool.commonPool() );
+  }
+}
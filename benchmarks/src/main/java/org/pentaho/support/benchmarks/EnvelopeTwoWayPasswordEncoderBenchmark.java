@@ -0,0 +1,154 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.EnvelopeTwoWayPasswordEncoder;
+import org.pentaho.support.encryption.KeyService;
+import org.pentaho.support.encryption.LocalKeyService;
+import org.pentaho.support.encryption.PasswordEncoderException;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decode and encode cost of the envelope encoder against a key service which takes some time to answer, like a remote
+ * one, with and without the data key cache. The passwords were encrypted under a few data keys, as by several
+ * processes.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EnvelopeTwoWayPasswordEncoderBenchmark {
+  private static final int DATA_KEYS = 8;
+  private static final int PASSWORDS_PER_DATA_KEY = 8;
+
+  @Param( { "0", "1000" } )
+  public long keyServiceLatencyMicros;
+
+  @Param( { "1000", "0" } )
+  public int keyCacheSize;
+
+  private EnvelopeTwoWayPasswordEncoder encoder;
+  private String password;
+  private String[] encoded;
+
+  /**
+   * The position of a thread in the encoded passwords
+   */
+  @State( Scope.Thread )
+  public static class Cursor {
+    private int next;
+
+    int next( int length ) {
+      int current = next;
+      next = current + 1 == length ? 0 : current + 1;
+      return current;
+    }
+  }
+
+  /**
+   * A local key service answering after a delay
+   */
+  private static final class SlowKeyService implements KeyService {
+    private final KeyService keyService;
+    private final long latencyNanos;
+
+    SlowKeyService( KeyService keyService, long latencyNanos ) {
+      this.keyService = keyService;
+      this.latencyNanos = latencyNanos;
+    }
+
+    @Override
+    public DataKey generateDataKey() throws PasswordEncoderException {
+      pause();
+      return keyService.generateDataKey();
+    }
+
+    @Override
+    public byte[] unwrapDataKey( byte[] wrappedKey ) throws PasswordEncoderException {
+      pause();
+      return keyService.unwrapDataKey( wrappedKey );
+    }
+
+    private void pause() {
+      if ( latencyNanos > 0 ) {
+        LockSupport.parkNanos( latencyNanos );
+      }
+    }
+  }
+
+  @Setup
+  public void setup() throws PasswordEncoderException {
+    Properties settings = new Properties();
+    settings.setProperty( EnvelopeTwoWayPasswordEncoder.KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_SIZE,
+      String.valueOf( keyCacheSize ) );
+    KeyService keyService = new SlowKeyService( new LocalKeyService( "benchmark" ),
+      TimeUnit.MICROSECONDS.toNanos( keyServiceLatencyMicros ) );
+    password = BenchmarkData.password( 16, 42L );
+    encoded = new String[ DATA_KEYS * PASSWORDS_PER_DATA_KEY ];
+    for ( int key = 0; key < DATA_KEYS; key++ ) {
+      // Every encoder generates a data key of its own
+      EnvelopeTwoWayPasswordEncoder writer = new EnvelopeTwoWayPasswordEncoder( keyService, settings );
+      writer.init();
+      for ( int i = 0; i < PASSWORDS_PER_DATA_KEY; i++ ) {
+        encoded[ key * PASSWORDS_PER_DATA_KEY + i ] =
+          writer.encode( BenchmarkData.password( 16, key * PASSWORDS_PER_DATA_KEY + i ) );
+      }
+    }
+    encoder = new EnvelopeTwoWayPasswordEncoder( keyService, settings );
+    encoder.init();
+  }
+
+  @Benchmark
+  public String encode() {
+    return encoder.encode( password );
+  }
+
+  @Benchmark
+  public String decode( Cursor cursor ) {
+    return encoder.decode( encoded[ cursor.next( encoded.length ) ], true );
+  }
+
+  @Benchmark
+  @Threads( 4 )
+  public String decodeFourThreads( Cursor cursor ) {
+    return encoder.decode( encoded[ cursor.next( encoded.length ) ], true );
+  }
+}
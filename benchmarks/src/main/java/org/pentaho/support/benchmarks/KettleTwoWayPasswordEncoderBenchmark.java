@@ -0,0 +1,104 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.KettleTwoWayPasswordEncoder;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of the default Kettle encoder for a range of password lengths.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class KettleTwoWayPasswordEncoderBenchmark {
+
+  @Param( { "8", "32", "128" } )
+  public int passwordLength;
+
+  private KettleTwoWayPasswordEncoder encoder;
+  private String password;
+  private String encoded;
+  private char[] passwordChars;
+  private CharBuffer decodeBuffer;
+
+  @Setup
+  public void setup() {
+    encoder = new KettleTwoWayPasswordEncoder();
+    password = BenchmarkData.password( passwordLength, 42L );
+    encoded = encoder.encode( password );
+    passwordChars = password.toCharArray();
+    decodeBuffer = CharBuffer.allocate( passwordLength * 2 );
+  }
+
+  @Benchmark
+  public String encode() {
+    return encoder.encode( password );
+  }
+
+  @Benchmark
+  public String decode() {
+    return encoder.decode( encoded, true );
+  }
+
+  @Benchmark
+  public String encodeChars() {
+    return encoder.encodeChars( passwordChars, true );
+  }
+
+  @Benchmark
+  public int decodeInto() {
+    decodeBuffer.clear();
+    return encoder.decodeInto( encoded, true, decodeBuffer );
+  }
+
+  @Benchmark
+  @Threads( Threads.MAX )
+  public String encodeAllThreads() {
+    return encoder.encode( password );
+  }
+
+  @Benchmark
+  @Threads( Threads.MAX )
+  public String decodeAllThreads() {
+    return encoder.decode( encoded, true );
+  }
+}
@@ -0,0 +1,98 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+import org.pentaho.support.encryption.ReencryptionProgress;
+import org.pentaho.support.encryption.ReencryptionStores;
+import org.pentaho.support.encryption.Reencryptor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to re-encrypt a list of passwords with the {@link Reencryptor}, by number of worker threads. The passwords are
+ * re-encrypted with the encoder they are encrypted with, so this measures the pipeline on top of the encoder calls.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ReencryptorBenchmark {
+  private static final int VALUES = 100000;
+
+  @Param( { "1", "2", "4" } )
+  public int threads;
+
+  /**
+   * Decode the re-encrypted values again to check them
+   */
+  @Param( { "true", "false" } )
+  public boolean verify;
+
+  private Reencryptor reencryptor;
+  private List<String> values;
+  private List<String> results;
+
+  @Setup
+  public void setup() throws Exception {
+    Encr encr = Encr.getInstance();
+    values = new ArrayList<>( VALUES );
+    for ( int i = 0; i < VALUES; i++ ) {
+      values.add( encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, i ) ) );
+    }
+    results = new ArrayList<>( VALUES );
+    reencryptor = new Reencryptor( encr, "kettle", "kettle" );
+    reencryptor.setThreads( threads );
+    reencryptor.setVerify( verify );
+    reencryptor.setErrors( new PrintStream( new OutputStream() {
+      @Override
+      public void write( int b ) {
+        // Discard
+      }
+    } ) );
+  }
+
+  @Benchmark
+  public ReencryptionProgress reencrypt() throws IOException {
+    return reencryptor.run( ReencryptionStores.listSource( values ), ReencryptionStores.listSink( results ) );
+  }
+}
@@ -0,0 +1,73 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+import org.pentaho.support.encryption.SecretHandle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decrypting a password into an off-heap {@link SecretHandle} and closing it, against decrypting it into a
+ * String. The decrypted value cache is off for both.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SecretHandleBenchmark {
+  private Encr encr;
+  private String encrypted;
+
+  @Setup
+  public void setup() throws Exception {
+    encr = Encr.getInstance();
+    encr.disableDecryptCache();
+    encrypted = encr.encryptPasswordIfNotUsingVariables( BenchmarkData.password( 16, 11L ) );
+  }
+
+  @Benchmark
+  public String decryptToString() {
+    return encr.decryptPasswordOptionallyEncrypted( encrypted );
+  }
+
+  @Benchmark
+  public int decryptToHandle() {
+    try ( SecretHandle handle = encr.decryptPasswordToHandle( encrypted ) ) {
+      return handle.length();
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.utils.StringUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variable scanning on strings shaped like the values found in transformations and jobs.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class StringUtilBenchmark {
+
+  @Param( { "plain", "unix", "windows", "mixed", "long" } )
+  public String shape;
+
+  private String value;
+
+  @Setup
+  public void setup() {
+    value = BenchmarkData.variableString( shape );
+  }
+
+  @Benchmark
+  public List<String> getUsedVariables() {
+    List<String> variables = new ArrayList<>();
+    StringUtil.getUsedVariables( value, variables, true );
+    return variables;
+  }
+
+  @Benchmark
+  public List<String> getUsedVariablesWithoutSystemVariables() {
+    List<String> variables = new ArrayList<>();
+    StringUtil.getUsedVariables( value, variables, false );
+    return variables;
+  }
+
+  @Benchmark
+  public boolean containsVariables() {
+    return StringUtil.containsVariables( value );
+  }
+}
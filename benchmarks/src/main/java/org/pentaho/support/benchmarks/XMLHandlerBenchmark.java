@@ -0,0 +1,99 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.utils.XMLHandler;
+import org.pentaho.support.utils.XmlParseException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the password encoder plugin configuration repeatedly, with the cached document builder, with a new factory
+ * and builder every time (how every load used to work) and streaming it with StAX.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class XMLHandlerBenchmark {
+
+  private byte[] pluginXml;
+  private XMLInputFactory inputFactory;
+
+  @Setup
+  public void setup() throws IOException {
+    pluginXml = BenchmarkData.resource( BenchmarkData.PLUGIN_XML );
+    inputFactory = XMLHandler.createSecureXMLInputFactory();
+  }
+
+  @Benchmark
+  public Document loadPluginXml() throws XmlParseException {
+    return XMLHandler.loadXMLFile( new ByteArrayInputStream( pluginXml ), false );
+  }
+
+  @Benchmark
+  public Document loadPluginXmlWithNewFactory()
+    throws ParserConfigurationException, IOException, SAXException {
+    DocumentBuilderFactory dbf = XMLHandler.createSecureDocBuilderFactory();
+    dbf.setIgnoringComments( true );
+    return dbf.newDocumentBuilder().parse( new ByteArrayInputStream( pluginXml ) );
+  }
+
+  @Benchmark
+  public int streamPluginXml() throws XMLStreamException {
+    XMLStreamReader reader = inputFactory.createXMLStreamReader( new ByteArrayInputStream( pluginXml ) );
+    int elements = 0;
+    try {
+      while ( reader.hasNext() ) {
+        if ( reader.next() == XMLStreamReader.START_ELEMENT ) {
+          elements++;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return elements;
+  }
+}
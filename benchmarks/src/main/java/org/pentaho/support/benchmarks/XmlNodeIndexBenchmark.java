@@ -0,0 +1,107 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pentaho.support.utils.XMLHandler;
+import org.pentaho.support.utils.XmlNodeIndex;
+import org.pentaho.support.utils.XmlParseException;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading every setting of every connection of a transformation with the static {@link XMLHandler} lookups and with a
+ * {@link XmlNodeIndex}, kept between passes and built on every pass.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class XmlNodeIndexBenchmark {
+  private static final String[] TAGS = { "name", "server", "type", "database", "username", "password" };
+
+  @Param( { "10", "1000" } )
+  public int connections;
+
+  private Node transformation;
+  private List<XmlNodeIndex> connectionIndexes;
+
+  @Setup
+  public void setup() throws XmlParseException {
+    byte[] xml = BenchmarkData.transformation( connections, "Encrypted 2be98afc86aa7f2e4cb79ce10bef2cfc2" );
+    transformation = XMLHandler.getSubNode(
+      XMLHandler.loadXMLFile( new ByteArrayInputStream( xml ), false ), "transformation" );
+    connectionIndexes = new ArrayList<>();
+    for ( Node connection : XMLHandler.getNodes( transformation, "connection" ) ) {
+      connectionIndexes.add( XmlNodeIndex.of( connection ) );
+    }
+  }
+
+  @Benchmark
+  public void staticLookups( Blackhole blackhole ) {
+    List<Node> nodes = XMLHandler.getNodes( transformation, "connection" );
+    for ( Node connection : nodes ) {
+      for ( String tag : TAGS ) {
+        blackhole.consume( XMLHandler.getTagValue( connection, tag ) );
+      }
+    }
+  }
+
+  @Benchmark
+  public void indexedLookups( Blackhole blackhole ) {
+    for ( XmlNodeIndex index : connectionIndexes ) {
+      for ( String tag : TAGS ) {
+        blackhole.consume( index.getTagValue( tag ) );
+      }
+    }
+  }
+
+  @Benchmark
+  public void indexedLookupsWithBuild( Blackhole blackhole ) {
+    List<Node> nodes = XmlNodeIndex.of( transformation ).getNodes( "connection" );
+    for ( Node connection : nodes ) {
+      XmlNodeIndex index = XmlNodeIndex.of( connection );
+      for ( String tag : TAGS ) {
+        blackhole.consume( index.getTagValue( tag ) );
+      }
+    }
+  }
+}
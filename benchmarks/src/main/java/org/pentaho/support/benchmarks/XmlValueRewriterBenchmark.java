@@ -0,0 +1,127 @@
+package org.pentaho.support.benchmarks;
+
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.support.encryption.Encr;
+import org.pentaho.support.utils.XMLHandler;
+import org.pentaho.support.utils.XmlValueRewriter;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * Re-encrypting the passwords of a transformation by streaming it through {@link XmlValueRewriter}, compared to loading
+ * it as a DOM, rewriting the nodes and serializing it again.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx512m" } )
+public class XmlValueRewriterBenchmark {
+
+  @Param( { "100", "10000" } )
+  public int connections;
+
+  private byte[] document;
+  private XmlValueRewriter rewriter;
+  private UnaryOperator<String> stage;
+  private TransformerFactory transformerFactory;
+
+  @Setup
+  public void setup() throws Exception {
+    Encr encr = Encr.getInstance();
+    document = BenchmarkData.transformation( connections,
+      encr.encryptPasswordIfNotUsingVariables( "kettle", BenchmarkData.password( 16, 7L ) ) );
+    rewriter = XmlValueRewriter.reEncrypting( encr, "kettle", "kettle" );
+    final String[] prefixes = encr.getPrefixes( "kettle" );
+    stage = value -> {
+      for ( String prefix : prefixes ) {
+        if ( value.startsWith( prefix ) ) {
+          return encr.encryptPasswordIfNotUsingVariables( "kettle",
+            encr.decryptPasswordOptionallyEncrypted( "kettle", value ) );
+        }
+      }
+      return value;
+    };
+    transformerFactory = TransformerFactory.newInstance();
+  }
+
+  @Benchmark
+  public long stax() throws Exception {
+    BenchmarkData.CountingOutputStream out = new BenchmarkData.CountingOutputStream();
+    rewriter.rewrite( new ByteArrayInputStream( document ), out );
+    return out.getCount();
+  }
+
+  @Benchmark
+  public long dom() throws Exception {
+    Document dom = XMLHandler.loadXMLFile( new ByteArrayInputStream( document ), false );
+    rewrite( dom.getDocumentElement() );
+    BenchmarkData.CountingOutputStream out = new BenchmarkData.CountingOutputStream();
+    Transformer transformer = transformerFactory.newTransformer();
+    transformer.transform( new DOMSource( dom ), new StreamResult( out ) );
+    return out.getCount();
+  }
+
+  private void rewrite( Node node ) {
+    NamedNodeMap attributes = node.getAttributes();
+    if ( attributes != null ) {
+      for ( int i = 0; i < attributes.getLength(); i++ ) {
+        Node attribute = attributes.item( i );
+        attribute.setNodeValue( stage.apply( attribute.getNodeValue() ) );
+      }
+    }
+    NodeList children = node.getChildNodes();
+    for ( int i = 0; i < children.getLength(); i++ ) {
+      Node child = children.item( i );
+      if ( child.getNodeType() == Node.TEXT_NODE ) {
+        child.setNodeValue( stage.apply( child.getNodeValue() ) );
+      } else if ( child.getNodeType() == Node.ELEMENT_NODE ) {
+        rewrite( child );
+      }
+    }
+  }
+}
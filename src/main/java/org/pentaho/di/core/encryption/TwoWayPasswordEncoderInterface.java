@@ -24,6 +24,12 @@ package org.pentaho.di.core.encryption;
 
 import org.pentaho.support.encryption.PasswordEncoderException;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 /**
  * This interface was moved here  from kettle-core and for backwards compatibility the package named was not changed.
  * One change was made to throw a PasswordEncoderException on the init method rather than a KettleException.
@@ -70,4 +76,136 @@ public interface TwoWayPasswordEncoderInterface {
    * @return The prefixes to the encoded passwords which this password encoder supports.
    */
   public String[] getPrefixes();
+
+  /**
+   * Encode a batch of passwords. The default implementation calls {@link #encode(String, boolean)} for every entry,
+   * encoders can override it to share their setup work across the batch.
+   * @param passwords The passwords to encode
+   * @param includePrefix True if a prefix needs to be encoded
+   * @return The encoded password strings, in the same order as the passwords
+   */
+  public default String[] encodeAll( String[] passwords, boolean includePrefix ) {
+    String[] encoded = new String[ passwords.length ];
+    for ( int i = 0; i < passwords.length; i++ ) {
+      encoded[ i ] = encode( passwords[ i ], includePrefix );
+    }
+    return encoded;
+  }
+
+  /**
+   * Decode a batch of passwords. The default implementation calls {@link #decode(String, boolean)} for every entry,
+   * encoders can override it to share their setup work across the batch.
+   * @param encodedPasswords The encoded passwords with or without a prefix
+   * @param optionallyEncrypted Set to true if the passwords are optionally encrypted (indicated by a prefix).
+   * @return The decoded password strings, in the same order as the encoded passwords
+   */
+  public default String[] decodeAll( String[] encodedPasswords, boolean optionallyEncrypted ) {
+    String[] decoded = new String[ encodedPasswords.length ];
+    for ( int i = 0; i < encodedPasswords.length; i++ ) {
+      decoded[ i ] = decode( encodedPasswords[ i ], optionallyEncrypted );
+    }
+    return decoded;
+  }
+
+  /**
+   * Encode a password held in a character array, so the caller can wipe it afterwards. The default implementation
+   * converts the password to a String and calls {@link #encode(String, boolean)}, encoders can override it to avoid the
+   * copy.
+   * @param password The password to encode
+   * @param includePrefix True if a prefix needs to be encoded
+   * @return The encoded password string
+   */
+  public default String encodeChars( char[] password, boolean includePrefix ) {
+    return encodeChars( password == null ? null : CharBuffer.wrap( password ), includePrefix );
+  }
+
+  /**
+   * Encode the characters between the position and the limit of a buffer. The position of the buffer is not changed.
+   * The default implementation converts the password to a String and calls {@link #encode(String, boolean)}.
+   * @param password The password to encode
+   * @param includePrefix True if a prefix needs to be encoded
+   * @return The encoded password string
+   */
+  public default String encodeChars( CharBuffer password, boolean includePrefix ) {
+    return encode( password == null ? null : password.toString(), includePrefix );
+  }
+
+  /**
+   * Encode the password bytes between the position and the limit of a buffer, in the platform charset. The position of
+   * the buffer is not changed. The default implementation converts the password to a String and calls
+   * {@link #encode(String, boolean)}.
+   * @param password The password bytes to encode
+   * @param includePrefix True if a prefix needs to be encoded
+   * @return The encoded password string
+   */
+  public default String encodeBytes( ByteBuffer password, boolean includePrefix ) {
+    return encode( password == null ? null : Charset.defaultCharset().decode( password.duplicate() ).toString(),
+      includePrefix );
+  }
+
+  /**
+   * Decode a password into a buffer provided by the caller, starting at its position. The position is moved past the
+   * decoded characters. The default implementation calls {@link #decode(String, boolean)}, encoders can override it to
+   * avoid the intermediate String.
+   * @param encodedPassword The encoded password with or without a prefix
+   * @param optionallyEncrypted Set to true if the password is optionally encrypted (indicated by a prefix).
+   * @param out The buffer receiving the decoded password
+   * @return The number of characters written, or -1 if the encoded password is null
+   * @throws BufferOverflowException if the decoded password doesn't fit, nothing is written in that case
+   */
+  public default int decodeInto( CharSequence encodedPassword, boolean optionallyEncrypted, CharBuffer out ) {
+    if ( encodedPassword == null ) {
+      return -1;
+    }
+    String decoded = decode( encodedPassword.toString(), optionallyEncrypted );
+    if ( decoded == null ) {
+      return -1;
+    }
+    out.put( decoded );
+    return decoded.length();
+  }
+
+  /**
+   * Decode a password into a buffer provided by the caller, as bytes in the platform charset, starting at its position.
+   * The position is moved past the decoded bytes. The default implementation calls {@link #decode(String, boolean)}.
+   * @param encodedPassword The encoded password with or without a prefix
+   * @param optionallyEncrypted Set to true if the password is optionally encrypted (indicated by a prefix).
+   * @param out The buffer receiving the decoded password
+   * @return The number of bytes written, or -1 if the encoded password is null
+   * @throws BufferOverflowException if the decoded password doesn't fit, nothing is written in that case
+   */
+  public default int decodeInto( CharSequence encodedPassword, boolean optionallyEncrypted, ByteBuffer out ) {
+    if ( encodedPassword == null ) {
+      return -1;
+    }
+    String decoded = decode( encodedPassword.toString(), optionallyEncrypted );
+    if ( decoded == null ) {
+      return -1;
+    }
+    byte[] bytes = decoded.getBytes();
+    try {
+      if ( bytes.length > out.remaining() ) {
+        throw new BufferOverflowException();
+      }
+      out.put( bytes );
+      return bytes.length;
+    } finally {
+      Arrays.fill( bytes, (byte) 0 );
+    }
+  }
+
+  /**
+   * Decode a password into a new character array, which the caller can wipe once the password is no longer needed.
+   * The default implementation calls {@link #decode(String, boolean)}.
+   * @param encodedPassword The encoded password with or without a prefix
+   * @param optionallyEncrypted Set to true if the password is optionally encrypted (indicated by a prefix).
+   * @return The decoded password, or null if the encoded password is null
+   */
+  public default char[] decodeToChars( CharSequence encodedPassword, boolean optionallyEncrypted ) {
+    if ( encodedPassword == null ) {
+      return null;
+    }
+    String decoded = decode( encodedPassword.toString(), optionallyEncrypted );
+    return decoded == null ? null : decoded.toCharArray();
+  }
 }
@@ -0,0 +1,593 @@
+package org.pentaho.support.encryption;
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.StringUtil;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * Encrypts passwords with an authenticated cipher, AES-GCM or ChaCha20-Poly1305. Unlike the Kettle encoder this is
+ * real encryption: without the seed the passwords can't be read, and modified values are rejected instead of decoding
+ * to garbage.
+ * <p>
+ * The key is derived from the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED in {@link #init()}, once per encoder. Set the seed,
+ * with the default one the passwords are no better protected than by the Kettle encoder. That is why the encoder is
+ * not in the plugin index, it is only registered by a plugin xml file, which should give it a seed. The cipher is
+ * chosen with the KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM setting: "AES-GCM" (the default), "ChaCha20-Poly1305" or
+ * "auto". With "auto" AES-GCM is used when the JVM runs AES on the instructions of the CPU, otherwise both are timed
+ * during {@link #init()} and the faster one is used. Encrypted values record the cipher they were encrypted with, so
+ * values of either cipher are decoded whatever the setting.
+ * <p>
+ * An encrypted value is the prefix followed by the URL safe base64 form, without padding, of a cipher byte, a random 12
+ * byte nonce and the cipher text with its 16 byte tag. The password is encrypted as UTF-8.
+ */
+public class AeadTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterface {
+  /**
+   * The word that is put before a password to indicate an encrypted form. If this word is not present, the password is
+   * considered to be NOT encrypted
+   */
+  @SuppressWarnings( "squid:S2068" ) public static final String PASSWORD_ENCRYPTED_PREFIX = "AEAD ";
+
+  public static final String KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM = "KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM";
+
+  public static final String AES_GCM = "AES-GCM";
+  public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+  /**
+   * Pick the faster of the available ciphers when the encoder is initialized
+   */
+  public static final String AUTO = "auto";
+
+  private static final String DEFAULT_SEED = "0933910847463829827159347601486730416058";
+  private static final byte[] KEY_SALT =
+    "org.pentaho.support.encryption.AeadTwoWayPasswordEncoder".getBytes( StandardCharsets.UTF_8 );
+  // Changing the iterations changes the keys, passwords encrypted before could no longer be decrypted
+  private static final int KEY_ITERATIONS = 65536;
+  private static final int KEY_LENGTH = 32;
+
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  private static final int HEADER_LENGTH = 1 + NONCE_LENGTH;
+
+  private static final long CALIBRATION_NANOS = 10_000_000L;
+  private static final int CALIBRATION_ROUNDS = 3;
+  private static final int CALIBRATION_BATCH = 32;
+  private static final int CALIBRATION_PASSWORD_LENGTH = 32;
+
+  private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
+
+  /**
+   * A Cipher is expensive to look up, every thread keeps its own for every algorithm. Reusing them with the same key
+   * also lets the provider skip the key schedule.
+   */
+  private static final ThreadLocal<Worker> WORKERS = ThreadLocal.withInitial( Worker::new );
+
+  private enum Algorithm {
+    AES_GCM( (byte) 1, AeadTwoWayPasswordEncoder.AES_GCM, "AES/GCM/NoPadding", "AES", false ) {
+      @Override
+      AlgorithmParameterSpec parameters( byte[] value ) {
+        return new GCMParameterSpec( TAG_LENGTH * 8, value, 1, NONCE_LENGTH );
+      }
+    },
+    CHACHA20_POLY1305( (byte) 2, AeadTwoWayPasswordEncoder.CHACHA20_POLY1305, "ChaCha20-Poly1305", "ChaCha20",
+      true ) {
+      @Override
+      AlgorithmParameterSpec parameters( byte[] value ) {
+        return new IvParameterSpec( value, 1, NONCE_LENGTH );
+      }
+    };
+
+    private final byte id;
+    private final String displayName;
+    private final String transformation;
+    private final String keyAlgorithm;
+    // The cipher refuses to be initialized with the key and nonce of its previous initialization, whatever the mode
+    private final boolean rejectsRepeatedNonce;
+
+    Algorithm( byte id, String displayName, String transformation, String keyAlgorithm,
+               boolean rejectsRepeatedNonce ) {
+      this.id = id;
+      this.displayName = displayName;
+      this.transformation = transformation;
+      this.keyAlgorithm = keyAlgorithm;
+      this.rejectsRepeatedNonce = rejectsRepeatedNonce;
+    }
+
+    /**
+     * @param value an encrypted value, the nonce follows the cipher byte
+     */
+    abstract AlgorithmParameterSpec parameters( byte[] value );
+
+    boolean isAvailable() {
+      try {
+        Cipher.getInstance( transformation );
+        return true;
+      } catch ( NoSuchAlgorithmException | NoSuchPaddingException e ) {
+        return false;
+      }
+    }
+
+    static Algorithm of( byte id ) {
+      for ( Algorithm algorithm : values() ) {
+        if ( algorithm.id == id ) {
+          return algorithm;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final class Worker {
+    private final Cipher[] ciphers = new Cipher[ Algorithm.values().length ];
+    private final byte[][] nonces = new byte[ Algorithm.values().length ][];
+    // The nonces of a thread count up from a random start, drawing every nonce from a SecureRandom costs as much as
+    // the encryption. Two threads only reuse a nonce if their random starts are less than the number of passwords they
+    // encrypt apart, out of 2^96.
+    private final byte[] nonce = new byte[ NONCE_LENGTH ];
+
+    Worker() {
+      new SecureRandom().nextBytes( nonce );
+    }
+
+    /**
+     * Write the next nonce of this thread into the value, after the cipher byte.
+     */
+    void nextNonce( byte[] value ) {
+      for ( int i = NONCE_LENGTH - 1; i >= 0; i-- ) {
+        if ( ++nonce[ i ] != 0 ) {
+          break;
+        }
+      }
+      System.arraycopy( nonce, 0, value, 1, NONCE_LENGTH );
+    }
+
+    /**
+     * @param value the encrypted value the nonce is read from
+     * @return the cipher of this thread for the algorithm, initialized
+     */
+    Cipher init( Algorithm algorithm, int mode, SecretKey key, byte[] value ) throws GeneralSecurityException {
+      Cipher cipher = cipher( algorithm );
+      if ( algorithm.rejectsRepeatedNonce ) {
+        byte[] previous = nonces[ algorithm.ordinal() ];
+        if ( previous == null ) {
+          previous = new byte[ NONCE_LENGTH ];
+          nonces[ algorithm.ordinal() ] = previous;
+        } else if ( regionEquals( previous, value ) ) {
+          // Decrypting the same value twice in a row, move the cipher to another nonce first
+          byte[] other = value.clone();
+          other[ 1 ] ^= 1;
+          cipher.init( mode, key, algorithm.parameters( other ) );
+        }
+        System.arraycopy( value, 1, previous, 0, NONCE_LENGTH );
+      }
+      cipher.init( mode, key, algorithm.parameters( value ) );
+      return cipher;
+    }
+
+    private static boolean regionEquals( byte[] nonce, byte[] value ) {
+      for ( int i = 0; i < NONCE_LENGTH; i++ ) {
+        if ( nonce[ i ] != value[ i + 1 ] ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private Cipher cipher( Algorithm algorithm ) {
+      Cipher cipher = ciphers[ algorithm.ordinal() ];
+      if ( cipher == null ) {
+        try {
+          cipher = Cipher.getInstance( algorithm.transformation );
+        } catch ( NoSuchAlgorithmException | NoSuchPaddingException e ) {
+          throw new IllegalStateException( algorithm.displayName + " is not available in this Java runtime", e );
+        }
+        ciphers[ algorithm.ordinal() ] = cipher;
+      }
+      return cipher;
+    }
+  }
+
+  private final String seed;
+  private final String algorithmName;
+  private volatile SecretKey[] keys;
+  private volatile Algorithm algorithm;
+
+  public AeadTwoWayPasswordEncoder() {
+    this( System.getProperties() );
+  }
+
+  /**
+   * @param seed the seed to derive the keys from instead of the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED system property,
+   *             null for the default seed
+   */
+  public AeadTwoWayPasswordEncoder( String seed ) {
+    this( seed, System.getProperty( KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM ) );
+  }
+
+  /**
+   * @param settings the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED and KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM to use instead
+   *                 of the system properties, the defaults when they are not set
+   */
+  public AeadTwoWayPasswordEncoder( Properties settings ) {
+    this( settings.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED ),
+      settings.getProperty( KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM ) );
+  }
+
+  private AeadTwoWayPasswordEncoder( String seed, String algorithmName ) {
+    this.seed = seed == null ? DEFAULT_SEED : seed;
+    this.algorithmName = algorithmName;
+  }
+
+  /**
+   * Derive the keys from the seed and choose the cipher used to encrypt.
+   */
+  public void init() throws PasswordEncoderException {
+    Algorithm selected = selectAlgorithm( algorithmName );
+    keys = deriveKeys( seed );
+    if ( selected == null ) {
+      // A short timing mostly measures how far the JIT compiler got, trust the JVM when it knows about the CPU
+      selected = usesAesInstructions() ? Algorithm.AES_GCM : calibrate();
+    }
+    algorithm = selected;
+  }
+
+  /**
+   * @return the name of the cipher passwords are encrypted with, AES-GCM or ChaCha20-Poly1305
+   */
+  public String getAlgorithm() {
+    return getEncryptionAlgorithm().displayName;
+  }
+
+  public String encode( String rawPassword ) {
+    return encode( rawPassword, true );
+  }
+
+  public String encode( String rawPassword, boolean includePrefix ) {
+    if ( includePrefix && StringUtil.containsVariables( rawPassword ) ) {
+      return rawPassword;
+    }
+    String encrypted = encryptPasswordInternal( rawPassword );
+    return includePrefix ? PASSWORD_ENCRYPTED_PREFIX + encrypted : encrypted;
+  }
+
+  public String decode( String encodedPassword ) {
+    if ( encodedPassword != null && encodedPassword.startsWith( PASSWORD_ENCRYPTED_PREFIX ) ) {
+      encodedPassword = encodedPassword.substring( PASSWORD_ENCRYPTED_PREFIX.length() );
+    }
+    return decryptPasswordInternal( encodedPassword );
+  }
+
+  public String decode( String encodedPassword, boolean optionallyEncrypted ) {
+    if ( encodedPassword == null ) {
+      return null;
+    }
+    if ( optionallyEncrypted ) {
+      if ( encodedPassword.startsWith( PASSWORD_ENCRYPTED_PREFIX ) ) {
+        return decryptPasswordInternal( encodedPassword.substring( PASSWORD_ENCRYPTED_PREFIX.length() ) );
+      }
+      return encodedPassword;
+    }
+    return decryptPasswordInternal( encodedPassword );
+  }
+
+  /**
+   * Encodes the password characters without creating a String holding the password.
+   */
+  @Override
+  public String encodeChars( CharBuffer password, boolean includePrefix ) {
+    if ( password == null ) {
+      return encode( (String) null, includePrefix );
+    }
+    if ( includePrefix && StringUtil.containsVariables( password ) ) {
+      return password.toString();
+    }
+    String encrypted = "";
+    if ( password.hasRemaining() ) {
+      CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+      byte[] bytes = new byte[ (int) Math.ceil( password.remaining() * (double) encoder.maxBytesPerChar() ) ];
+      ByteBuffer buffer = ByteBuffer.wrap( bytes );
+      try {
+        encoder.encode( password.duplicate(), buffer, true );
+        encoder.flush( buffer );
+        encrypted = encrypt( getEncryptionAlgorithm(), bytes, 0, buffer.position() );
+      } finally {
+        Arrays.fill( bytes, (byte) 0 );
+      }
+    }
+    return includePrefix ? PASSWORD_ENCRYPTED_PREFIX + encrypted : encrypted;
+  }
+
+  /**
+   * Decodes the password without creating a String holding it.
+   */
+  @Override
+  public char[] decodeToChars( CharSequence encodedPassword, boolean optionallyEncrypted ) {
+    if ( encodedPassword == null ) {
+      return null;
+    }
+    int start = 0;
+    if ( optionallyEncrypted ) {
+      if ( !startsWithPrefix( encodedPassword ) ) {
+        char[] password = new char[ encodedPassword.length() ];
+        for ( int i = 0; i < password.length; i++ ) {
+          password[ i ] = encodedPassword.charAt( i );
+        }
+        return password;
+      }
+      start = PASSWORD_ENCRYPTED_PREFIX.length();
+    }
+    if ( start == encodedPassword.length() ) {
+      return new char[ 0 ];
+    }
+    byte[] bytes = decrypt( encodedPassword.subSequence( start, encodedPassword.length() ).toString() );
+    try {
+      CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+      char[] chars = new char[ (int) Math.ceil( bytes.length * (double) decoder.maxCharsPerByte() ) ];
+      CharBuffer out = CharBuffer.wrap( chars );
+      decoder.decode( ByteBuffer.wrap( bytes ), out, true );
+      decoder.flush( out );
+      if ( out.position() == chars.length ) {
+        return chars;
+      }
+      try {
+        return Arrays.copyOf( chars, out.position() );
+      } finally {
+        Arrays.fill( chars, '\0' );
+      }
+    } finally {
+      Arrays.fill( bytes, (byte) 0 );
+    }
+  }
+
+  public String[] getPrefixes() {
+    return new String[] { PASSWORD_ENCRYPTED_PREFIX };
+  }
+
+  protected String encryptPasswordInternal( String password ) {
+    if ( password == null || password.length() == 0 ) {
+      return "";
+    }
+    byte[] bytes = password.getBytes( StandardCharsets.UTF_8 );
+    try {
+      return encrypt( getEncryptionAlgorithm(), bytes, 0, bytes.length );
+    } finally {
+      Arrays.fill( bytes, (byte) 0 );
+    }
+  }
+
+  protected String decryptPasswordInternal( String encrypted ) {
+    if ( encrypted == null || encrypted.length() == 0 ) {
+      return "";
+    }
+    byte[] bytes = decrypt( encrypted );
+    try {
+      return new String( bytes, StandardCharsets.UTF_8 );
+    } finally {
+      Arrays.fill( bytes, (byte) 0 );
+    }
+  }
+
+  private String encrypt( Algorithm cipherAlgorithm, byte[] plain, int off, int len ) {
+    Worker worker = WORKERS.get();
+    byte[] value = new byte[ HEADER_LENGTH + len + TAG_LENGTH ];
+    value[ 0 ] = cipherAlgorithm.id;
+    worker.nextNonce( value );
+    try {
+      Cipher cipher = worker.init( cipherAlgorithm, Cipher.ENCRYPT_MODE, getKey( cipherAlgorithm ), value );
+      // The cipher byte is authenticated too
+      cipher.updateAAD( value, 0, 1 );
+      cipher.doFinal( plain, off, len, value, HEADER_LENGTH );
+    } catch ( GeneralSecurityException e ) {
+      throw new IllegalStateException( "Unable to encrypt with " + cipherAlgorithm.displayName, e );
+    }
+    return BASE64_ENCODER.encodeToString( value );
+  }
+
+  /**
+   * @return the password bytes, the caller wipes them
+   */
+  private byte[] decrypt( String encrypted ) {
+    byte[] value;
+    try {
+      value = BASE64_DECODER.decode( encrypted );
+    } catch ( IllegalArgumentException e ) {
+      throw new IllegalArgumentException( "The password is not a valid " + PASSWORD_ENCRYPTED_PREFIX.trim()
+        + " encrypted value", e );
+    }
+    Algorithm cipherAlgorithm = value.length < HEADER_LENGTH + TAG_LENGTH ? null : Algorithm.of( value[ 0 ] );
+    if ( cipherAlgorithm == null ) {
+      throw new IllegalArgumentException( "The password is not a valid " + PASSWORD_ENCRYPTED_PREFIX.trim()
+        + " encrypted value" );
+    }
+    try {
+      Cipher cipher = WORKERS.get().init( cipherAlgorithm, Cipher.DECRYPT_MODE, getKey( cipherAlgorithm ), value );
+      cipher.updateAAD( value, 0, 1 );
+      return cipher.doFinal( value, HEADER_LENGTH, value.length - HEADER_LENGTH );
+    } catch ( AEADBadTagException e ) {
+      throw new IllegalArgumentException(
+        "The password was encrypted with a different seed or has been modified, it can't be decrypted", e );
+    } catch ( GeneralSecurityException e ) {
+      throw new IllegalStateException( "Unable to decrypt with " + cipherAlgorithm.displayName, e );
+    }
+  }
+
+  private static boolean startsWithPrefix( CharSequence value ) {
+    int prefixLength = PASSWORD_ENCRYPTED_PREFIX.length();
+    if ( value.length() < prefixLength ) {
+      return false;
+    }
+    for ( int i = 0; i < prefixLength; i++ ) {
+      if ( value.charAt( i ) != PASSWORD_ENCRYPTED_PREFIX.charAt( i ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private SecretKey getKey( Algorithm cipherAlgorithm ) {
+    SecretKey[] current = keys;
+    if ( current == null ) {
+      throw new IllegalStateException( "The " + PASSWORD_ENCRYPTED_PREFIX.trim() + " encoder was not initialized" );
+    }
+    return current[ cipherAlgorithm.ordinal() ];
+  }
+
+  private Algorithm getEncryptionAlgorithm() {
+    Algorithm current = algorithm;
+    if ( current == null ) {
+      throw new IllegalStateException( "The " + PASSWORD_ENCRYPTED_PREFIX.trim() + " encoder was not initialized" );
+    }
+    return current;
+  }
+
+  /**
+   * @return the configured cipher, or null to calibrate
+   */
+  private static Algorithm selectAlgorithm( String algorithmName ) throws PasswordEncoderException {
+    String name = StringUtil.NVL( algorithmName, AES_GCM ).trim();
+    if ( AUTO.equalsIgnoreCase( name ) ) {
+      return Algorithm.CHACHA20_POLY1305.isAvailable() ? null : Algorithm.AES_GCM;
+    }
+    for ( Algorithm candidate : Algorithm.values() ) {
+      if ( candidate.displayName.equalsIgnoreCase( name ) ) {
+        if ( !candidate.isAvailable() ) {
+          throw new PasswordEncoderException( candidate.displayName + " is not available in this Java runtime" );
+        }
+        return candidate;
+      }
+    }
+    throw new PasswordEncoderException(
+      "Invalid value for " + KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM + ": '" + name + "'" );
+  }
+
+  /**
+   * One key for every cipher, all derived from the seed in one go.
+   */
+  private static SecretKey[] deriveKeys( String seed ) throws PasswordEncoderException {
+    Algorithm[] algorithms = Algorithm.values();
+    PBEKeySpec spec = new PBEKeySpec( seed.toCharArray(), KEY_SALT, KEY_ITERATIONS,
+      algorithms.length * KEY_LENGTH * 8 );
+    byte[] derived = null;
+    try {
+      derived = SecretKeyFactory.getInstance( "PBKDF2WithHmacSHA256" ).generateSecret( spec ).getEncoded();
+      SecretKey[] derivedKeys = new SecretKey[ algorithms.length ];
+      for ( Algorithm cipherAlgorithm : algorithms ) {
+        derivedKeys[ cipherAlgorithm.ordinal() ] = new SecretKeySpec( derived, cipherAlgorithm.ordinal() * KEY_LENGTH,
+          KEY_LENGTH, cipherAlgorithm.keyAlgorithm );
+      }
+      return derivedKeys;
+    } catch ( GeneralSecurityException e ) {
+      throw new PasswordEncoderException( "Unable to derive the encryption keys", e );
+    } finally {
+      spec.clearPassword();
+      if ( derived != null ) {
+        Arrays.fill( derived, (byte) 0 );
+      }
+    }
+  }
+
+  /**
+   * @return true if the JVM tells it uses the AES instructions of the CPU
+   */
+  private static boolean usesAesInstructions() {
+    try {
+      HotSpotDiagnosticMXBean diagnostic = ManagementFactory.getPlatformMXBean( HotSpotDiagnosticMXBean.class );
+      return diagnostic != null && Boolean.parseBoolean( diagnostic.getVMOption( "UseAES" ).getValue() );
+    } catch ( RuntimeException | LinkageError e ) {
+      // Not a HotSpot JVM or not a CPU HotSpot has AES instructions for
+      return false;
+    }
+  }
+
+  /**
+   * Encrypt a password of typical length with every cipher for a short while and return the one with the fastest
+   * batch. All the ciphers are warmed up first, then measured in alternating rounds. Taking the fastest batch rather
+   * than the number of passwords keeps hiccups of the host and the JIT compiler from deciding.
+   */
+  private Algorithm calibrate() {
+    Algorithm[] candidates = Algorithm.values();
+    byte[] password = new byte[ CALIBRATION_PASSWORD_LENGTH ];
+    long[] fastestBatch = new long[ candidates.length ];
+    Arrays.fill( fastestBatch, Long.MAX_VALUE );
+    for ( Algorithm candidate : candidates ) {
+      run( candidate, password );
+    }
+    for ( int round = 0; round < CALIBRATION_ROUNDS; round++ ) {
+      for ( Algorithm candidate : candidates ) {
+        int index = candidate.ordinal();
+        fastestBatch[ index ] = Math.min( fastestBatch[ index ], run( candidate, password ) );
+      }
+    }
+    Algorithm fastest = candidates[ 0 ];
+    for ( Algorithm candidate : candidates ) {
+      if ( fastestBatch[ candidate.ordinal() ] < fastestBatch[ fastest.ordinal() ] ) {
+        fastest = candidate;
+      }
+    }
+    return fastest;
+  }
+
+  /**
+   * @return the nanoseconds of the fastest batch
+   */
+  private long run( Algorithm candidate, byte[] password ) {
+    long fastest = Long.MAX_VALUE;
+    long end = System.nanoTime() + CALIBRATION_NANOS;
+    long now;
+    do {
+      long start = System.nanoTime();
+      for ( int i = 0; i < CALIBRATION_BATCH; i++ ) {
+        encrypt( candidate, password, 0, password.length );
+      }
+      now = System.nanoTime();
+      fastest = Math.min( fastest, now - start );
+    } while ( now < end );
+    return fastest;
+  }
+}
@@ -0,0 +1,115 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a {@link CredentialAuditScanner} found in a directory tree.
+ */
+public final class CredentialAuditReport {
+  private final long files;
+  private final long bytes;
+  private final long unreadableFiles;
+  private final Map<String, Long> values;
+  private final Map<String, Long> undecodable;
+  private final Map<String, Long> variables;
+  private final long elapsedNanos;
+
+  CredentialAuditReport( long files, long bytes, long unreadableFiles, Map<String, Long> values,
+                         Map<String, Long> undecodable, Map<String, Long> variables, long elapsedNanos ) {
+    this.files = files;
+    this.bytes = bytes;
+    this.unreadableFiles = unreadableFiles;
+    this.values = Collections.unmodifiableMap( new TreeMap<>( values ) );
+    this.undecodable = Collections.unmodifiableMap( new TreeMap<>( undecodable ) );
+    this.variables = Collections.unmodifiableMap( new TreeMap<>( variables ) );
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * @return the number of files scanned
+   */
+  public long getFiles() {
+    return files;
+  }
+
+  /**
+   * @return the size of the files scanned
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of files and directories which could not be read
+   */
+  public long getUnreadableFiles() {
+    return unreadableFiles;
+  }
+
+  /**
+   * @return the number of encrypted values by the id of the encoder owning their prefix, sorted by id
+   */
+  public Map<String, Long> getEncryptedValues() {
+    return values;
+  }
+
+  /**
+   * @return the number of encrypted values which do not decode, by encoder id. Empty when decoding was not checked.
+   */
+  public Map<String, Long> getUndecodableValues() {
+    return undecodable;
+  }
+
+  /**
+   * @return the number of references to every variable, sorted by name
+   */
+  public Map<String, Long> getVariableReferences() {
+    return variables;
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * @return the sum of the counts
+   */
+  static long total( Map<String, Long> counts ) {
+    long total = 0;
+    for ( long count : counts.values() ) {
+      total += count;
+    }
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return "CredentialAuditReport{files=" + files + ", bytes=" + bytes + ", unreadable=" + unreadableFiles
+      + ", encrypted=" + values + ", undecodable=" + undecodable + ", variableReferences=" + total( variables )
+      + ", variables=" + variables.size() + ", " + elapsedNanos / 1000000 + " ms}";
+  }
+}
@@ -0,0 +1,594 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.support.utils.VariableScanner;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Finds the encrypted values and the variable references in the files of a directory tree, to audit the credentials
+ * of a repository. A value is encrypted when it starts with the prefix of one of the encoders of an {@link Encr}, it
+ * runs up to the next white space, quote, comma, semicolon or markup character. Every encrypted value is decoded to
+ * check it, into a {@link SecretHandle} which is closed right away. Variables are the ${VAR} and %%VAR%% references
+ * {@link VariableScanner#DEFAULT} finds, a reference doesn't span lines.
+ * <p>
+ * The tree is walked on the calling thread, the files are scanned on worker threads. Files up to
+ * {@link #READ_BUFFER_SIZE} bytes are read into a direct buffer of the worker, larger ones are memory-mapped
+ * {@link #MAP_WINDOW_SIZE} bytes at a time. Neither lands on the heap.
+ */
+public final class CredentialAuditScanner {
+  /**
+   * The file extensions scanned by default
+   */
+  public static final String[] DEFAULT_EXTENSIONS = { "ktr", "kjb", "properties" };
+
+  /**
+   * Files up to this size are read, larger ones are memory-mapped
+   */
+  static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * The largest part of a file mapped at once
+   */
+  static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The number of bytes copied from a file buffer to the heap at once, to find the lines
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * Lines up to this length are copied to the heap to be scanned, longer ones are scanned in place
+   */
+  static final int MAX_COPIED_LINE = 64 * 1024;
+
+  private static final byte PREFIX = 1;
+  private static final byte VARIABLE = 2;
+
+  private final Encr encr;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private String[] extensions = DEFAULT_EXTENSIONS.clone();
+  private boolean decode = true;
+  private Consumer<Finding> findingListener;
+  private PrintStream errors = System.err;
+
+  /**
+   * @param encr the encoders whose prefixes are searched for
+   */
+  public CredentialAuditScanner( Encr encr ) {
+    this.encr = encr;
+  }
+
+  /**
+   * @param threads the number of worker threads, the number of processors by default
+   */
+  public void setThreads( int threads ) {
+    this.threads = Math.max( 1, threads );
+  }
+
+  /**
+   * @param extensions the extensions of the files to scan, without the dot and in any case. None scans every file.
+   */
+  public void setExtensions( String... extensions ) {
+    this.extensions = new String[ extensions.length ];
+    for ( int i = 0; i < extensions.length; i++ ) {
+      this.extensions[ i ] = "." + extensions[ i ].toLowerCase( Locale.ROOT );
+    }
+  }
+
+  /**
+   * @param decode false to only count the encrypted values, without checking that they decode
+   */
+  public void setDecode( boolean decode ) {
+    this.decode = decode;
+  }
+
+  /**
+   * @param listener receives every finding, from the worker threads
+   */
+  public void setFindingListener( Consumer<Finding> listener ) {
+    this.findingListener = listener;
+  }
+
+  /**
+   * @param errors receives a message for every file which can't be read, System.err by default
+   */
+  public void setErrors( PrintStream errors ) {
+    this.errors = errors;
+  }
+
+  /**
+   * @param root the directory to scan, or a single file
+   * @return the counts of the values found
+   * @throws IOException if the tree can't be walked, files which can't be read are reported and counted
+   */
+  public CredentialAuditReport scan( Path root ) throws IOException {
+    final Scan scan = new Scan( encr.getRegistry() );
+    long start = System.nanoTime();
+    final ThreadPoolExecutor workers = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>( threads * 64 ), runnable -> {
+        Thread thread = new Thread( runnable, "credential-audit" );
+        thread.setDaemon( true );
+        return thread;
+      }, new ThreadPoolExecutor.CallerRunsPolicy() );
+    try {
+      Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile( final Path file, BasicFileAttributes attributes ) {
+          if ( attributes.isRegularFile() && isScanned( file ) ) {
+            // Runs on the walking thread when the workers are behind, which bounds the files queued
+            workers.execute( () -> scan.file( file ) );
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed( Path file, IOException e ) {
+          scan.unreadable( file, e );
+          return FileVisitResult.CONTINUE;
+        }
+      } );
+      workers.shutdown();
+      while ( !workers.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+        // Keep waiting
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted while scanning " + root );
+    } finally {
+      workers.shutdownNow();
+    }
+    return new CredentialAuditReport( scan.files.sum(), scan.bytes.sum(), scan.unreadableFiles.sum(),
+      sums( scan.values ), sums( scan.undecodable ), sums( scan.variables ), System.nanoTime() - start );
+  }
+
+  private boolean isScanned( Path file ) {
+    if ( extensions.length == 0 ) {
+      return true;
+    }
+    String name = file.getFileName().toString().toLowerCase( Locale.ROOT );
+    for ( String extension : extensions ) {
+      if ( name.endsWith( extension ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Map<String, Long> sums( Map<String, LongAdder> counts ) {
+    Map<String, Long> sums = new HashMap<>();
+    for ( Map.Entry<String, LongAdder> count : counts.entrySet() ) {
+      sums.put( count.getKey(), count.getValue().sum() );
+    }
+    return sums;
+  }
+
+  private static void count( Map<String, LongAdder> counts, String key ) {
+    counts.computeIfAbsent( key, k -> new LongAdder() ).increment();
+  }
+
+  /**
+   * An encrypted value or a variable reference found in a file.
+   */
+  public static final class Finding {
+    private final Path file;
+    private final long line;
+    private final String encoderId;
+    private final String variable;
+    private final boolean decodable;
+
+    Finding( Path file, long line, String encoderId, String variable, boolean decodable ) {
+      this.file = file;
+      this.line = line;
+      this.encoderId = encoderId;
+      this.variable = variable;
+      this.decodable = decodable;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    /**
+     * @return the line number, from 1
+     */
+    public long getLine() {
+      return line;
+    }
+
+    /**
+     * @return the id of the encoder owning the prefix of an encrypted value, null for a variable reference
+     */
+    public String getEncoderId() {
+      return encoderId;
+    }
+
+    /**
+     * @return the name of a referenced variable, null for an encrypted value
+     */
+    public String getVariable() {
+      return variable;
+    }
+
+    /**
+     * @return false for an encrypted value which does not decode, true otherwise and when decoding was not checked
+     */
+    public boolean isDecodable() {
+      return decodable;
+    }
+
+    @Override
+    public String toString() {
+      String location = file + ":" + line + ": ";
+      if ( encoderId == null ) {
+        return location + "variable " + variable;
+      }
+      return location + "encrypted with '" + encoderId + "'" + ( decodable ? "" : ", does not decode" );
+    }
+  }
+
+  /**
+   * The state of one scan, shared by the workers.
+   */
+  private final class Scan {
+    private final EncoderRegistry registry;
+    /**
+     * What an ASCII character may start: {@link #PREFIX} and {@link #VARIABLE} bits
+     */
+    private final byte[] starts = new byte[ 128 ];
+    private final Map<String, String[]> prefixes = new ConcurrentHashMap<>();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder unreadableFiles = new LongAdder();
+    private final Map<String, LongAdder> values = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> undecodable = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> variables = new ConcurrentHashMap<>();
+    private final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> chunkBuffer = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> lineBuffer = new ThreadLocal<>();
+
+    Scan( EncoderRegistry registry ) {
+      this.registry = registry;
+      for ( char c : registry.getPrefixFirstChars() ) {
+        if ( c < starts.length ) {
+          starts[ c ] |= PREFIX;
+        }
+      }
+      for ( char c = 0; c < starts.length; c++ ) {
+        if ( VariableScanner.DEFAULT.isOpenStart( c ) ) {
+          starts[ c ] |= VARIABLE;
+        }
+      }
+    }
+
+    void file( Path file ) {
+      try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+        long size = channel.size();
+        FileScan fileScan = new FileScan( file );
+        if ( size <= READ_BUFFER_SIZE ) {
+          ByteBuffer buffer = readBuffer.get();
+          if ( buffer == null ) {
+            buffer = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+            readBuffer.set( buffer );
+          }
+          buffer.clear();
+          while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 ) {
+            // Read it all, the file may have grown since its size was taken
+          }
+          buffer.flip();
+          fileScan.lines( buffer, true );
+        } else {
+          long position = 0;
+          while ( position < size ) {
+            long length = Math.min( MAP_WINDOW_SIZE, size - position );
+            ByteBuffer window = channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+            boolean last = position + length == size;
+            int consumed = fileScan.lines( window, last );
+            // Continue with the line cut by the end of the window
+            position += consumed > 0 ? consumed : length;
+          }
+        }
+        files.increment();
+        bytes.add( size );
+      } catch ( IOException | RuntimeException e ) {
+        unreadable( file, e );
+      }
+    }
+
+    void unreadable( Path file, Exception e ) {
+      unreadableFiles.increment();
+      errors.println( "Error reading " + file + ": " + e );
+    }
+
+    /**
+     * @return the longest prefix of the encoder the value starts with
+     */
+    int prefixLength( String encoderId, CharSequence value ) {
+      String[] encoderPrefixes = prefixes.computeIfAbsent( encoderId, id -> {
+        String[] found = registry.getEncoder( id ).getPrefixes();
+        return found == null ? new String[ 0 ] : found;
+      } );
+      int length = 0;
+      for ( String prefix : encoderPrefixes ) {
+        if ( prefix != null && prefix.length() > length && prefix.length() <= value.length()
+          && prefix.contentEquals( value.subSequence( 0, prefix.length() ) ) ) {
+          length = prefix.length();
+        }
+      }
+      return length;
+    }
+
+    boolean decodes( String encoderId, String value ) {
+      try ( SecretHandle handle = encr.decryptPasswordToHandle( encoderId, value ) ) {
+        // The Kettle encoder decodes a value it can't read to an empty password
+        return handle != null && handle.length() > 0;
+      } catch ( RuntimeException e ) {
+        return false;
+      }
+    }
+
+    /**
+     * The state of the scan of one file.
+     */
+    private final class FileScan implements VariableScanner.Visitor {
+      private final Path file;
+      private final ByteView line = new ByteView();
+      private final ByteView tail = new ByteView();
+      private ByteBuffer window;
+      private long lineNumber = 1;
+
+      FileScan( Path file ) {
+        this.file = file;
+      }
+
+      /**
+       * Scan the lines of the buffer, from its position to its limit.
+       *
+       * @param last true if the buffer ends with the end of the file
+       * @return the number of bytes scanned, up to the start of the last line when it may go on after the buffer
+       */
+      int lines( ByteBuffer buffer, boolean last ) {
+        window = buffer.duplicate();
+        int start = buffer.position();
+        int end = buffer.limit();
+        int lineStart = start;
+        int firstPrefix = -1;
+        int firstVariable = -1;
+        byte[] chunk = chunkBuffer();
+        for ( int offset = start; offset < end; offset += chunk.length ) {
+          // Reading a heap array is much faster than reading the buffer one byte at a time
+          int length = Math.min( chunk.length, end - offset );
+          window.clear();
+          window.position( offset );
+          window.get( chunk, 0, length );
+          for ( int j = 0; j < length; j++ ) {
+            int b = chunk[ j ];
+            if ( b == '\n' ) {
+              // Most lines have neither a prefix nor a variable
+              if ( firstPrefix >= 0 || firstVariable >= 0 ) {
+                line( lineStart, offset + j, firstPrefix, firstVariable );
+              }
+              lineNumber++;
+              lineStart = offset + j + 1;
+              firstPrefix = -1;
+              firstVariable = -1;
+            } else if ( b >= 0 && starts[ b ] != 0 ) {
+              if ( firstPrefix < 0 && ( starts[ b ] & PREFIX ) != 0 ) {
+                firstPrefix = offset + j;
+              }
+              if ( firstVariable < 0 && ( starts[ b ] & VARIABLE ) != 0 ) {
+                firstVariable = offset + j;
+              }
+            }
+          }
+        }
+        if ( lineStart < end && ( last || lineStart == start ) ) {
+          // A line longer than the buffer is cut
+          if ( firstPrefix >= 0 || firstVariable >= 0 ) {
+            line( lineStart, end, firstPrefix, firstVariable );
+          }
+          lineStart = end;
+        }
+        return lineStart - start;
+      }
+
+      /**
+       * Scan a line from the first character which may start a prefix or a variable, -1 if there is none.
+       */
+      private void line( int start, int end, int firstPrefix, int firstVariable ) {
+        int from = firstPrefix < 0 ? firstVariable
+          : firstVariable < 0 ? firstPrefix : Math.min( firstPrefix, firstVariable );
+        int length = end - from;
+        if ( length <= MAX_COPIED_LINE ) {
+          byte[] bytes = lineBuffer( length );
+          window.clear();
+          window.position( from );
+          window.get( bytes, 0, length );
+          line.set( bytes, null, 0, length );
+        } else {
+          line.set( null, window, from, end );
+        }
+        if ( firstPrefix >= 0 ) {
+          values( firstPrefix - from );
+        }
+        if ( firstVariable >= 0 ) {
+          VariableScanner.DEFAULT.scan( tail.view( line, firstVariable - from, length ), this );
+        }
+      }
+
+      private void values( int from ) {
+        int length = line.length();
+        for ( int i = from; i < length; i++ ) {
+          int b = line.byteAt( i );
+          if ( b < 0 || ( starts[ b ] & PREFIX ) == 0 ) {
+            continue;
+          }
+          tail.view( line, i, length );
+          String encoderId = registry.findEncoderIdByPrefix( tail );
+          if ( encoderId == null ) {
+            continue;
+          }
+          int valueStart = i + prefixLength( encoderId, tail );
+          int valueEnd = valueStart;
+          while ( valueEnd < length && !isValueEnd( line.byteAt( valueEnd ) ) ) {
+            valueEnd++;
+          }
+          count( values, encoderId );
+          // Only the prefix is an empty password
+          boolean decodable = !decode || valueEnd == valueStart || decodes( encoderId, line.decode( i, valueEnd ) );
+          if ( !decodable ) {
+            count( undecodable, encoderId );
+          }
+          report( new Finding( file, lineNumber, encoderId, null, decodable ) );
+          i = valueEnd - 1;
+        }
+      }
+
+      @Override
+      public void variable( CharSequence source, int start, int end, int delimiter ) {
+        String variable = ( (ByteView) source ).decode( start, end );
+        count( variables, variable );
+        report( new Finding( file, lineNumber, null, variable, true ) );
+      }
+
+      private void report( Finding finding ) {
+        if ( findingListener != null ) {
+          findingListener.accept( finding );
+        }
+      }
+    }
+
+    /**
+     * @return the buffer of the thread to read a file through, {@link #CHUNK_SIZE} bytes at a time
+     */
+    private byte[] chunkBuffer() {
+      byte[] chunk = chunkBuffer.get();
+      if ( chunk == null ) {
+        chunk = new byte[ CHUNK_SIZE ];
+        chunkBuffer.set( chunk );
+      }
+      return chunk;
+    }
+
+    /**
+     * @return the line buffer of the thread, with at least length bytes
+     */
+    private byte[] lineBuffer( int length ) {
+      byte[] bytes = lineBuffer.get();
+      if ( bytes == null || bytes.length < length ) {
+        bytes = new byte[ Math.max( length, 1024 ) ];
+        lineBuffer.set( bytes );
+      }
+      return bytes;
+    }
+  }
+
+  private static boolean isValueEnd( byte b ) {
+    return b <= ' ' || b == '<' || b == '>' || b == '"' || b == '\'' || b == '&' || b == ',' || b == ';';
+  }
+
+  /**
+   * Bytes seen as characters, one per byte, in a heap array or else in a buffer. The prefixes and the variable
+   * delimiters are ASCII, which no byte of a multi-byte UTF-8 character matches.
+   */
+  private static final class ByteView implements CharSequence {
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    ByteView set( byte[] array, ByteBuffer buffer, int start, int end ) {
+      this.array = array;
+      this.buffer = buffer;
+      this.start = start;
+      this.end = end;
+      return this;
+    }
+
+    /**
+     * @return this, viewing the characters from to to of another view
+     */
+    ByteView view( ByteView of, int from, int to ) {
+      return set( of.array, of.buffer, of.start + from, of.start + to );
+    }
+
+    byte byteAt( int index ) {
+      return array != null ? array[ start + index ] : buffer.get( start + index );
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt( int index ) {
+      return (char) ( byteAt( index ) & 0xff );
+    }
+
+    @Override
+    public CharSequence subSequence( int from, int to ) {
+      return new ByteView().view( this, from, to );
+    }
+
+    /**
+     * @return the characters between from and to, decoded as UTF-8
+     */
+    String decode( int from, int to ) {
+      if ( array != null ) {
+        return new String( array, start + from, to - from, StandardCharsets.UTF_8 );
+      }
+      byte[] bytes = new byte[ to - from ];
+      for ( int i = 0; i < bytes.length; i++ ) {
+        bytes[ i ] = buffer.get( start + from + i );
+      }
+      return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    @Override
+    public String toString() {
+      return decode( 0, length() );
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The data keys a {@link KeyService} unwrapped, keyed by their wrapped form. The cache holds at most a number of keys,
+ * the least recently used go first, and a key expires some time after it was unwrapped, so a key revoked in the
+ * service stops being usable without a restart.
+ * <p>
+ * Threads which need a key that is being unwrapped wait for that call rather than make their own, so the service is
+ * called once per key however many passwords using it are decrypted at the same time. Failed calls are not cached.
+ */
+final class DataKeyCache {
+  private final KeyService keyService;
+  private final int maximumSize;
+  private final long timeToLiveNanos;
+
+  private final Map<WrappedKey, CachedKey> entries;
+  private final ConcurrentMap<WrappedKey, CompletableFuture<SecretKey>> unwrapping = new ConcurrentHashMap<>();
+
+  /**
+   * @param keyService       the service unwrapping the keys
+   * @param maximumSize      the maximum number of keys, 0 to only share the calls in progress
+   * @param timeToLiveMillis the time after which a key is unwrapped again, 0 or less to keep keys until evicted
+   */
+  DataKeyCache( KeyService keyService, int maximumSize, long timeToLiveMillis ) {
+    if ( maximumSize < 0 ) {
+      throw new IllegalArgumentException( "The maximum size of the data key cache can't be negative" );
+    }
+    this.keyService = keyService;
+    this.maximumSize = maximumSize;
+    this.timeToLiveNanos = timeToLiveMillis > 0 ? TimeUnit.MILLISECONDS.toNanos( timeToLiveMillis ) : 0;
+    this.entries = new LinkedHashMap<WrappedKey, CachedKey>( 16, 0.75f, true ) {
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<WrappedKey, CachedKey> eldest ) {
+        return size() > DataKeyCache.this.maximumSize;
+      }
+    };
+  }
+
+  /**
+   * @param wrappedKey the wrapped form of the key, the cache keeps it so it must not be changed afterwards
+   * @return the data key as an AES key
+   * @throws PasswordEncoderException if the key service can't unwrap the key
+   */
+  SecretKey get( byte[] wrappedKey ) throws PasswordEncoderException {
+    WrappedKey key = new WrappedKey( wrappedKey );
+    SecretKey cached = lookUp( key );
+    if ( cached != null ) {
+      return cached;
+    }
+    CompletableFuture<SecretKey> call = new CompletableFuture<>();
+    CompletableFuture<SecretKey> inProgress = unwrapping.putIfAbsent( key, call );
+    if ( inProgress != null ) {
+      return await( inProgress );
+    }
+    try {
+      // Unwrapped by another thread between the look up and now
+      SecretKey secretKey = lookUp( key );
+      if ( secretKey == null ) {
+        secretKey = unwrap( key );
+        put( key, secretKey );
+      }
+      call.complete( secretKey );
+      return secretKey;
+    } catch ( PasswordEncoderException | RuntimeException e ) {
+      call.completeExceptionally( e );
+      throw e;
+    } finally {
+      unwrapping.remove( key, call );
+    }
+  }
+
+  /**
+   * Add a key generated by the service, so the passwords encrypted with it are decrypted without a call.
+   */
+  void put( byte[] wrappedKey, SecretKey secretKey ) {
+    put( new WrappedKey( wrappedKey.clone() ), secretKey );
+  }
+
+  int size() {
+    synchronized ( entries ) {
+      return entries.size();
+    }
+  }
+
+  private SecretKey lookUp( WrappedKey key ) {
+    synchronized ( entries ) {
+      CachedKey entry = entries.get( key );
+      if ( entry == null ) {
+        return null;
+      }
+      if ( timeToLiveNanos > 0 && System.nanoTime() - entry.unwrappedNanos >= timeToLiveNanos ) {
+        entries.remove( key );
+        return null;
+      }
+      return entry.secretKey;
+    }
+  }
+
+  private void put( WrappedKey key, SecretKey secretKey ) {
+    if ( maximumSize == 0 ) {
+      return;
+    }
+    synchronized ( entries ) {
+      entries.put( key, new CachedKey( secretKey, System.nanoTime() ) );
+    }
+  }
+
+  private SecretKey unwrap( WrappedKey key ) throws PasswordEncoderException {
+    byte[] dataKey = keyService.unwrapDataKey( key.bytes.clone() );
+    if ( dataKey == null ) {
+      throw new PasswordEncoderException( "The key service returned no data key" );
+    }
+    try {
+      return new SecretKeySpec( dataKey, "AES" );
+    } finally {
+      Arrays.fill( dataKey, (byte) 0 );
+    }
+  }
+
+  private static SecretKey await( CompletableFuture<SecretKey> inProgress ) throws PasswordEncoderException {
+    try {
+      return inProgress.get();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new PasswordEncoderException( "Interrupted while waiting for the data key to be unwrapped", e );
+    } catch ( ExecutionException e ) {
+      // Thrown again by the thread which made the call, this one gets its own exception with its own stack
+      throw new PasswordEncoderException( "Unable to unwrap the data key", e.getCause() );
+    }
+  }
+
+  private static final class CachedKey {
+    private final SecretKey secretKey;
+    private final long unwrappedNanos;
+
+    CachedKey( SecretKey secretKey, long unwrappedNanos ) {
+      this.secretKey = secretKey;
+      this.unwrappedNanos = unwrappedNanos;
+    }
+  }
+
+  private static final class WrappedKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    WrappedKey( byte[] bytes ) {
+      this.bytes = bytes;
+      this.hash = Arrays.hashCode( bytes );
+    }
+
+    @Override
+    public boolean equals( Object other ) {
+      return other instanceof WrappedKey && hash == ( (WrappedKey) other ).hash
+        && Arrays.equals( bytes, ( (WrappedKey) other ).bytes );
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
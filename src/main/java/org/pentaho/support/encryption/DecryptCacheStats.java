@@ -0,0 +1,89 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * A point in time view of the statistics of the decrypted password cache of {@link Encr}.
+ */
+public final class DecryptCacheStats {
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
+  private final long expirationCount;
+  private final long size;
+  private final long maximumSize;
+
+  DecryptCacheStats( long hitCount, long missCount, long evictionCount, long expirationCount, long size,
+                     long maximumSize ) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    this.expirationCount = expirationCount;
+    this.size = size;
+    this.maximumSize = maximumSize;
+  }
+
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * @return the fraction of lookups which were served from the cache, 0 if there were no lookups
+   */
+  public double getHitRate() {
+    long requests = hitCount + missCount;
+    return requests == 0 ? 0.0 : (double) hitCount / requests;
+  }
+
+  /**
+   * @return the number of entries removed to stay within the maximum size
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return the number of entries removed because their time to live had passed
+   */
+  public long getExpirationCount() {
+    return expirationCount;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  @Override
+  public String toString() {
+    return "DecryptCacheStats{hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount
+      + ", expirations=" + expirationCount + ", size=" + size + "/" + maximumSize + "}";
+  }
+}
@@ -0,0 +1,226 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size bounded, least recently used cache of decrypted passwords keyed by encoder id and encrypted value. Entries can
+ * expire after a time to live. Decrypted values are held as character arrays which are wiped when an entry is evicted,
+ * expires or the cache is invalidated.
+ * <p>
+ * The cache is split in segments, each guarded by its own lock, to keep contention low.
+ */
+final class DecryptedValueCache {
+  private static final int MAX_SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final long timeToLiveNanos;
+  private final int maximumSize;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  /**
+   * @param maximumSize      the maximum number of entries
+   * @param timeToLiveMillis the time after which an entry expires, 0 or less to never expire entries
+   */
+  DecryptedValueCache( int maximumSize, long timeToLiveMillis ) {
+    if ( maximumSize <= 0 ) {
+      throw new IllegalArgumentException( "The maximum size of the cache must be positive" );
+    }
+    this.maximumSize = maximumSize;
+    this.timeToLiveNanos = timeToLiveMillis > 0 ? TimeUnit.MILLISECONDS.toNanos( timeToLiveMillis ) : 0;
+
+    int segmentCount = Math.min( MAX_SEGMENTS, Integer.highestOneBit( maximumSize ) );
+    segments = new Segment[ segmentCount ];
+    for ( int i = 0; i < segmentCount; i++ ) {
+      // Spread the remainder so the segment capacities add up to the maximum size
+      int capacity = maximumSize / segmentCount + ( i < maximumSize % segmentCount ? 1 : 0 );
+      segments[ i ] = new Segment( capacity );
+    }
+  }
+
+  /**
+   * @return the decrypted value, or null if it isn't cached
+   */
+  String get( String encoderId, boolean optionallyEncrypted, String encrypted ) {
+    Key key = new Key( encoderId, optionallyEncrypted, encrypted );
+    String value = segmentFor( key ).get( key );
+    if ( value == null ) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return value;
+  }
+
+  void put( String encoderId, boolean optionallyEncrypted, String encrypted, String decrypted ) {
+    Key key = new Key( encoderId, optionallyEncrypted, encrypted );
+    long expiresAt = timeToLiveNanos > 0 ? System.nanoTime() + timeToLiveNanos : 0;
+    segmentFor( key ).put( key, new CachedValue( decrypted.toCharArray(), expiresAt ) );
+  }
+
+  /**
+   * Remove and wipe all the entries.
+   */
+  void invalidateAll() {
+    for ( Segment segment : segments ) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * @return an empty cache with the same maximum size and time to live
+   */
+  DecryptedValueCache emptyCopy() {
+    return new DecryptedValueCache( maximumSize, TimeUnit.NANOSECONDS.toMillis( timeToLiveNanos ) );
+  }
+
+  DecryptCacheStats getStats() {
+    long size = 0;
+    for ( Segment segment : segments ) {
+      size += segment.size();
+    }
+    return new DecryptCacheStats( hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), size, maximumSize );
+  }
+
+  private Segment segmentFor( Key key ) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[ hash & ( segments.length - 1 ) ];
+  }
+
+  private final class Segment {
+    private final Map<Key, CachedValue> entries;
+
+    Segment( final int capacity ) {
+      entries = new LinkedHashMap<Key, CachedValue>( 16, 0.75f, true ) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Key, CachedValue> eldest ) {
+          if ( size() > capacity ) {
+            eldest.getValue().wipe();
+            evictions.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    synchronized String get( Key key ) {
+      CachedValue entry = entries.get( key );
+      if ( entry == null ) {
+        return null;
+      }
+      if ( entry.isExpired() ) {
+        entries.remove( key );
+        entry.wipe();
+        expirations.increment();
+        return null;
+      }
+      // Copied under the lock, the array is wiped as soon as the entry is evicted
+      return new String( entry.value );
+    }
+
+    synchronized void put( Key key, CachedValue entry ) {
+      CachedValue previous = entries.put( key, entry );
+      if ( previous != null ) {
+        previous.wipe();
+      }
+    }
+
+    synchronized void clear() {
+      for ( Iterator<CachedValue> it = entries.values().iterator(); it.hasNext(); ) {
+        it.next().wipe();
+        it.remove();
+      }
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+  }
+
+  private static final class CachedValue {
+    private final char[] value;
+    private final long expiresAt;
+
+    CachedValue( char[] value, long expiresAt ) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired() {
+      return expiresAt != 0 && System.nanoTime() - expiresAt >= 0;
+    }
+
+    void wipe() {
+      Arrays.fill( value, '\0' );
+    }
+  }
+
+  private static final class Key {
+    private final String encoderId;
+    private final boolean optionallyEncrypted;
+    private final String encrypted;
+    private final int hash;
+
+    Key( String encoderId, boolean optionallyEncrypted, String encrypted ) {
+      this.encoderId = encoderId;
+      this.optionallyEncrypted = optionallyEncrypted;
+      this.encrypted = encrypted;
+      int h = encoderId == null ? 0 : encoderId.hashCode();
+      h = 31 * h + ( optionallyEncrypted ? 1 : 0 );
+      this.hash = 31 * h + encrypted.hashCode();
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( !( o instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && optionallyEncrypted == other.optionallyEncrypted
+        && encrypted.equals( other.encrypted )
+        && ( encoderId == null ? other.encoderId == null : encoderId.equals( other.encoderId ) );
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a batch of encode or decode operations against a single encoder, optionally split into chunks on a
+ * {@link ForkJoinPool}. Every chunk is handed to {@link TwoWayPasswordEncoderInterface#encodeAll(String[], boolean)} or
+ * {@link TwoWayPasswordEncoderInterface#decodeAll(String[], boolean)} so the encoder can amortize its setup.
+ */
+final class EncoderBatch extends RecursiveAction {
+  private static final long serialVersionUID = 5271306452930412734L;
+
+  /**
+   * Batches of this size or smaller are never split.
+   */
+  static final int CHUNK_SIZE = 1024;
+
+  private final transient TwoWayPasswordEncoderInterface encoder;
+  private final boolean encode;
+  private final boolean flag;
+  private final String[] values;
+  private final String[] results;
+  private final int from;
+  private final int to;
+
+  private EncoderBatch( TwoWayPasswordEncoderInterface encoder, boolean encode, boolean flag, String[] values,
+                        String[] results, int from, int to ) {
+    this.encoder = encoder;
+    this.encode = encode;
+    this.flag = flag;
+    this.values = values;
+    this.results = results;
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * @param encoder       the encoder to use
+   * @param passwords     the passwords to encode
+   * @param includePrefix true if a prefix needs to be encoded
+   * @param pool          the pool to spread large batches over, or null to run on the calling thread
+   * @return the encoded passwords, in the same order
+   */
+  static String[] encodeAll( TwoWayPasswordEncoderInterface encoder, String[] passwords, boolean includePrefix,
+                             ForkJoinPool pool ) {
+    return run( encoder, true, includePrefix, passwords, pool );
+  }
+
+  /**
+   * @param encoder             the encoder to use
+   * @param encodedPasswords    the passwords to decode
+   * @param optionallyEncrypted true if the passwords are optionally encrypted (indicated by a prefix)
+   * @param pool                the pool to spread large batches over, or null to run on the calling thread
+   * @return the decoded passwords, in the same order
+   */
+  static String[] decodeAll( TwoWayPasswordEncoderInterface encoder, String[] encodedPasswords,
+                             boolean optionallyEncrypted, ForkJoinPool pool ) {
+    return run( encoder, false, optionallyEncrypted, encodedPasswords, pool );
+  }
+
+  private static String[] run( TwoWayPasswordEncoderInterface encoder, boolean encode, boolean flag, String[] values,
+                               ForkJoinPool pool ) {
+    if ( values == null ) {
+      return null;
+    }
+    if ( pool == null || values.length <= CHUNK_SIZE ) {
+      return encode ? encoder.encodeAll( values, flag ) : encoder.decodeAll( values, flag );
+    }
+    String[] results = new String[ values.length ];
+    pool.invoke( new EncoderBatch( encoder, encode, flag, values, results, 0, values.length ) );
+    return results;
+  }
+
+  @Override
+  protected void compute() {
+    if ( to - from <= CHUNK_SIZE ) {
+      String[] chunk = Arrays.copyOfRange( values, from, to );
+      String[] chunkResults = encode ? encoder.encodeAll( chunk, flag ) : encoder.decodeAll( chunk, flag );
+      System.arraycopy( chunkResults, 0, results, from, chunkResults.length );
+    } else {
+      int middle = ( from + to ) >>> 1;
+      invokeAll( new EncoderBatch( encoder, encode, flag, values, results, from, middle ),
+        new EncoderBatch( encoder, encode, flag, values, results, middle, to ) );
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the asynchronous calls to one encoder, so a slow or failing encoder only uses up threads and queue slots of its
+ * own. At most a number of calls run at the same time and a number more wait; calls beyond that fail right away with
+ * a {@link RejectedExecutionException}. Calls run on virtual threads when the JVM has them, otherwise on a pool whose
+ * threads stop when they are idle.
+ * <p>
+ * A call which doesn't complete in time fails with a {@link TimeoutException}. It is not interrupted, encoders aren't
+ * written to be, and keeps its thread until it returns. A call which timed out or was cancelled while it waited is not
+ * run.
+ */
+final class EncoderBulkhead {
+  private static final long IDLE_SECONDS = 60;
+
+  private final String encoderId;
+  private final long timeoutMillis;
+  private final ExecutorService executor;
+
+  /**
+   * The calls running or waiting
+   */
+  private final Semaphore admitted;
+
+  /**
+   * The calls running, null when the executor bounds them
+   */
+  private final Semaphore running;
+
+  /**
+   * @param encoderId         the id of the encoder, for the thread names and the error messages
+   * @param threads           the maximum number of calls running at the same time
+   * @param queueSize         the maximum number of calls waiting
+   * @param timeoutMillis     the number of milliseconds after which a call fails, 0 for no limit
+   * @param useVirtualThreads true to run on virtual threads if the JVM has them
+   */
+  EncoderBulkhead( String encoderId, int threads, int queueSize, long timeoutMillis, boolean useVirtualThreads ) {
+    if ( threads <= 0 || queueSize < 0 ) {
+      throw new IllegalArgumentException( "Invalid bulkhead for password encoder '" + encoderId + "': " + threads
+        + " threads, " + queueSize + " queued calls" );
+    }
+    this.encoderId = encoderId;
+    this.timeoutMillis = timeoutMillis;
+    this.admitted = new Semaphore( (int) Math.min( Integer.MAX_VALUE, (long) threads + queueSize ) );
+    ExecutorService virtualThreads = useVirtualThreads ? VirtualThreads.newExecutor() : null;
+    if ( virtualThreads != null ) {
+      executor = virtualThreads;
+      running = new Semaphore( threads );
+    } else {
+      // The queue never holds more than the admitted calls
+      ThreadPoolExecutor pool = new ThreadPoolExecutor( threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread( runnable, "password-encoder-" + encoderId );
+          thread.setDaemon( true );
+          return thread;
+        } );
+      pool.allowCoreThreadTimeOut( true );
+      executor = pool;
+      running = null;
+    }
+  }
+
+  /**
+   * @param call the call to the encoder
+   * @return the result of the call, completed on the thread which ran it
+   */
+  <T> CompletableFuture<T> submit( Callable<T> call ) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    if ( !admitted.tryAcquire() ) {
+      result.completeExceptionally( new RejectedExecutionException(
+        "Too many calls are waiting for password encoder '" + encoderId + "'" ) );
+      return result;
+    }
+    try {
+      executor.execute( () -> run( call, result ) );
+    } catch ( RejectedExecutionException e ) {
+      // Shut down
+      admitted.release();
+      result.completeExceptionally( e );
+      return result;
+    }
+    if ( timeoutMillis > 0 ) {
+      // A call still waiting is skipped when its turn comes, one which runs is left alone
+      ScheduledFuture<?> timer = Timer.INSTANCE.schedule( () -> result.completeExceptionally( new TimeoutException(
+        "Password encoder '" + encoderId + "' did not answer within " + timeoutMillis + " ms" ) ),
+        timeoutMillis, TimeUnit.MILLISECONDS );
+      result.whenComplete( ( value, error ) -> timer.cancel( false ) );
+    }
+    return result;
+  }
+
+  private <T> void run( Callable<T> call, CompletableFuture<T> result ) {
+    try {
+      if ( result.isDone() ) {
+        // Timed out or cancelled while it waited
+        return;
+      }
+      if ( running == null ) {
+        result.complete( call.call() );
+        return;
+      }
+      running.acquire();
+      try {
+        if ( !result.isDone() ) {
+          result.complete( call.call() );
+        }
+      } finally {
+        running.release();
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      result.completeExceptionally( e );
+    } catch ( Exception | Error e ) {
+      result.completeExceptionally( e );
+    } finally {
+      admitted.release();
+    }
+  }
+
+  /**
+   * Stop taking calls, the calls admitted before still run.
+   */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Fails the calls which take too long, shared by all the bulkheads
+   */
+  private static final class Timer {
+    private static final ScheduledExecutorService INSTANCE = create();
+
+    private static ScheduledExecutorService create() {
+      ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor( 1, runnable -> {
+        Thread thread = new Thread( runnable, "password-encoder-timeout" );
+        thread.setDaemon( true );
+        return thread;
+      } );
+      timer.setRemoveOnCancelPolicy( true );
+      return timer;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.FlightRecorderUtil;
+
+/**
+ * A password encoded or decoded through {@link Encr}, or a batch of them. Recorded only when the call took longer than
+ * the threshold, which can be lowered in the recording settings, e.g. with
+ * <code>jfr configure +org.pentaho.support.encryption.EncoderCall#threshold=0ms</code>. Only create it after checking
+ * {@link FlightRecorderUtil#isAvailable()}.
+ */
+@Name( EncoderCallEvent.NAME )
+@Label( "Password Encoder Call" )
+@Category( { "Pentaho", "Password Encoders" } )
+@Description( "A password, or a batch of passwords, encoded or decoded by a password encoder" )
+@Threshold( "1 ms" )
+final class EncoderCallEvent extends Event {
+  static final String NAME = "org.pentaho.support.encryption.EncoderCall";
+
+  static final String ENCODE = "encode";
+  static final String DECODE = "decode";
+
+  @Label( "Encoder Id" )
+  String encoderId;
+
+  @Label( "Operation" )
+  @Description( "\"encode\" or \"decode\"" )
+  String operation;
+
+  @Label( "Values" )
+  @Description( "The number of passwords, more than 1 for a batch" )
+  int values;
+
+  @Label( "Input Length" )
+  @Description( "The number of characters of the passwords passed in" )
+  long inputLength;
+
+  @Label( "Outcome" )
+  @Description( "\"ok\", \"unchanged\" for a value without a prefix, \"empty\" for a value which decoded to an empty"
+    + " password or \"failed\"" )
+  String outcome;
+
+  @Label( "Error" )
+  @Description( "The class of the exception thrown by the encoder" )
+  String error;
+
+  /**
+   * Not part of the event, JFR skips transient fields
+   */
+  private transient boolean started;
+
+  /**
+   * Start timing the call if the event is recorded. Once a recording has used this event, begin() and end() read the
+   * clock even when no recording does any more, which costs about as much as decoding a Kettle password.
+   */
+  void start() {
+    if ( isEnabled() ) {
+      started = true;
+      begin();
+    }
+  }
+
+  /**
+   * Commit the event if it is recorded and took longer than its threshold.
+   */
+  void complete( String encoderId, String operation, CharSequence input, String outcome ) {
+    if ( !started ) {
+      return;
+    }
+    end();
+    if ( shouldCommit() ) {
+      set( encoderId, operation, 1, input == null ? 0 : input.length(), outcome, null );
+      commit();
+    }
+  }
+
+  /**
+   * Commit the event of a decode if it is recorded and took longer than its threshold. The outcome is only worked out
+   * when the event is committed.
+   */
+  void completeDecode( String encoderId, TwoWayPasswordEncoderInterface encoder, String encrypted, String decoded ) {
+    if ( !started ) {
+      return;
+    }
+    end();
+    if ( shouldCommit() ) {
+      set( encoderId, DECODE, 1, encrypted == null ? 0 : encrypted.length(), outcome( encoder, encrypted, decoded ),
+        null );
+      commit();
+    }
+  }
+
+  /**
+   * Commit the event of a batch if it is recorded and took longer than its threshold.
+   */
+  void completeBatch( String encoderId, String operation, String[] input, Throwable error ) {
+    if ( !started ) {
+      return;
+    }
+    end();
+    if ( shouldCommit() ) {
+      long length = 0;
+      if ( input != null ) {
+        for ( String value : input ) {
+          length += value == null ? 0 : value.length();
+        }
+      }
+      set( encoderId, operation, input == null ? 0 : input.length, length, error == null ? "ok" : "failed", error );
+      commit();
+    }
+  }
+
+  void failed( String encoderId, String operation, CharSequence input, Throwable error ) {
+    if ( !started ) {
+      return;
+    }
+    end();
+    if ( shouldCommit() ) {
+      set( encoderId, operation, 1, input == null ? 0 : input.length(), "failed", error );
+      commit();
+    }
+  }
+
+  private void set( String encoderId, String operation, int values, long inputLength, String outcome,
+                    Throwable error ) {
+    this.encoderId = encoderId;
+    this.operation = operation;
+    this.values = values;
+    this.inputLength = inputLength;
+    this.outcome = outcome;
+    this.error = error == null ? null : error.getClass().getName();
+  }
+
+  private static String outcome( TwoWayPasswordEncoderInterface encoder, String encrypted, String decoded ) {
+    if ( decoded == encrypted ) {
+      return "unchanged";
+    }
+    if ( decoded != null && decoded.isEmpty() && encrypted != null && !encrypted.isEmpty() ) {
+      String[] prefixes = encoder.getPrefixes();
+      for ( int i = 0; prefixes != null && i < prefixes.length; i++ ) {
+        if ( encrypted.equals( prefixes[ i ] ) ) {
+          return "ok";
+        }
+      }
+      return "empty";
+    }
+    return "ok";
+  }
+}
@@ -0,0 +1,225 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.FlightRecorderUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Properties;
+
+/**
+ * A registered password encoder plugin. The plugin class is resolved when the plugin is registered, the encoder itself
+ * is only initialized when it is first needed.
+ * <p>
+ * The prefixes of a plugin are read when the registry is built, from an encoder created for it but only initialized
+ * when it is first needed, so they must not depend on {@link TwoWayPasswordEncoderInterface#init()}.
+ * <p>
+ * Plugins with a public constructor taking {@link Properties} as their only argument are handed the settings of their
+ * {@link Encr} instance, with the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED resolved when they were registered, or without
+ * it for their default seed. Plugins with a public constructor taking the seed as their only argument instead, like
+ * {@link KettleTwoWayPasswordEncoder}, are handed that seed, or null for their default seed. Both are created when
+ * they are first needed. Other plugins read the seed system property in their constructor,
+ * {@link EncoderRegistryLoader} constructs them with {@link #construct()} while the property holds their seed. Their
+ * {@link TwoWayPasswordEncoderInterface#init()}, where the expensive work like deriving keys belongs, still runs when
+ * they are first needed.
+ */
+final class EncoderDescriptor {
+  private final String classname;
+  private final MethodHandle constructor;
+  private final MethodHandle seededConstructor;
+  private final MethodHandle settingsConstructor;
+  private final String seed;
+  private final Properties settings;
+
+  /**
+   * Created to read the prefixes or by {@link #construct()}, not yet initialized, guarded by this
+   */
+  private TwoWayPasswordEncoderInterface created;
+  private volatile TwoWayPasswordEncoderInterface encoder;
+  private volatile long initNanos = -1;
+
+  /**
+   * @param classname         the name of the plugin class
+   * @param constructor         the no argument constructor of the plugin class, returning a
+   *                            TwoWayPasswordEncoderInterface, or null if the plugin class has none
+   * @param seededConstructor   the constructor taking the seed, returning a TwoWayPasswordEncoderInterface, or null
+   *                            if the plugin class has none
+   * @param settingsConstructor the constructor taking the settings, returning a TwoWayPasswordEncoderInterface, or
+   *                            null if the plugin class has none
+   * @param seed                the seed handed to the plugin, null for the default seed of the plugin
+   * @param settings            the settings of the {@link Encr} instance, read when the encoder is created
+   */
+  EncoderDescriptor( String classname, MethodHandle constructor, MethodHandle seededConstructor,
+                     MethodHandle settingsConstructor, String seed, Properties settings ) {
+    this.classname = classname;
+    this.constructor = constructor;
+    this.seededConstructor = seededConstructor;
+    this.settingsConstructor = settingsConstructor;
+    this.seed = seed;
+    this.settings = settings;
+  }
+
+  /**
+   * @return the encoder, created and initialized by the first call
+   * @throws PasswordEncoderException if the encoder can't be created or initialized, the next call tries again
+   */
+  TwoWayPasswordEncoderInterface getEncoder() throws PasswordEncoderException {
+    TwoWayPasswordEncoderInterface current = encoder;
+    if ( current == null ) {
+      synchronized ( this ) {
+        current = encoder;
+        if ( current == null ) {
+          long start = System.nanoTime();
+          current = FlightRecorderUtil.isAvailable() ? createRecorded() : createAndInit();
+          initNanos = System.nanoTime() - start;
+          encoder = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * @return the prefixes of the encoder, which is created but not initialized if it wasn't yet
+   * @throws PasswordEncoderException if the encoder can't be created
+   */
+  String[] getPrefixes() throws PasswordEncoderException {
+    TwoWayPasswordEncoderInterface current = encoder;
+    if ( current != null ) {
+      return current.getPrefixes();
+    }
+    synchronized ( this ) {
+      current = encoder;
+      if ( current == null ) {
+        if ( created == null ) {
+          created = create();
+        }
+        current = created;
+      }
+      return current.getPrefixes();
+    }
+  }
+
+  /**
+   * Create the encoder without initializing it, for plugins which read the seed system property in their constructor.
+   *
+   * @throws PasswordEncoderException if the encoder can't be created
+   */
+  synchronized void construct() throws PasswordEncoderException {
+    if ( encoder == null && created == null ) {
+      created = create();
+    }
+  }
+
+  /**
+   * Called holding the lock of this descriptor.
+   */
+  private TwoWayPasswordEncoderInterface createAndInit() throws PasswordEncoderException {
+    TwoWayPasswordEncoderInterface instance = created != null ? created : create();
+    // If the initialization fails a seeded encoder is created again by the next call, others were constructed with the
+    // seed the system property held then and are only initialized again
+    created = isSeeded() ? null : instance;
+    instance.init();
+    created = null;
+    return instance;
+  }
+
+  private TwoWayPasswordEncoderInterface createRecorded() throws PasswordEncoderException {
+    PluginSetupEvent event = new PluginSetupEvent();
+    event.begin();
+    try {
+      TwoWayPasswordEncoderInterface created = createAndInit();
+      event.complete( classname, PluginSetupEvent.INIT, null );
+      return created;
+    } catch ( PasswordEncoderException | RuntimeException | Error e ) {
+      event.complete( classname, PluginSetupEvent.INIT, e );
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if the encoder was created and initialized
+   */
+  boolean isInitialized() {
+    return encoder != null;
+  }
+
+  /**
+   * @return the number of nanoseconds it took to create and initialize the encoder, or -1 if it wasn't yet
+   */
+  long getInitNanos() {
+    return initNanos;
+  }
+
+  String getClassname() {
+    return classname;
+  }
+
+  /**
+   * @return a descriptor of the same plugin handed another seed
+   */
+  EncoderDescriptor withSeed( String otherSeed ) {
+    return new EncoderDescriptor( classname, constructor, seededConstructor, settingsConstructor, otherSeed,
+      settings );
+  }
+
+  /**
+   * @return true if the plugin is handed its seed, false if it reads the seed system property when it is constructed
+   */
+  boolean isSeeded() {
+    return seededConstructor != null || settingsConstructor != null;
+  }
+
+  private TwoWayPasswordEncoderInterface create() throws PasswordEncoderException {
+    try {
+      if ( settingsConstructor != null ) {
+        return (TwoWayPasswordEncoderInterface) settingsConstructor.invokeExact( getPluginSettings() );
+      }
+      if ( seededConstructor != null ) {
+        return (TwoWayPasswordEncoderInterface) seededConstructor.invokeExact( seed );
+      }
+      return (TwoWayPasswordEncoderInterface) constructor.invokeExact();
+    } catch ( RuntimeException | Error e ) {
+      throw e;
+    } catch ( Throwable e ) {
+      throw new PasswordEncoderException( "Could not instantiate: " + classname, e );
+    }
+  }
+
+  /**
+   * @return a copy of the settings holding the seed of the plugin, the encoder can keep it
+   */
+  private Properties getPluginSettings() {
+    Properties pluginSettings = new Properties();
+    for ( String name : settings.stringPropertyNames() ) {
+      pluginSettings.setProperty( name, settings.getProperty( name ) );
+    }
+    // The seed system property may hold the seed of another plugin
+    pluginSettings.remove( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED );
+    if ( seed != null ) {
+      pluginSettings.setProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, seed );
+    }
+    return pluginSettings;
+  }
+}
@@ -0,0 +1,259 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the calls made to the encoders of an {@link Encr}, per encoder id and operation. The encoders are wrapped in
+ * an {@link InstrumentedEncoder} when they are looked up, so encoders which aren't used cost nothing. Counters are
+ * striped so threads using the same encoder don't contend on them.
+ * <p>
+ * Reading the clock costs about as much as the counters together, so only a random sample of the calls is timed. Every
+ * call is counted.
+ */
+final class EncoderMetrics {
+  static final String OBJECT_NAME = "org.pentaho.support.encryption:type=PasswordEncoderMetrics";
+
+  /**
+   * One call in this many is timed by default
+   */
+  static final int DEFAULT_TIMING_INTERVAL = 8;
+
+  private final ConcurrentMap<String, OperationMetrics[]> metrics = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, InstrumentedEncoder> instrumented = new ConcurrentHashMap<>();
+  private final int timingMask;
+  private ObjectName objectName;
+
+  /**
+   * @param timingInterval time one call in this many, rounded up to a power of two, 1 to time every call
+   */
+  EncoderMetrics( int timingInterval ) {
+    int interval = Math.max( 1, Math.min( timingInterval, 1 << 30 ) );
+    this.timingMask = Integer.highestOneBit( interval * 2 - 1 ) - 1;
+  }
+
+  /**
+   * @return the encoder, counting its calls under the encoder id
+   */
+  TwoWayPasswordEncoderInterface instrument( String encoderId, TwoWayPasswordEncoderInterface encoder ) {
+    InstrumentedEncoder wrapper = instrumented.get( encoderId );
+    if ( wrapper == null || wrapper.getDelegate() != encoder ) {
+      // First use, or the plugins were reloaded
+      OperationMetrics[] operations = metrics.computeIfAbsent( encoderId,
+        id -> new OperationMetrics[] { new OperationMetrics( timingMask ), new OperationMetrics( timingMask ) } );
+      wrapper = new InstrumentedEncoder( encoder, operations[ 0 ], operations[ 1 ] );
+      instrumented.put( encoderId, wrapper );
+    }
+    return wrapper;
+  }
+
+  /**
+   * @return the statistics of every operation of every encoder used so far, by encoder id
+   */
+  List<EncoderOperationStats> getStats() {
+    List<EncoderOperationStats> stats = new ArrayList<>();
+    for ( Map.Entry<String, OperationMetrics[]> entry : new TreeMap<>( metrics ).entrySet() ) {
+      stats.add( entry.getValue()[ 0 ].getStats( entry.getKey(), EncoderOperationStats.ENCODE ) );
+      stats.add( entry.getValue()[ 1 ].getStats( entry.getKey(), EncoderOperationStats.DECODE ) );
+    }
+    return stats;
+  }
+
+  void reset() {
+    for ( OperationMetrics[] operations : metrics.values() ) {
+      for ( OperationMetrics operation : operations ) {
+        operation.reset();
+      }
+    }
+  }
+
+  /**
+   * Register the metrics with the platform MBean server, replacing the ones of a previous instance. Failing to do so
+   * is reported on the console, the metrics are still recorded.
+   */
+  synchronized void register() {
+    try {
+      ObjectName name = new ObjectName( OBJECT_NAME );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      MXBean bean = new MXBean( this );
+      try {
+        server.registerMBean( bean, name );
+      } catch ( InstanceAlreadyExistsException e ) {
+        server.unregisterMBean( name );
+        server.registerMBean( bean, name );
+      }
+      objectName = name;
+    } catch ( JMException | SecurityException e ) {
+      System.err.println( "Unable to register the password encoder metrics MBean: " + e.getMessage() );
+    }
+  }
+
+  synchronized void unregister() {
+    if ( objectName == null ) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+    } catch ( InstanceNotFoundException e ) {
+      // Replaced meanwhile
+    } catch ( JMException | SecurityException e ) {
+      System.err.println( "Unable to unregister the password encoder metrics MBean: " + e.getMessage() );
+    }
+    objectName = null;
+  }
+
+  /**
+   * The counters of one operation of one encoder.
+   */
+  static final class OperationMetrics {
+    /**
+     * The start of a call which isn't timed
+     */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final int timingMask;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder emptyResults = new LongAdder();
+    private final LongAdder characters = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    OperationMetrics( int timingMask ) {
+      this.timingMask = timingMask;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the start of a call to time, or {@link #NOT_TIMED}
+     */
+    long start() {
+      if ( timingMask != 0 && ( ThreadLocalRandom.current().nextInt() & timingMask ) != 0 ) {
+        return NOT_TIMED;
+      }
+      return System.nanoTime();
+    }
+
+    /**
+     * @param startNanos what {@link #start()} returned
+     * @param count      the number of values processed
+     * @param characters the number of characters read and written
+     */
+    void succeeded( long startNanos, int count, long characters ) {
+      calls.add( count );
+      this.characters.add( characters );
+      record( startNanos, count );
+    }
+
+    void failed( long startNanos, int count ) {
+      calls.add( count );
+      failures.add( count );
+      record( startNanos, count );
+    }
+
+    void emptyResult() {
+      emptyResults.increment();
+    }
+
+    private void record( long startNanos, int count ) {
+      if ( startNanos != NOT_TIMED ) {
+        long nanos = System.nanoTime() - startNanos;
+        latencies.record( count > 1 ? nanos / count : nanos, count );
+      }
+    }
+
+    EncoderOperationStats getStats( String encoderId, String operation ) {
+      long[] counts = new long[ LatencyHistogram.BUCKETS ];
+      long totalNanos = latencies.snapshot( counts );
+      return new EncoderOperationStats( encoderId, operation, calls.sum(), failures.sum(), emptyResults.sum(),
+        characters.sum(), totalNanos, latencies.getMax(), counts );
+    }
+
+    void reset() {
+      calls.reset();
+      failures.reset();
+      emptyResults.reset();
+      characters.reset();
+      latencies.reset();
+    }
+  }
+
+  private static final class MXBean implements PasswordEncoderMetricsMXBean {
+    private final EncoderMetrics metrics;
+
+    MXBean( EncoderMetrics metrics ) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public List<EncoderOperationStats> getOperationStats() {
+      return metrics.getStats();
+    }
+
+    @Override
+    public long getCalls() {
+      long calls = 0;
+      for ( EncoderOperationStats stats : metrics.getStats() ) {
+        calls += stats.getCalls();
+      }
+      return calls;
+    }
+
+    @Override
+    public long getFailures() {
+      long failures = 0;
+      for ( EncoderOperationStats stats : metrics.getStats() ) {
+        failures += stats.getFailures();
+      }
+      return failures;
+    }
+
+    @Override
+    public long getEmptyResults() {
+      long emptyResults = 0;
+      for ( EncoderOperationStats stats : metrics.getStats() ) {
+        emptyResults += stats.getEmptyResults();
+      }
+      return emptyResults;
+    }
+
+    @Override
+    public void reset() {
+      metrics.reset();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * A point in time view of the calls made to one operation of one encoder, recorded while the metrics of {@link Encr}
+ * are enabled. Every call is counted, the latencies are those of a random sample of the calls. Latencies are in
+ * nanoseconds and read from a histogram, they are up to 25% higher than measured.
+ */
+public final class EncoderOperationStats {
+  public static final String ENCODE = "encode";
+  public static final String DECODE = "decode";
+
+  private final String encoderId;
+  private final String operation;
+  private final long calls;
+  private final long failures;
+  private final long emptyResults;
+  private final long characters;
+  private final long totalNanos;
+  private final long maxNanos;
+  private final long[] latencyCounts;
+  private final long timedCalls;
+
+  EncoderOperationStats( String encoderId, String operation, long calls, long failures, long emptyResults,
+                         long characters, long totalNanos, long maxNanos, long[] latencyCounts ) {
+    this.encoderId = encoderId;
+    this.operation = operation;
+    this.calls = calls;
+    this.failures = failures;
+    this.emptyResults = emptyResults;
+    this.characters = characters;
+    this.totalNanos = totalNanos;
+    this.maxNanos = maxNanos;
+    this.latencyCounts = latencyCounts;
+    long count = 0;
+    for ( long bucket : latencyCounts ) {
+      count += bucket;
+    }
+    this.timedCalls = count;
+  }
+
+  public String getEncoderId() {
+    return encoderId;
+  }
+
+  /**
+   * @return {@link #ENCODE} or {@link #DECODE}
+   */
+  public String getOperation() {
+    return operation;
+  }
+
+  /**
+   * @return the number of values processed, every value of a batch is counted
+   */
+  public long getCalls() {
+    return calls;
+  }
+
+  /**
+   * @return the number of values for which the encoder threw an exception
+   */
+  public long getFailures() {
+    return failures;
+  }
+
+  /**
+   * @return the number of encrypted values which decoded to an empty password, which is how the Kettle encoder
+   * answers values it can't decode
+   */
+  public long getEmptyResults() {
+    return emptyResults;
+  }
+
+  /**
+   * @return the number of characters read and written, bytes for the methods taking or filling byte buffers
+   */
+  public long getCharacters() {
+    return characters;
+  }
+
+  /**
+   * @return the number of calls the latencies were measured on
+   */
+  public long getTimedCalls() {
+    return timedCalls;
+  }
+
+  public double getMeanNanos() {
+    return timedCalls == 0 ? 0.0 : (double) totalNanos / timedCalls;
+  }
+
+  public long getP50Nanos() {
+    return getLatencyNanos( 50.0 );
+  }
+
+  public long getP90Nanos() {
+    return getLatencyNanos( 90.0 );
+  }
+
+  public long getP99Nanos() {
+    return getLatencyNanos( 99.0 );
+  }
+
+  public long getP999Nanos() {
+    return getLatencyNanos( 99.9 );
+  }
+
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the latency the percentile of the timed calls did not exceed, 0 if no call was timed
+   */
+  public long getLatencyNanos( double percentile ) {
+    return LatencyHistogram.percentile( latencyCounts, timedCalls, percentile );
+  }
+
+  @Override
+  public String toString() {
+    return "EncoderOperationStats{" + encoderId + " " + operation + ", calls=" + calls + ", failures=" + failures
+      + ", emptyResults=" + emptyResults + ", characters=" + characters + ", p50=" + getP50Nanos() + "ns, p99="
+      + getP99Nanos() + "ns, max=" + maxNanos + "ns}";
+  }
+}
@@ -0,0 +1,195 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.support.utils.XMLHandler;
+import org.pentaho.support.utils.XmlParseException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the password encoder plugin configuration with StAX, without building a DOM. Element names are matched ignoring
+ * case, the id is an attribute and the other settings are either a child element or an attribute, the element winning.
+ */
+final class EncoderPluginConfigReader {
+  private static final String PLUGINS = "password-encoder-plugins";
+  private static final String PLUGIN = "password-encoder-plugin";
+
+  private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+  private EncoderPluginConfigReader() {
+  }
+
+  /**
+   * A password-encoder-plugin element
+   */
+  static final class PluginConfig {
+    private final String id;
+    private final Map<String, String> settings;
+
+    PluginConfig( String id, Map<String, String> settings ) {
+      this.id = id;
+      this.settings = settings;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    /**
+     * @param name the name of a child element or attribute, like classname or seed
+     * @return the value of the child element, else the value of the attribute, or null if there is neither
+     */
+    String get( String name ) {
+      return settings.get( name.toLowerCase( Locale.ROOT ) );
+    }
+  }
+
+  /**
+   * Read the plugins of a configuration file. The stream is not closed.
+   *
+   * @param in the configuration file
+   * @return the plugins, in the order they are configured
+   * @throws XmlParseException if the file is not a valid XML document
+   */
+  static List<PluginConfig> read( InputStream in ) throws XmlParseException {
+    List<PluginConfig> plugins = new ArrayList<>();
+    XMLStreamReader reader = null;
+    try {
+      reader = INPUT_FACTORY.createXMLStreamReader( in );
+      int depth = 0;
+      boolean inPlugins = false;
+      while ( reader.hasNext() ) {
+        int event = reader.next();
+        if ( event == XMLStreamConstants.START_ELEMENT ) {
+          depth++;
+          String name = reader.getLocalName();
+          if ( depth == 1 ) {
+            inPlugins = PLUGINS.equalsIgnoreCase( name );
+          } else if ( depth == 2 && inPlugins && PLUGIN.equalsIgnoreCase( name ) ) {
+            plugins.add( readPlugin( reader ) );
+            depth--;
+          }
+        } else if ( event == XMLStreamConstants.END_ELEMENT ) {
+          depth--;
+        }
+      }
+      return plugins;
+    } catch ( XMLStreamException e ) {
+      throw new XmlParseException( "Error reading information from input stream", e );
+    } finally {
+      try {
+        if ( reader != null ) {
+          reader.close();
+        }
+      } catch ( XMLStreamException e ) {
+        //close quietly
+      }
+    }
+  }
+
+  /**
+   * Read a plugin element, the reader is positioned on its start and left on its end.
+   */
+  private static PluginConfig readPlugin( XMLStreamReader reader ) throws XMLStreamException {
+    Map<String, String> settings = new HashMap<>();
+    String id = null;
+    for ( int i = 0; i < reader.getAttributeCount(); i++ ) {
+      String name = reader.getAttributeLocalName( i );
+      if ( "id".equals( name ) ) {
+        id = reader.getAttributeValue( i );
+      } else {
+        settings.put( name.toLowerCase( Locale.ROOT ), reader.getAttributeValue( i ) );
+      }
+    }
+
+    Map<String, String> elements = new HashMap<>();
+    int depth = 1;
+    while ( depth > 0 ) {
+      int event = reader.next();
+      if ( event == XMLStreamConstants.START_ELEMENT ) {
+        String name = reader.getLocalName().toLowerCase( Locale.ROOT );
+        String value = readText( reader );
+        // The first element with a value wins, like XMLHandler.getTagValue
+        if ( value != null && !elements.containsKey( name ) ) {
+          elements.put( name, value );
+        }
+      } else if ( event == XMLStreamConstants.END_ELEMENT ) {
+        depth--;
+      }
+    }
+    settings.putAll( elements );
+    return new PluginConfig( id, settings );
+  }
+
+  /**
+   * Read the text an element starts with, the reader is positioned on its start and left on its end.
+   *
+   * @return the text before the first child element, or null if the element starts with a child element or is empty
+   */
+  private static String readText( XMLStreamReader reader ) throws XMLStreamException {
+    StringBuilder text = null;
+    boolean textDone = false;
+    int depth = 1;
+    while ( depth > 0 ) {
+      int event = reader.next();
+      switch ( event ) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          textDone = true;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if ( !textDone ) {
+            if ( text == null ) {
+              text = new StringBuilder();
+            }
+            text.append( reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength() );
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return text == null ? null : text.toString();
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLHandler.createSecureXMLInputFactory();
+    factory.setProperty( XMLInputFactory.IS_COALESCING, true );
+    return factory;
+  }
+}
@@ -0,0 +1,275 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.StringUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An immutable snapshot of the registered password encoders. A snapshot is fully built before it is published, so it
+ * can be read from any thread without locking.
+ * <p>
+ * Encoders are initialized when they are first used, see {@link EncoderDescriptor}. The prefix routes are built with
+ * the snapshot, from the prefixes of every encoder.
+ */
+final class EncoderRegistry {
+  private final Map<String, EncoderDescriptor> encoders;
+  private final String configuredDefaultEncoderId;
+  private final String defaultEncoderId;
+  private final EncoderDescriptor defaultEncoder;
+
+  private final PrefixRoutes prefixRoutes;
+
+  /**
+   * @param encoders                   the encoders by their lower case id
+   * @param configuredDefaultEncoderId the id of the default encoder according to the plugin configuration
+   * @param selectedDefaultEncoderId   the id of the default encoder according to the KETTLE_PASSWORD_ENCODER_PLUGIN
+   *                                   setting, which overrides the configured one, or null
+   * @throws PasswordEncoderException if an encoder can't be created to read its prefixes
+   */
+  EncoderRegistry( Map<String, EncoderDescriptor> encoders, String configuredDefaultEncoderId,
+                   String selectedDefaultEncoderId ) throws PasswordEncoderException {
+    this.encoders = Collections.unmodifiableMap( new LinkedHashMap<>( encoders ) );
+    this.configuredDefaultEncoderId = configuredDefaultEncoderId;
+
+    String id = StringUtil.NVL( selectedDefaultEncoderId, configuredDefaultEncoderId );
+    this.defaultEncoderId = id == null ? null : id.toLowerCase();
+    this.defaultEncoder = defaultEncoderId == null ? null : this.encoders.get( defaultEncoderId );
+    this.prefixRoutes = buildPrefixRoutes();
+  }
+
+  /**
+   * @param encoderId the lower case id of the encoder
+   * @return true if an encoder is registered with this id
+   */
+  boolean hasEncoder( String encoderId ) {
+    return encoders.containsKey( encoderId );
+  }
+
+  /**
+   * @param encoderId the lower case id of the encoder
+   * @return the encoder, or null if no encoder is registered with this id
+   */
+  TwoWayPasswordEncoderInterface findEncoder( String encoderId ) {
+    EncoderDescriptor descriptor = encoders.get( encoderId );
+    return descriptor == null ? null : getEncoder( encoderId, descriptor );
+  }
+
+  TwoWayPasswordEncoderInterface getEncoder( String encoderId ) {
+    EncoderDescriptor descriptor = encoders.get( encoderId );
+    if ( descriptor == null ) {
+      throw new RuntimeException( "plugin id '" + encoderId + "' does not exist" );
+    }
+    return getEncoder( encoderId, descriptor );
+  }
+
+  TwoWayPasswordEncoderInterface getDefaultEncoder() {
+    if ( defaultEncoder == null ) {
+      throw new RuntimeException( "plugin id '" + defaultEncoderId + "' does not exist" );
+    }
+    return getEncoder( defaultEncoderId, defaultEncoder );
+  }
+
+  private static TwoWayPasswordEncoderInterface getEncoder( String encoderId, EncoderDescriptor descriptor ) {
+    try {
+      return descriptor.getEncoder();
+    } catch ( PasswordEncoderException e ) {
+      throw new RuntimeException( "plugin id '" + encoderId + "' could not be initialized", e );
+    }
+  }
+
+  /**
+   * @return the id of the default encoder, taking the KETTLE_PASSWORD_ENCODER_PLUGIN setting into account
+   */
+  String getDefaultEncoderId() {
+    return defaultEncoderId;
+  }
+
+  /**
+   * @return the id of the default encoder according to the plugin configuration
+   */
+  String getConfiguredDefaultEncoderId() {
+    return configuredDefaultEncoderId;
+  }
+
+  /**
+   * Create and initialize every encoder now, one after the other.
+   *
+   * @throws PasswordEncoderException if an encoder can't be created or initialized
+   */
+  void initializeAll() throws PasswordEncoderException {
+    for ( EncoderDescriptor descriptor : getDistinctDescriptors() ) {
+      descriptor.getEncoder();
+    }
+  }
+
+  /**
+   * Create and initialize the encoders which weren't used yet on background threads, in parallel. Encoders which fail
+   * to initialize are tried again, and report the failure, when they are first used.
+   */
+  void warmUp() {
+    final List<EncoderDescriptor> pending = new ArrayList<>();
+    for ( EncoderDescriptor descriptor : getDistinctDescriptors() ) {
+      if ( !descriptor.isInitialized() ) {
+        pending.add( descriptor );
+      }
+    }
+    if ( pending.isEmpty() ) {
+      return;
+    }
+    // Initialization usually waits on key stores or key derivation rather than using the CPU, and there are only a few
+    // plugins, so every plugin gets its own thread
+    ExecutorService executor = Executors.newFixedThreadPool( pending.size(), runnable -> {
+      Thread thread = new Thread( runnable, "password-encoder-warm-up" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    for ( final EncoderDescriptor descriptor : pending ) {
+      executor.execute( () -> {
+        try {
+          descriptor.getEncoder();
+        } catch ( PasswordEncoderException | RuntimeException e ) {
+          // Reported when the encoder is first used
+        }
+      } );
+    }
+    executor.shutdown();
+  }
+
+  /**
+   * @return the number of nanoseconds it took to create and initialize every encoder created so far, by lower case
+   * id in registration order
+   */
+  Map<String, Long> getInitNanos() {
+    Map<String, Long> times = new LinkedHashMap<>();
+    for ( Map.Entry<String, EncoderDescriptor> entry : encoders.entrySet() ) {
+      long nanos = entry.getValue().getInitNanos();
+      if ( nanos >= 0 ) {
+        times.put( entry.getKey(), nanos );
+      }
+    }
+    return times;
+  }
+
+  /**
+   * @param value an encoded value
+   * @return the lower case id of the encoder owning the longest prefix the value starts with, or null if the value
+   * doesn't start with a known prefix
+   */
+  String findEncoderIdByPrefix( CharSequence value ) {
+    return prefixRoutes.trie.match( value );
+  }
+
+  /**
+   * @return the characters the prefixes of the encoders start with, a value starting with another character has no
+   * known prefix
+   */
+  char[] getPrefixFirstChars() {
+    return prefixRoutes.trie.getFirstChars();
+  }
+
+  /**
+   * @return the prefixes claimed by more than one encoder, with the ids of the encoders claiming them in registration
+   * order
+   */
+  Map<String, List<String>> getPrefixClashes() {
+    return prefixRoutes.clashes;
+  }
+
+  /**
+   * Map every prefix to its encoder. When encoders share a prefix the default encoder keeps it, otherwise the first one
+   * registered does.
+   */
+  private PrefixRoutes buildPrefixRoutes() throws PasswordEncoderException {
+    Map<String, String> routes = new LinkedHashMap<>();
+    Map<String, List<String>> claims = new LinkedHashMap<>();
+    Map<EncoderDescriptor, Boolean> seen = new IdentityHashMap<>();
+    for ( Map.Entry<String, EncoderDescriptor> entry : encoders.entrySet() ) {
+      EncoderDescriptor descriptor = entry.getValue();
+      // An encoder registered under several ids doesn't clash with itself
+      if ( seen.put( descriptor, Boolean.TRUE ) != null ) {
+        continue;
+      }
+      boolean isDefault = descriptor == defaultEncoder;
+      String encoderId = isDefault ? defaultEncoderId : entry.getKey();
+      String[] prefixes;
+      try {
+        prefixes = descriptor.getPrefixes();
+      } catch ( PasswordEncoderException e ) {
+        throw new PasswordEncoderException( "plugin id '" + encoderId + "' could not be created", e );
+      }
+      if ( prefixes == null ) {
+        continue;
+      }
+      for ( String prefix : prefixes ) {
+        if ( StringUtil.isEmpty( prefix ) ) {
+          continue;
+        }
+        List<String> ids = claims.computeIfAbsent( prefix, p -> new ArrayList<>() );
+        if ( !ids.contains( encoderId ) ) {
+          ids.add( encoderId );
+        }
+        if ( isDefault || !routes.containsKey( prefix ) ) {
+          routes.put( prefix, encoderId );
+        }
+      }
+    }
+    Map<String, List<String>> clashes = new LinkedHashMap<>();
+    for ( Map.Entry<String, List<String>> claim : claims.entrySet() ) {
+      if ( claim.getValue().size() > 1 ) {
+        clashes.put( claim.getKey(), Collections.unmodifiableList( claim.getValue() ) );
+      }
+    }
+    return new PrefixRoutes( new PrefixTrie( routes ), Collections.unmodifiableMap( clashes ) );
+  }
+
+  private List<EncoderDescriptor> getDistinctDescriptors() {
+    Map<EncoderDescriptor, Boolean> distinct = new IdentityHashMap<>();
+    List<EncoderDescriptor> descriptors = new ArrayList<>();
+    for ( EncoderDescriptor descriptor : encoders.values() ) {
+      if ( distinct.put( descriptor, Boolean.TRUE ) == null ) {
+        descriptors.add( descriptor );
+      }
+    }
+    return descriptors;
+  }
+
+  private static final class PrefixRoutes {
+    private final PrefixTrie trie;
+    private final Map<String, List<String>> clashes;
+
+    PrefixRoutes( PrefixTrie trie, Map<String, List<String>> clashes ) {
+      this.trie = trie;
+      this.clashes = clashes;
+    }
+  }
+}
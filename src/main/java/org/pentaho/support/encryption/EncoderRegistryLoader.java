@@ -0,0 +1,477 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.FlightRecorderUtil;
+import org.pentaho.support.utils.StringUtil;
+import org.pentaho.support.utils.XmlParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.pentaho.support.encryption.Encr.KETTLE_PASSWORD_ENCODER_INIT;
+import static org.pentaho.support.encryption.Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE;
+import static org.pentaho.support.encryption.Encr.KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX;
+import static org.pentaho.support.encryption.Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED;
+import static org.pentaho.support.encryption.Encr.XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS;
+
+/**
+ * Reads the password encoder plugin configuration and builds an {@link EncoderRegistry} from it. A loader is used by a
+ * single thread and only once, the registry it returns is immutable.
+ * <p>
+ * The settings, like the alternative plugin file and the seed, are read from the system properties for the JVM wide
+ * {@link Encr} and from their own properties for the others. A plugin file is looked up on the class path first, then
+ * on disk.
+ * <p>
+ * Encoders are first registered from the plugin indexes written by {@link TwoWayPasswordEncoderPluginProcessor} into
+ * the jars on the class path, then from the plugin xml files, which override indexed encoders with the same id.
+ * Indexed encoders get the seed in effect once the xml files are read, the one of their last plugin with a seed.
+ */
+final class EncoderRegistryLoader {
+  private static final String INIT_LAZY = "lazy";
+  private static final String INIT_EAGER = "eager";
+  private static final String INIT_PARALLEL = "parallel";
+
+  /**
+   * The no argument constructor, the constructor taking the seed and the one taking the settings, null if there is
+   * none, of every plugin class, looked up once per class
+   */
+  private static final ClassValue<MethodHandle[]> CONSTRUCTORS = new ClassValue<MethodHandle[]>() {
+    @Override
+    protected MethodHandle[] computeValue( Class<?> type ) {
+      MethodHandle constructor = findConstructor( type );
+      MethodHandle seededConstructor = findConstructor( type, String.class );
+      MethodHandle settingsConstructor = findConstructor( type, Properties.class );
+      if ( constructor == null && seededConstructor == null && settingsConstructor == null ) {
+        throw new IllegalStateException( "No public constructor taking no argument, the seed or the settings" );
+      }
+      return new MethodHandle[] { constructor, seededConstructor, settingsConstructor };
+    }
+  };
+
+  //Legacy code used "kettle" in encr command and "Kettle" in plugin so had to make case insensitive
+  private final Map<String, EncoderDescriptor> encoderMap = new LinkedHashMap<>();
+
+  private final Properties settings;
+  private final String initialSeed;
+
+  /**
+   * The seed of the plugins registered from now on, a plugin with a seed of its own sets it for the ones after it
+   */
+  private String seed;
+  private String defaultEncoderId;
+  /**
+   * The indexed plugins, which are handed their seed once the xml files are read
+   */
+  private final Map<EncoderDescriptor, Boolean> indexedPlugins = new IdentityHashMap<>();
+  private String firstId; //If no Id is explicitly marked as default then we use the first one defined
+  private int registeredIds;
+
+  /**
+   * @param settings    the settings, {@link System#getProperties()} for the JVM wide {@link Encr}
+   * @param initialSeed the seed setting when the {@link Encr} was created, the seed of the plugins before the first
+   *                    one with a seed of its own. The seed system property may since hold the seed of a plugin.
+   */
+  EncoderRegistryLoader( Properties settings, String initialSeed ) {
+    this.settings = settings;
+    this.initialSeed = initialSeed;
+    this.seed = initialSeed;
+  }
+
+  /**
+   * Load the encoders from the default plugin file and the one named by the KETTLE_PASSWORD_ENCODER_PLUGINS_FILE
+   * setting.
+   *
+   * @return the registry
+   * @throws PasswordEncoderException if no plugin file could be found or a plugin can't be loaded
+   */
+  EncoderRegistry load() throws PasswordEncoderException {
+    EncoderRegistry registry = register();
+    String init = StringUtil.NVL( settings.getProperty( KETTLE_PASSWORD_ENCODER_INIT ), INIT_LAZY ).trim();
+    if ( INIT_EAGER.equalsIgnoreCase( init ) ) {
+      registry.initializeAll();
+    } else if ( INIT_PARALLEL.equalsIgnoreCase( init ) ) {
+      registry.warmUp();
+    } else if ( !INIT_LAZY.equalsIgnoreCase( init ) ) {
+      throw new PasswordEncoderException( "Invalid value for " + KETTLE_PASSWORD_ENCODER_INIT + ": '" + init + "'" );
+    }
+    return registry;
+  }
+
+  /**
+   * Load the encoders like {@link #load()} and create and initialize all of them, whatever
+   * KETTLE_PASSWORD_ENCODER_INIT says, for a registry which replaces one in use.
+   *
+   * @return the registry
+   * @throws PasswordEncoderException if no plugin file could be found or a plugin can't be loaded or initialized
+   */
+  EncoderRegistry loadInitialized() throws PasswordEncoderException {
+    EncoderRegistry registry = register();
+    registry.initializeAll();
+    return registry;
+  }
+
+  /**
+   * @return the plugin xml files {@link #load()} reads which are files on disk, others like the ones in jars are left
+   * out
+   */
+  static List<URL> findPluginFiles( Properties settings ) {
+    List<URL> files = new ArrayList<>();
+    String alternative = StringUtil.NVL( settings.getProperty( KETTLE_PASSWORD_ENCODER_PLUGINS_FILE ), null );
+    for ( String xmlFile : new String[] { XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS, alternative } ) {
+      URL url = findPluginFile( xmlFile );
+      if ( url != null && "file".equalsIgnoreCase( url.getProtocol() ) ) {
+        files.add( url );
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return the plugin file, a resource on the class path or else a file on disk, or null if there is none
+   */
+  private static URL findPluginFile( String xmlFile ) {
+    if ( StringUtil.isEmpty( xmlFile ) ) {
+      return null;
+    }
+    URL url = EncoderRegistryLoader.class.getResource( xmlFile );
+    if ( url == null ) {
+      url = EncoderRegistryLoader.class.getResource( "/" + xmlFile );
+    }
+    if ( url == null ) {
+      try {
+        Path file = Paths.get( xmlFile );
+        if ( Files.isRegularFile( file ) ) {
+          url = file.toUri().toURL();
+        }
+      } catch ( InvalidPathException | MalformedURLException e ) {
+        // Not a file name either
+      }
+    }
+    return url;
+  }
+
+  private EncoderRegistry register() throws PasswordEncoderException {
+    if ( isSystemSettings() ) {
+      // Plugins reading the seed system property before the first seed of the xml files get the initial one, not the
+      // last seed of the previous load
+      setSeedProperty( initialSeed );
+    }
+    boolean registeredIndex = false;
+    if ( isIndexEnabled() ) {
+      try {
+        registeredIndex = registerIndexedPlugins();
+      } catch ( IOException e ) {
+        throw new PasswordEncoderException(
+          "Unable to read plugin index '" + TwoWayPasswordEncoderPluginProcessor.PLUGIN_INDEX_RESOURCE + "'", e );
+      }
+    }
+    // The first encoder of the xml files is the default one, the first indexed one only if there are no xml files
+    String firstIndexedId = firstId;
+    firstId = null;
+
+    String xmlFile = XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS;
+    String alternative = StringUtil.NVL( settings.getProperty( KETTLE_PASSWORD_ENCODER_PLUGINS_FILE ), null );
+    boolean registeredDefault;
+    boolean registeredAlternative;
+
+    // Load the plugins for the default file...
+    try {
+      registeredDefault = registerPlugins( xmlFile );
+    } catch ( Exception e ) {
+      throw new PasswordEncoderException( "Unable to load native plugins '" + xmlFile + "'", e );
+    }
+    try {
+      registeredAlternative = registerPlugins( alternative );
+    } catch ( Exception e ) {
+      throw new PasswordEncoderException( "Unable to load alternative plugins '" + alternative + "'", e );
+    }
+    if ( !registeredDefault && !registeredAlternative ) {
+      if ( !registeredIndex ) {
+        throw new PasswordEncoderException(
+          "Unable to load a defining plugin xml file for TwoWayPasswordEncoderInteface.  Please create file '"
+            + XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS + "'" );
+      }
+      defaultEncoderId = firstIndexedId;
+    }
+    resolveIndexedPlugins();
+    EncoderRegistry registry = new EncoderRegistry( encoderMap, defaultEncoderId,
+      StringUtil.NVL( settings.getProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGIN ), null ) );
+    return registry;
+  }
+
+  private boolean registerPlugins( String xmlFile ) throws PasswordEncoderException, XmlParseException {
+    if ( StringUtil.isEmpty( xmlFile ) || !FlightRecorderUtil.isAvailable() ) {
+      return registerPluginFile( xmlFile );
+    }
+    PluginConfigLoadEvent event = new PluginConfigLoadEvent();
+    int before = registeredIds;
+    event.begin();
+    try {
+      boolean registered = registerPluginFile( xmlFile );
+      event.complete( xmlFile, registeredIds - before, registered ? "ok" : "missing", null );
+      return registered;
+    } catch ( PasswordEncoderException | XmlParseException | RuntimeException e ) {
+      event.complete( xmlFile, registeredIds - before, "failed", e );
+      throw e;
+    }
+  }
+
+  private boolean registerPluginFile( String xmlFile ) throws PasswordEncoderException, XmlParseException {
+    URL url = findPluginFile( xmlFile );
+    if ( url == null ) {
+      return false;
+    }
+    InputStream inputStream;
+    try {
+      inputStream = url.openStream();
+    } catch ( IOException e ) {
+      throw new PasswordEncoderException( "Unable to read " + url, e );
+    }
+    registerPlugins( inputStream );
+    if ( defaultEncoderId == null ) {
+      defaultEncoderId = firstId; //If no encoders were marked as default, make the first one the default one
+    }
+    return true;
+  }
+
+  private void registerPlugins( InputStream inputStream ) throws PasswordEncoderException, XmlParseException {
+    try {
+      // Streamed, there is no need for a DOM of the whole file
+      for ( EncoderPluginConfigReader.PluginConfig plugin : EncoderPluginConfigReader.read( inputStream ) ) {
+        registerPlugin( plugin.getId(), plugin.get( "classname" ), plugin.get( "default-encoder" ),
+          plugin.get( "seed" ) );
+      }
+    } finally {
+      try {
+        if ( inputStream != null ) {
+          inputStream.close();
+        }
+      } catch ( IOException e ) {
+        //close quietly
+      }
+    }
+  }
+
+  private void registerPlugin( String idTag, String classname, String defaultTag, String seedXML )
+    throws PasswordEncoderException {
+    if ( seedXML != null ) {
+      seed = seedXML;
+      if ( isSystemSettings() ) {
+        // Kettle itself reads the seed system property, it is still set for the JVM wide encoders
+        setSeedProperty( seedXML );
+      }
+    }
+
+    boolean isDefault = ( defaultTag != null && ( defaultTag.toLowerCase().startsWith( "t" ) || defaultTag.toLowerCase()
+      .startsWith( "y" ) ) );
+
+    registerPlugin( new String[] { idTag }, classname, isDefault, true );
+  }
+
+  private boolean registerIndexedPlugins() throws IOException, PasswordEncoderException {
+    boolean registered = false;
+    Enumeration<URL> indexes =
+      getClass().getClassLoader().getResources( TwoWayPasswordEncoderPluginProcessor.PLUGIN_INDEX_RESOURCE );
+    while ( indexes.hasMoreElements() ) {
+      URL url = indexes.nextElement();
+      if ( !FlightRecorderUtil.isAvailable() ) {
+        registered |= registerIndexedPlugins( url );
+        continue;
+      }
+      PluginConfigLoadEvent event = new PluginConfigLoadEvent();
+      int before = registeredIds;
+      event.begin();
+      try {
+        registered |= registerIndexedPlugins( url );
+        event.complete( url.toString(), registeredIds - before, "ok", null );
+      } catch ( IOException | PasswordEncoderException | RuntimeException e ) {
+        event.complete( url.toString(), registeredIds - before, "failed", e );
+        throw e;
+      }
+    }
+    return registered;
+  }
+
+  private boolean registerIndexedPlugins( URL url ) throws IOException, PasswordEncoderException {
+    Map<String, String> index = new LinkedHashMap<>();
+    try ( InputStream in = url.openStream() ) {
+      TwoWayPasswordEncoderPluginProcessor.readIndex( in, index );
+    }
+    for ( Map.Entry<String, String> plugin : index.entrySet() ) {
+      indexedPlugins.put( registerPlugin( plugin.getValue().split( "," ), plugin.getKey(), false, false ),
+        Boolean.TRUE );
+    }
+    return !index.isEmpty();
+  }
+
+  /**
+   * Hand the indexed plugins which weren't overridden by the xml files the seed the files set, and construct the ones
+   * reading the seed system property now that it holds that seed.
+   */
+  private void resolveIndexedPlugins() throws PasswordEncoderException {
+    Map<EncoderDescriptor, EncoderDescriptor> resolved = new IdentityHashMap<>();
+    for ( Map.Entry<String, EncoderDescriptor> entry : encoderMap.entrySet() ) {
+      EncoderDescriptor descriptor = entry.getValue();
+      if ( !indexedPlugins.containsKey( descriptor ) ) {
+        continue;
+      }
+      // A plugin registered under several ids stays a single encoder
+      EncoderDescriptor withSeed = resolved.get( descriptor );
+      if ( withSeed == null ) {
+        withSeed = descriptor.withSeed( seed );
+        if ( !withSeed.isSeeded() ) {
+          construct( withSeed );
+        }
+        resolved.put( descriptor, withSeed );
+      }
+      entry.setValue( withSeed );
+    }
+  }
+
+  /**
+   * Register a plugin under all its ids. The plugin class is resolved now. An encoder handed its seed is created when
+   * it is first used, others are constructed now, while the seed system property holds their seed, and initialized
+   * when they are first used.
+   *
+   * @param create false to leave constructing the encoder to {@link #resolveIndexedPlugins()}
+   * @return the descriptor of the plugin
+   */
+  private EncoderDescriptor registerPlugin( String[] ids, String classname, boolean isDefault, boolean create )
+    throws PasswordEncoderException {
+    MethodHandle[] constructors = findConstructors( classname );
+    EncoderDescriptor descriptor =
+      new EncoderDescriptor( classname, constructors[ 0 ], constructors[ 1 ], constructors[ 2 ], seed, settings );
+    if ( create && !descriptor.isSeeded() ) {
+      construct( descriptor );
+    }
+    for ( String idTag : ids ) {
+      String id = idTag.trim().toLowerCase();
+      encoderMap.put( id, descriptor );
+      registeredIds++;
+      if ( isDefault ) {
+        if ( defaultEncoderId != null ) {
+          throw new PasswordEncoderException( "Only one encoder can be marked as \"default-encoder\"" );
+        }
+        defaultEncoderId = id;
+      }
+      if ( firstId == null ) {
+        firstId = id;
+      }
+    }
+    return descriptor;
+  }
+
+  /**
+   * Construct a plugin which reads the seed system property. An instance with settings of its own can't hand it its
+   * seed, the plugin would silently use the JVM wide one.
+   */
+  private void construct( EncoderDescriptor descriptor ) throws PasswordEncoderException {
+    if ( !isSystemSettings() && seed != null ) {
+      throw new PasswordEncoderException( "Plugin " + descriptor.getClassname()
+        + " reads the seed system property, it can't be given the seed of this instance. Give it a public constructor"
+        + " taking java.util.Properties or the seed" );
+    }
+    descriptor.construct();
+  }
+
+  private static MethodHandle[] findConstructors( String classname ) throws PasswordEncoderException {
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return lookUpConstructors( classname );
+    }
+    PluginSetupEvent event = new PluginSetupEvent();
+    event.begin();
+    try {
+      MethodHandle[] constructors = lookUpConstructors( classname );
+      event.complete( classname, PluginSetupEvent.CLASS_LOAD, null );
+      return constructors;
+    } catch ( PasswordEncoderException | RuntimeException | Error e ) {
+      event.complete( classname, PluginSetupEvent.CLASS_LOAD, e );
+      throw e;
+    }
+  }
+
+  private static MethodHandle[] lookUpConstructors( String classname ) throws PasswordEncoderException {
+    Class<?> clazz;
+    try {
+      clazz = Class.forName( classname );
+    } catch ( ClassNotFoundException e ) {
+      throw new PasswordEncoderException( "ClassNotFound: " + classname );
+    }
+    if ( !TwoWayPasswordEncoderInterface.class.isAssignableFrom( clazz ) ) {
+      throw new PasswordEncoderException( "Could not instantiate: " + classname );
+    }
+    try {
+      return CONSTRUCTORS.get( clazz );
+    } catch ( IllegalStateException e ) {
+      throw new PasswordEncoderException( "Could not instantiate: " + classname );
+    }
+  }
+
+  /**
+   * @return the public constructor of the type taking the parameter types, returning a TwoWayPasswordEncoderInterface,
+   * or null if there is none
+   */
+  private static MethodHandle findConstructor( Class<?> type, Class<?>... parameterTypes ) {
+    try {
+      return MethodHandles.publicLookup().findConstructor( type, MethodType.methodType( void.class, parameterTypes ) )
+        .asType( MethodType.methodType( TwoWayPasswordEncoderInterface.class, parameterTypes ) );
+    } catch ( NoSuchMethodException | IllegalAccessException e ) {
+      return null;
+    }
+  }
+
+  private boolean isSystemSettings() {
+    return settings == System.getProperties();
+  }
+
+  private static void setSeedProperty( String value ) {
+    if ( value == null ) {
+      System.clearProperty( KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED );
+    } else {
+      System.setProperty( KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, value );
+    }
+  }
+
+  private boolean isIndexEnabled() {
+    String value = StringUtil.NVL( settings.getProperty( KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX ), null );
+    return value == null || !( value.toLowerCase().startsWith( "n" ) || value.toLowerCase().startsWith( "f" ) );
+  }
+}
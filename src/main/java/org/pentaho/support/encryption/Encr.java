@@ -24,23 +24,42 @@ package org.pentaho.support.encryption;
 
 import org.eclipse.jetty.util.security.Password;
 import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.FlightRecorderUtil;
 import org.pentaho.support.utils.StringUtil;
-import org.pentaho.support.utils.XMLHandler;
 import org.pentaho.support.utils.XmlParseException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.UnaryOperator;
 
 /**
  * This class handles basic encryption of passwords in Kettle. Note that it's not really encryption, it's more
  * obfuscation. Passwords are <b>difficult</b> to read, not impossible.
+ * <p>
+ * {@link #getInstance()} returns the JVM wide instance, configured by the system properties. Instances with encoders
+ * and seeds of their own, for example one per tenant, are created by {@link #newInstance(Properties)}, see also
+ * {@link TenantEncrCache}.
  *
  * @author Matt
  * @since 17-12-2003
@@ -51,6 +70,68 @@ public class Encr {
   public static final String KETTLE_PASSWORD_ENCODER_PLUGIN = "KETTLE_PASSWORD_ENCODER_PLUGIN";
   public static final String KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED = "KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED";
   public static final String XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS = "kettle-password-encoder-plugins.xml";
+  /**
+   * Set to N to ignore the plugin indexes written by {@link TwoWayPasswordEncoderPluginProcessor} and only register
+   * the encoders of the plugin xml files
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX = "KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX";
+  /**
+   * When the encoders are initialized: "lazy" (the default) initializes every encoder when it is first used, "parallel"
+   * also initializes them on background threads right away and "eager" initializes them all while the plugins are
+   * loaded. Encoders taking their seed in their constructor are also only created then, others are constructed while
+   * the plugins are loaded, as they read the seed system property
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_INIT = "KETTLE_PASSWORD_ENCODER_INIT";
+  /**
+   * The maximum number of decrypted passwords to cache, the cache is disabled when this is not set or 0
+   */
+  public static final String KETTLE_PASSWORD_DECRYPT_CACHE_SIZE = "KETTLE_PASSWORD_DECRYPT_CACHE_SIZE";
+  /**
+   * The number of milliseconds a decrypted password stays cached, entries don't expire when this is not set or 0
+   */
+  public static final String KETTLE_PASSWORD_DECRYPT_CACHE_TTL = "KETTLE_PASSWORD_DECRYPT_CACHE_TTL";
+  /**
+   * Set to Y to record the calls made to the encoders, see {@link #enableMetrics()}
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_METRICS = "KETTLE_PASSWORD_ENCODER_METRICS";
+  /**
+   * Time one call to the encoders in this many for the latency metrics, 8 when this is not set, 1 to time every call
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_METRICS_TIMING_INTERVAL =
+    "KETTLE_PASSWORD_ENCODER_METRICS_TIMING_INTERVAL";
+  /**
+   * The number of calls to one encoder the asynchronous methods, like {@link #decryptPasswordAsync(String, String)},
+   * run at the same time, the number of processors when this is not set. Append "." and the encoder id to the name to
+   * set it for one encoder, for all the KETTLE_PASSWORD_ENCODER_ASYNC_ settings.
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_ASYNC_THREADS = "KETTLE_PASSWORD_ENCODER_ASYNC_THREADS";
+  /**
+   * The number of asynchronous calls to one encoder which can wait for a thread, 1000 when this is not set. Calls
+   * beyond that fail with a RejectedExecutionException.
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_ASYNC_QUEUE = "KETTLE_PASSWORD_ENCODER_ASYNC_QUEUE";
+  /**
+   * The number of milliseconds after which an asynchronous call fails with a TimeoutException, no limit when this is
+   * not set or 0
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_ASYNC_TIMEOUT = "KETTLE_PASSWORD_ENCODER_ASYNC_TIMEOUT";
+  /**
+   * Set to N to run the asynchronous calls on platform threads even when the JVM has virtual threads
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_ASYNC_VIRTUAL_THREADS =
+    "KETTLE_PASSWORD_ENCODER_ASYNC_VIRTUAL_THREADS";
+  /**
+   * Set to Y to load the encoders again when the plugin xml files change, see {@link #watchPluginConfig()}
+   */
+  public static final String KETTLE_PASSWORD_ENCODER_PLUGINS_WATCH = "KETTLE_PASSWORD_ENCODER_PLUGINS_WATCH";
+
+  private static final String BATCH_OPTION = "-batch";
+  private static final String SERVER_OPTION = "-server";
+  private static final String CLIENT_OPTION = "-client";
+  private static final String REENCRYPT_OPTION = "-reencrypt";
+  private static final String AUDIT_OPTION = "-audit";
+  private static final String JETTY_OBFUSCATED_PREFIX = "OBF:";
+  private static final int DEFAULT_ASYNC_QUEUE = 1000;
 
   private static final String FILE_SEPARATOR = System.getProperty( "file.separator" );
 
@@ -64,44 +145,118 @@ public class Encr {
    */
   @SuppressWarnings( "squid:S2068" ) public static final String PASSWORD_ENCRYPTED_PREFIX = "Encrypted ";
 
-  protected static Encr instance;
-  //Legacy code used "kettle" in encr command and "Kettle" in plugin so had to make case insensitive
-  private Map<String, TwoWayPasswordEncoderInterface> encoderMap =
-    new HashMap<String, TwoWayPasswordEncoderInterface>();
+  protected static volatile Encr instance;
 
-  private String defaultEncoderId;
-  private String firstId; //If no Id is explicitly marked as default then we use the first one defined
+  /**
+   * The settings, the system properties for the JVM wide instance
+   */
+  private final Properties settings;
 
-  private Encr() {
+  /**
+   * The seed setting when the instance was created. Loading the plugin xml files sets the seed system property for the
+   * JVM wide instance, every load starts from this seed again rather than from the one the previous load left.
+   */
+  private final String initialSeed;
+
+  /**
+   * The registered encoders. The snapshot is immutable and replaced as a whole, readers never take a lock.
+   */
+  private volatile EncoderRegistry registry;
+
+  /**
+   * The cache of decrypted passwords, null when caching is disabled
+   */
+  private volatile DecryptedValueCache decryptCache;
+
+  /**
+   * The calls made to the encoders, null when the metrics are disabled
+   */
+  private volatile EncoderMetrics metrics;
+
+  /**
+   * Held while the encoders are loaded again, so reloads replace the registry in the order they started
+   */
+  private final Object reloadLock = new Object();
+
+  /**
+   * Watches the plugin xml files, null when they are not watched
+   */
+  private PluginConfigWatcher configWatcher;
+
+  /**
+   * Run the asynchronous calls, by encoder id, created when an encoder is first called asynchronously
+   */
+  private final ConcurrentMap<String, EncoderBulkhead> bulkheads = new ConcurrentHashMap<>();
+
+  private Encr( Properties settings ) {
+    this.settings = settings;
+    this.initialSeed = settings.getProperty( KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED );
   }
 
   public static Encr getInstance() throws PasswordEncoderException, XmlParseException {
-    if ( instance == null ) {
-      Encr encr = new Encr();
-      encr.setupPasswordEncoders();
-      instance = encr;
+    Encr encr = instance;
+    if ( encr == null ) {
+      synchronized ( Encr.class ) {
+        encr = instance;
+        if ( encr == null ) {
+          encr = new Encr( System.getProperties() );
+          encr.setupPasswordEncoders();
+          instance = encr;
+        }
+      }
     }
-    return instance;
+    return encr;
+  }
+
+  /**
+   * Create an instance configured by its own settings instead of the system properties, with encoders of its own. The
+   * settings have the names of the system properties the JVM wide instance reads, like
+   * {@link #KETTLE_PASSWORD_ENCODER_PLUGINS_FILE}, {@link #KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED} and
+   * {@link #KETTLE_PASSWORD_DECRYPT_CACHE_SIZE}. The plugin file can also be a file on disk. Encoders with a public
+   * constructor taking {@link Properties} get these settings, with the seed of the instance or of their plugin, and
+   * encoders with a constructor taking the seed, like the Kettle one, get that seed. Encoders with neither can only
+   * read the system properties, the instance can't be created if one of them would need a seed. The metrics of such an
+   * instance are not registered as an MXBean.
+   *
+   * @param settings the settings, copied
+   * @return the instance
+   * @throws PasswordEncoderException if no plugin file could be found, a plugin can't be loaded or a setting is invalid
+   */
+  public static Encr newInstance( Properties settings ) throws PasswordEncoderException {
+    Properties copy = new Properties();
+    for ( String name : settings.stringPropertyNames() ) {
+      copy.setProperty( name, settings.getProperty( name ) );
+    }
+    Encr encr = new Encr( copy );
+    encr.setupPasswordEncoders();
+    return encr;
   }
 
   public String encryptPassword( String password ) {
-    return encryptPassword( getDefaultEncoderId(), password );
+    EncoderRegistry current = registry;
+    String encoderId = current.getDefaultEncoderId();
+    return encode( encoderId, instrument( encoderId, current.getDefaultEncoder() ), password, false );
   }
 
   public String encryptPassword( String encoderId, String password ) {
-    return getEncoder( encoderId ).encode( password, false );
+    return encode( encoderId, getEncoder( encoderId ), password, false );
   }
 
   public String decryptPassword( String password ) {
-    return decryptPassword( getDefaultEncoderId(), password );
+    EncoderRegistry current = registry;
+    String encoderId = current.getDefaultEncoderId();
+    return decrypt( current, encoderId, instrument( encoderId, current.getDefaultEncoder() ), password, false );
   }
 
   public String decryptPassword( String encoderId, String encrypted ) {
-    return getEncoder( encoderId ).decode( encrypted );
+    EncoderRegistry current = registry;
+    return decrypt( current, encoderId, instrument( encoderId, current.getEncoder( encoderId ) ), encrypted, false );
   }
 
   public String encryptPasswordIfNotUsingVariables( String password ) {
-    return encryptPasswordIfNotUsingVariables( getDefaultEncoderId(), password );
+    EncoderRegistry current = registry;
+    String encoderId = current.getDefaultEncoderId();
+    return encode( encoderId, instrument( encoderId, current.getDefaultEncoder() ), password, true );
   }
 
   /**
@@ -111,11 +266,13 @@ public class Encr {
    * @return The encrypted password or the
    */
   public String encryptPasswordIfNotUsingVariables( String encoderId, String password ) {
-    return getEncoder( encoderId ).encode( password, true );
+    return encode( encoderId, getEncoder( encoderId ), password, true );
   }
 
   public String decryptPasswordOptionallyEncrypted( String password ) {
-    return decryptPasswordOptionallyEncrypted( getDefaultEncoderId(), password );
+    EncoderRegistry current = registry;
+    String encoderId = current.getDefaultEncoderId();
+    return decrypt( current, encoderId, instrument( encoderId, current.getDefaultEncoder() ), password, true );
   }
 
   /**
@@ -125,8 +282,479 @@ public class Encr {
    * @return The decrypted password or the original value if the password doesn't start with "Encrypted "
    */
   public String decryptPasswordOptionallyEncrypted( String encoderId, String password ) {
+    EncoderRegistry current = registry;
+    return decrypt( current, encoderId, instrument( encoderId, current.getEncoder( encoderId ) ), password, true );
+  }
+
+  /**
+   * Decrypts a password with the encoder owning its prefix, for values encoded by different encoders. The prefixes of
+   * all the registered encoders are matched in a single pass over the first characters of the value.
+   *
+   * @param password The encrypted password
+   * @return The decrypted password or the original value if the password doesn't start with a known prefix
+   */
+  public String decryptPasswordByPrefix( String password ) {
+    EncoderRegistry current = registry;
+    String encoderId = current.findEncoderIdByPrefix( password );
+    if ( encoderId == null ) {
+      return password;
+    }
+    return decrypt( current, encoderId, instrument( encoderId, current.getEncoder( encoderId ) ), password, true );
+  }
+
+  /**
+   * Decrypts a password with the default encoder if it has its prefix, into a handle which holds it off the heap. The
+   * decrypted value cache is not used.
+   *
+   * @param password The encrypted password
+   * @return The decrypted password or the original value if it doesn't have the prefix, null if password is null.
+   * Close it once the password is no longer needed.
+   */
+  public SecretHandle decryptPasswordToHandle( String password ) {
+    EncoderRegistry current = registry;
+    String encoderId = current.getDefaultEncoderId();
+    return decodeToHandle( encoderId, instrument( encoderId, current.getDefaultEncoder() ), password );
+  }
+
+  /**
+   * Decrypts a password if it has the prefix of the encoder, into a handle which holds it off the heap. The decrypted
+   * value cache is not used.
+   *
+   * @param encoderId The id of the encoder
+   * @param password  The encrypted password
+   * @return The decrypted password or the original value if it doesn't have the prefix, null if password is null.
+   * Close it once the password is no longer needed.
+   */
+  public SecretHandle decryptPasswordToHandle( String encoderId, String password ) {
+    return decodeToHandle( encoderId, getEncoder( encoderId ), password );
+  }
+
+  /**
+   * Decrypts a password with the encoder owning its prefix, into a handle which holds it off the heap.
+   *
+   * @param password The encrypted password
+   * @return The decrypted password or the original value if it doesn't start with a known prefix, null if password is
+   * null. Close it once the password is no longer needed.
+   */
+  public SecretHandle decryptPasswordByPrefixToHandle( String password ) {
+    EncoderRegistry current = registry;
+    String encoderId = current.findEncoderIdByPrefix( password );
+    if ( encoderId == null ) {
+      // No encoder decodes it, the default one returns it as it is
+      encoderId = current.getDefaultEncoderId();
+    }
+    return decodeToHandle( encoderId, instrument( encoderId, current.getEncoder( encoderId ) ), password );
+  }
+
+  /**
+   * Decrypt a batch of passwords into handles which hold them off the heap, see
+   * {@link #decryptPasswordToHandle(String, String)}. The encoder is resolved once for the whole batch.
+   *
+   * @param encoderId        The id of the encoder
+   * @param encodedPasswords The encrypted passwords, values without the prefix of the encoder are kept as they are
+   * @return The handles, in the same order as the encoded passwords, null for a null password. If a password can't be
+   * decoded the handles created before are closed.
+   */
+  public SecretHandle[] decryptAllToHandles( String encoderId, String[] encodedPasswords ) {
+    TwoWayPasswordEncoderInterface encoder = getEncoder( encoderId );
+    SecretHandle[] handles = new SecretHandle[ encodedPasswords.length ];
+    try {
+      for ( int i = 0; i < encodedPasswords.length; i++ ) {
+        handles[ i ] = decodeToHandle( encoderId, encoder, encodedPasswords[ i ] );
+      }
+      return handles;
+    } catch ( RuntimeException | Error e ) {
+      for ( SecretHandle handle : handles ) {
+        if ( handle != null ) {
+          handle.close();
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Encrypt a password on the threads of the default encoder, see {@link #encryptPasswordAsync(String, String)}.
+   */
+  public CompletableFuture<String> encryptPasswordAsync( String password ) {
+    EncoderRegistry current = registry;
+    return encryptAsync( current, current.getDefaultEncoderId(), password );
+  }
+
+  /**
+   * Encrypt a password like {@link #encryptPassword(String, String)}, on threads of the encoder's own. An encoder only
+   * runs a limited number of calls at the same time and lets a limited number wait, see
+   * {@link #KETTLE_PASSWORD_ENCODER_ASYNC_THREADS}, {@link #KETTLE_PASSWORD_ENCODER_ASYNC_QUEUE} and
+   * {@link #KETTLE_PASSWORD_ENCODER_ASYNC_TIMEOUT}, so a slow encoder doesn't hold up the others. Stages chained
+   * without an executor run on the encoder's threads, chain long work with an executor of its own.
+   *
+   * @param encoderId The id of the encoder
+   * @param password  The password to encrypt
+   * @return The encrypted password. Fails with a RejectedExecutionException if too many calls wait for the encoder and
+   * with a TimeoutException if the encoder takes too long.
+   */
+  public CompletableFuture<String> encryptPasswordAsync( String encoderId, String password ) {
+    return encryptAsync( registry, encoderId, password );
+  }
+
+  /**
+   * Decrypt a password on the threads of the default encoder, see {@link #decryptPasswordAsync(String, String)}.
+   */
+  public CompletableFuture<String> decryptPasswordAsync( String password ) {
+    EncoderRegistry current = registry;
+    return decryptAsync( current, current.getDefaultEncoderId(), password, false );
+  }
+
+  /**
+   * Decrypt a password like {@link #decryptPassword(String, String)}, on threads of the encoder's own, see
+   * {@link #encryptPasswordAsync(String, String)}. A password in the decrypted value cache is returned right away.
+   *
+   * @param encoderId The id of the encoder
+   * @param encrypted The encrypted password
+   * @return The decrypted password
+   */
+  public CompletableFuture<String> decryptPasswordAsync( String encoderId, String encrypted ) {
+    return decryptAsync( registry, encoderId, encrypted, false );
+  }
+
+  /**
+   * Decrypt a password like {@link #decryptPasswordOptionallyEncrypted(String, String)}, on threads of the encoder's
+   * own, see {@link #decryptPasswordAsync(String, String)}.
+   */
+  public CompletableFuture<String> decryptPasswordOptionallyEncryptedAsync( String encoderId, String password ) {
+    return decryptAsync( registry, encoderId, password, true );
+  }
+
+  /**
+   * Decrypt a password like {@link #decryptPasswordByPrefix(String)}, on the threads of the encoder owning its prefix,
+   * see {@link #decryptPasswordAsync(String, String)}.
+   */
+  public CompletableFuture<String> decryptPasswordByPrefixAsync( String password ) {
+    EncoderRegistry current = registry;
+    String encoderId = current.findEncoderIdByPrefix( password );
+    if ( encoderId == null ) {
+      return CompletableFuture.completedFuture( password );
+    }
+    return decryptAsync( current, encoderId, password, true );
+  }
+
+  /**
+   * @param password An encrypted password
+   * @return The id of the encoder owning the prefix of the password, or null if the password doesn't start with a
+   * known prefix
+   */
+  public String findEncoderIdByPrefix( String password ) {
+    return registry.findEncoderIdByPrefix( password );
+  }
+
+  /**
+   * Values with a prefix claimed by more than one encoder are decoded by the default encoder if it claims the prefix,
+   * otherwise by the first encoder registered. The encr command line reports these prefixes on the console.
+   *
+   * @return The prefixes claimed by more than one encoder, with the ids of the encoders claiming them
+   */
+  public Map<String, List<String>> getPrefixClashes() {
+    return registry.getPrefixClashes();
+  }
+
+  /**
+   * @return The number of nanoseconds it took to create and initialize each encoder created so far, by lower case
+   * encoder id. Encoders which weren't used yet are missing.
+   */
+  public Map<String, Long> getEncoderInitNanos() {
+    return registry.getInitNanos();
+  }
+
+  /**
+   * Cache decrypted passwords from now on. Any previously cached passwords are discarded.
+   *
+   * @param maximumSize      The maximum number of decrypted passwords to keep, the least recently used ones are
+   *                         evicted first
+   * @param timeToLiveMillis The number of milliseconds after which a cached password expires, 0 to never expire them
+   */
+  public synchronized void enableDecryptCache( int maximumSize, long timeToLiveMillis ) {
+    DecryptedValueCache previous = decryptCache;
+    decryptCache = new DecryptedValueCache( maximumSize, timeToLiveMillis );
+    if ( previous != null ) {
+      previous.invalidateAll();
+    }
+  }
+
+  /**
+   * Stop caching decrypted passwords and wipe the ones which were cached.
+   */
+  public synchronized void disableDecryptCache() {
+    DecryptedValueCache previous = decryptCache;
+    decryptCache = null;
+    if ( previous != null ) {
+      previous.invalidateAll();
+    }
+  }
+
+  /**
+   * Wipe all cached decrypted passwords, for example after the plugin configuration changed.
+   */
+  public void invalidateDecryptCache() {
+    DecryptedValueCache cache = decryptCache;
+    if ( cache != null ) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * @return The statistics of the decrypted password cache, or null if the cache is disabled
+   */
+  public DecryptCacheStats getDecryptCacheStats() {
+    DecryptedValueCache cache = decryptCache;
+    return cache == null ? null : cache.getStats();
+  }
+
+  /**
+   * Load the encoders again from the plugin configuration and switch to them once every one of them is created and
+   * initialized. Calls made meanwhile keep using the previous encoders, they never wait for the new ones and never see
+   * a mix of both. The decrypted password cache is emptied when the encoders are switched, its statistics start from
+   * zero again. If the encoders can't be loaded the previous ones stay in use.
+   *
+   * @throws PasswordEncoderException if no plugin file could be found or a plugin can't be loaded or initialized
+   */
+  public void reloadPasswordEncoders() throws PasswordEncoderException {
+    synchronized ( reloadLock ) {
+      EncoderRegistry loaded = new EncoderRegistryLoader( settings, initialSeed ).loadInitialized();
+      registry = loaded;
+      // Replaced rather than emptied, a decryption which started with the previous encoders can only put its result
+      // in the previous cache
+      synchronized ( this ) {
+        DecryptedValueCache previous = decryptCache;
+        if ( previous != null ) {
+          decryptCache = previous.emptyCopy();
+          previous.invalidateAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reload the encoders, see {@link #reloadPasswordEncoders()}, on a background thread whenever the plugin xml files
+   * change. Only plugin files on disk are watched, not the ones in jars. Does nothing if the files are already
+   * watched. Failed reloads are reported on the console.
+   *
+   * @throws PasswordEncoderException if none of the plugin files is on disk or their directories can't be watched
+   */
+  public synchronized void watchPluginConfig() throws PasswordEncoderException {
+    if ( configWatcher != null ) {
+      return;
+    }
+    List<Path> files = new ArrayList<>();
+    try {
+      for ( URL url : EncoderRegistryLoader.findPluginFiles( settings ) ) {
+        files.add( Paths.get( url.toURI() ) );
+      }
+    } catch ( URISyntaxException | IllegalArgumentException e ) {
+      throw new PasswordEncoderException( "Unable to watch the password encoder plugin files", e );
+    }
+    if ( files.isEmpty() ) {
+      throw new PasswordEncoderException( "None of the password encoder plugin files is a file which can be watched" );
+    }
+    try {
+      configWatcher = PluginConfigWatcher.start( files, this::reloadQuietly, PluginConfigWatcher.DEFAULT_QUIET_MILLIS );
+    } catch ( IOException e ) {
+      throw new PasswordEncoderException( "Unable to watch the password encoder plugin files " + files, e );
+    }
+  }
+
+  /**
+   * Stop reloading the encoders when the plugin xml files change.
+   */
+  public synchronized void stopWatchingPluginConfig() {
+    PluginConfigWatcher watcher = configWatcher;
+    configWatcher = null;
+    if ( watcher != null ) {
+      try {
+        watcher.close();
+      } catch ( IOException e ) {
+        //close quietly
+      }
+    }
+  }
+
+  private void reloadQuietly() {
+    try {
+      reloadPasswordEncoders();
+    } catch ( PasswordEncoderException | RuntimeException e ) {
+      System.err.println(
+        "Error reloading the password encoders, the previous ones are still used: " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Record the calls made to the encoders from now on, timing one call in 8, see {@link #enableMetrics(int)}.
+   */
+  public void enableMetrics() {
+    enableMetrics( EncoderMetrics.DEFAULT_TIMING_INTERVAL );
+  }
+
+  /**
+   * Record the calls made to the encoders from now on: the number of values encoded and decoded, the failures, the
+   * values decoded to an empty password, the characters processed and a latency histogram, per encoder id and
+   * operation. The metrics of the JVM wide instance are also registered as the MXBean
+   * {@link PasswordEncoderMetricsMXBean}. Decrypted passwords served from the decrypt cache don't reach the encoders
+   * and aren't counted. Does nothing if the metrics are already enabled.
+   *
+   * @param timingInterval Every call is counted but only one call in this many, picked at random, is timed. Reading
+   *                       the clock can cost as much as decoding a Kettle password. Rounded up to a power of two, 1
+   *                       times every call.
+   */
+  public synchronized void enableMetrics( int timingInterval ) {
+    if ( metrics == null ) {
+      EncoderMetrics enabled = new EncoderMetrics( timingInterval );
+      if ( isJvmWide() ) {
+        enabled.register();
+      }
+      metrics = enabled;
+    }
+  }
+
+  /**
+   * Stop recording the calls made to the encoders and discard the metrics recorded so far.
+   */
+  public synchronized void disableMetrics() {
+    EncoderMetrics previous = metrics;
+    metrics = null;
+    if ( previous != null ) {
+      previous.unregister();
+    }
+  }
+
+  /**
+   * Start counting from zero again.
+   */
+  public void resetMetrics() {
+    EncoderMetrics current = metrics;
+    if ( current != null ) {
+      current.reset();
+    }
+  }
 
-    return getEncoder( encoderId ).decode( password, true );
+  /**
+   * @return The statistics of every operation of every encoder used since the metrics were enabled, ordered by encoder
+   * id, or null if the metrics are disabled
+   */
+  public List<EncoderOperationStats> getMetrics() {
+    EncoderMetrics current = metrics;
+    return current == null ? null : current.getStats();
+  }
+
+  public String[] encodeAll( String[] passwords, boolean includePrefix ) {
+    return encodeAll( getDefaultEncoderId(), passwords, includePrefix );
+  }
+
+  public String[] encodeAll( String encoderId, String[] passwords, boolean includePrefix ) {
+    return encodeAll( encoderId, passwords, includePrefix, null );
+  }
+
+  /**
+   * Encode a batch of passwords with one encoder. The encoder is resolved once for the whole batch.
+   *
+   * @param encoderId     The id of the encoder to use
+   * @param passwords     The passwords to encode
+   * @param includePrefix True if a prefix needs to be encoded
+   * @param pool          The pool to spread large batches over, or null to encode on the calling thread. Only pass a
+   *                      pool if the encoder is thread safe.
+   * @return The encoded passwords, in the same order as the passwords
+   */
+  public String[] encodeAll( String encoderId, String[] passwords, boolean includePrefix, ForkJoinPool pool ) {
+    TwoWayPasswordEncoderInterface encoder = getEncoder( encoderId );
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return EncoderBatch.encodeAll( encoder, passwords, includePrefix, pool );
+    }
+    EncoderCallEvent event = new EncoderCallEvent();
+    event.start();
+    try {
+      String[] encoded = EncoderBatch.encodeAll( encoder, passwords, includePrefix, pool );
+      event.completeBatch( encoderId, EncoderCallEvent.ENCODE, passwords, null );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      event.completeBatch( encoderId, EncoderCallEvent.ENCODE, passwords, e );
+      throw e;
+    }
+  }
+
+  public List<String> encodeAll( List<String> passwords, boolean includePrefix ) {
+    return encodeAll( getDefaultEncoderId(), passwords, includePrefix );
+  }
+
+  public List<String> encodeAll( String encoderId, List<String> passwords, boolean includePrefix ) {
+    return encodeAll( encoderId, passwords, includePrefix, null );
+  }
+
+  public List<String> encodeAll( String encoderId, List<String> passwords, boolean includePrefix,
+                                 ForkJoinPool pool ) {
+    if ( passwords == null ) {
+      return null;
+    }
+    String[] values = passwords.toArray( new String[ passwords.size() ] );
+    return Arrays.asList( encodeAll( encoderId, values, includePrefix, pool ) );
+  }
+
+  public String[] decodeAll( String[] encodedPasswords, boolean optionallyEncrypted ) {
+    return decodeAll( getDefaultEncoderId(), encodedPasswords, optionallyEncrypted );
+  }
+
+  public String[] decodeAll( String encoderId, String[] encodedPasswords, boolean optionallyEncrypted ) {
+    return decodeAll( encoderId, encodedPasswords, optionallyEncrypted, null );
+  }
+
+  /**
+   * Decode a batch of passwords with one encoder. The encoder is resolved once for the whole batch.
+   *
+   * @param encoderId           The id of the encoder to use
+   * @param encodedPasswords    The encoded passwords
+   * @param optionallyEncrypted Set to true if the passwords are optionally encrypted (indicated by a prefix).
+   * @param pool                The pool to spread large batches over, or null to decode on the calling thread. Only
+   *                            pass a pool if the encoder is thread safe.
+   * @return The decoded passwords, in the same order as the encoded passwords
+   */
+  public String[] decodeAll( String encoderId, String[] encodedPasswords, boolean optionallyEncrypted,
+                             ForkJoinPool pool ) {
+    TwoWayPasswordEncoderInterface encoder = getEncoder( encoderId );
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return EncoderBatch.decodeAll( encoder, encodedPasswords, optionallyEncrypted, pool );
+    }
+    EncoderCallEvent event = new EncoderCallEvent();
+    event.start();
+    try {
+      String[] decoded = EncoderBatch.decodeAll( encoder, encodedPasswords, optionallyEncrypted, pool );
+      event.completeBatch( encoderId, EncoderCallEvent.DECODE, encodedPasswords, null );
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      event.completeBatch( encoderId, EncoderCallEvent.DECODE, encodedPasswords, e );
+      throw e;
+    }
+  }
+
+  public List<String> decodeAll( List<String> encodedPasswords, boolean optionallyEncrypted ) {
+    return decodeAll( getDefaultEncoderId(), encodedPasswords, optionallyEncrypted );
+  }
+
+  public List<String> decodeAll( String encoderId, List<String> encodedPasswords, boolean optionallyEncrypted ) {
+    return decodeAll( encoderId, encodedPasswords, optionallyEncrypted, null );
+  }
+
+  public List<String> decodeAll( String encoderId, List<String> encodedPasswords, boolean optionallyEncrypted,
+                                 ForkJoinPool pool ) {
+    if ( encodedPasswords == null ) {
+      return null;
+    }
+    String[] values = encodedPasswords.toArray( new String[ encodedPasswords.size() ] );
+    return Arrays.asList( decodeAll( encoderId, values, optionallyEncrypted, pool ) );
+  }
+
+  /**
+   * @param encoderId The id of the encoder
+   * @return The prefixes of the encoded passwords the encoder supports
+   */
+  public String[] getPrefixes( String encoderId ) {
+    return getEncoder( encoderId ).getPrefixes();
   }
 
   /**
@@ -135,7 +763,33 @@ public class Encr {
    * @param args the password to encrypt
    */
   public static void main( String[] args ) throws PasswordEncoderException, XmlParseException {
+    if ( args.length > 0 && CLIENT_OPTION.equalsIgnoreCase( args[ 0 ].trim() ) ) {
+      // The server has the encoders, don't load them
+      int exitCode = EncrClient.run( args );
+      if ( exitCode == 9 ) {
+        printOptions();
+      }
+      exitIfNotTest( exitCode );
+      return;
+    }
     Encr encr = Encr.getInstance();
+    encr.printPrefixClashes();
+    if ( args.length > 0 && BATCH_OPTION.equalsIgnoreCase( args[ 0 ].trim() ) ) {
+      exitIfNotTest( encr.runBatch( args ) );
+      return;
+    }
+    if ( args.length > 0 && SERVER_OPTION.equalsIgnoreCase( args[ 0 ].trim() ) ) {
+      exitIfNotTest( encr.runServer( args ) );
+      return;
+    }
+    if ( args.length > 0 && REENCRYPT_OPTION.equalsIgnoreCase( args[ 0 ].trim() ) ) {
+      exitIfNotTest( encr.runReencrypt( args ) );
+      return;
+    }
+    if ( args.length > 0 && AUDIT_OPTION.equalsIgnoreCase( args[ 0 ].trim() ) ) {
+      exitIfNotTest( encr.runAudit( args ) );
+      return;
+    }
     if ( args.length < 1 || args.length > 2 ) {
       printOptions();
       if ( exitIfNotTest( 9 ) ) {
@@ -150,7 +804,7 @@ public class Encr {
       option = args[ 0 ].trim().substring( 1 ).toLowerCase();
       password = args[ 1 ];
     } else {
-      option = instance.defaultEncoderId;
+      option = encr.registry.getConfiguredDefaultEncoderId();
       password = args[ 0 ];
     }
 
@@ -162,7 +816,7 @@ public class Encr {
       if ( exitIfNotTest( 0 ) ) {
         return;
       }
-    } else if ( instance.encoderMap.get( option ) != null ) {
+    } else if ( encr.registry.hasEncoder( option ) ) {
       // Kettle or other password obfuscation
       //
       try {
@@ -191,141 +845,578 @@ public class Encr {
 
   }
 
-  private void setupPasswordEncoders() throws PasswordEncoderException {
-    String xmlFile = XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS;
-    String alternative = StringUtil.NVL( System.getProperty( KETTLE_PASSWORD_ENCODER_PLUGINS_FILE ), null );
-    boolean registeredDefault;
-    boolean registeredAlternative;
+  /**
+   * Encode or decode every password read from a file or stdin, see {@link EncrBatchCommand}.
+   *
+   * @param args the command line, starting with -batch
+   * @return the exit code
+   */
+  private int runBatch( String[] args ) {
+    String option = registry.getConfiguredDefaultEncoderId();
+    boolean decode = false;
+    boolean csv = false;
+    boolean header = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String file = null;
+    for ( int i = 1; i < args.length; i++ ) {
+      String arg = args[ i ].trim();
+      if ( arg.equalsIgnoreCase( "-decode" ) ) {
+        decode = true;
+      } else if ( arg.equalsIgnoreCase( "-csv" ) ) {
+        csv = true;
+      } else if ( arg.equalsIgnoreCase( "-header" ) ) {
+        header = true;
+      } else if ( arg.equalsIgnoreCase( "-threads" ) ) {
+        try {
+          threads = Integer.parseInt( args[ ++i ].trim() );
+        } catch ( ArrayIndexOutOfBoundsException | NumberFormatException e ) {
+          System.err.println( "-threads needs a number\n" );
+          printOptions();
+          return 9;
+        }
+      } else if ( arg.length() > 1 && arg.startsWith( "-" ) ) {
+        option = arg.substring( 1 ).toLowerCase();
+      } else if ( file == null ) {
+        file = args[ i ];
+      } else {
+        printOptions();
+        return 9;
+      }
+    }
 
-    // Load the plugins for the default file...
+    String action = decode ? "decrypting" : "encrypting";
+    UnaryOperator<String[]> operation;
+    if ( option.equalsIgnoreCase( "carte" ) ) {
+      // Jetty password obfuscation
+      operation = decode ? passwords -> map( passwords, Encr::deobfuscateOptionally )
+        : passwords -> map( passwords, Password::obfuscate );
+    } else if ( registry.hasEncoder( option ) ) {
+      final TwoWayPasswordEncoderInterface encoder;
+      try {
+        encoder = getEncoder( option );
+      } catch ( RuntimeException e ) {
+        System.err.println( "Error " + action + " passwords" );
+        e.printStackTrace();
+        return 2;
+      }
+      operation = decode ? passwords -> encoder.decodeAll( passwords, true )
+        : passwords -> encoder.encodeAll( passwords, true );
+    } else {
+      System.err.println( "Unknown option '" + option + "'\n" );
+      printOptions();
+      return 1;
+    }
+
+    EncrBatchCommand command = new EncrBatchCommand( operation, action, csv, header, threads, System.err );
+    Writer out = new BufferedWriter( new OutputStreamWriter( System.out ) );
     try {
-      registeredDefault = registerPlugins( xmlFile );
-    } catch ( Exception e ) {
-      throw new PasswordEncoderException( "Unable to load native plugins '" + xmlFile + "'", e );
+      int failed;
+      if ( file == null || file.equals( "-" ) ) {
+        // stdin is left open
+        failed = command.run( new BufferedReader( new InputStreamReader( System.in ) ), out );
+      } else {
+        try ( BufferedReader in = Files.newBufferedReader( Paths.get( file ), Charset.defaultCharset() ) ) {
+          failed = command.run( in, out );
+        }
+      }
+      return failed == 0 ? 0 : 2;
+    } catch ( IOException | InvalidPathException e ) {
+      System.err.println( "Error " + action + " passwords" );
+      e.printStackTrace();
+      return 2;
+    }
+  }
+
+  /**
+   * Serve the encoders on a Unix domain socket until the JVM is stopped, see {@link EncrServer}.
+   *
+   * @param args the command line, starting with -server
+   * @return the exit code
+   */
+  private int runServer( String[] args ) {
+    int threads = EncrServer.DEFAULT_THREADS;
+    if ( args.length == 4 && args[ 2 ].trim().equalsIgnoreCase( "-threads" ) ) {
+      try {
+        threads = Integer.parseInt( args[ 3 ].trim() );
+      } catch ( NumberFormatException e ) {
+        threads = -1;
+      }
+    }
+    if ( ( args.length != 2 && args.length != 4 ) || threads < 1 ) {
+      printOptions();
+      return 9;
     }
+    final EncrServer server;
     try {
-      registeredAlternative = registerPlugins( alternative );
-    } catch ( Exception e ) {
-      throw new PasswordEncoderException( "Unable to load alternative plugins '" + alternative + "'", e );
+      server = EncrServer.start( this, Paths.get( args[ 1 ] ), threads );
+    } catch ( IOException | InvalidPathException e ) {
+      System.err.println( "Error starting the password encoder server: " + e.getMessage() );
+      return 2;
     }
-    if ( !registeredDefault && !registeredAlternative ) {
-      throw new PasswordEncoderException(
-        "Unable to load a defining plugin xml file for TwoWayPasswordEncoderInteface.  Please create file '"
-          + XML_FILE_KETTLE_PASSWORD_ENCODER_PLUGINS + "'" );
+    Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+      try {
+        server.close();
+      } catch ( IOException e ) {
+        //close quietly
+      }
+    } ) );
+    System.err.println( "Listening on " + server.getSocketPath() );
+    try {
+      server.join();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
     }
+    return 0;
   }
 
+  /**
+   * Re-encrypt the passwords of a file with another encoder, see {@link Reencryptor}.
+   *
+   * @param args the command line, starting with -reencrypt
+   * @return the exit code
+   */
+  private int runReencrypt( String[] args ) {
+    String from = null;
+    String to = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String checkpoint = null;
+    boolean properties = false;
+    List<String> files = new ArrayList<>( 2 );
+    try {
+      for ( int i = 1; i < args.length; i++ ) {
+        String arg = args[ i ].trim();
+        if ( arg.equalsIgnoreCase( "-from" ) ) {
+          from = args[ ++i ].trim().toLowerCase();
+        } else if ( arg.equalsIgnoreCase( "-to" ) ) {
+          to = args[ ++i ].trim().toLowerCase();
+        } else if ( arg.equalsIgnoreCase( "-threads" ) ) {
+          threads = Integer.parseInt( args[ ++i ].trim() );
+        } else if ( arg.equalsIgnoreCase( "-checkpoint" ) ) {
+          checkpoint = args[ ++i ];
+        } else if ( arg.equalsIgnoreCase( "-properties" ) ) {
+          properties = true;
+        } else {
+          files.add( args[ i ] );
+        }
+      }
+    } catch ( ArrayIndexOutOfBoundsException | NumberFormatException e ) {
+      files.clear();
+    }
+    if ( from == null || to == null || files.size() != 2 ) {
+      printOptions();
+      return 9;
+    }
+    for ( String encoderId : new String[] { from, to } ) {
+      if ( !registry.hasEncoder( encoderId ) ) {
+        System.err.println( "Unknown option '" + encoderId + "'\n" );
+        printOptions();
+        return 1;
+      }
+    }
 
-  private boolean registerPlugins( String xmlFile ) throws PasswordEncoderException, XmlParseException {
-    if ( !StringUtil.isEmpty( xmlFile ) ) {
-      InputStream inputStream = getResAsStreamExternal( xmlFile );
-      if ( inputStream == null ) {
-        inputStream = getResAsStreamExternal( "/" + xmlFile );
+    Reencryptor reencryptor = new Reencryptor( this, from, to );
+    reencryptor.setThreads( threads );
+    reencryptor.setProgressListener( progress -> System.err.println( progress ),
+      Reencryptor.DEFAULT_PROGRESS_INTERVAL_MILLIS );
+    try {
+      Path in = Paths.get( files.get( 0 ) );
+      Path out = Paths.get( files.get( 1 ) );
+      if ( Files.exists( out ) && Files.isSameFile( in, out ) ) {
+        System.err.println( "The passwords can't be written to the file they are read from" );
+        return 9;
       }
-      if ( inputStream != null ) {
-        registerPlugins( inputStream );
-        if ( defaultEncoderId == null ) {
-          defaultEncoderId = firstId; //If no encoders were marked as default, make the first one the default one
-        }
-        return true;
+      if ( checkpoint != null ) {
+        reencryptor.setCheckpoint( Paths.get( checkpoint ), Reencryptor.DEFAULT_CHECKPOINT_INTERVAL );
       }
+      ReencryptionProgress progress;
+      try ( ReencryptionSource source = properties ? ReencryptionStores.propertiesSource( in )
+        : ReencryptionStores.lineSource( in );
+            ReencryptionSink sink = properties ? ReencryptionStores.propertiesSink( out )
+              : ReencryptionStores.lineSink( out ) ) {
+        progress = reencryptor.run( source, sink );
+      }
+      return progress.getFailed() == 0 ? 0 : 2;
+    } catch ( IOException | InvalidPathException e ) {
+      System.err.println( "Error re-encrypting passwords: " + e.getMessage() );
+      return 2;
     }
-    return false;
   }
 
-  private void registerPlugins( InputStream inputStream ) throws PasswordEncoderException, XmlParseException {
+  /**
+   * Report the encrypted values and variable references of a directory tree, see {@link CredentialAuditScanner}.
+   *
+   * @param args the command line, starting with -audit
+   * @return the exit code
+   */
+  private int runAudit( String[] args ) {
+    CredentialAuditScanner scanner = new CredentialAuditScanner( this );
+    boolean verbose = false;
+    String directory = null;
+    try {
+      for ( int i = 1; i < args.length; i++ ) {
+        String arg = args[ i ].trim();
+        if ( arg.equalsIgnoreCase( "-threads" ) ) {
+          scanner.setThreads( Integer.parseInt( args[ ++i ].trim() ) );
+        } else if ( arg.equalsIgnoreCase( "-extensions" ) ) {
+          String extensions = args[ ++i ].trim();
+          scanner.setExtensions( extensions.equals( "*" ) ? new String[ 0 ] : extensions.split( "\\s*,\\s*" ) );
+        } else if ( arg.equalsIgnoreCase( "-nodecode" ) ) {
+          scanner.setDecode( false );
+        } else if ( arg.equalsIgnoreCase( "-verbose" ) ) {
+          verbose = true;
+        } else if ( directory == null ) {
+          directory = args[ i ];
+        } else {
+          directory = null;
+          break;
+        }
+      }
+    } catch ( ArrayIndexOutOfBoundsException | NumberFormatException e ) {
+      directory = null;
+    }
+    if ( directory == null ) {
+      printOptions();
+      return 9;
+    }
+
+    final boolean printAll = verbose;
+    scanner.setFindingListener( finding -> {
+      if ( printAll || !finding.isDecodable() ) {
+        synchronized ( System.out ) {
+          System.out.println( finding );
+        }
+      }
+    } );
+    CredentialAuditReport report;
     try {
-      Document document = XMLHandler.loadXMLFile( inputStream, false );
+      report = scanner.scan( Paths.get( directory ) );
+    } catch ( IOException | InvalidPathException e ) {
+      System.err.println( "Error scanning " + directory + ": " + e.getMessage() );
+      return 2;
+    }
+    System.out.println( "Scanned " + report.getFiles() + " files, " + report.getBytes() + " bytes in "
+      + report.getElapsedNanos() / 1000000 + " ms, " + report.getUnreadableFiles() + " could not be read" );
+    for ( Map.Entry<String, Long> values : report.getEncryptedValues().entrySet() ) {
+      Long undecodable = report.getUndecodableValues().get( values.getKey() );
+      System.out.println( "Encoder '" + values.getKey() + "': " + values.getValue() + " values, "
+        + ( undecodable == null ? 0 : undecodable ) + " do not decode" );
+    }
+    System.out.println( "Variables: " + CredentialAuditReport.total( report.getVariableReferences() )
+      + " references to " + report.getVariableReferences().size() + " variables" );
+    if ( verbose ) {
+      for ( Map.Entry<String, Long> variable : report.getVariableReferences().entrySet() ) {
+        System.out.println( "  " + variable.getKey() + ": " + variable.getValue() );
+      }
+    }
+    return report.getUndecodableValues().isEmpty() && report.getUnreadableFiles() == 0 ? 0 : 2;
+  }
 
-      Node repsNode = XMLHandler.getSubNode( document, "password-encoder-plugins" );
-      List<Node> repsNodes = XMLHandler.getNodes( repsNode, "password-encoder-plugin" );
+  private static String[] map( String[] values, UnaryOperator<String> function ) {
+    String[] results = new String[ values.length ];
+    for ( int i = 0; i < values.length; i++ ) {
+      results[ i ] = values[ i ] == null ? null : function.apply( values[ i ] );
+    }
+    return results;
+  }
 
-      for ( Node repNode : repsNodes ) {
-        registerPluginFromXmlResource( repNode );
+  private static String deobfuscateOptionally( String password ) {
+    return password.startsWith( JETTY_OBFUSCATED_PREFIX ) ? Password.deobfuscate( password ) : password;
+  }
+
+  private void setupPasswordEncoders() throws PasswordEncoderException {
+    registry = new EncoderRegistryLoader( settings, initialSeed ).load();
+
+    String recordMetrics = StringUtil.NVL( settings.getProperty( KETTLE_PASSWORD_ENCODER_METRICS ), "N" );
+    if ( recordMetrics.toLowerCase().startsWith( "y" ) || recordMetrics.toLowerCase().startsWith( "t" ) ) {
+      long timingInterval = getLongProperty( KETTLE_PASSWORD_ENCODER_METRICS_TIMING_INTERVAL );
+      enableMetrics( timingInterval > 0 ? (int) Math.min( timingInterval, Integer.MAX_VALUE )
+        : EncoderMetrics.DEFAULT_TIMING_INTERVAL );
+    }
+
+    long cacheSize = getLongProperty( KETTLE_PASSWORD_DECRYPT_CACHE_SIZE );
+    if ( cacheSize > 0 ) {
+      enableDecryptCache( (int) Math.min( cacheSize, Integer.MAX_VALUE ),
+        getLongProperty( KETTLE_PASSWORD_DECRYPT_CACHE_TTL ) );
+    }
+
+    String watch = StringUtil.NVL( settings.getProperty( KETTLE_PASSWORD_ENCODER_PLUGINS_WATCH ), "N" );
+    if ( watch.toLowerCase().startsWith( "y" ) || watch.toLowerCase().startsWith( "t" ) ) {
+      watchPluginConfig();
+    }
+  }
+
+  /**
+   * @param current the registry the encoder comes from
+   */
+  private String decrypt( EncoderRegistry current, String encoderId, TwoWayPasswordEncoderInterface encoder,
+                          String encrypted, boolean optionallyEncrypted ) {
+    DecryptedValueCache cache = decryptCache;
+    if ( cache == null || encrypted == null ) {
+      return decode( encoderId, encoder, encrypted, optionallyEncrypted );
+    }
+    String decrypted = cache.get( encoderId, optionallyEncrypted, encrypted );
+    if ( decrypted == null ) {
+      decrypted = decodeAndCache( current, cache, encoderId, encoder, encrypted, optionallyEncrypted );
+    }
+    return decrypted;
+  }
+
+  /**
+   * Decode a password which isn't cached and cache it.
+   *
+   * @param cache the cache the password wasn't found in, or null
+   */
+  private String decodeAndCache( EncoderRegistry current, DecryptedValueCache cache, String encoderId,
+                                 TwoWayPasswordEncoderInterface encoder, String encrypted,
+                                 boolean optionallyEncrypted ) {
+    String decrypted = decode( encoderId, encoder, encrypted, optionallyEncrypted );
+    // Values returned as is because they weren't encrypted are not worth caching, nor values decrypted by encoders
+    // which were replaced meanwhile
+    if ( cache != null && decrypted != null && decrypted != encrypted && registry == current ) {
+      cache.put( encoderId, optionallyEncrypted, encrypted, decrypted );
+      if ( decryptCache != cache ) {
+        // Replaced or disabled meanwhile, nothing reads it anymore
+        cache.invalidateAll();
       }
-    } finally {
+    }
+    return decrypted;
+  }
+
+  private CompletableFuture<String> encryptAsync( EncoderRegistry current, String encoderId, String password ) {
+    if ( encoderId == null || !current.hasEncoder( encoderId ) ) {
+      return failedFuture( new RuntimeException( "plugin id '" + encoderId + "' does not exist" ) );
+    }
+    return submit( encoderId,
+      () -> encode( encoderId, instrument( encoderId, current.getEncoder( encoderId ) ), password, false ) );
+  }
+
+  private CompletableFuture<String> decryptAsync( EncoderRegistry current, String encoderId, String encrypted,
+                                                  boolean optionallyEncrypted ) {
+    if ( encoderId == null || !current.hasEncoder( encoderId ) ) {
+      return failedFuture( new RuntimeException( "plugin id '" + encoderId + "' does not exist" ) );
+    }
+    DecryptedValueCache cache = encrypted == null ? null : decryptCache;
+    if ( cache != null ) {
+      String decrypted = cache.get( encoderId, optionallyEncrypted, encrypted );
+      if ( decrypted != null ) {
+        return CompletableFuture.completedFuture( decrypted );
+      }
+    }
+    // The encoder is looked up on the encoder's threads, creating it may take as long as calling it
+    return submit( encoderId, () -> decodeAndCache( current, cache, encoderId,
+      instrument( encoderId, current.getEncoder( encoderId ) ), encrypted, optionallyEncrypted ) );
+  }
+
+  private CompletableFuture<String> submit( String encoderId, Callable<String> call ) {
+    EncoderBulkhead bulkhead = bulkheads.get( encoderId );
+    if ( bulkhead == null ) {
       try {
-        if ( inputStream != null ) {
-          inputStream.close();
-        }
-      } catch ( IOException e ) {
-        //close quietly
+        bulkhead = newBulkhead( encoderId );
+      } catch ( PasswordEncoderException | IllegalArgumentException e ) {
+        return failedFuture( e );
+      }
+      EncoderBulkhead existing = bulkheads.putIfAbsent( encoderId, bulkhead );
+      if ( existing != null ) {
+        bulkhead.shutdown();
+        bulkhead = existing;
       }
     }
+    return bulkhead.submit( call );
+  }
+
+  private EncoderBulkhead newBulkhead( String encoderId ) throws PasswordEncoderException {
+    long threads = getLongProperty( KETTLE_PASSWORD_ENCODER_ASYNC_THREADS, encoderId );
+    long queueSize = getLongProperty( KETTLE_PASSWORD_ENCODER_ASYNC_QUEUE, encoderId );
+    String virtualThreads = StringUtil.NVL( getProperty( KETTLE_PASSWORD_ENCODER_ASYNC_VIRTUAL_THREADS, encoderId ),
+      "Y" );
+    return new EncoderBulkhead( encoderId,
+      threads > 0 ? (int) Math.min( threads, Integer.MAX_VALUE ) : Runtime.getRuntime().availableProcessors(),
+      queueSize > 0 ? (int) Math.min( queueSize, Integer.MAX_VALUE ) : DEFAULT_ASYNC_QUEUE,
+      getLongProperty( KETTLE_PASSWORD_ENCODER_ASYNC_TIMEOUT, encoderId ),
+      !( virtualThreads.toLowerCase().startsWith( "n" ) || virtualThreads.toLowerCase().startsWith( "f" ) ) );
   }
 
-  protected void registerPluginFromXmlResource( Node pluginNode )
-    throws PasswordEncoderException {
+  private static <T> CompletableFuture<T> failedFuture( Throwable error ) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally( error );
+    return future;
+  }
 
-    String idTag = XMLHandler.getTagAttribute( pluginNode, "id" );
-    String classname = getTagOrAttribute( pluginNode, "classname" );
-    String defaultTag = getTagOrAttribute( pluginNode, "default-encoder" );
-    String seedXML = getTagOrAttribute( pluginNode, "seed" );
-    if ( seedXML != null ) {
-      System.setProperty( KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, seedXML );
+  /**
+   * Encode with the encoder, recording a Flight Recorder event for slow calls.
+   */
+  private static String encode( String encoderId, TwoWayPasswordEncoderInterface encoder, String password,
+                                boolean includePrefix ) {
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return encoder.encode( password, includePrefix );
     }
+    EncoderCallEvent event = new EncoderCallEvent();
+    event.start();
+    try {
+      String encoded = encoder.encode( password, includePrefix );
+      event.complete( encoderId, EncoderCallEvent.ENCODE, password, "ok" );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      event.failed( encoderId, EncoderCallEvent.ENCODE, password, e );
+      throw e;
+    }
+  }
 
-    boolean isDefault = ( defaultTag != null && ( defaultTag.toLowerCase().startsWith( "t" ) || defaultTag.toLowerCase()
-      .startsWith( "y" ) ) );
+  /**
+   * Decode with the encoder, recording a Flight Recorder event for slow calls.
+   */
+  private static String decode( String encoderId, TwoWayPasswordEncoderInterface encoder, String encrypted,
+                                boolean optionallyEncrypted ) {
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return optionallyEncrypted ? encoder.decode( encrypted, true ) : encoder.decode( encrypted );
+    }
+    EncoderCallEvent event = new EncoderCallEvent();
+    event.start();
+    try {
+      String decoded = optionallyEncrypted ? encoder.decode( encrypted, true ) : encoder.decode( encrypted );
+      event.completeDecode( encoderId, encoder, encrypted, decoded );
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      event.failed( encoderId, EncoderCallEvent.DECODE, encrypted, e );
+      throw e;
+    }
+  }
 
+  /**
+   * Decode into a handle with the encoder, recording a Flight Recorder event for slow calls.
+   */
+  private static SecretHandle decodeToHandle( String encoderId, TwoWayPasswordEncoderInterface encoder,
+                                              String encrypted ) {
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return SecretHandle.decode( SecretMemory.INSTANCE, encoder, encrypted, true );
+    }
+    EncoderCallEvent event = new EncoderCallEvent();
+    event.start();
     try {
-      Class clazz = Class.forName( classname );
-      TwoWayPasswordEncoderInterface encoder = (TwoWayPasswordEncoderInterface) clazz.newInstance();
-      encoder.init();
-      String id = idTag.toLowerCase();
-      encoderMap.put( id, encoder );
-      if ( isDefault ) {
-        if ( defaultEncoderId != null ) {
-          throw new PasswordEncoderException( "Only one encoder can be marked as \"default-encoder\"" );
-        }
-        defaultEncoderId = id;
-      }
-      if ( firstId == null ) {
-        firstId = id;
-      }
-    } catch ( ClassNotFoundException e ) {
-      throw new PasswordEncoderException( "ClassNotFound: " + classname );
-    } catch ( InstantiationException | IllegalAccessException e ) {
-      throw new PasswordEncoderException( "Could not instantiate: " + classname );
+      SecretHandle decoded = SecretHandle.decode( SecretMemory.INSTANCE, encoder, encrypted, true );
+      event.complete( encoderId, EncoderCallEvent.DECODE, encrypted, "ok" );
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      event.failed( encoderId, EncoderCallEvent.DECODE, encrypted, e );
+      throw e;
+    }
+  }
+
+  private long getLongProperty( String name ) throws PasswordEncoderException {
+    return parseLong( name, StringUtil.NVL( settings.getProperty( name ), null ) );
+  }
+
+  /**
+   * @return the setting for the encoder, or else the setting for all encoders, 0 if neither is set
+   */
+  private long getLongProperty( String name, String encoderId ) throws PasswordEncoderException {
+    String value = StringUtil.NVL( settings.getProperty( name + "." + encoderId ), null );
+    if ( value != null ) {
+      return parseLong( name + "." + encoderId, value );
     }
+    return getLongProperty( name );
+  }
 
+  /**
+   * @return the setting for the encoder, or else the setting for all encoders
+   */
+  private String getProperty( String name, String encoderId ) {
+    return StringUtil.NVL( settings.getProperty( name + "." + encoderId ), settings.getProperty( name ) );
   }
 
-  private String getTagOrAttribute( Node pluginNode, String tag ) {
-    String string = XMLHandler.getTagValue( pluginNode, tag );
-    if ( string == null ) {
-      string = XMLHandler.getTagAttribute( pluginNode, tag );
+  private static long parseLong( String name, String value ) throws PasswordEncoderException {
+    if ( value == null ) {
+      return 0;
+    }
+    try {
+      return Long.parseLong( value.trim() );
+    } catch ( NumberFormatException e ) {
+      throw new PasswordEncoderException( "Invalid value for " + name + ": '" + value + "'", e );
     }
-    return string;
   }
 
-  private InputStream getResAsStreamExternal( String name ) {
-    return getClass().getResourceAsStream( name );
+  /**
+   * Stop watching the plugin files and wipe the cached passwords and the metrics, for an instance which is no longer
+   * used. Calls made afterwards still work, uncached.
+   */
+  void shutdown() {
+    stopWatchingPluginConfig();
+    disableDecryptCache();
+    disableMetrics();
+    for ( String encoderId : bulkheads.keySet() ) {
+      EncoderBulkhead bulkhead = bulkheads.remove( encoderId );
+      if ( bulkhead != null ) {
+        bulkhead.shutdown();
+      }
+    }
   }
 
-  private InputStream getFileInputStreamExternal( String name ) throws FileNotFoundException {
-    return new FileInputStream( name );
+  /**
+   * @return true for the instance configured by the system properties
+   */
+  private boolean isJvmWide() {
+    return settings == System.getProperties();
+  }
+
+  /**
+   * @return the registered encoders, a snapshot which doesn't change when the encoders are loaded again
+   */
+  EncoderRegistry getRegistry() {
+    return registry;
   }
 
   private TwoWayPasswordEncoderInterface getEncoder( String encoderId ) {
-    TwoWayPasswordEncoderInterface encoder = instance.encoderMap.get( encoderId );
-    if ( encoder == null ) {
-      throw new RuntimeException( "plugin id '" + encoderId + "' does not exist" );
-    }
-    return encoder;
+    return instrument( encoderId, registry.getEncoder( encoderId ) );
+  }
+
+  private TwoWayPasswordEncoderInterface instrument( String encoderId, TwoWayPasswordEncoderInterface encoder ) {
+    EncoderMetrics current = metrics;
+    return current == null ? encoder : current.instrument( encoderId, encoder );
   }
 
   private String getDefaultEncoderId() {
-    return StringUtil.NVL( System.getProperty( KETTLE_PASSWORD_ENCODER_PLUGIN ), defaultEncoderId ).toLowerCase();
+    return registry.getDefaultEncoderId();
+  }
+
+  private void printPrefixClashes() {
+    for ( Map.Entry<String, List<String>> clash : getPrefixClashes().entrySet() ) {
+      System.err.println( "Password encoder prefix '" + clash.getKey() + "' is used by " + clash.getValue()
+        + ", values with this prefix are decoded by '" + findEncoderIdByPrefix( clash.getKey() ) + "'" );
+    }
   }
 
   private static void printOptions() {
     System.err.println( "encr usage:\n" );
     System.err.println( "  encr <-kettle|-carte> <password>" );
+    System.err.println( "  encr -batch [-kettle|-carte] [-decode] [-csv] [-header] [-threads <n>] [<file>]" );
+    System.err.println( "  encr -server <socket> [-threads <n>]" );
+    System.err.println( "  encr -client <socket> [-kettle] [-decode|-verify <password>] <value>" );
+    System.err.println(
+      "  encr -reencrypt -from <encoder> -to <encoder> [-threads <n>] [-checkpoint <file>] [-properties] <in> <out>" );
+    System.err.println( "  encr -audit [-threads <n>] [-extensions <list>] [-nodecode] [-verbose] <directory>" );
     System.err.println( "  Options:" );
     System.err.println( "    -kettle: generate an obfuscated password to include in Kettle XML files" );
     System.err
       .println( "    -carte : generate an obfuscated password to include in the carte password file 'pwd/kettle.pwd'" );
+    System.err.println( "  Batch options:" );
+    System.err.println( "    -batch  : encode every line of the file, or of stdin when no file is given" );
+    System.err.println( "    -decode : decode the passwords, passwords without a prefix are written as they are" );
+    System.err.println( "    -csv    : the lines are CSV with an id column followed by a password column" );
+    System.err.println( "    -header : the first line is a header and is written as it is" );
+    System.err.println( "    -threads: the number of worker threads, 1 for encoders which aren't thread safe" );
+    System.err.println( "  Server options:" );
+    System.err.println( "    -server : serve the encoders on a Unix domain socket, needs Java 16 or later" );
+    System.err.println( "    -client : encode, decode or verify a password with the server listening on the socket" );
+    System.err.println( "  Re-encrypt options:" );
+    System.err.println( "    -reencrypt : write the values of <in> to <out>, re-encrypting the passwords of one" );
+    System.err.println( "                 encoder with another one, one value per line or the properties of a file" );
+    System.err.println( "    -checkpoint: save the progress in the file, an interrupted run started again resumes" );
+    System.err.println( "  Audit options:" );
+    System.err.println( "    -audit     : count the encrypted values and variables in the files of the directory and" );
+    System.err.println( "                 report the values which do not decode" );
+    System.err.println( "    -extensions: the extensions of the files to scan, ktr,kjb,properties by default or *" );
+    System.err.println( "    -nodecode  : don't check that the encrypted values decode" );
+    System.err.println( "    -verbose   : report every value and variable reference found" );
     System.err
       .println( "\nThis command line tool obfuscates a plain text password for use in XML and password files." );
     System.err.println( "Make sure to also copy the '" + PASSWORD_ENCRYPTED_PREFIX
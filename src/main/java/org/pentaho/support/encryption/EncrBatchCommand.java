@@ -0,0 +1,319 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+/**
+ * The batch mode of the encr command line tool: encodes or decodes every line read, one password per line or as CSV
+ * lines with an id and a password column. Lines are processed in chunks on worker threads and written in the order
+ * they were read. Only a few chunks per worker are held at any time, so memory use does not depend on the input size.
+ */
+final class EncrBatchCommand {
+  /**
+   * The number of lines handed to a worker at once
+   */
+  static final int CHUNK_SIZE = 256;
+
+  private static final char SEPARATOR = ',';
+  private static final char QUOTE = '"';
+
+  private final UnaryOperator<String[]> operation;
+  private final String action;
+  private final boolean csv;
+  private final boolean header;
+  private final int threads;
+  private final PrintStream errors;
+
+  /**
+   * @param operation encodes or decodes a chunk of passwords, returning the results in the same order
+   * @param action    what the operation does, "encrypting" or "decrypting", for the messages
+   * @param csv       true if the lines are CSV with the id in the first column and the password in the second one,
+   *                  the other columns are written as they were read
+   * @param header    true if the first line is a header, it is written as it was read
+   * @param threads   the number of worker threads, 1 to process the lines on the calling thread
+   * @param errors    receives a message for every line which could not be processed
+   */
+  EncrBatchCommand( UnaryOperator<String[]> operation, String action, boolean csv, boolean header, int threads,
+                    PrintStream errors ) {
+    this.operation = operation;
+    this.action = action;
+    this.csv = csv;
+    this.header = header;
+    this.threads = Math.max( 1, threads );
+    this.errors = errors;
+  }
+
+  /**
+   * Process every line of in and write the results to out, one line per line read. A line which can't be processed is
+   * written with an empty password and reported. Neither in nor out is closed.
+   *
+   * @return the number of lines which could not be processed
+   * @throws IOException if in can't be read or out can't be written
+   */
+  int run( BufferedReader in, Writer out ) throws IOException {
+    ExecutorService executor = threads == 1 ? null : Executors.newFixedThreadPool( threads, runnable -> {
+      Thread thread = new Thread( runnable, "password-encoder-batch" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    Deque<Future<Chunk>> pending = new ArrayDeque<>();
+    int failed = 0;
+    try {
+      long lineNumber = 1;
+      if ( header ) {
+        String line = in.readLine();
+        if ( line == null ) {
+          return 0;
+        }
+        out.write( line );
+        out.write( System.lineSeparator() );
+        lineNumber++;
+      }
+      List<String> lines = new ArrayList<>( CHUNK_SIZE );
+      String line;
+      while ( true ) {
+        line = in.readLine();
+        if ( line != null ) {
+          lines.add( line );
+        }
+        if ( lines.size() == CHUNK_SIZE || ( line == null && !lines.isEmpty() ) ) {
+          final Chunk chunk = new Chunk( lineNumber, lines.toArray( new String[ lines.size() ] ) );
+          lineNumber += lines.size();
+          lines.clear();
+          if ( executor == null ) {
+            chunk.process();
+            failed += write( chunk, out );
+          } else {
+            pending.add( executor.submit( chunk::process ) );
+            // Keep every worker busy while holding on to a bounded number of chunks
+            while ( pending.size() > threads * 2 ) {
+              failed += write( getChunk( pending.removeFirst() ), out );
+            }
+          }
+        }
+        if ( line == null ) {
+          break;
+        }
+      }
+      while ( !pending.isEmpty() ) {
+        failed += write( getChunk( pending.removeFirst() ), out );
+      }
+      out.flush();
+      return failed;
+    } finally {
+      if ( executor != null ) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private int write( Chunk chunk, Writer out ) throws IOException {
+    for ( String line : chunk.results ) {
+      out.write( line );
+      out.write( System.lineSeparator() );
+    }
+    for ( String error : chunk.errors ) {
+      errors.println( error );
+    }
+    return chunk.errors.size();
+  }
+
+  private Chunk getChunk( Future<Chunk> future ) throws IOException {
+    try {
+      return future.get();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted while " + action + " passwords", e );
+    } catch ( ExecutionException e ) {
+      throw new IOException( "Error " + action + " passwords", e.getCause() );
+    }
+  }
+
+  private final class Chunk {
+    private final long firstLine;
+    private final String[] lines;
+    private final String[] results;
+    private final List<String> errors = new ArrayList<>();
+
+    Chunk( long firstLine, String[] lines ) {
+      this.firstLine = firstLine;
+      this.lines = lines;
+      this.results = new String[ lines.length ];
+    }
+
+    Chunk process() {
+      List<List<String>> fields = null;
+      String[] passwords = lines;
+      if ( csv ) {
+        fields = parse();
+        passwords = new String[ lines.length ];
+        for ( int i = 0; i < lines.length; i++ ) {
+          passwords[ i ] = fields.get( i ) == null ? null : fields.get( i ).get( 1 );
+        }
+      }
+      String[] processed = apply( passwords );
+      for ( int i = 0; i < lines.length; i++ ) {
+        if ( !csv ) {
+          results[ i ] = processed[ i ] == null ? "" : processed[ i ];
+        } else if ( fields.get( i ) == null ) {
+          // Blank lines stay blank, invalid ones are dropped as they may hold a password
+          results[ i ] = lines[ i ].trim().isEmpty() ? lines[ i ] : "";
+        } else {
+          fields.get( i ).set( 1, processed[ i ] == null ? "" : processed[ i ] );
+          results[ i ] = format( fields.get( i ) );
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Process the whole chunk at once so the encoder can amortize its setup, only when that fails every password is
+     * processed on its own to find the ones which can't be.
+     */
+    private String[] apply( String[] passwords ) {
+      try {
+        return operation.apply( passwords );
+      } catch ( RuntimeException e ) {
+        String[] processed = new String[ passwords.length ];
+        for ( int i = 0; i < passwords.length; i++ ) {
+          if ( passwords[ i ] == null ) {
+            continue;
+          }
+          try {
+            processed[ i ] = operation.apply( new String[] { passwords[ i ] } )[ 0 ];
+          } catch ( RuntimeException lineError ) {
+            errors.add( "Line " + ( firstLine + i ) + ": error " + action + " password: " + lineError.getMessage() );
+          }
+        }
+        return processed;
+      }
+    }
+
+    /**
+     * @return the fields of every line, null for blank and invalid lines
+     */
+    private List<List<String>> parse() {
+      List<List<String>> fields = new ArrayList<>( lines.length );
+      for ( int i = 0; i < lines.length; i++ ) {
+        List<String> line = lines[ i ].trim().isEmpty() ? null : parseLine( lines[ i ] );
+        if ( line != null && line.size() < 2 ) {
+          line = null;
+        }
+        if ( line == null && !lines[ i ].trim().isEmpty() ) {
+          errors.add( "Line " + ( firstLine + i ) + ": expected an id and a password column" );
+        }
+        fields.add( line );
+      }
+      return fields;
+    }
+  }
+
+  /**
+   * Split a CSV line into its fields. Fields can be quoted, a quote in a quoted field is doubled.
+   *
+   * @return the fields, or null if a quoted field isn't closed
+   */
+  static List<String> parseLine( String line ) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    int i = 0;
+    int length = line.length();
+    while ( true ) {
+      field.setLength( 0 );
+      if ( i < length && line.charAt( i ) == QUOTE ) {
+        i++;
+        while ( true ) {
+          if ( i >= length ) {
+            return null;
+          }
+          char c = line.charAt( i++ );
+          if ( c == QUOTE ) {
+            if ( i < length && line.charAt( i ) == QUOTE ) {
+              field.append( QUOTE );
+              i++;
+            } else {
+              break;
+            }
+          } else {
+            field.append( c );
+          }
+        }
+        // Anything between the closing quote and the separator is kept
+        while ( i < length && line.charAt( i ) != SEPARATOR ) {
+          field.append( line.charAt( i++ ) );
+        }
+      } else {
+        while ( i < length && line.charAt( i ) != SEPARATOR ) {
+          field.append( line.charAt( i++ ) );
+        }
+      }
+      fields.add( field.toString() );
+      if ( i >= length ) {
+        return fields;
+      }
+      // Skip the separator
+      i++;
+    }
+  }
+
+  /**
+   * Join fields into a CSV line, quoting the ones which need it.
+   */
+  static String format( List<String> fields ) {
+    StringBuilder line = new StringBuilder();
+    for ( int i = 0; i < fields.size(); i++ ) {
+      if ( i > 0 ) {
+        line.append( SEPARATOR );
+      }
+      String field = fields.get( i );
+      if ( field.indexOf( SEPARATOR ) >= 0 || field.indexOf( QUOTE ) >= 0 || field.indexOf( '\r' ) >= 0
+        || field.indexOf( '\n' ) >= 0 ) {
+        line.append( QUOTE );
+        for ( int j = 0; j < field.length(); j++ ) {
+          char c = field.charAt( j );
+          if ( c == QUOTE ) {
+            line.append( QUOTE );
+          }
+          line.append( c );
+        }
+        line.append( QUOTE );
+      } else {
+        line.append( field );
+      }
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,198 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.support.utils.StringUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A connection to an {@link EncrServer}. The encoders are loaded by the server, a client doesn't load them. A client
+ * sends one request at a time, it can be shared by threads which then wait for each other. The server closes a
+ * connection which stays idle for longer than its idle timeout, a client kept around between requests then fails with
+ * an IOException and has to connect again.
+ */
+public final class EncrClient implements Closeable {
+  private final SocketChannel channel;
+  private final InputStream in;
+  private final OutputStream out;
+
+  private EncrClient( SocketChannel channel ) {
+    this.channel = channel;
+    this.in = new BufferedInputStream( Channels.newInputStream( channel ) );
+    this.out = new BufferedOutputStream( Channels.newOutputStream( channel ) );
+  }
+
+  /**
+   * @param socketPath the socket file of the server
+   * @return the connected client
+   * @throws IOException if no server is listening on the socket or Unix domain sockets are not supported by this JVM
+   */
+  public static EncrClient connect( Path socketPath ) throws IOException {
+    SocketChannel channel = UnixDomainSockets.openChannel();
+    try {
+      channel.connect( UnixDomainSockets.address( socketPath ) );
+      return new EncrClient( channel );
+    } catch ( IOException | RuntimeException e ) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Encrypt the password, but only if the password doesn't contain any variables.
+   *
+   * @param encoderId the id of the encoder to use, null for the default encoder of the server
+   * @param password  the password to encrypt
+   * @return the encrypted password, with its prefix
+   */
+  public String encode( String encoderId, String password ) throws IOException, PasswordEncoderException {
+    return EncrServer.decode( call( "ENCODE", encoderId, password ) );
+  }
+
+  /**
+   * Decrypts a password if it has the prefix of the encoder.
+   *
+   * @param encoderId the id of the encoder to use, null for the default encoder of the server or "*" for the encoder
+   *                  owning the prefix of the password
+   * @param encoded   the encrypted password
+   * @return the decrypted password or the original value if it doesn't have the prefix
+   */
+  public String decode( String encoderId, String encoded ) throws IOException, PasswordEncoderException {
+    return EncrServer.decode( call( "DECODE", encoderId, encoded ) );
+  }
+
+  /**
+   * @param encoderId the id of the encoder to use, null for the default encoder of the server or "*" for the encoder
+   *                  owning the prefix of the password
+   * @param encoded   the encrypted password
+   * @param password  the password to compare with
+   * @return true if the encrypted password decrypts to the password
+   */
+  public boolean verify( String encoderId, String encoded, String password )
+    throws IOException, PasswordEncoderException {
+    return Boolean.parseBoolean( call( "VERIFY", encoderId, encoded, password ) );
+  }
+
+  /**
+   * @throws IOException if the server can't be reached
+   */
+  public void ping() throws IOException, PasswordEncoderException {
+    call( "PING", null );
+  }
+
+  /**
+   * @return the value of the response
+   * @throws PasswordEncoderException if the server could not handle the request
+   */
+  private synchronized String call( String command, String encoderId, String... values )
+    throws IOException, PasswordEncoderException {
+    StringBuilder request = new StringBuilder( command );
+    if ( values.length > 0 ) {
+      request.append( ' ' ).append( encoderId == null ? EncrServer.DEFAULT_ENCODER : encoderId );
+      for ( String value : values ) {
+        request.append( ' ' ).append( EncrServer.encode( value ) );
+      }
+    }
+    EncrServer.writeLine( out, request.toString() );
+    String response = EncrServer.readLine( in );
+    if ( response == null ) {
+      throw new IOException( "The password encoder server closed the connection" );
+    }
+    if ( response.equals( EncrServer.OK ) ) {
+      return "";
+    }
+    if ( response.startsWith( EncrServer.OK + " " ) ) {
+      return response.substring( EncrServer.OK.length() + 1 );
+    }
+    if ( response.startsWith( EncrServer.ERR ) ) {
+      throw new PasswordEncoderException( response.substring( EncrServer.ERR.length() ).trim() );
+    }
+    throw new IOException( "Unexpected response from the password encoder server" );
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * The encr -client command line: encr -client &lt;socket&gt; [-&lt;encoder id&gt;] [-decode|-verify &lt;password&gt;]
+   * &lt;value&gt;
+   *
+   * @param args the command line, starting with -client
+   * @return the exit code
+   */
+  static int run( String[] args ) {
+    if ( args.length < 3 ) {
+      return 9;
+    }
+    String encoderId = null;
+    boolean decode = false;
+    String verify = null;
+    String value = null;
+    for ( int i = 2; i < args.length; i++ ) {
+      String arg = args[ i ];
+      if ( value == null && arg.equalsIgnoreCase( "-decode" ) ) {
+        decode = true;
+      } else if ( value == null && arg.equalsIgnoreCase( "-verify" ) && i + 1 < args.length ) {
+        verify = args[ ++i ];
+      } else if ( value == null && arg.length() > 1 && arg.startsWith( "-" ) && i + 1 < args.length ) {
+        encoderId = arg.substring( 1 ).toLowerCase();
+      } else if ( value == null ) {
+        value = arg;
+      } else {
+        return 9;
+      }
+    }
+    if ( value == null ) {
+      return 9;
+    }
+    try ( EncrClient client = connect( Paths.get( args[ 1 ] ) ) ) {
+      String result;
+      if ( verify != null ) {
+        result = String.valueOf( client.verify( encoderId, value, verify ) );
+      } else if ( decode ) {
+        result = client.decode( encoderId, value );
+      } else {
+        result = client.encode( encoderId, value );
+      }
+      System.out.println( result );
+      return 0;
+    } catch ( IOException | PasswordEncoderException | InvalidPathException e ) {
+      System.err.println(
+        "Error calling the password encoder server: " + StringUtil.NVL( e.getMessage(), "" ).trim() );
+      return 2;
+    }
+  }
+}
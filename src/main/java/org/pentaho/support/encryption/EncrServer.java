@@ -0,0 +1,430 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves an {@link Encr} over a Unix domain socket, so tools which would otherwise start a JVM for every password
+ * share one which has its encoders loaded. Needs Java 16 or later. Clients are served on virtual threads when the JVM
+ * has them, otherwise on a bounded pool.
+ * <p>
+ * Every request and every response is one line ending with \n. Values are base64 encoded (RFC 4648, with padding),
+ * fields are separated by a single space:
+ * <pre>
+ *   PING                                          OK
+ *   ENCODE &lt;id&gt; &lt;password&gt;                      OK &lt;encoded password&gt;
+ *   DECODE &lt;id&gt; &lt;encoded password&gt;              OK &lt;password&gt;
+ *   VERIFY &lt;id&gt; &lt;encoded password&gt; &lt;password&gt;   OK true|false
+ * </pre>
+ * A failed request is answered with ERR and a message. The id is the encoder id, or "-" for the default encoder.
+ * DECODE and VERIFY also accept "*" to use the encoder owning the prefix of the value. ENCODE leaves passwords using
+ * variables as they are and DECODE values without a prefix, like the encr command line tool. A connection can send
+ * any number of requests, from the shell for example:
+ * <pre>
+ *   printf 'ENCODE - %s\n' "$(printf %s "$PASSWORD" | base64 -w0)" | nc -U /path/to/encr.socket
+ * </pre>
+ * The socket is bound in a new directory only its owner can access, made readable and writable by its owner only and
+ * then moved to the socket file, so other users never see it with wider permissions. A connection which doesn't
+ * complete a request within the idle timeout is closed, so idle clients don't hold on to the threads serving them.
+ */
+public final class EncrServer implements Closeable {
+  /**
+   * The number of clients served at the same time when there are no virtual threads
+   */
+  public static final int DEFAULT_THREADS = 16;
+
+  /**
+   * The number of milliseconds a connection may take to send a request before it is closed
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
+  static final String OK = "OK";
+  static final String ERR = "ERR";
+  static final String DEFAULT_ENCODER = "-";
+  static final String ENCODER_BY_PREFIX = "*";
+
+  /**
+   * Longer requests are refused and the connection closed
+   */
+  static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  private final Encr encr;
+  private final Path socketPath;
+  private final ServerSocketChannel channel;
+  private final ExecutorService executor;
+  private final ScheduledThreadPoolExecutor timeouts;
+  private final long idleTimeoutMillis;
+  private final Thread acceptor;
+  private volatile boolean closed;
+
+  private EncrServer( Encr encr, Path socketPath, ServerSocketChannel channel, ExecutorService executor,
+                      long idleTimeoutMillis ) {
+    this.encr = encr;
+    this.socketPath = socketPath;
+    this.channel = channel;
+    this.executor = executor;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.timeouts = new ScheduledThreadPoolExecutor( 1, runnable -> {
+      Thread thread = new Thread( runnable, "password-encoder-server-timeouts" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    // Nearly every deadline is cancelled by the request arriving, don't keep them queued until they expire
+    this.timeouts.setRemoveOnCancelPolicy( true );
+    this.acceptor = new Thread( this::accept, "password-encoder-server" );
+  }
+
+  /**
+   * Listen on the socket and serve clients on a background thread until {@link #close()} is called. A socket file
+   * left behind by a server which is gone is replaced.
+   *
+   * @param encr       the encoders to serve
+   * @param socketPath the socket file
+   * @param threads    the number of clients served at the same time when there are no virtual threads
+   * @return the running server
+   * @throws IOException if the socket can't be created, a server is already listening on it or Unix domain sockets
+   *                     are not supported by this JVM
+   */
+  public static EncrServer start( Encr encr, Path socketPath, int threads ) throws IOException {
+    return start( encr, socketPath, threads, DEFAULT_IDLE_TIMEOUT_MILLIS );
+  }
+
+  /**
+   * Listen on the socket and serve clients on a background thread until {@link #close()} is called. A socket file
+   * left behind by a server which is gone is replaced.
+   *
+   * @param encr              the encoders to serve
+   * @param socketPath        the socket file
+   * @param threads           the number of clients served at the same time when there are no virtual threads
+   * @param idleTimeoutMillis the number of milliseconds a connection may take to send a request before it is closed
+   * @return the running server
+   * @throws IOException if the socket can't be created, a server is already listening on it or Unix domain sockets
+   *                     are not supported by this JVM
+   */
+  public static EncrServer start( Encr encr, Path socketPath, int threads, long idleTimeoutMillis )
+    throws IOException {
+    if ( idleTimeoutMillis <= 0 ) {
+      throw new IllegalArgumentException( "The idle timeout must be positive" );
+    }
+    ServerSocketChannel channel = bind( socketPath );
+    ExecutorService executor = VirtualThreads.newExecutor();
+    if ( executor == null ) {
+      executor = Executors.newFixedThreadPool( Math.max( 1, threads ), runnable -> {
+        Thread thread = new Thread( runnable, "password-encoder-server-client" );
+        thread.setDaemon( true );
+        return thread;
+      } );
+    }
+    EncrServer server = new EncrServer( encr, socketPath, channel, executor, idleTimeoutMillis );
+    server.acceptor.start();
+    return server;
+  }
+
+  /**
+   * @return the socket file the server listens on
+   */
+  public Path getSocketPath() {
+    return socketPath;
+  }
+
+  /**
+   * Wait until the server is closed.
+   */
+  public void join() throws InterruptedException {
+    acceptor.join();
+  }
+
+  /**
+   * Stop listening, drop the clients and remove the socket file.
+   */
+  @Override
+  public void close() throws IOException {
+    if ( closed ) {
+      return;
+    }
+    closed = true;
+    try {
+      channel.close();
+    } finally {
+      executor.shutdownNow();
+      timeouts.shutdownNow();
+      Files.deleteIfExists( socketPath );
+    }
+  }
+
+  private static ServerSocketChannel bind( Path socketPath ) throws IOException {
+    if ( Files.exists( socketPath, LinkOption.NOFOLLOW_LINKS ) ) {
+      if ( !Files.readAttributes( socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS ).isOther() ) {
+        throw new IOException( socketPath + " exists and is not a socket" );
+      }
+      if ( isListening( socketPath ) ) {
+        throw new IOException( "A server is already listening on " + socketPath );
+      }
+      // Left behind by a server which is gone
+      Files.delete( socketPath );
+    }
+    Path directory = createPrivateDirectory( socketPath.toAbsolutePath().getParent() );
+    // Short, the length of a socket path is limited to about 100 bytes
+    Path boundPath = directory.resolve( "s" );
+    ServerSocketChannel channel = UnixDomainSockets.openServerChannel();
+    try {
+      channel.bind( UnixDomainSockets.address( boundPath ) );
+      try {
+        Files.setPosixFilePermissions( boundPath,
+          EnumSet.of( PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE ) );
+      } catch ( UnsupportedOperationException e ) {
+        // Not a POSIX file system, the directory socketPath is in has to protect the socket
+      }
+      // Clients connect through the file, the socket keeps listening under its new name
+      Files.move( boundPath, socketPath, StandardCopyOption.ATOMIC_MOVE );
+      return channel;
+    } catch ( IOException | RuntimeException e ) {
+      try {
+        channel.close();
+      } catch ( IOException closeError ) {
+        //close quietly
+      }
+      throw e;
+    } finally {
+      Files.deleteIfExists( boundPath );
+      Files.deleteIfExists( directory );
+    }
+  }
+
+  /**
+   * @return a new directory next to the socket file which only the current user can access
+   */
+  private static Path createPrivateDirectory( Path parent ) throws IOException {
+    try {
+      return Files.createTempDirectory( parent, ".encr",
+        PosixFilePermissions.asFileAttribute( EnumSet.of( PosixFilePermission.OWNER_READ,
+          PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE ) ) );
+    } catch ( UnsupportedOperationException e ) {
+      return Files.createTempDirectory( parent, ".encr" );
+    }
+  }
+
+  private static boolean isListening( Path socketPath ) throws IOException {
+    SocketChannel existing = UnixDomainSockets.openChannel();
+    try {
+      existing.connect( UnixDomainSockets.address( socketPath ) );
+      return true;
+    } catch ( IOException e ) {
+      return false;
+    } finally {
+      closeQuietly( existing );
+    }
+  }
+
+  private void accept() {
+    while ( !closed ) {
+      SocketChannel client;
+      try {
+        client = channel.accept();
+      } catch ( ClosedChannelException e ) {
+        return;
+      } catch ( IOException e ) {
+        if ( !closed ) {
+          System.err.println( "Error accepting a password encoder client: " + e.getMessage() );
+        }
+        continue;
+      }
+      try {
+        executor.execute( () -> serve( client ) );
+      } catch ( RuntimeException e ) {
+        // Closed meanwhile
+        closeQuietly( client );
+      }
+    }
+  }
+
+  private void serve( SocketChannel client ) {
+    try ( InputStream in = new BufferedInputStream( Channels.newInputStream( client ) );
+          OutputStream out = new BufferedOutputStream( Channels.newOutputStream( client ) ) ) {
+      String request;
+      while ( ( request = readLine( client, in ) ) != null ) {
+        writeLine( out, handle( request ) );
+      }
+    } catch ( IOException | RuntimeException e ) {
+      // The client went away, was idle for too long or sent a request which is too long
+    } finally {
+      closeQuietly( client );
+    }
+  }
+
+  /**
+   * Read a request, closing the connection if it doesn't arrive in time. Unix domain socket channels have no read
+   * timeout, closing the channel is what ends a blocked read.
+   */
+  private String readLine( SocketChannel client, InputStream in ) throws IOException {
+    ScheduledFuture<?> deadline =
+      timeouts.schedule( () -> closeQuietly( client ), idleTimeoutMillis, TimeUnit.MILLISECONDS );
+    try {
+      return readLine( in );
+    } finally {
+      deadline.cancel( false );
+    }
+  }
+
+  /**
+   * @return the response to the request
+   */
+  String handle( String request ) {
+    String[] fields = request.split( " ", -1 );
+    String command = fields[ 0 ].trim().toUpperCase( Locale.ROOT );
+    try {
+      switch ( command ) {
+        case "PING":
+          return OK;
+        case "ENCODE":
+          checkFields( fields, 3 );
+          return OK + " " + encode( encode( fields[ 1 ], decode( fields[ 2 ] ) ) );
+        case "DECODE":
+          checkFields( fields, 3 );
+          return OK + " " + encode( decrypt( fields[ 1 ], decode( fields[ 2 ] ) ) );
+        case "VERIFY":
+          checkFields( fields, 4 );
+          String password = decrypt( fields[ 1 ], decode( fields[ 2 ] ) );
+          return OK + " " + isEqual( password, decode( fields[ 3 ] ) );
+        default:
+          return error( "unknown command '" + command + "'" );
+      }
+    } catch ( RuntimeException e ) {
+      return error( e.getMessage() == null ? e.getClass().getName() : e.getMessage() );
+    }
+  }
+
+  private String encode( String encoderId, String password ) {
+    if ( DEFAULT_ENCODER.equals( encoderId ) ) {
+      return encr.encryptPasswordIfNotUsingVariables( password );
+    }
+    return encr.encryptPasswordIfNotUsingVariables( encoderId, password );
+  }
+
+  private String decrypt( String encoderId, String encoded ) {
+    if ( DEFAULT_ENCODER.equals( encoderId ) ) {
+      return encr.decryptPasswordOptionallyEncrypted( encoded );
+    }
+    if ( ENCODER_BY_PREFIX.equals( encoderId ) ) {
+      return encr.decryptPasswordByPrefix( encoded );
+    }
+    return encr.decryptPasswordOptionallyEncrypted( encoderId, encoded );
+  }
+
+  private static void checkFields( String[] fields, int count ) {
+    if ( fields.length != count ) {
+      throw new IllegalArgumentException(
+        fields[ 0 ].trim().toUpperCase( Locale.ROOT ) + " needs " + ( count - 1 ) + " arguments" );
+    }
+  }
+
+  /**
+   * Compare in a time which doesn't depend on where the passwords differ.
+   */
+  private static boolean isEqual( String password, String candidate ) {
+    if ( password == null || candidate == null ) {
+      return password == candidate;
+    }
+    return MessageDigest.isEqual( password.getBytes( StandardCharsets.UTF_8 ),
+      candidate.getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  private static String error( String message ) {
+    return ERR + " " + message.trim().replace( '\r', ' ' ).replace( '\n', ' ' );
+  }
+
+  static String encode( String value ) {
+    return value == null ? "" : Base64.getEncoder().encodeToString( value.getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  static String decode( String value ) {
+    return new String( Base64.getDecoder().decode( value ), StandardCharsets.UTF_8 );
+  }
+
+  /**
+   * Read a line of at most {@link #MAX_LINE_LENGTH} bytes, without the \n or \r\n it ends with.
+   *
+   * @return the line, or null at the end of the stream
+   * @throws IOException if the stream can't be read or the line is too long
+   */
+  static String readLine( InputStream in ) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream( 128 );
+    int b;
+    while ( ( b = in.read() ) != '\n' ) {
+      if ( b < 0 ) {
+        if ( line.size() == 0 ) {
+          return null;
+        }
+        break;
+      }
+      if ( line.size() == MAX_LINE_LENGTH ) {
+        throw new IOException( "Line longer than " + MAX_LINE_LENGTH + " bytes" );
+      }
+      line.write( b );
+    }
+    String value = new String( line.toByteArray(), StandardCharsets.UTF_8 );
+    return value.endsWith( "\r" ) ? value.substring( 0, value.length() - 1 ) : value;
+  }
+
+  static void writeLine( OutputStream out, String line ) throws IOException {
+    out.write( line.getBytes( StandardCharsets.UTF_8 ) );
+    out.write( '\n' );
+    out.flush();
+  }
+
+  private static void closeQuietly( SocketChannel client ) {
+    try {
+      client.close();
+    } catch ( IOException e ) {
+      //close quietly
+    }
+  }
+}
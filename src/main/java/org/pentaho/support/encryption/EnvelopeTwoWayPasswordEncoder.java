@@ -0,0 +1,417 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.utils.StringUtil;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts passwords with envelope encryption: every password is encrypted with AES-GCM under a data key, and the data
+ * key, wrapped by a {@link KeyService}, is stored with the password. The master key stays in the key service, so
+ * passwords can only be read by whoever the service lets unwrap their data keys, and it can be rotated or revoked
+ * there.
+ * <p>
+ * The key service is chosen with the KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE setting, the class name of a
+ * {@link KeyService} with a public constructor without arguments. Without it a {@link LocalKeyService} is used, with a
+ * master key derived from the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED. There is no default seed: {@link #init()} fails
+ * when neither a key service nor a seed is configured, and the encoder is not in the plugin index, it is only
+ * registered by a plugin xml file. The settings are the system properties, or the {@link Properties} the encoder was
+ * created with.
+ * <p>
+ * Key service calls are usually remote and slow, so they are kept off the common path. A data key encrypts passwords
+ * until it is as old as the time to live of the key cache, or has encrypted {@link #MAX_ENCRYPTIONS_PER_DATA_KEY}
+ * passwords, before a new one is generated. Unwrapped data keys are kept in a cache bounded by the
+ * KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_SIZE setting in keys (default {@value #DEFAULT_KEY_CACHE_SIZE}) and
+ * KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_TTL milliseconds (default {@value #DEFAULT_KEY_CACHE_TTL}, 0 to keep keys
+ * until they are evicted), and threads decrypting passwords of the same data key at the same time share one unwrap
+ * call.
+ * <p>
+ * An encrypted value is the prefix followed by the URL safe base64 form, without padding, of a version byte, the
+ * length of the wrapped key in two bytes, the wrapped key, a random 12 byte nonce and the cipher text with its 16 byte
+ * tag. Everything before the nonce is authenticated with the password. The password is encrypted as UTF-8.
+ */
+public class EnvelopeTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterface {
+  /**
+   * The word that is put before a password to indicate an encrypted form. If this word is not present, the password is
+   * considered to be NOT encrypted
+   */
+  @SuppressWarnings( "squid:S2068" ) public static final String PASSWORD_ENCRYPTED_PREFIX = "Envelope ";
+
+  public static final String KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE =
+    "KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE";
+  public static final String KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_SIZE =
+    "KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_SIZE";
+  public static final String KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_TTL =
+    "KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_TTL";
+
+  public static final int DEFAULT_KEY_CACHE_SIZE = 1000;
+  public static final long DEFAULT_KEY_CACHE_TTL = 300000L;
+
+  /**
+   * With random nonces a key must not encrypt more than 2^32 values, stay well below
+   */
+  public static final long MAX_ENCRYPTIONS_PER_DATA_KEY = 1L << 24;
+
+  private static final byte VERSION = 1;
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  private static final int MAX_WRAPPED_KEY_LENGTH = 0xFFFF;
+
+  private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
+
+  /**
+   * A Cipher is expensive to look up, every thread keeps its own
+   */
+  private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial( () -> {
+    try {
+      return Cipher.getInstance( "AES/GCM/NoPadding" );
+    } catch ( NoSuchAlgorithmException | NoSuchPaddingException e ) {
+      throw new IllegalStateException( "AES-GCM is not available in this Java runtime", e );
+    }
+  } );
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static final class EncryptionKey {
+    private final SecretKey secretKey;
+    private final byte[] wrappedKey;
+    private final long createdNanos;
+    private final AtomicLong encryptions = new AtomicLong();
+
+    EncryptionKey( SecretKey secretKey, byte[] wrappedKey ) {
+      this.secretKey = secretKey;
+      this.wrappedKey = wrappedKey;
+      this.createdNanos = System.nanoTime();
+    }
+
+    /**
+     * @return true if the key may encrypt one more password, which is then counted
+     */
+    boolean use( long timeToLiveNanos ) {
+      return ( timeToLiveNanos == 0 || System.nanoTime() - createdNanos < timeToLiveNanos )
+        && encryptions.incrementAndGet() <= MAX_ENCRYPTIONS_PER_DATA_KEY;
+    }
+  }
+
+  private final String seed;
+  private final KeyService configuredKeyService;
+  private final Properties settings;
+  private final Object encryptionKeyLock = new Object();
+  private volatile DataKeyCache dataKeys;
+  private volatile KeyService keyService;
+  private volatile EncryptionKey encryptionKey;
+  private volatile long timeToLiveNanos;
+
+  public EnvelopeTwoWayPasswordEncoder() {
+    this( System.getProperties() );
+  }
+
+  /**
+   * @param seed the seed of the {@link LocalKeyService} used when no key service is configured, instead of the
+   *             KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED system property, null for none
+   */
+  public EnvelopeTwoWayPasswordEncoder( String seed ) {
+    this( seed, null, System.getProperties() );
+  }
+
+  /**
+   * @param settings the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, the key service and the key cache settings to use
+   *                 instead of the system properties
+   */
+  public EnvelopeTwoWayPasswordEncoder( Properties settings ) {
+    this( settings.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED ), null, settings );
+  }
+
+  /**
+   * @param keyService the key service to use instead of the one configured with the
+   *                   KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE system property
+   */
+  public EnvelopeTwoWayPasswordEncoder( KeyService keyService ) {
+    this( keyService, System.getProperties() );
+  }
+
+  /**
+   * @param keyService the key service to use instead of the one configured with the
+   *                   KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE setting
+   * @param settings   the key cache settings to use instead of the system properties
+   */
+  public EnvelopeTwoWayPasswordEncoder( KeyService keyService, Properties settings ) {
+    this( null, requireKeyService( keyService ), settings );
+  }
+
+  private EnvelopeTwoWayPasswordEncoder( String seed, KeyService keyService, Properties settings ) {
+    this.seed = seed;
+    this.configuredKeyService = keyService;
+    this.settings = settings;
+  }
+
+  /**
+   * Create the key service and the data key cache. The key service is not called yet, the first data key is generated
+   * when the first password is encrypted.
+   *
+   * @throws PasswordEncoderException if the settings are invalid, or neither a key service nor a seed is configured
+   */
+  public void init() throws PasswordEncoderException {
+    int cacheSize = (int) getLongSetting( KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_SIZE, DEFAULT_KEY_CACHE_SIZE,
+      Integer.MAX_VALUE );
+    long timeToLive = getLongSetting( KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_TTL, DEFAULT_KEY_CACHE_TTL,
+      Long.MAX_VALUE / 1000000L );
+    KeyService service = configuredKeyService != null ? configuredKeyService : createKeyService();
+    synchronized ( encryptionKeyLock ) {
+      keyService = service;
+      timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos( timeToLive );
+      dataKeys = new DataKeyCache( service, cacheSize, timeToLive );
+      encryptionKey = null;
+    }
+  }
+
+  /**
+   * @return the key service wrapping the data keys
+   */
+  public KeyService getKeyService() {
+    KeyService current = keyService;
+    if ( current == null ) {
+      throw notInitialized();
+    }
+    return current;
+  }
+
+  public String encode( String rawPassword ) {
+    return encode( rawPassword, true );
+  }
+
+  public String encode( String rawPassword, boolean includePrefix ) {
+    if ( includePrefix && StringUtil.containsVariables( rawPassword ) ) {
+      return rawPassword;
+    }
+    String encrypted = encryptPasswordInternal( rawPassword );
+    return includePrefix ? PASSWORD_ENCRYPTED_PREFIX + encrypted : encrypted;
+  }
+
+  public String decode( String encodedPassword ) {
+    if ( encodedPassword != null && encodedPassword.startsWith( PASSWORD_ENCRYPTED_PREFIX ) ) {
+      encodedPassword = encodedPassword.substring( PASSWORD_ENCRYPTED_PREFIX.length() );
+    }
+    return decryptPasswordInternal( encodedPassword );
+  }
+
+  public String decode( String encodedPassword, boolean optionallyEncrypted ) {
+    if ( encodedPassword == null ) {
+      return null;
+    }
+    if ( optionallyEncrypted ) {
+      if ( encodedPassword.startsWith( PASSWORD_ENCRYPTED_PREFIX ) ) {
+        return decryptPasswordInternal( encodedPassword.substring( PASSWORD_ENCRYPTED_PREFIX.length() ) );
+      }
+      return encodedPassword;
+    }
+    return decryptPasswordInternal( encodedPassword );
+  }
+
+  public String[] getPrefixes() {
+    return new String[] { PASSWORD_ENCRYPTED_PREFIX };
+  }
+
+  protected String encryptPasswordInternal( String password ) {
+    if ( password == null || password.length() == 0 ) {
+      return "";
+    }
+    EncryptionKey key = getEncryptionKey();
+    byte[] plain = password.getBytes( StandardCharsets.UTF_8 );
+    int headerLength = 3 + key.wrappedKey.length;
+    byte[] value = new byte[ headerLength + NONCE_LENGTH + plain.length + TAG_LENGTH ];
+    value[ 0 ] = VERSION;
+    value[ 1 ] = (byte) ( key.wrappedKey.length >>> 8 );
+    value[ 2 ] = (byte) key.wrappedKey.length;
+    System.arraycopy( key.wrappedKey, 0, value, 3, key.wrappedKey.length );
+    byte[] nonce = new byte[ NONCE_LENGTH ];
+    RANDOM.nextBytes( nonce );
+    System.arraycopy( nonce, 0, value, headerLength, NONCE_LENGTH );
+    try {
+      Cipher cipher = CIPHERS.get();
+      cipher.init( Cipher.ENCRYPT_MODE, key.secretKey, new GCMParameterSpec( TAG_LENGTH * 8, nonce ) );
+      cipher.updateAAD( value, 0, headerLength );
+      cipher.doFinal( plain, 0, plain.length, value, headerLength + NONCE_LENGTH );
+    } catch ( GeneralSecurityException e ) {
+      throw new IllegalStateException( "Unable to encrypt with AES-GCM", e );
+    } finally {
+      Arrays.fill( plain, (byte) 0 );
+    }
+    return BASE64_ENCODER.encodeToString( value );
+  }
+
+  protected String decryptPasswordInternal( String encrypted ) {
+    if ( encrypted == null || encrypted.length() == 0 ) {
+      return "";
+    }
+    byte[] value;
+    try {
+      value = BASE64_DECODER.decode( encrypted );
+    } catch ( IllegalArgumentException e ) {
+      throw invalidValue( e );
+    }
+    if ( value.length < 3 || value[ 0 ] != VERSION ) {
+      throw invalidValue( null );
+    }
+    int headerLength = 3 + ( ( value[ 1 ] & 0xFF ) << 8 | value[ 2 ] & 0xFF );
+    if ( value.length < headerLength + NONCE_LENGTH + TAG_LENGTH ) {
+      throw invalidValue( null );
+    }
+    SecretKey secretKey;
+    try {
+      secretKey = getDataKeys().get( Arrays.copyOfRange( value, 3, headerLength ) );
+    } catch ( PasswordEncoderException e ) {
+      throw new IllegalStateException( "Unable to unwrap the data key of the password", e );
+    }
+    byte[] plain;
+    try {
+      Cipher cipher = CIPHERS.get();
+      cipher.init( Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec( TAG_LENGTH * 8, value, headerLength,
+        NONCE_LENGTH ) );
+      cipher.updateAAD( value, 0, headerLength );
+      plain = cipher.doFinal( value, headerLength + NONCE_LENGTH, value.length - headerLength - NONCE_LENGTH );
+    } catch ( AEADBadTagException e ) {
+      throw new IllegalArgumentException( "The password has been modified, it can't be decrypted", e );
+    } catch ( GeneralSecurityException e ) {
+      throw new IllegalStateException( "Unable to decrypt with AES-GCM", e );
+    }
+    try {
+      return new String( plain, StandardCharsets.UTF_8 );
+    } finally {
+      Arrays.fill( plain, (byte) 0 );
+    }
+  }
+
+  /**
+   * @return the data key to encrypt the next password with, a new one if the current one is used up
+   */
+  private EncryptionKey getEncryptionKey() {
+    EncryptionKey current = encryptionKey;
+    if ( current != null && current.use( timeToLiveNanos ) ) {
+      return current;
+    }
+    // Only one thread asks the key service for the next key, the others wait for it
+    synchronized ( encryptionKeyLock ) {
+      current = encryptionKey;
+      if ( current != null && current.use( timeToLiveNanos ) ) {
+        return current;
+      }
+      DataKeyCache cache = getDataKeys();
+      KeyService.DataKey dataKey;
+      try {
+        dataKey = keyService.generateDataKey();
+      } catch ( PasswordEncoderException e ) {
+        throw new IllegalStateException( "Unable to generate a data key", e );
+      }
+      byte[] wrappedKey = dataKey.getWrappedKey();
+      if ( wrappedKey == null || wrappedKey.length == 0 || wrappedKey.length > MAX_WRAPPED_KEY_LENGTH ) {
+        throw new IllegalStateException( "The key service returned a wrapped key of an invalid length" );
+      }
+      SecretKey secretKey;
+      try {
+        secretKey = new SecretKeySpec( dataKey.getKey(), "AES" );
+      } finally {
+        Arrays.fill( dataKey.getKey(), (byte) 0 );
+      }
+      current = new EncryptionKey( secretKey, wrappedKey.clone() );
+      current.use( 0 );
+      cache.put( wrappedKey, secretKey );
+      encryptionKey = current;
+      return current;
+    }
+  }
+
+  private DataKeyCache getDataKeys() {
+    DataKeyCache current = dataKeys;
+    if ( current == null ) {
+      throw notInitialized();
+    }
+    return current;
+  }
+
+  private KeyService createKeyService() throws PasswordEncoderException {
+    String className = settings.getProperty( KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE );
+    if ( StringUtil.isEmpty( className ) || className.trim().isEmpty() ) {
+      if ( seed == null ) {
+        // A master key derived from a seed everybody knows would protect nothing
+        throw new PasswordEncoderException( "The " + PASSWORD_ENCRYPTED_PREFIX.trim() + " encoder needs a key service,"
+          + " set " + KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE + " or give the plugin a seed" );
+      }
+      return new LocalKeyService( seed );
+    }
+    try {
+      return Class.forName( className.trim() ).asSubclass( KeyService.class ).getConstructor().newInstance();
+    } catch ( ReflectiveOperationException | ClassCastException | LinkageError e ) {
+      throw new PasswordEncoderException( "Unable to create the key service '" + className.trim() + "'", e );
+    }
+  }
+
+  private long getLongSetting( String name, long defaultValue, long maximum ) throws PasswordEncoderException {
+    String value = settings.getProperty( name );
+    if ( StringUtil.isEmpty( value ) ) {
+      return defaultValue;
+    }
+    try {
+      long parsed = Long.parseLong( value.trim() );
+      if ( parsed >= 0 && parsed <= maximum ) {
+        return parsed;
+      }
+    } catch ( NumberFormatException e ) {
+      // Reported below
+    }
+    throw new PasswordEncoderException( "Invalid value for " + name + ": '" + value + "'" );
+  }
+
+  private static KeyService requireKeyService( KeyService keyService ) {
+    if ( keyService == null ) {
+      throw new IllegalArgumentException( "The key service can't be null" );
+    }
+    return keyService;
+  }
+
+  private static IllegalArgumentException invalidValue( Throwable cause ) {
+    return new IllegalArgumentException( "The password is not a valid " + PASSWORD_ENCRYPTED_PREFIX.trim()
+      + " encrypted value", cause );
+  }
+
+  private static IllegalStateException notInitialized() {
+    return new IllegalStateException( "The " + PASSWORD_ENCRYPTED_PREFIX.trim() + " encoder was not initialized" );
+  }
+}
@@ -0,0 +1,258 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.support.encryption.EncoderMetrics.OperationMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Times and counts the calls made to an encoder and passes them on. Every method of the encoder is passed on, so the
+ * encoder keeps its own implementation of the batch and buffer methods. A call which throws is counted as failed and
+ * the exception passed on.
+ */
+final class InstrumentedEncoder implements TwoWayPasswordEncoderInterface {
+  private final TwoWayPasswordEncoderInterface delegate;
+  private final OperationMetrics encode;
+  private final OperationMetrics decode;
+  private final String[] prefixes;
+
+  InstrumentedEncoder( TwoWayPasswordEncoderInterface delegate, OperationMetrics encode, OperationMetrics decode ) {
+    this.delegate = delegate;
+    this.encode = encode;
+    this.decode = decode;
+    String[] delegatePrefixes = delegate.getPrefixes();
+    this.prefixes = delegatePrefixes == null ? new String[ 0 ] : delegatePrefixes;
+  }
+
+  TwoWayPasswordEncoderInterface getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void init() throws PasswordEncoderException {
+    delegate.init();
+  }
+
+  @Override
+  public String encode( String password ) {
+    long start = encode.start();
+    try {
+      String encoded = delegate.encode( password );
+      encode.succeeded( start, 1, length( password ) + length( encoded ) );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      encode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public String encode( String password, boolean includePrefix ) {
+    long start = encode.start();
+    try {
+      String encoded = delegate.encode( password, includePrefix );
+      encode.succeeded( start, 1, length( password ) + length( encoded ) );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      encode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public String decode( String encodedPassword, boolean optionallyEncrypted ) {
+    long start = decode.start();
+    try {
+      String decoded = delegate.decode( encodedPassword, optionallyEncrypted );
+      decode.succeeded( start, 1, length( encodedPassword ) + length( decoded ) );
+      countEmptyResult( encodedPassword, decoded == null ? -1 : decoded.length() );
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      decode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public String decode( String encodedPassword ) {
+    long start = decode.start();
+    try {
+      String decoded = delegate.decode( encodedPassword );
+      decode.succeeded( start, 1, length( encodedPassword ) + length( decoded ) );
+      countEmptyResult( encodedPassword, decoded == null ? -1 : decoded.length() );
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      decode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public String[] getPrefixes() {
+    return delegate.getPrefixes();
+  }
+
+  @Override
+  public String[] encodeAll( String[] passwords, boolean includePrefix ) {
+    long start = encode.start();
+    try {
+      String[] encoded = delegate.encodeAll( passwords, includePrefix );
+      long characters = 0;
+      for ( int i = 0; i < passwords.length; i++ ) {
+        characters += length( passwords[ i ] ) + length( encoded[ i ] );
+      }
+      encode.succeeded( start, passwords.length, characters );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      encode.failed( start, passwords == null ? 1 : Math.max( 1, passwords.length ) );
+      throw e;
+    }
+  }
+
+  @Override
+  public String[] decodeAll( String[] encodedPasswords, boolean optionallyEncrypted ) {
+    long start = decode.start();
+    try {
+      String[] decoded = delegate.decodeAll( encodedPasswords, optionallyEncrypted );
+      long characters = 0;
+      for ( int i = 0; i < encodedPasswords.length; i++ ) {
+        characters += length( encodedPasswords[ i ] ) + length( decoded[ i ] );
+      }
+      decode.succeeded( start, encodedPasswords.length, characters );
+      for ( int i = 0; i < encodedPasswords.length; i++ ) {
+        countEmptyResult( encodedPasswords[ i ], decoded[ i ] == null ? -1 : decoded[ i ].length() );
+      }
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      decode.failed( start, encodedPasswords == null ? 1 : Math.max( 1, encodedPasswords.length ) );
+      throw e;
+    }
+  }
+
+  @Override
+  public String encodeChars( char[] password, boolean includePrefix ) {
+    long start = encode.start();
+    try {
+      String encoded = delegate.encodeChars( password, includePrefix );
+      encode.succeeded( start, 1, ( password == null ? 0 : password.length ) + length( encoded ) );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      encode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public String encodeChars( CharBuffer password, boolean includePrefix ) {
+    long start = encode.start();
+    try {
+      String encoded = delegate.encodeChars( password, includePrefix );
+      encode.succeeded( start, 1, length( password ) + length( encoded ) );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      encode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public String encodeBytes( ByteBuffer password, boolean includePrefix ) {
+    long start = encode.start();
+    try {
+      String encoded = delegate.encodeBytes( password, includePrefix );
+      encode.succeeded( start, 1, ( password == null ? 0 : password.remaining() ) + length( encoded ) );
+      return encoded;
+    } catch ( RuntimeException | Error e ) {
+      encode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public int decodeInto( CharSequence encodedPassword, boolean optionallyEncrypted, CharBuffer out ) {
+    long start = decode.start();
+    try {
+      int written = delegate.decodeInto( encodedPassword, optionallyEncrypted, out );
+      decode.succeeded( start, 1, length( encodedPassword ) + Math.max( 0, written ) );
+      countEmptyResult( encodedPassword, written );
+      return written;
+    } catch ( RuntimeException | Error e ) {
+      decode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public int decodeInto( CharSequence encodedPassword, boolean optionallyEncrypted, ByteBuffer out ) {
+    long start = decode.start();
+    try {
+      int written = delegate.decodeInto( encodedPassword, optionallyEncrypted, out );
+      decode.succeeded( start, 1, length( encodedPassword ) + Math.max( 0, written ) );
+      countEmptyResult( encodedPassword, written );
+      return written;
+    } catch ( RuntimeException | Error e ) {
+      decode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  @Override
+  public char[] decodeToChars( CharSequence encodedPassword, boolean optionallyEncrypted ) {
+    long start = decode.start();
+    try {
+      char[] decoded = delegate.decodeToChars( encodedPassword, optionallyEncrypted );
+      int decodedLength = decoded == null ? -1 : decoded.length;
+      decode.succeeded( start, 1, length( encodedPassword ) + Math.max( 0, decodedLength ) );
+      countEmptyResult( encodedPassword, decodedLength );
+      return decoded;
+    } catch ( RuntimeException | Error e ) {
+      decode.failed( start, 1 );
+      throw e;
+    }
+  }
+
+  /**
+   * Count a value which isn't empty, nor just a prefix, decoding to an empty password. That is what the Kettle encoder
+   * returns for values it can't decode instead of failing.
+   *
+   * @param decodedLength the length of the decoded password, -1 if it is null
+   */
+  private void countEmptyResult( CharSequence encodedPassword, int decodedLength ) {
+    if ( decodedLength != 0 || encodedPassword == null || encodedPassword.length() == 0 ) {
+      return;
+    }
+    for ( String prefix : prefixes ) {
+      if ( prefix != null && prefix.contentEquals( encodedPassword ) ) {
+        return;
+      }
+    }
+    decode.emptyResult();
+  }
+
+  private static int length( CharSequence value ) {
+    return value == null ? 0 : value.length();
+  }
+}
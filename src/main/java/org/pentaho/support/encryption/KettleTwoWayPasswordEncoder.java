@@ -24,9 +24,15 @@ package org.pentaho.support.encryption;
 import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
 import org.pentaho.support.utils.StringUtil;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
 /**
  * This class handles basic encryption of passwords in Kettle. Note that it's not really encryption, it's more
@@ -36,21 +42,33 @@ import java.util.List;
  * @since 17-12-2003
  *
  */
+@TwoWayPasswordEncoderPlugin( id = "Kettle", name = "Kettle Password Encoder",
+  description = "Kettle Password Encoder" )
 public class KettleTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterface {
   private static final KettleTwoWayPasswordEncoder instance = new KettleTwoWayPasswordEncoder();
-  private static final int RADIX = 16;
   private String Seed;
+  private volatile KettleXorCodec codec;
   /**
    * The word that is put before a password to indicate an encrypted form. If this word is not present, the password is
    * considered to be NOT encrypted
    */
   @SuppressWarnings( "squid:S2068" ) public static final String PASSWORD_ENCRYPTED_PREFIX = "Encrypted ";
 
+  private static final String DEFAULT_SEED = "0933910847463829827159347601486730416058";
+
   public KettleTwoWayPasswordEncoder() {
-    String envSeed = System.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, "0933910847463829827159347601486730416058" );
+    String envSeed = System.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, DEFAULT_SEED );
     Seed = envSeed;
   }
 
+  /**
+   * @param seed the seed to use instead of the one of the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED system property, null
+   *             for the default seed
+   */
+  public KettleTwoWayPasswordEncoder( String seed ) {
+    Seed = seed == null ? DEFAULT_SEED : seed;
+  }
+
   public void init() throws PasswordEncoderException {
     // Nothing to do here.
   }
@@ -95,20 +113,277 @@ public class KettleTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterfa
     }
   }
 
-  protected String encryptPasswordInternal( String password ) {
+  /**
+   * Encodes the password characters without creating a String holding the password.
+   */
+  @Override
+  public String encodeChars( CharBuffer password, boolean includePrefix ) {
+    if ( password == null ) {
+      return encode( (String) null, includePrefix );
+    }
+    if ( includePrefix && StringUtil.containsVariables( password ) ) {
+      return password.toString();
+    }
+    String encrypted = encryptCharsInternal( password );
+    return includePrefix ? PASSWORD_ENCRYPTED_PREFIX + encrypted : encrypted;
+  }
+
+  /**
+   * Encodes the password bytes as they are, without converting them to characters unless a prefix is requested and the
+   * password has to be checked for variables.
+   */
+  @Override
+  public String encodeBytes( ByteBuffer password, boolean includePrefix ) {
     if ( password == null ) {
+      return encode( (String) null, includePrefix );
+    }
+    if ( includePrefix ) {
+      CharBuffer chars = toChars( password.duplicate() );
+      try {
+        if ( StringUtil.containsVariables( chars ) ) {
+          return chars.toString();
+        }
+      } finally {
+        Arrays.fill( chars.array(), '\0' );
+      }
+    }
+    String encrypted;
+    if ( password.hasArray() ) {
+      encrypted = encryptBytesInternal( password.array(), password.arrayOffset() + password.position(),
+        password.remaining() );
+    } else {
+      byte[] bytes = new byte[ password.remaining() ];
+      password.duplicate().get( bytes );
+      try {
+        encrypted = encryptBytesInternal( bytes, 0, bytes.length );
+      } finally {
+        Arrays.fill( bytes, (byte) 0 );
+      }
+    }
+    return includePrefix ? PASSWORD_ENCRYPTED_PREFIX + encrypted : encrypted;
+  }
+
+  /**
+   * Decodes straight into the buffer, the password is only held in a work buffer which is wiped afterwards.
+   */
+  @Override
+  public int decodeInto( CharSequence encodedPassword, boolean optionallyEncrypted, CharBuffer out ) {
+    if ( encodedPassword == null ) {
+      return -1;
+    }
+    int start = encryptedStart( encodedPassword, optionallyEncrypted );
+    if ( start < 0 ) {
+      int length = encodedPassword.length();
+      if ( length > out.remaining() ) {
+        throw new BufferOverflowException();
+      }
+      for ( int i = 0; i < length; i++ ) {
+        out.put( encodedPassword.charAt( i ) );
+      }
+      return length;
+    }
+    return decryptInto( encodedPassword, start, out );
+  }
+
+  /**
+   * Decodes straight into the buffer, the password bytes are never converted to characters.
+   */
+  @Override
+  public int decodeInto( CharSequence encodedPassword, boolean optionallyEncrypted, ByteBuffer out ) {
+    if ( encodedPassword == null ) {
+      return -1;
+    }
+    int start = encryptedStart( encodedPassword, optionallyEncrypted );
+    if ( start < 0 ) {
+      int position = out.position();
+      CharsetEncoder encoder = newEncoder();
+      CoderResult result = encoder.encode( CharBuffer.wrap( encodedPassword ), out, true );
+      if ( !result.isOverflow() ) {
+        result = encoder.flush( out );
+      }
+      if ( result.isOverflow() ) {
+        for ( int i = position; i < out.position(); i++ ) {
+          out.put( i, (byte) 0 );
+        }
+        out.position( position );
+        throw new BufferOverflowException();
+      }
+      return out.position() - position;
+    }
+
+    int end = encodedPassword.length();
+    if ( start == end ) {
+      return 0;
+    }
+    KettleXorCodec xorCodec = getCodec();
+    int workLength = xorCodec.decodeWorkLength( end - start );
+    byte[] work = KettleXorCodec.workBuffer( workLength );
+    try {
+      int length = xorCodec.decode( encodedPassword, start, end, work );
+      if ( length <= 0 ) {
+        return 0;
+      }
+      if ( length > out.remaining() ) {
+        throw new BufferOverflowException();
+      }
+      out.put( work, 0, length );
+      return length;
+    } finally {
+      Arrays.fill( work, 0, workLength, (byte) 0 );
+    }
+  }
+
+  @Override
+  public char[] decodeToChars( CharSequence encodedPassword, boolean optionallyEncrypted ) {
+    if ( encodedPassword == null ) {
+      return null;
+    }
+    int start = encryptedStart( encodedPassword, optionallyEncrypted );
+    if ( start < 0 ) {
+      char[] password = new char[ encodedPassword.length() ];
+      for ( int i = 0; i < password.length; i++ ) {
+        password[ i ] = encodedPassword.charAt( i );
+      }
+      return password;
+    }
+    int encodedLength = Math.max( 1, encodedPassword.length() - start );
+    int maxBytes = getCodec().decodeWorkLength( encodedLength );
+    CharBuffer out = CharBuffer.allocate( (int) Math.ceil( maxBytes * (double) newDecoder().maxCharsPerByte() ) );
+    int length = decryptInto( encodedPassword, start, out );
+    char[] buffer = out.array();
+    if ( length == buffer.length ) {
+      return buffer;
+    }
+    try {
+      return Arrays.copyOf( buffer, length );
+    } finally {
+      Arrays.fill( buffer, '\0' );
+    }
+  }
+
+  /**
+   * Decrypt the value from start on into out, as characters in the platform charset.
+   *
+   * @return the number of characters written
+   */
+  private int decryptInto( CharSequence encrypted, int start, CharBuffer out ) {
+    int end = encrypted.length();
+    if ( start == end ) {
+      return 0;
+    }
+    KettleXorCodec xorCodec = getCodec();
+    int workLength = xorCodec.decodeWorkLength( end - start );
+    byte[] work = KettleXorCodec.workBuffer( workLength );
+    try {
+      int length = xorCodec.decode( encrypted, start, end, work );
+      if ( length <= 0 ) {
+        return 0;
+      }
+      int position = out.position();
+      CharsetDecoder decoder = newDecoder();
+      CoderResult result = decoder.decode( ByteBuffer.wrap( work, 0, length ), out, true );
+      if ( !result.isOverflow() ) {
+        result = decoder.flush( out );
+      }
+      if ( result.isOverflow() ) {
+        for ( int i = position; i < out.position(); i++ ) {
+          out.put( i, '\0' );
+        }
+        out.position( position );
+        throw new BufferOverflowException();
+      }
+      return out.position() - position;
+    } finally {
+      Arrays.fill( work, 0, workLength, (byte) 0 );
+    }
+  }
+
+  /**
+   * @return the index the encrypted part of the value starts at, or -1 if the value is not encrypted and is the
+   * password itself
+   */
+  private static int encryptedStart( CharSequence value, boolean optionallyEncrypted ) {
+    if ( !optionallyEncrypted ) {
+      return 0;
+    }
+    int prefixLength = PASSWORD_ENCRYPTED_PREFIX.length();
+    if ( value.length() < prefixLength ) {
+      return -1;
+    }
+    for ( int i = 0; i < prefixLength; i++ ) {
+      if ( value.charAt( i ) != PASSWORD_ENCRYPTED_PREFIX.charAt( i ) ) {
+        return -1;
+      }
+    }
+    return prefixLength;
+  }
+
+  private String encryptCharsInternal( CharBuffer password ) {
+    if ( !password.hasRemaining() ) {
       return "";
     }
-    if ( password.length() == 0 ) {
+    CharsetEncoder encoder = newEncoder();
+    byte[] bytes = new byte[ (int) Math.ceil( password.remaining() * (double) encoder.maxBytesPerChar() ) ];
+    ByteBuffer buffer = ByteBuffer.wrap( bytes );
+    try {
+      encoder.encode( password.duplicate(), buffer, true );
+      encoder.flush( buffer );
+      return encryptBytesInternal( bytes, 0, buffer.position() );
+    } finally {
+      Arrays.fill( bytes, (byte) 0 );
+    }
+  }
+
+  private String encryptBytesInternal( byte[] bytes, int off, int len ) {
+    if ( len == 0 ) {
       return "";
     }
+    return getCodec().encode( bytes, off, len );
+  }
+
+  /**
+   * Convert password bytes to characters in a new buffer, the caller wipes its array.
+   */
+  private static CharBuffer toChars( ByteBuffer bytes ) {
+    CharsetDecoder decoder = newDecoder();
+    CharBuffer chars = CharBuffer.allocate( (int) Math.ceil( bytes.remaining() * (double) decoder.maxCharsPerByte() ) );
+    decoder.decode( bytes, chars, true );
+    decoder.flush( chars );
+    chars.flip();
+    return chars;
+  }
+
+  /**
+   * The same conversion {@link String#getBytes()} does, replacing what can't be encoded.
+   */
+  private static CharsetEncoder newEncoder() {
+    return Charset.defaultCharset().newEncoder().onMalformedInput( CodingErrorAction.REPLACE )
+      .onUnmappableCharacter( CodingErrorAction.REPLACE );
+  }
 
-    BigInteger bi_passwd = new BigInteger( password.getBytes() );
+  /**
+   * The same conversion {@link String#String(byte[])} does, replacing what can't be decoded.
+   */
+  private static CharsetDecoder newDecoder() {
+    return Charset.defaultCharset().newDecoder().onMalformedInput( CodingErrorAction.REPLACE )
+      .onUnmappableCharacter( CodingErrorAction.REPLACE );
+  }
 
-    BigInteger bi_r0 = new BigInteger( getSeed() );
-    BigInteger bi_r1 = bi_r0.xor( bi_passwd );
+  protected String encryptPasswordInternal( String password ) {
+    if ( password == null ) {
+      return "";
+    }
+    if ( password.length() == 0 ) {
+      return "";
+    }
 
-    return bi_r1.toString( RADIX );
+    KettleXorCodec xorCodec = getCodec();
+    byte[] bytes = password.getBytes();
+    try {
+      return xorCodec.encode( bytes );
+    } finally {
+      Arrays.fill( bytes, (byte) 0 );
+    }
   }
 
   protected String decryptPasswordInternal( String encrypted ) {
@@ -119,15 +394,17 @@ public class KettleTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterfa
       return "";
     }
 
-    BigInteger bi_confuse = new BigInteger( getSeed() );
-
+    KettleXorCodec xorCodec = getCodec();
+    int workLength = xorCodec.decodeWorkLength( encrypted.length() );
+    byte[] work = KettleXorCodec.workBuffer( workLength );
     try {
-      BigInteger bi_r1 = new BigInteger( encrypted, RADIX );
-      BigInteger bi_r0 = bi_r1.xor( bi_confuse );
-
-      return new String( bi_r0.toByteArray() );
-    } catch ( Exception e ) {
-      return "";
+      int length = xorCodec.decode( encrypted, 0, encrypted.length(), work );
+      if ( length < 0 ) {
+        return "";
+      }
+      return new String( work, 0, length );
+    } finally {
+      Arrays.fill( work, 0, workLength, (byte) 0 );
     }
   }
 
@@ -135,6 +412,20 @@ public class KettleTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterfa
     return this.Seed;
   }
 
+  /**
+   * Returns the codec for the current seed. The seed is converted once and the codec is only rebuilt when
+   * {@link #getSeed()} starts returning something else.
+   */
+  private KettleXorCodec getCodec() {
+    String seed = getSeed();
+    KettleXorCodec current = codec;
+    if ( current == null || ( current.getSeed() != seed && !current.getSeed().equals( seed ) ) ) {
+      current = new KettleXorCodec( seed );
+      codec = current;
+    }
+    return current;
+  }
+
   public String[] getPrefixes() {
     return new String[] { PASSWORD_ENCRYPTED_PREFIX };
   }
@@ -149,9 +440,7 @@ public class KettleTwoWayPasswordEncoder implements TwoWayPasswordEncoderInterfa
    */
   protected final String encryptPasswordIfNotUsingVariablesInternal( String password ) {
     String encrPassword = "";
-    List<String> varList = new ArrayList<>();
-    StringUtil.getUsedVariables( password, varList, true );
-    if ( varList.isEmpty() ) {
+    if ( !StringUtil.containsVariables( password ) ) {
       encrPassword = PASSWORD_ENCRYPTED_PREFIX + encryptPasswordInternal( password );
     } else {
       encrPassword = password;
@@ -0,0 +1,304 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Byte level implementation of the obfuscation scheme used by {@link KettleTwoWayPasswordEncoder}.
+ * <p>
+ * The original scheme reads the password bytes and the decimal seed as signed (two's complement) {@link BigInteger}s,
+ * XORs them and prints the result as signed hexadecimal. This codec produces exactly the same output, but the seed is
+ * converted only once, the XOR is done in place on a work buffer and the hexadecimal conversion is table driven.
+ * <p>
+ * Instances are immutable and thread safe. The work buffers are supplied by the caller, see {@link #workBuffer(int)}.
+ */
+final class KettleXorCodec {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final byte[] HEX_VALUES = new byte[ 128 ];
+
+  static {
+    Arrays.fill( HEX_VALUES, (byte) -1 );
+    for ( int i = 0; i < 10; i++ ) {
+      HEX_VALUES[ '0' + i ] = (byte) i;
+    }
+    for ( int i = 0; i < 6; i++ ) {
+      HEX_VALUES[ 'a' + i ] = (byte) ( 10 + i );
+      HEX_VALUES[ 'A' + i ] = (byte) ( 10 + i );
+    }
+  }
+
+  private static final ThreadLocal<byte[]> WORK_BUFFER = ThreadLocal.withInitial( () -> new byte[ 64 ] );
+
+  private final String seed;
+  private final BigInteger seedValue;
+  private final byte[] seedBytes;
+
+  /**
+   * @param seed the decimal seed
+   * @throws NumberFormatException if the seed is not a valid decimal number, just like
+   *                               {@link BigInteger#BigInteger(String)}
+   */
+  KettleXorCodec( String seed ) {
+    this.seed = seed;
+    this.seedValue = new BigInteger( seed );
+    this.seedBytes = seedValue.toByteArray();
+  }
+
+  String getSeed() {
+    return seed;
+  }
+
+  /**
+   * @param plainLength the number of password bytes
+   * @return the size of the work buffer needed by {@link #encode(byte[], int, int, byte[], char[], int)}
+   */
+  int encodeWorkLength( int plainLength ) {
+    return Math.max( plainLength, seedBytes.length );
+  }
+
+  /**
+   * @param plainLength the number of password bytes
+   * @return the maximum number of characters written by {@link #encode(byte[], int, int, byte[], char[], int)}
+   */
+  int maxEncodedLength( int plainLength ) {
+    return 2 * encodeWorkLength( plainLength ) + 1;
+  }
+
+  /**
+   * @param encodedLength the number of characters of the encoded value, without prefix
+   * @return the size of the work buffer needed by {@link #decode(CharSequence, int, int, byte[])}
+   */
+  int decodeWorkLength( int encodedLength ) {
+    return Math.max( ( encodedLength + 1 ) / 2 + 1, seedBytes.length );
+  }
+
+  /**
+   * Obfuscate a password. The output is the same as <code>new BigInteger( seed ).xor( new BigInteger( plain ) )
+   * .toString( 16 )</code>.
+   *
+   * @param plain  the password bytes, at least one byte long
+   * @param off    the offset of the password in plain
+   * @param len    the number of password bytes
+   * @param work   a work buffer of at least {@link #encodeWorkLength(int)} bytes, it is left holding the xor result
+   * @param out    the buffer receiving the hexadecimal characters, at least {@link #maxEncodedLength(int)} long
+   * @param outOff the offset in out to write to
+   * @return the number of characters written
+   */
+  int encode( byte[] plain, int off, int len, byte[] work, char[] out, int outOff ) {
+    int n = encodeWorkLength( len );
+    int fill = plain[ off ] < 0 ? -1 : 0;
+    Arrays.fill( work, 0, n - len, (byte) fill );
+    System.arraycopy( plain, off, work, n - len, len );
+    xorSeed( work, n );
+    return toHex( work, n, out, outOff );
+  }
+
+  /**
+   * Obfuscate a password.
+   *
+   * @param plain the password bytes, at least one byte long
+   * @return the obfuscated password in hexadecimal
+   */
+  String encode( byte[] plain ) {
+    return encode( plain, 0, plain.length );
+  }
+
+  /**
+   * Obfuscate a password.
+   *
+   * @param plain the password bytes
+   * @param off   the offset of the password in plain
+   * @param len   the number of password bytes, at least one
+   * @return the obfuscated password in hexadecimal
+   */
+  String encode( byte[] plain, int off, int len ) {
+    byte[] work = workBuffer( encodeWorkLength( len ) );
+    char[] out = new char[ maxEncodedLength( len ) ];
+    try {
+      int written = encode( plain, off, len, work, out, 0 );
+      return new String( out, 0, written );
+    } finally {
+      Arrays.fill( work, 0, encodeWorkLength( len ), (byte) 0 );
+    }
+  }
+
+  /**
+   * Reverse the obfuscation. The bytes written are the same as <code>new BigInteger( encoded, 16 ).xor( new
+   * BigInteger( seed ) ).toByteArray()</code>.
+   *
+   * @param encoded the hexadecimal value
+   * @param start   the index of the first character to decode
+   * @param end     the index after the last character to decode
+   * @param work    a work buffer of at least {@link #decodeWorkLength(int)} bytes
+   * @return the number of bytes written at the start of work, or -1 if the value is not a valid hexadecimal number
+   */
+  int decode( CharSequence encoded, int start, int end, byte[] work ) {
+    int i = start;
+    if ( i == end ) {
+      return -1;
+    }
+    boolean negative = false;
+    char c = encoded.charAt( i );
+    if ( c == '-' || c == '+' ) {
+      negative = c == '-';
+      i++;
+      if ( i == end ) {
+        return -1;
+      }
+    }
+    // Validate up front: BigInteger accepts any Unicode digit, leave those rare values to BigInteger itself
+    for ( int j = i; j < end; j++ ) {
+      c = encoded.charAt( j );
+      if ( c >= 128 ) {
+        return decodeWithBigInteger( encoded, start, end, work );
+      }
+      if ( HEX_VALUES[ c ] < 0 ) {
+        return -1;
+      }
+    }
+
+    int digits = end - i;
+    int magnitudeLength = ( digits + 1 ) / 2;
+    int n = Math.max( magnitudeLength + 1, seedBytes.length );
+    int pos = n - magnitudeLength;
+    Arrays.fill( work, 0, pos, (byte) 0 );
+    if ( ( digits & 1 ) == 1 ) {
+      work[ pos++ ] = HEX_VALUES[ encoded.charAt( i++ ) ];
+    }
+    while ( i < end ) {
+      work[ pos++ ] = (byte) ( ( HEX_VALUES[ encoded.charAt( i ) ] << 4 ) | HEX_VALUES[ encoded.charAt( i + 1 ) ] );
+      i += 2;
+    }
+    if ( negative ) {
+      negate( work, n );
+    }
+    xorSeed( work, n );
+
+    // Strip redundant sign bytes, BigInteger.toByteArray() returns the minimal two's complement representation
+    int first = 0;
+    while ( first < n - 1 ) {
+      byte b = work[ first ];
+      byte next = work[ first + 1 ];
+      if ( ( b == 0 && next >= 0 ) || ( b == -1 && next < 0 ) ) {
+        first++;
+      } else {
+        break;
+      }
+    }
+    int len = n - first;
+    if ( first > 0 ) {
+      System.arraycopy( work, first, work, 0, len );
+      Arrays.fill( work, len, n, (byte) 0 );
+    }
+    return len;
+  }
+
+  private int decodeWithBigInteger( CharSequence encoded, int start, int end, byte[] work ) {
+    byte[] bytes;
+    try {
+      bytes = new BigInteger( encoded.subSequence( start, end ).toString(), 16 ).xor( seedValue ).toByteArray();
+    } catch ( NumberFormatException e ) {
+      return -1;
+    }
+    System.arraycopy( bytes, 0, work, 0, bytes.length );
+    Arrays.fill( bytes, (byte) 0 );
+    return bytes.length;
+  }
+
+  /**
+   * XOR the seed, sign extended to n bytes, into the first n bytes of work.
+   */
+  private void xorSeed( byte[] work, int n ) {
+    int offset = n - seedBytes.length;
+    byte fill = seedBytes[ 0 ] < 0 ? (byte) -1 : 0;
+    if ( fill != 0 ) {
+      for ( int i = 0; i < offset; i++ ) {
+        work[ i ] ^= fill;
+      }
+    }
+    for ( int i = 0; i < seedBytes.length; i++ ) {
+      work[ offset + i ] ^= seedBytes[ i ];
+    }
+  }
+
+  /**
+   * Negate the n byte two's complement number in work.
+   */
+  private static void negate( byte[] work, int n ) {
+    int carry = 1;
+    for ( int i = n - 1; i >= 0; i-- ) {
+      int v = ( ~work[ i ] & 0xFF ) + carry;
+      work[ i ] = (byte) v;
+      carry = v >>> 8;
+    }
+  }
+
+  /**
+   * Print the n byte two's complement number in work as signed hexadecimal without leading zeros, the way
+   * {@link BigInteger#toString(int)} does. The content of work is destroyed.
+   */
+  private static int toHex( byte[] work, int n, char[] out, int outOff ) {
+    int pos = outOff;
+    if ( work[ 0 ] < 0 ) {
+      negate( work, n );
+      out[ pos++ ] = '-';
+    }
+    int i = 0;
+    while ( i < n && work[ i ] == 0 ) {
+      i++;
+    }
+    if ( i == n ) {
+      out[ pos++ ] = '0';
+      return pos - outOff;
+    }
+    int b = work[ i++ ] & 0xFF;
+    if ( b >= 0x10 ) {
+      out[ pos++ ] = HEX_DIGITS[ b >>> 4 ];
+    }
+    out[ pos++ ] = HEX_DIGITS[ b & 0x0F ];
+    while ( i < n ) {
+      b = work[ i++ ] & 0xFF;
+      out[ pos++ ] = HEX_DIGITS[ b >>> 4 ];
+      out[ pos++ ] = HEX_DIGITS[ b & 0x0F ];
+    }
+    return pos - outOff;
+  }
+
+  /**
+   * Returns the work buffer of the current thread, growing it when needed. Callers must clear the part they used before
+   * returning since the buffer holds password material.
+   *
+   * @param length the minimum length of the buffer
+   * @return the work buffer for the current thread
+   */
+  static byte[] workBuffer( int length ) {
+    byte[] work = WORK_BUFFER.get();
+    if ( work.length < length ) {
+      work = new byte[ Math.max( length, work.length * 2 ) ];
+      WORK_BUFFER.set( work );
+    }
+    return work;
+  }
+}
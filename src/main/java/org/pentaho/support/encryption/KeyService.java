@@ -0,0 +1,82 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * The key management service behind the {@link EnvelopeTwoWayPasswordEncoder}. It hands out data keys together with
+ * their wrapped form, the data key encrypted under a master key which never leaves the service, and unwraps them
+ * again. The encoder stores the wrapped key with every password it encrypts, so the service only needs its master
+ * keys to decrypt them later.
+ * <p>
+ * The wrapped keys are opaque to the encoder, a service puts whatever it needs to find the master key in them. Both
+ * methods may be called by many threads at the same time, and may be slow: they are usually remote calls. Implement
+ * this interface to use a key management service, see
+ * {@link EnvelopeTwoWayPasswordEncoder#KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE}. {@link LocalKeyService} keeps its
+ * master key in the process.
+ */
+public interface KeyService {
+  /**
+   * @return a new random 256 bit data key and its wrapped form
+   * @throws PasswordEncoderException if the service can't be reached or refuses to create a key
+   */
+  DataKey generateDataKey() throws PasswordEncoderException;
+
+  /**
+   * @param wrappedKey a wrapped key returned by {@link #generateDataKey()} of this service
+   * @return the data key, the caller wipes it
+   * @throws PasswordEncoderException if the service can't be reached, the key was wrapped by another service or has
+   *                                   been modified
+   */
+  byte[] unwrapDataKey( byte[] wrappedKey ) throws PasswordEncoderException;
+
+  /**
+   * A data key and its wrapped form.
+   */
+  final class DataKey {
+    private final byte[] key;
+    private final byte[] wrappedKey;
+
+    /**
+     * @param key        the data key, it is not copied
+     * @param wrappedKey the data key encrypted by the key service
+     */
+    public DataKey( byte[] key, byte[] wrappedKey ) {
+      this.key = key;
+      this.wrappedKey = wrappedKey;
+    }
+
+    /**
+     * @return the data key itself, not a copy
+     */
+    public byte[] getKey() {
+      return key;
+    }
+
+    /**
+     * @return the wrapped key, not a copy
+     */
+    public byte[] getWrappedKey() {
+      return wrappedKey;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets which are a quarter of a power of two wide, so a percentile read from it is at most 25%
+ * too high. Recording is a bucket lookup and a striped increment, threads recording at the same time don't contend.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+  private static final AtomicLongFieldUpdater<LatencyHistogram> MAX =
+    AtomicLongFieldUpdater.newUpdater( LatencyHistogram.class, "max" );
+
+  private final LongAdder[] buckets = new LongAdder[ BUCKETS ];
+  private final LongAdder total = new LongAdder();
+  private volatile long max;
+
+  LatencyHistogram() {
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      buckets[ i ] = new LongAdder();
+    }
+  }
+
+  void record( long nanos ) {
+    record( nanos, 1 );
+  }
+
+  /**
+   * Record count durations of nanos each, for a batch timed as a whole.
+   */
+  void record( long nanos, long count ) {
+    if ( nanos < 0 ) {
+      nanos = 0;
+    }
+    buckets[ bucket( nanos ) ].add( count );
+    total.add( nanos * count );
+    // Only written while the maximum grows, which soon stops, so threads don't keep invalidating each other's cache
+    long current;
+    while ( nanos > ( current = max ) && !MAX.compareAndSet( this, current, nanos ) ) {
+      // Another thread changed it, try again
+    }
+  }
+
+  /**
+   * @param counts receives the count of every bucket
+   * @return the sum of all the durations recorded
+   */
+  long snapshot( long[] counts ) {
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      counts[ i ] = buckets[ i ].sum();
+    }
+    return total.sum();
+  }
+
+  long getMax() {
+    return max;
+  }
+
+  void reset() {
+    for ( LongAdder bucket : buckets ) {
+      bucket.reset();
+    }
+    total.reset();
+    max = 0;
+  }
+
+  static int bucket( long nanos ) {
+    if ( nanos < SUB_BUCKETS ) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros( nanos );
+    int subBucket = (int) ( nanos >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+    return ( ( exponent - SUB_BUCKET_BITS + 1 ) << SUB_BUCKET_BITS ) + subBucket;
+  }
+
+  /**
+   * @return the highest duration counted in the bucket
+   */
+  static long upperBound( int bucket ) {
+    if ( bucket < SUB_BUCKETS ) {
+      return bucket;
+    }
+    int exponent = ( bucket >>> SUB_BUCKET_BITS ) + SUB_BUCKET_BITS - 1;
+    long lower = (long) ( SUB_BUCKETS + ( bucket & ( SUB_BUCKETS - 1 ) ) ) << ( exponent - SUB_BUCKET_BITS );
+    return lower + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+  }
+
+  /**
+   * @param counts     the bucket counts of a snapshot
+   * @param count      the sum of the counts
+   * @param percentile between 0 and 100
+   * @return the duration the percentile of the recorded durations did not exceed, 0 if nothing was recorded
+   */
+  static long percentile( long[] counts, long count, double percentile ) {
+    if ( count == 0 ) {
+      return 0;
+    }
+    long rank = (long) Math.ceil( count * Math.min( 100.0, Math.max( 0.0, percentile ) ) / 100.0 );
+    long seen = 0;
+    for ( int i = 0; i < counts.length; i++ ) {
+      seen += counts[ i ];
+      if ( seen >= Math.max( 1, rank ) ) {
+        return upperBound( i );
+      }
+    }
+    return upperBound( counts.length - 1 );
+  }
+}
@@ -0,0 +1,131 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A {@link KeyService} keeping its master key in the process, derived from the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED.
+ * It stands in for a key management service in development, tests and benchmarks, and is what the envelope encoder
+ * uses when a seed but no other service is configured. The passwords are then no better protected than by the AEAD
+ * encoder: whoever has the seed can read them.
+ * <p>
+ * A wrapped key is a version byte, a random 12 byte nonce and the data key encrypted with AES-GCM.
+ */
+public final class LocalKeyService implements KeyService {
+  private static final String DEFAULT_SEED = "0933910847463829827159347601486730416058";
+  private static final byte[] KEY_SALT =
+    "org.pentaho.support.encryption.LocalKeyService".getBytes( StandardCharsets.UTF_8 );
+  // Changing the iterations changes the master key, wrapped keys could no longer be unwrapped
+  private static final int KEY_ITERATIONS = 65536;
+  private static final int KEY_LENGTH = 32;
+
+  private static final byte VERSION = 1;
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  private static final int HEADER_LENGTH = 1 + NONCE_LENGTH;
+  private static final int WRAPPED_KEY_LENGTH = HEADER_LENGTH + KEY_LENGTH + TAG_LENGTH;
+
+  private final SecretKey masterKey;
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Derive the master key from the KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED system property.
+   */
+  public LocalKeyService() throws PasswordEncoderException {
+    this( System.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, DEFAULT_SEED ) );
+  }
+
+  /**
+   * @param seed the seed to derive the master key from
+   */
+  public LocalKeyService( String seed ) throws PasswordEncoderException {
+    this.masterKey = deriveKey( seed == null ? DEFAULT_SEED : seed );
+  }
+
+  @Override
+  public DataKey generateDataKey() throws PasswordEncoderException {
+    byte[] key = new byte[ KEY_LENGTH ];
+    random.nextBytes( key );
+    byte[] wrappedKey = new byte[ WRAPPED_KEY_LENGTH ];
+    // Only the nonce needs to be random, the rest is overwritten
+    random.nextBytes( wrappedKey );
+    wrappedKey[ 0 ] = VERSION;
+    try {
+      Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+      cipher.init( Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec( TAG_LENGTH * 8, wrappedKey, 1,
+        NONCE_LENGTH ) );
+      cipher.updateAAD( wrappedKey, 0, 1 );
+      cipher.doFinal( key, 0, KEY_LENGTH, wrappedKey, HEADER_LENGTH );
+    } catch ( GeneralSecurityException e ) {
+      Arrays.fill( key, (byte) 0 );
+      throw new PasswordEncoderException( "Unable to wrap the data key", e );
+    }
+    return new DataKey( key, wrappedKey );
+  }
+
+  @Override
+  public byte[] unwrapDataKey( byte[] wrappedKey ) throws PasswordEncoderException {
+    if ( wrappedKey == null || wrappedKey.length != WRAPPED_KEY_LENGTH || wrappedKey[ 0 ] != VERSION ) {
+      throw new PasswordEncoderException( "The data key was not wrapped by a local key service" );
+    }
+    try {
+      Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+      cipher.init( Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec( TAG_LENGTH * 8, wrappedKey, 1,
+        NONCE_LENGTH ) );
+      cipher.updateAAD( wrappedKey, 0, 1 );
+      return cipher.doFinal( wrappedKey, HEADER_LENGTH, wrappedKey.length - HEADER_LENGTH );
+    } catch ( AEADBadTagException e ) {
+      throw new PasswordEncoderException(
+        "The data key was wrapped with a different seed or has been modified, it can't be unwrapped", e );
+    } catch ( GeneralSecurityException e ) {
+      throw new PasswordEncoderException( "Unable to unwrap the data key", e );
+    }
+  }
+
+  private static SecretKey deriveKey( String seed ) throws PasswordEncoderException {
+    PBEKeySpec spec = new PBEKeySpec( seed.toCharArray(), KEY_SALT, KEY_ITERATIONS, KEY_LENGTH * 8 );
+    byte[] derived = null;
+    try {
+      derived = SecretKeyFactory.getInstance( "PBKDF2WithHmacSHA256" ).generateSecret( spec ).getEncoded();
+      return new SecretKeySpec( derived, "AES" );
+    } catch ( GeneralSecurityException e ) {
+      throw new PasswordEncoderException( "Unable to derive the master key", e );
+    } finally {
+      spec.clearPassword();
+      if ( derived != null ) {
+        Arrays.fill( derived, (byte) 0 );
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.List;
+
+/**
+ * The metrics of the password encoders, registered as
+ * "org.pentaho.support.encryption:type=PasswordEncoderMetrics" while the metrics of {@link Encr} are enabled.
+ */
+public interface PasswordEncoderMetricsMXBean {
+
+  /**
+   * @return the statistics of every operation of every encoder used so far
+   */
+  List<EncoderOperationStats> getOperationStats();
+
+  long getCalls();
+
+  long getFailures();
+
+  long getEmptyResults();
+
+  /**
+   * Start counting from zero again.
+   */
+  void reset();
+}
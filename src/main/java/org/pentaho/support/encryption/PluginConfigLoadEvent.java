@@ -0,0 +1,74 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import org.pentaho.support.utils.FlightRecorderUtil;
+
+/**
+ * A password encoder plugin file or plugin index read by {@link EncoderRegistryLoader}. Only create it after checking
+ * {@link FlightRecorderUtil#isAvailable()}.
+ */
+@Name( PluginConfigLoadEvent.NAME )
+@Label( "Password Encoder Plugins Loaded" )
+@Category( { "Pentaho", "Password Encoders" } )
+@Description( "A plugin xml file or plugin index read and its plugins registered" )
+@Threshold( "10 ms" )
+final class PluginConfigLoadEvent extends Event {
+  static final String NAME = "org.pentaho.support.encryption.PluginConfigLoad";
+
+  @Label( "Source" )
+  @Description( "The plugin xml file or the URL of the plugin index" )
+  String source;
+
+  @Label( "Plugins" )
+  @Description( "The number of plugin ids registered" )
+  int plugins;
+
+  @Label( "Outcome" )
+  @Description( "\"ok\", \"missing\" if there is no such file, or \"failed\"" )
+  String outcome;
+
+  @Label( "Error" )
+  @Description( "The class of the exception, when the plugins could not be loaded" )
+  String error;
+
+  /**
+   * Commit the event if it is recorded and took longer than its threshold.
+   */
+  void complete( String source, int plugins, String outcome, Throwable error ) {
+    end();
+    if ( shouldCommit() ) {
+      this.source = source;
+      this.plugins = plugins;
+      this.outcome = outcome;
+      this.error = error == null ? null : error.getClass().getName();
+      commit();
+    }
+  }
+}
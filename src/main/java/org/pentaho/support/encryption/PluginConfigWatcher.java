@@ -0,0 +1,147 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the plugin xml files and runs a reload on a background thread once they changed. The directories of the
+ * files are watched rather than the files, editors often save by writing a new file and renaming it over the old one.
+ * A reload only starts once the files have been left alone for a moment, so a file which is still being written or a
+ * change spread over several files causes a single reload.
+ */
+final class PluginConfigWatcher implements Closeable {
+  /**
+   * The number of milliseconds without changes after which the reload runs
+   */
+  static final long DEFAULT_QUIET_MILLIS = 500;
+
+  private final WatchService watchService;
+  private final Set<Path> files;
+  private final Runnable reload;
+  private final long quietMillis;
+  private final Thread thread;
+
+  private PluginConfigWatcher( WatchService watchService, Set<Path> files, Runnable reload, long quietMillis ) {
+    this.watchService = watchService;
+    this.files = files;
+    this.reload = reload;
+    this.quietMillis = quietMillis;
+    this.thread = new Thread( this::watch, "password-encoder-config-watcher" );
+    this.thread.setDaemon( true );
+  }
+
+  /**
+   * @param files       the files to watch, they must all be on the same file system
+   * @param reload      run on the watcher thread after a change, it must not throw
+   * @param quietMillis the number of milliseconds without changes after which the reload runs
+   * @return the running watcher
+   * @throws IOException if the directory of a file can't be watched
+   */
+  static PluginConfigWatcher start( Collection<Path> files, Runnable reload, long quietMillis ) throws IOException {
+    if ( files.isEmpty() ) {
+      throw new IllegalArgumentException( "There are no files to watch" );
+    }
+    FileSystem fileSystem = files.iterator().next().getFileSystem();
+    WatchService watchService = fileSystem.newWatchService();
+    Set<Path> watched = new HashSet<>();
+    try {
+      Set<Path> directories = new HashSet<>();
+      for ( Path file : files ) {
+        Path absolute = file.toAbsolutePath().normalize();
+        watched.add( absolute );
+        if ( directories.add( absolute.getParent() ) ) {
+          absolute.getParent().register( watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE );
+        }
+      }
+    } catch ( IOException | RuntimeException e ) {
+      try {
+        watchService.close();
+      } catch ( IOException closeError ) {
+        //close quietly
+      }
+      throw e;
+    }
+    PluginConfigWatcher watcher = new PluginConfigWatcher( watchService, watched, reload, quietMillis );
+    watcher.thread.start();
+    return watcher;
+  }
+
+  /**
+   * Stop watching. A reload which is running is not interrupted, it finishes in the background.
+   */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void watch() {
+    try {
+      while ( true ) {
+        if ( !isChange( watchService.take() ) ) {
+          continue;
+        }
+        // Wait until the files are left alone, whatever else changes meanwhile is covered by the same reload
+        WatchKey key;
+        while ( ( key = watchService.poll( quietMillis, TimeUnit.MILLISECONDS ) ) != null ) {
+          isChange( key );
+        }
+        reload.run();
+      }
+    } catch ( ClosedWatchServiceException | InterruptedException e ) {
+      // Closed
+    }
+  }
+
+  /**
+   * @return true if one of the events of the key is about a watched file
+   */
+  private boolean isChange( WatchKey key ) {
+    boolean changed = false;
+    Path directory = (Path) key.watchable();
+    for ( WatchEvent<?> event : key.pollEvents() ) {
+      if ( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+        // Events were lost, one of them may have been about a watched file
+        changed = true;
+      } else if ( files.contains( directory.resolve( (Path) event.context() ) ) ) {
+        changed = true;
+      }
+    }
+    key.reset();
+    return changed;
+  }
+}
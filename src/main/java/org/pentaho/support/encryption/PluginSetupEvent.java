@@ -0,0 +1,77 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import org.pentaho.support.utils.FlightRecorderUtil;
+
+/**
+ * A step of setting up a password encoder plugin: loading its class when it is registered, or creating and
+ * initializing the encoder when it is first used. Only create it after checking
+ * {@link FlightRecorderUtil#isAvailable()}.
+ */
+@Name( PluginSetupEvent.NAME )
+@Label( "Password Encoder Plugin Setup" )
+@Category( { "Pentaho", "Password Encoders" } )
+@Description( "A password encoder plugin class loaded, or an encoder created and initialized" )
+@Threshold( "1 ms" )
+final class PluginSetupEvent extends Event {
+  static final String NAME = "org.pentaho.support.encryption.PluginSetup";
+
+  static final String CLASS_LOAD = "class load";
+  static final String INIT = "init";
+
+  @Label( "Class Name" )
+  String classname;
+
+  @Label( "Step" )
+  @Description( "\"class load\" or \"init\"" )
+  String step;
+
+  @Label( "Outcome" )
+  @Description( "\"ok\" or \"failed\"" )
+  String outcome;
+
+  @Label( "Error" )
+  @Description( "The class of the exception, when the step failed" )
+  String error;
+
+  /**
+   * Commit the event if it is recorded and took longer than its threshold.
+   */
+  void complete( String classname, String step, Throwable error ) {
+    end();
+    if ( shouldCommit() ) {
+      this.classname = classname;
+      this.step = step;
+      this.outcome = error == null ? "ok" : "failed";
+      this.error = error == null ? null : error.getClass().getName();
+      commit();
+    }
+  }
+}
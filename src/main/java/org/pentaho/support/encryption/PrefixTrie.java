@@ -0,0 +1,119 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable trie over the prefixes of the registered encoders, mapping a value to the id of the encoder whose prefix
+ * it starts with. When several prefixes match, for example "Encrypted " and "Encrypted AES ", the longest one wins.
+ * A lookup reads every character of the value at most once.
+ */
+final class PrefixTrie {
+  private final Node root;
+
+  /**
+   * @param prefixes the encoder id for every prefix, empty prefixes are ignored
+   */
+  PrefixTrie( Map<String, String> prefixes ) {
+    Builder builder = new Builder();
+    for ( Map.Entry<String, String> entry : prefixes.entrySet() ) {
+      String prefix = entry.getKey();
+      if ( prefix == null || prefix.isEmpty() ) {
+        continue;
+      }
+      Builder node = builder;
+      for ( int i = 0; i < prefix.length(); i++ ) {
+        node = node.children.computeIfAbsent( prefix.charAt( i ), c -> new Builder() );
+      }
+      node.encoderId = entry.getValue();
+    }
+    root = builder.build();
+  }
+
+  /**
+   * @param value the value to look up
+   * @return the id of the encoder owning the longest prefix the value starts with, or null if there is none
+   */
+  String match( CharSequence value ) {
+    if ( value == null ) {
+      return null;
+    }
+    String encoderId = null;
+    Node node = root;
+    int length = value.length();
+    for ( int i = 0; i < length; i++ ) {
+      node = node.child( value.charAt( i ) );
+      if ( node == null ) {
+        break;
+      }
+      if ( node.encoderId != null ) {
+        encoderId = node.encoderId;
+      }
+    }
+    return encoderId;
+  }
+
+  /**
+   * @return the characters the prefixes start with, sorted
+   */
+  char[] getFirstChars() {
+    return root.keys.clone();
+  }
+
+  private static final class Node {
+    private final char[] keys;
+    private final Node[] children;
+    private final String encoderId;
+
+    Node( char[] keys, Node[] children, String encoderId ) {
+      this.keys = keys;
+      this.children = children;
+      this.encoderId = encoderId;
+    }
+
+    Node child( char c ) {
+      int index = Arrays.binarySearch( keys, c );
+      return index < 0 ? null : children[ index ];
+    }
+  }
+
+  private static final class Builder {
+    private final TreeMap<Character, Builder> children = new TreeMap<>();
+    private String encoderId;
+
+    Node build() {
+      char[] keys = new char[ children.size() ];
+      Node[] nodes = new Node[ children.size() ];
+      int i = 0;
+      for ( Map.Entry<Character, Builder> child : children.entrySet() ) {
+        keys[ i ] = child.getKey();
+        nodes[ i ] = child.getValue().build();
+        i++;
+      }
+      return new Node( keys, nodes, encoderId );
+    }
+  }
+}
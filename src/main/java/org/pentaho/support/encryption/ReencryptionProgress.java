@@ -0,0 +1,101 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * A point in time view of a {@link Reencryptor} run. The counts include the values of the interrupted runs it resumed.
+ */
+public final class ReencryptionProgress {
+  private final long position;
+  private final long resumedAt;
+  private final long reencrypted;
+  private final long unchanged;
+  private final long failed;
+  private final long elapsedNanos;
+
+  ReencryptionProgress( long position, long resumedAt, long reencrypted, long unchanged, long failed,
+                        long elapsedNanos ) {
+    this.position = position;
+    this.resumedAt = resumedAt;
+    this.reencrypted = reencrypted;
+    this.unchanged = unchanged;
+    this.failed = failed;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * @return the number of values written to the sink
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * @return the position of the checkpoint the run resumed from, 0 for a new run
+   */
+  public long getResumedAt() {
+    return resumedAt;
+  }
+
+  /**
+   * @return the number of values decoded with the source encoder and encoded with the target encoder
+   */
+  public long getReencrypted() {
+    return reencrypted;
+  }
+
+  /**
+   * @return the number of values written as they were read: empty values, values without a prefix of the source
+   * encoder and values decoding to a password with variables
+   */
+  public long getUnchanged() {
+    return unchanged;
+  }
+
+  /**
+   * @return the number of values which could not be re-encrypted, they are written as they were read
+   */
+  public long getFailed() {
+    return failed;
+  }
+
+  /**
+   * @return the time spent by this run, not counting the runs it resumed
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * @return the number of values written per second by this run
+   */
+  public double getValuesPerSecond() {
+    return elapsedNanos <= 0 ? 0.0 : ( position - resumedAt ) * 1e9 / elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "ReencryptionProgress{position=" + position + ", reencrypted=" + reencrypted + ", unchanged=" + unchanged
+      + ", failed=" + failed + ", " + Math.round( getValuesPerSecond() ) + " values/s}";
+  }
+}
@@ -0,0 +1,54 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the values of a {@link Reencryptor}, in the order the {@link ReencryptionSource} returned them. Only the
+ * writing thread of the re-encryptor uses the sink.
+ */
+public interface ReencryptionSink extends Closeable {
+
+  /**
+   * Called once before the first value is written.
+   *
+   * @param checkpoint what {@link #checkpoint()} returned last when resuming an interrupted run, the values written
+   *                   after it have to be dropped. Null for a new run, anything written before has to be dropped.
+   */
+  void open( String checkpoint ) throws IOException;
+
+  /**
+   * @param key   the key of the value in the source
+   * @param value the re-encrypted value, or the value of the source if it wasn't re-encrypted
+   */
+  void write( String key, String value ) throws IOException;
+
+  /**
+   * Make the values written so far durable.
+   *
+   * @return what a resumed run passes to {@link #open(String)} to continue after the values written so far
+   */
+  String checkpoint() throws IOException;
+}
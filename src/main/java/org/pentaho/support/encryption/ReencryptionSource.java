@@ -0,0 +1,77 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The values a {@link Reencryptor} re-encrypts. A source returns its values in the same order every time it is read,
+ * so an interrupted migration can skip the values it already wrote. Only the reading thread of the re-encryptor uses
+ * the source.
+ */
+public interface ReencryptionSource extends Closeable {
+
+  /**
+   * @return the next value, or null when there are no more
+   */
+  Entry next() throws IOException;
+
+  /**
+   * Skip values which were re-encrypted by an interrupted run. The default implementation reads them.
+   *
+   * @param count the number of values to skip
+   * @throws IOException if the source has fewer values
+   */
+  default void skip( long count ) throws IOException {
+    for ( long i = 0; i < count; i++ ) {
+      if ( next() == null ) {
+        throw new IOException( "The source has only " + i + " values, the checkpoint is at " + count );
+      }
+    }
+  }
+
+  /**
+   * A value with the key it is stored under, like a line number or a property name.
+   */
+  final class Entry {
+    private final String key;
+    private final String value;
+
+    public Entry( String key, String value ) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the value, encrypted or not, null if there is none
+     */
+    public String getValue() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,365 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The sources and sinks of a {@link Reencryptor}: text files with a value per line, properties files and lists.
+ */
+public final class ReencryptionStores {
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private ReencryptionStores() {
+  }
+
+  /**
+   * @param file a text file in the default charset with a value per line, the key of a value is its line number
+   */
+  public static ReencryptionSource lineSource( Path file ) throws IOException {
+    final BufferedReader in = Files.newBufferedReader( file, Charset.defaultCharset() );
+    return new ReencryptionSource() {
+      private long lineNumber;
+
+      @Override
+      public Entry next() throws IOException {
+        String line = in.readLine();
+        return line == null ? null : new Entry( Long.toString( ++lineNumber ), line );
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+
+  /**
+   * Writes a value per line in the default charset, an empty line for a missing value. Lines are streamed to the file,
+   * a checkpoint is the length of the file after forcing it to the disk. Resuming truncates the file to that length.
+   *
+   * @param file the file to write, not the file read
+   */
+  public static ReencryptionSink lineSink( final Path file ) {
+    return new AppendingSink( file, Charset.defaultCharset() ) {
+      @Override
+      void write( Writer out, String key, String value ) throws IOException {
+        if ( value != null ) {
+          out.write( value );
+        }
+        out.write( System.lineSeparator() );
+      }
+    };
+  }
+
+  /**
+   * Reads a properties file one property at a time, so it can be of any size. The values are returned in the order of
+   * the file, the key of a value is its property name. A property set more than once is returned every time, the last
+   * value wins when the written file is loaded, as it does for the file read.
+   *
+   * @param file a properties file in the format of {@link Properties#load(java.io.InputStream)}
+   */
+  public static ReencryptionSource propertiesSource( Path file ) throws IOException {
+    final BufferedReader in = Files.newBufferedReader( file, StandardCharsets.ISO_8859_1 );
+    return new ReencryptionSource() {
+      private final StringBuilder logicalLine = new StringBuilder();
+
+      @Override
+      public Entry next() throws IOException {
+        String line;
+        while ( ( line = in.readLine() ) != null ) {
+          if ( logicalLine.length() == 0 && isBlankOrComment( line ) ) {
+            continue;
+          }
+          logicalLine.append( line ).append( '\n' );
+          if ( !endsWithContinuation( line ) ) {
+            Entry entry = parse( logicalLine );
+            if ( entry != null ) {
+              return entry;
+            }
+          }
+        }
+        // The last line may end with a backslash
+        return logicalLine.length() == 0 ? null : parse( logicalLine );
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+
+  /**
+   * Appends a line per property in the format of {@link Properties#store(java.io.OutputStream, String)}, a missing
+   * value is left out. Like {@link #lineSink(Path)} the lines are streamed to the file, a checkpoint is the length of
+   * the file after forcing it to the disk and resuming truncates the file to that length. Comments of the file read are
+   * not kept.
+   *
+   * @param file the file to write, not the file read
+   */
+  public static ReencryptionSink propertiesSink( final Path file ) {
+    return new AppendingSink( file, StandardCharsets.ISO_8859_1 ) {
+      private final StringBuilder line = new StringBuilder();
+
+      @Override
+      void write( Writer out, String key, String value ) throws IOException {
+        if ( value == null ) {
+          return;
+        }
+        line.setLength( 0 );
+        escape( line, key, true );
+        line.append( '=' );
+        escape( line, value, false );
+        out.write( line.toString() );
+        out.write( System.lineSeparator() );
+      }
+    };
+  }
+
+  /**
+   * @param values the values, the key of a value is its index
+   */
+  public static ReencryptionSource listSource( final List<String> values ) {
+    return new ReencryptionSource() {
+      private int index;
+
+      @Override
+      public Entry next() {
+        if ( index == values.size() ) {
+          return null;
+        }
+        String value = values.get( index );
+        return new Entry( Integer.toString( index++ ), value );
+      }
+
+      @Override
+      public void skip( long count ) throws IOException {
+        if ( count > values.size() - index ) {
+          throw new IOException( "The source has only " + values.size() + " values, the checkpoint is at " + count );
+        }
+        index += (int) count;
+      }
+
+      @Override
+      public void close() {
+        // Nothing to release
+      }
+    };
+  }
+
+  /**
+   * Adds the values to a list, a checkpoint is the size of the list. Resuming removes the values added after it.
+   *
+   * @param values the list to add to
+   */
+  public static ReencryptionSink listSink( final List<String> values ) {
+    return new ReencryptionSink() {
+      @Override
+      public void open( String checkpoint ) throws IOException {
+        int size = 0;
+        if ( checkpoint != null ) {
+          try {
+            size = Integer.parseInt( checkpoint );
+          } catch ( NumberFormatException e ) {
+            throw new IOException( "Invalid checkpoint '" + checkpoint + "'", e );
+          }
+          if ( values.size() < size ) {
+            throw new IOException( "The list is shorter than at the checkpoint, it was changed meanwhile" );
+          }
+        }
+        values.subList( size, values.size() ).clear();
+      }
+
+      @Override
+      public void write( String key, String value ) {
+        values.add( value );
+      }
+
+      @Override
+      public String checkpoint() {
+        return Integer.toString( values.size() );
+      }
+
+      @Override
+      public void close() {
+        // Nothing to release
+      }
+    };
+  }
+
+  private static boolean isBlankOrComment( String line ) {
+    for ( int i = 0; i < line.length(); i++ ) {
+      char c = line.charAt( i );
+      if ( c != ' ' && c != '\t' && c != '\f' ) {
+        return c == '#' || c == '!';
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the line ends with an odd number of backslashes, the property goes on on the next line
+   */
+  private static boolean endsWithContinuation( String line ) {
+    int backslashes = 0;
+    for ( int i = line.length() - 1; i >= 0 && line.charAt( i ) == '\\'; i-- ) {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+
+  /**
+   * Leave the escapes and continuation lines of a property to {@link Properties#load(java.io.Reader)}.
+   *
+   * @param logicalLine the lines of one property, emptied
+   * @return the property, or null if the lines hold none
+   */
+  private static ReencryptionSource.Entry parse( StringBuilder logicalLine ) throws IOException {
+    Properties property = new Properties();
+    property.load( new StringReader( logicalLine.toString() ) );
+    logicalLine.setLength( 0 );
+    for ( String key : property.stringPropertyNames() ) {
+      return new ReencryptionSource.Entry( key, property.getProperty( key ) );
+    }
+    return null;
+  }
+
+  /**
+   * Escape a key or value like {@link Properties#store(java.io.OutputStream, String)} does.
+   */
+  private static void escape( StringBuilder out, String text, boolean key ) {
+    for ( int i = 0; i < text.length(); i++ ) {
+      char c = text.charAt( i );
+      switch ( c ) {
+        case ' ':
+          if ( i == 0 || key ) {
+            out.append( '\\' );
+          }
+          out.append( ' ' );
+          break;
+        case '\t':
+          out.append( "\\t" );
+          break;
+        case '\n':
+          out.append( "\\n" );
+          break;
+        case '\r':
+          out.append( "\\r" );
+          break;
+        case '\f':
+          out.append( "\\f" );
+          break;
+        case '=':
+        case ':':
+        case '#':
+        case '!':
+        case '\\':
+          out.append( '\\' ).append( c );
+          break;
+        default:
+          if ( c < 0x20 || c > 0x7e ) {
+            out.append( "\\u" );
+            for ( int shift = 12; shift >= 0; shift -= 4 ) {
+              out.append( HEX_DIGITS[ ( c >> shift ) & 0xF ] );
+            }
+          } else {
+            out.append( c );
+          }
+      }
+    }
+  }
+
+  /**
+   * Streams lines to a file, a checkpoint is the length of the file after forcing it to the disk. Resuming truncates
+   * the file to that length.
+   */
+  private abstract static class AppendingSink implements ReencryptionSink {
+    private final Path file;
+    private final Charset charset;
+    private FileChannel channel;
+    private Writer out;
+
+    AppendingSink( Path file, Charset charset ) {
+      this.file = file;
+      this.charset = charset;
+    }
+
+    abstract void write( Writer out, String key, String value ) throws IOException;
+
+    @Override
+    public void open( String checkpoint ) throws IOException {
+      channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+      long length = 0;
+      if ( checkpoint != null ) {
+        try {
+          length = Long.parseLong( checkpoint );
+        } catch ( NumberFormatException e ) {
+          throw new IOException( "Invalid checkpoint '" + checkpoint + "' for " + file, e );
+        }
+        if ( channel.size() < length ) {
+          throw new IOException( file + " is shorter than at the checkpoint, it was changed meanwhile" );
+        }
+      }
+      channel.truncate( length );
+      channel.position( length );
+      out = new BufferedWriter( new OutputStreamWriter( Channels.newOutputStream( channel ), charset ) );
+    }
+
+    @Override
+    public void write( String key, String value ) throws IOException {
+      write( out, key, value );
+    }
+
+    @Override
+    public String checkpoint() throws IOException {
+      out.flush();
+      channel.force( false );
+      return Long.toString( channel.position() );
+    }
+
+    @Override
+    public void close() throws IOException {
+      if ( out != null ) {
+        out.close();
+      } else if ( channel != null ) {
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,455 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.support.utils.StringUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Moves values from one encoder to another: every value of a {@link ReencryptionSource} with a prefix of the source
+ * encoder is decoded with it, encoded with the target encoder and written to a {@link ReencryptionSink}. Other values
+ * are written as they are.
+ * <p>
+ * A reader thread reads the values in chunks and hands them to worker threads, the calling thread writes the results
+ * in the order they were read. Only a few chunks per worker are held at any time, so memory use does not depend on
+ * the number of values. With a checkpoint file the position reached is saved every so many values, a run which
+ * finds a checkpoint file continues from there. The file is removed when a run completes.
+ */
+public final class Reencryptor {
+  /**
+   * The number of values handed to a worker at once
+   */
+  public static final int DEFAULT_BATCH_SIZE = 256;
+
+  /**
+   * The number of values written between two checkpoints
+   */
+  public static final long DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+  /**
+   * The number of milliseconds between two progress reports
+   */
+  public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 5000;
+
+  private static final String CHECKPOINT_FROM = "from";
+  private static final String CHECKPOINT_TO = "to";
+  private static final String CHECKPOINT_POSITION = "position";
+  private static final String CHECKPOINT_SINK = "sink";
+  private static final String CHECKPOINT_REENCRYPTED = "reencrypted";
+  private static final String CHECKPOINT_UNCHANGED = "unchanged";
+  private static final String CHECKPOINT_FAILED = "failed";
+
+  private final Encr encr;
+  private final String fromEncoderId;
+  private final String toEncoderId;
+  private final String[] fromPrefixes;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private boolean verify = true;
+  private Path checkpointFile;
+  private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+  private Consumer<ReencryptionProgress> progressListener;
+  private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+  private PrintStream errors = System.err;
+
+  private volatile boolean stopped;
+
+  /**
+   * @param encr          the encoders
+   * @param fromEncoderId the id of the encoder the values are encrypted with
+   * @param toEncoderId   the id of the encoder to encrypt them with
+   * @throws RuntimeException if one of the encoders does not exist
+   */
+  public Reencryptor( Encr encr, String fromEncoderId, String toEncoderId ) {
+    this.encr = encr;
+    this.fromEncoderId = fromEncoderId;
+    this.toEncoderId = toEncoderId;
+    String[] prefixes = encr.getPrefixes( fromEncoderId );
+    this.fromPrefixes = prefixes == null ? new String[ 0 ] : prefixes;
+    encr.getPrefixes( toEncoderId );
+  }
+
+  /**
+   * @param threads the number of worker threads, the number of processors by default
+   */
+  public void setThreads( int threads ) {
+    this.threads = Math.max( 1, threads );
+  }
+
+  /**
+   * @param batchSize the number of values handed to a worker at once
+   */
+  public void setBatchSize( int batchSize ) {
+    this.batchSize = Math.max( 1, batchSize );
+  }
+
+  /**
+   * @param verify true (the default) to decode every re-encrypted value again with the target encoder and keep the
+   *               original value if it doesn't match
+   */
+  public void setVerify( boolean verify ) {
+    this.verify = verify;
+  }
+
+  /**
+   * @param checkpointFile the file to save the position reached in and to resume from, null to not checkpoint
+   * @param interval       the number of values written between two checkpoints
+   */
+  public void setCheckpoint( Path checkpointFile, long interval ) {
+    this.checkpointFile = checkpointFile;
+    this.checkpointInterval = Math.max( 1, interval );
+  }
+
+  /**
+   * @param listener       receives the progress on the calling thread, and once more when the run completes
+   * @param intervalMillis the number of milliseconds between two reports
+   */
+  public void setProgressListener( Consumer<ReencryptionProgress> listener, long intervalMillis ) {
+    this.progressListener = listener;
+    this.progressIntervalMillis = Math.max( 0, intervalMillis );
+  }
+
+  /**
+   * @param errors receives a message for every value which could not be re-encrypted, System.err by default
+   */
+  public void setErrors( PrintStream errors ) {
+    this.errors = errors;
+  }
+
+  /**
+   * Re-encrypt every value of the source into the sink. Neither the source nor the sink is closed. A re-encryptor runs
+   * one migration at a time.
+   *
+   * @return the final progress
+   * @throws IOException if the source can't be read, the sink or the checkpoint can't be written, or the checkpoint
+   *                     file is for other encoders
+   */
+  public synchronized ReencryptionProgress run( ReencryptionSource source, ReencryptionSink sink ) throws IOException {
+    Properties checkpoint = readCheckpoint();
+    long position = getCount( checkpoint, CHECKPOINT_POSITION );
+    long resumedAt = position;
+    long reencrypted = getCount( checkpoint, CHECKPOINT_REENCRYPTED );
+    long unchanged = getCount( checkpoint, CHECKPOINT_UNCHANGED );
+    long failed = getCount( checkpoint, CHECKPOINT_FAILED );
+    if ( position > 0 ) {
+      source.skip( position );
+    }
+    sink.open( checkpoint == null ? null : checkpoint.getProperty( CHECKPOINT_SINK ) );
+
+    stopped = false;
+    long start = System.nanoTime();
+    long lastCheckpoint = position;
+    long lastReport = start;
+    BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<>( threads * 2 );
+    ExecutorService workers = Executors.newFixedThreadPool( threads, runnable -> {
+      Thread thread = new Thread( runnable, "password-reencryption" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    Thread reader = new Thread( () -> read( source, workers, pending ), "password-reencryption-reader" );
+    reader.setDaemon( true );
+    reader.start();
+    try {
+      Chunk chunk;
+      while ( ( chunk = getChunk( pending.take() ) ) != null ) {
+        for ( int i = 0; i < chunk.keys.length; i++ ) {
+          sink.write( chunk.keys[ i ], chunk.results[ i ] );
+        }
+        for ( String error : chunk.errors ) {
+          errors.println( error );
+        }
+        position += chunk.keys.length;
+        reencrypted += chunk.reencrypted;
+        unchanged += chunk.unchanged;
+        failed += chunk.failed;
+        if ( checkpointFile != null && position - lastCheckpoint >= checkpointInterval ) {
+          writeCheckpoint( sink.checkpoint(), position, reencrypted, unchanged, failed );
+          lastCheckpoint = position;
+        }
+        long now = System.nanoTime();
+        if ( progressListener != null && now - lastReport >= progressIntervalMillis * 1000000L ) {
+          progressListener.accept(
+            new ReencryptionProgress( position, resumedAt, reencrypted, unchanged, failed, now - start ) );
+          lastReport = now;
+        }
+      }
+      sink.checkpoint();
+      if ( checkpointFile != null ) {
+        Files.deleteIfExists( checkpointFile );
+      }
+      ReencryptionProgress progress =
+        new ReencryptionProgress( position, resumedAt, reencrypted, unchanged, failed, System.nanoTime() - start );
+      if ( progressListener != null ) {
+        progressListener.accept( progress );
+      }
+      return progress;
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while re-encrypting passwords" );
+    } finally {
+      stopped = true;
+      reader.interrupt();
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Read chunks of values and queue them for the workers, followed by null. A failure is queued as a failed chunk.
+   */
+  private void read( ReencryptionSource source, ExecutorService workers, BlockingQueue<Future<Chunk>> pending ) {
+    try {
+      try {
+        List<ReencryptionSource.Entry> entries = new ArrayList<>( batchSize );
+        while ( !stopped ) {
+          ReencryptionSource.Entry entry = source.next();
+          if ( entry != null ) {
+            entries.add( entry );
+          }
+          if ( entries.size() == batchSize || ( entry == null && !entries.isEmpty() ) ) {
+            final Chunk chunk = new Chunk( entries );
+            entries = new ArrayList<>( batchSize );
+            // Blocks while the writer is behind, this is what bounds the memory used
+            pending.put( workers.submit( chunk::process ) );
+          }
+          if ( entry == null ) {
+            break;
+          }
+        }
+        pending.put( CompletableFuture.completedFuture( null ) );
+      } catch ( IOException | RuntimeException e ) {
+        CompletableFuture<Chunk> failure = new CompletableFuture<>();
+        failure.completeExceptionally( e );
+        pending.put( failure );
+      }
+    } catch ( InterruptedException e ) {
+      // The writer stopped
+    }
+  }
+
+  private static Chunk getChunk( Future<Chunk> future ) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch ( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof IOException ) {
+        throw (IOException) cause;
+      }
+      throw new IOException( "Error re-encrypting passwords", cause );
+    }
+  }
+
+  private Properties readCheckpoint() throws IOException {
+    if ( checkpointFile == null || !Files.exists( checkpointFile ) ) {
+      return null;
+    }
+    Properties checkpoint = new Properties();
+    try ( InputStream in = Files.newInputStream( checkpointFile ) ) {
+      checkpoint.load( in );
+    }
+    if ( !fromEncoderId.equals( checkpoint.getProperty( CHECKPOINT_FROM ) )
+      || !toEncoderId.equals( checkpoint.getProperty( CHECKPOINT_TO ) ) ) {
+      throw new IOException( "The checkpoint " + checkpointFile + " is for a migration from '"
+        + checkpoint.getProperty( CHECKPOINT_FROM ) + "' to '" + checkpoint.getProperty( CHECKPOINT_TO ) + "'" );
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Replace the checkpoint file in one step, so an interruption leaves either the previous or the new checkpoint.
+   */
+  private void writeCheckpoint( String sinkState, long position, long reencrypted, long unchanged, long failed )
+    throws IOException {
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty( CHECKPOINT_FROM, fromEncoderId );
+    checkpoint.setProperty( CHECKPOINT_TO, toEncoderId );
+    checkpoint.setProperty( CHECKPOINT_POSITION, Long.toString( position ) );
+    checkpoint.setProperty( CHECKPOINT_SINK, StringUtil.NVL( sinkState, "" ) );
+    checkpoint.setProperty( CHECKPOINT_REENCRYPTED, Long.toString( reencrypted ) );
+    checkpoint.setProperty( CHECKPOINT_UNCHANGED, Long.toString( unchanged ) );
+    checkpoint.setProperty( CHECKPOINT_FAILED, Long.toString( failed ) );
+    Path directory = checkpointFile.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile( directory, checkpointFile.getFileName().toString(), ".tmp" );
+    try {
+      try ( OutputStream out = Files.newOutputStream( temporary ) ) {
+        checkpoint.store( out, "Password re-encryption checkpoint" );
+      }
+      Files.move( temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    } finally {
+      Files.deleteIfExists( temporary );
+    }
+  }
+
+  private long getCount( Properties checkpoint, String name ) throws IOException {
+    if ( checkpoint == null ) {
+      return 0;
+    }
+    try {
+      return Long.parseLong( checkpoint.getProperty( name, "0" ).trim() );
+    } catch ( NumberFormatException e ) {
+      throw new IOException( "Invalid " + name + " in the checkpoint " + checkpointFile, e );
+    }
+  }
+
+  private boolean hasFromPrefix( String value ) {
+    for ( String prefix : fromPrefixes ) {
+      // A value which is only the prefix is an empty password
+      if ( prefix != null && value.length() > prefix.length() && value.startsWith( prefix ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final class Chunk {
+    private final String[] keys;
+    private final String[] results;
+    private final List<String> errors = new ArrayList<>();
+    private int reencrypted;
+    private int unchanged;
+    private int failed;
+
+    Chunk( List<ReencryptionSource.Entry> entries ) {
+      keys = new String[ entries.size() ];
+      results = new String[ entries.size() ];
+      for ( int i = 0; i < keys.length; i++ ) {
+        keys[ i ] = entries.get( i ).getKey();
+        results[ i ] = entries.get( i ).getValue();
+      }
+    }
+
+    Chunk process() {
+      int[] indexes = new int[ results.length ];
+      int count = 0;
+      for ( int i = 0; i < results.length; i++ ) {
+        if ( results[ i ] != null && hasFromPrefix( results[ i ] ) ) {
+          indexes[ count++ ] = i;
+        }
+      }
+      unchanged = results.length - count;
+      if ( count == 0 ) {
+        return this;
+      }
+      String[] encrypted = new String[ count ];
+      for ( int i = 0; i < count; i++ ) {
+        encrypted[ i ] = results[ indexes[ i ] ];
+      }
+      String[] passwords = apply( fromEncoderId, false, encrypted, indexes );
+      for ( int i = 0; i < count; i++ ) {
+        if ( passwords[ i ] == null ) {
+          continue;
+        }
+        if ( passwords[ i ].isEmpty() ) {
+          // The Kettle encoder returns an empty password for values it can't decode
+          fail( i, indexes, passwords, "could not be decoded with '" + fromEncoderId + "'" );
+        } else if ( StringUtil.containsVariables( passwords[ i ] ) ) {
+          // Encoding it with a prefix would write the password in clear
+          errors.add( "Value '" + keys[ indexes[ i ] ] + "': the password uses variables, left as it is" );
+          passwords[ i ] = null;
+          unchanged++;
+        }
+      }
+      String[] reencryptedValues = apply( toEncoderId, true, passwords, indexes );
+      String[] check = verify ? apply( toEncoderId, false, reencryptedValues, indexes ) : null;
+      for ( int i = 0; i < count; i++ ) {
+        if ( reencryptedValues[ i ] == null ) {
+          continue;
+        }
+        if ( check != null && !passwords[ i ].equals( check[ i ] ) ) {
+          fail( i, indexes, reencryptedValues, "does not decode to the same password with '" + toEncoderId + "'" );
+        } else {
+          results[ indexes[ i ] ] = reencryptedValues[ i ];
+          reencrypted++;
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Encode or decode the values which are not null with one call to the encoder, only when that fails every value is
+     * processed on its own to find the ones which can't be. Failed values are null in the result.
+     */
+    private String[] apply( String encoderId, boolean encode, String[] values, int[] indexes ) {
+      List<String> present = new ArrayList<>( values.length );
+      for ( String value : values ) {
+        if ( value != null ) {
+          present.add( value );
+        }
+      }
+      String[] processed = new String[ values.length ];
+      String[] batch = present.toArray( new String[ present.size() ] );
+      try {
+        String[] results = encode ? encr.encodeAll( encoderId, batch, true ) : encr.decodeAll( encoderId, batch, true );
+        for ( int i = 0, j = 0; i < values.length; i++ ) {
+          if ( values[ i ] != null ) {
+            processed[ i ] = results[ j++ ];
+          }
+        }
+        return processed;
+      } catch ( RuntimeException e ) {
+        for ( int i = 0; i < values.length; i++ ) {
+          if ( values[ i ] == null ) {
+            continue;
+          }
+          try {
+            String[] single = new String[] { values[ i ] };
+            processed[ i ] =
+              ( encode ? encr.encodeAll( encoderId, single, true ) : encr.decodeAll( encoderId, single, true ) )[ 0 ];
+          } catch ( RuntimeException valueError ) {
+            fail( i, indexes, processed, ( encode ? "could not be encoded with '" : "could not be decoded with '" )
+              + encoderId + "': " + valueError.getMessage() );
+          }
+        }
+        return processed;
+      }
+    }
+
+    /**
+     * Count a value as failed, it is written as it was read.
+     */
+    private void fail( int i, int[] indexes, String[] values, String message ) {
+      values[ i ] = null;
+      failed++;
+      errors.add( "Value '" + keys[ indexes[ i ] ] + "' " + message );
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * A decrypted password held off the heap, as bytes in the platform charset, instead of in a String which stays in the
+ * heap until it is garbage collected and is copied wherever it is used. Get one from
+ * {@link Encr#decryptPasswordToHandle(String, String)} and close it once the password is no longer needed: closing
+ * zeroes the bytes and makes their memory available to the next handle.
+ * <p>
+ * The bytes only leave the handle through {@link #toChars()} and {@link #writeTo(ByteBuffer)}, which copy them for the
+ * caller to wipe. A handle can be shared by threads. Handles take slots of a few direct buffers which are reused, see
+ * {@link #getReservedBytes()}. The slot of a handle which is garbage collected without being closed is zeroed and
+ * reused then, but only closing wipes the password at a known time.
+ */
+public final class SecretHandle implements AutoCloseable {
+  private final SecretMemory memory;
+  private SecretMemory.Slot slot;
+  private int length;
+
+  private SecretHandle( SecretMemory memory, int capacity ) {
+    this.memory = memory;
+    this.slot = memory.allocate( this, Math.max( 1, capacity ) );
+  }
+
+  /**
+   * Decode a password into a new handle, with
+   * {@link TwoWayPasswordEncoderInterface#decodeInto(CharSequence, boolean, ByteBuffer)}. The password is decoded into
+   * a direct buffer of the thread, zeroed right after, and copied into a slot of its size.
+   *
+   * @return the handle, or null if the encoded password is null
+   */
+  static SecretHandle decode( SecretMemory memory, TwoWayPasswordEncoderInterface encoder, CharSequence encoded,
+                              boolean optionallyEncrypted ) {
+    if ( encoded == null ) {
+      return null;
+    }
+    // Neither hex nor base64 decodes to more bytes than characters, a value without a prefix may need more
+    int capacity = encoded.length();
+    while ( true ) {
+      ByteBuffer scratch = memory.scratch( capacity );
+      try {
+        int written = encoder.decodeInto( encoded, optionallyEncrypted, scratch );
+        if ( written < 0 ) {
+          return null;
+        }
+        SecretHandle handle = new SecretHandle( memory, written );
+        scratch.flip();
+        handle.slot.buffer.put( scratch );
+        handle.slot.buffer.clear();
+        handle.length = written;
+        return handle;
+      } catch ( BufferOverflowException e ) {
+        // Nothing was written
+        if ( scratch.capacity() == Integer.MAX_VALUE ) {
+          throw e;
+        }
+        capacity = (int) Math.min( Integer.MAX_VALUE, scratch.capacity() * 4L );
+      } finally {
+        memory.releaseScratch( scratch );
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes of the password
+   * @throws IllegalStateException if the handle is closed
+   */
+  public synchronized int length() {
+    checkOpen();
+    return length;
+  }
+
+  /**
+   * @return true once the handle is closed
+   */
+  public synchronized boolean isClosed() {
+    return slot == null;
+  }
+
+  /**
+   * @return a copy of the password, which the caller wipes once it is no longer needed
+   * @throws IllegalStateException if the handle is closed
+   */
+  public synchronized char[] toChars() {
+    checkOpen();
+    CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+      .onMalformedInput( CodingErrorAction.REPLACE )
+      .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    CharBuffer out = CharBuffer.allocate( (int) Math.ceil( length * (double) decoder.maxCharsPerByte() ) );
+    decoder.decode( bytes(), out, true );
+    decoder.flush( out );
+    char[] buffer = out.array();
+    if ( out.position() == buffer.length ) {
+      return buffer;
+    }
+    try {
+      return Arrays.copyOf( buffer, out.position() );
+    } finally {
+      Arrays.fill( buffer, '\0' );
+    }
+  }
+
+  /**
+   * Copy the password bytes into a buffer, starting at its position. The position is moved past the bytes.
+   *
+   * @param out the buffer receiving the password, a direct one keeps the password off the heap
+   * @return the number of bytes written
+   * @throws BufferOverflowException if the password doesn't fit, nothing is written in that case
+   * @throws IllegalStateException   if the handle is closed
+   */
+  public synchronized int writeTo( ByteBuffer out ) {
+    checkOpen();
+    if ( length > out.remaining() ) {
+      throw new BufferOverflowException();
+    }
+    out.put( bytes() );
+    return length;
+  }
+
+  /**
+   * Zero the password and give its memory back. Closing a closed handle does nothing.
+   */
+  @Override
+  public synchronized void close() {
+    if ( slot != null ) {
+      memory.release( slot );
+      slot = null;
+      length = 0;
+    }
+  }
+
+  /**
+   * @return the number of bytes of off-heap memory held for the passwords of the handles, reused slots included
+   */
+  public static long getReservedBytes() {
+    return SecretMemory.INSTANCE.getReservedBytes();
+  }
+
+  /**
+   * @return the number of bytes of off-heap memory used by the handles which are open
+   */
+  public static long getAllocatedBytes() {
+    return SecretMemory.INSTANCE.getAllocatedBytes();
+  }
+
+  /**
+   * Never shows the password.
+   */
+  @Override
+  public synchronized String toString() {
+    return slot == null ? "SecretHandle[closed]" : "SecretHandle[" + length + " bytes]";
+  }
+
+  private ByteBuffer bytes() {
+    ByteBuffer bytes = slot.buffer.duplicate();
+    bytes.clear();
+    bytes.limit( length );
+    return bytes;
+  }
+
+  private void checkOpen() {
+    if ( slot == null ) {
+      throw new IllegalStateException( "The secret handle is closed" );
+    }
+  }
+}
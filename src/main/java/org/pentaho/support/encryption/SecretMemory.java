@@ -0,0 +1,224 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The off-heap memory of the {@link SecretHandle}s. Secrets of up to {@link #MAX_POOLED_SIZE} bytes get a slot of a
+ * slab, a direct buffer of {@link #SLAB_SIZE} bytes cut into slots of one size. Slots are a power of two from 16 bytes
+ * up, the slots of a closed handle are zeroed and reused, so the memory reserved follows the number of secrets held at
+ * the same time and not the number ever decoded. Larger secrets get a direct buffer of their own.
+ * <p>
+ * The slot of a handle which was never closed is zeroed and reused once the handle is garbage collected, when the next
+ * slot is allocated.
+ */
+final class SecretMemory {
+  static final int SLAB_SIZE = 64 * 1024;
+  static final int MIN_SLOT_SIZE = 16;
+  static final int MAX_POOLED_SIZE = 4096;
+
+  private static final int SIZE_CLASSES =
+    Integer.numberOfTrailingZeros( MAX_POOLED_SIZE ) - Integer.numberOfTrailingZeros( MIN_SLOT_SIZE ) + 1;
+  private static final byte[] ZEROS = new byte[ MAX_POOLED_SIZE ];
+
+  static final SecretMemory INSTANCE = new SecretMemory();
+
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private final ArrayDeque<ByteBuffer>[] freeSlots = new ArrayDeque[ SIZE_CLASSES ];
+  private final ReferenceQueue<SecretHandle> collected = new ReferenceQueue<>();
+  /**
+   * Keeps the references of the open handles reachable until they are enqueued
+   */
+  private final Set<Slot> slots = ConcurrentHashMap.newKeySet();
+  private final AtomicLong reservedBytes = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+  private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<>();
+
+  SecretMemory() {
+    for ( int i = 0; i < SIZE_CLASSES; i++ ) {
+      freeSlots[ i ] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * @param handle the handle the slot is for, the slot is released when the handle is collected without being closed
+   * @param size   the number of bytes needed
+   * @return a zeroed slot of at least size bytes, its position is 0 and its limit its capacity
+   */
+  Slot allocate( SecretHandle handle, int size ) {
+    releaseCollected();
+    int sizeClass = sizeClass( size );
+    ByteBuffer buffer;
+    if ( sizeClass < 0 ) {
+      buffer = ByteBuffer.allocateDirect( size );
+      reservedBytes.addAndGet( size );
+    } else {
+      buffer = takeSlot( sizeClass );
+    }
+    allocatedBytes.addAndGet( buffer.capacity() );
+    Slot slot = new Slot( handle, collected, buffer, sizeClass );
+    slots.add( slot );
+    return slot;
+  }
+
+  /**
+   * Zero the slot and make it available again, once.
+   */
+  void release( Slot slot ) {
+    if ( !slots.remove( slot ) ) {
+      return;
+    }
+    slot.clear();
+    ByteBuffer buffer = slot.buffer;
+    zero( buffer );
+    allocatedBytes.addAndGet( -buffer.capacity() );
+    if ( slot.sizeClass < 0 ) {
+      // Freed by the garbage collector, like any direct buffer
+      reservedBytes.addAndGet( -buffer.capacity() );
+      return;
+    }
+    ArrayDeque<ByteBuffer> free = freeSlots[ slot.sizeClass ];
+    synchronized ( free ) {
+      free.push( buffer );
+    }
+  }
+
+  /**
+   * @param size the number of bytes needed
+   * @return the direct buffer of the thread to decode a secret into, cleared, with at least size bytes. Give it back
+   * with {@link #releaseScratch(ByteBuffer)}.
+   */
+  ByteBuffer scratch( int size ) {
+    ByteBuffer buffer = scratch.get();
+    if ( buffer == null || buffer.capacity() < size ) {
+      buffer = ByteBuffer.allocateDirect( Math.max( size, MAX_POOLED_SIZE ) );
+      // Larger secrets are rare, their buffer is not kept
+      if ( buffer.capacity() == MAX_POOLED_SIZE ) {
+        scratch.set( buffer );
+      }
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Zero the buffer of the thread up to its position, which is past everything written to it.
+   */
+  void releaseScratch( ByteBuffer buffer ) {
+    buffer.flip();
+    while ( buffer.hasRemaining() ) {
+      buffer.put( ZEROS, 0, Math.min( ZEROS.length, buffer.remaining() ) );
+    }
+    buffer.clear();
+  }
+
+  /**
+   * @return the number of bytes of off-heap memory held for secrets, free slots included
+   */
+  long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /**
+   * @return the number of bytes of the slots of the handles which are open
+   */
+  long getAllocatedBytes() {
+    releaseCollected();
+    return allocatedBytes.get();
+  }
+
+  private ByteBuffer takeSlot( int sizeClass ) {
+    ArrayDeque<ByteBuffer> free = freeSlots[ sizeClass ];
+    synchronized ( free ) {
+      ByteBuffer buffer = free.poll();
+      if ( buffer != null ) {
+        return buffer;
+      }
+      int slotSize = MIN_SLOT_SIZE << sizeClass;
+      ByteBuffer slab = ByteBuffer.allocateDirect( SLAB_SIZE );
+      reservedBytes.addAndGet( SLAB_SIZE );
+      for ( int offset = SLAB_SIZE - slotSize; offset > 0; offset -= slotSize ) {
+        free.push( slice( slab, offset, slotSize ) );
+      }
+      return slice( slab, 0, slotSize );
+    }
+  }
+
+  private void releaseCollected() {
+    Reference<? extends SecretHandle> reference;
+    while ( ( reference = collected.poll() ) != null ) {
+      release( (Slot) reference );
+    }
+  }
+
+  private static ByteBuffer slice( ByteBuffer slab, int offset, int length ) {
+    ByteBuffer slice = slab.duplicate();
+    slice.position( offset );
+    slice.limit( offset + length );
+    return slice.slice();
+  }
+
+  static void zero( ByteBuffer buffer ) {
+    buffer.clear();
+    while ( buffer.hasRemaining() ) {
+      buffer.put( ZEROS, 0, Math.min( ZEROS.length, buffer.remaining() ) );
+    }
+    buffer.clear();
+  }
+
+  /**
+   * @return the index of the smallest slot size which holds size bytes, -1 if the secret is too large for a slot
+   */
+  static int sizeClass( int size ) {
+    if ( size > MAX_POOLED_SIZE ) {
+      return -1;
+    }
+    if ( size <= MIN_SLOT_SIZE ) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros( size - 1 ) - Integer.numberOfTrailingZeros( MIN_SLOT_SIZE );
+  }
+
+  /**
+   * The memory of a handle. Enqueued when the handle is collected without being closed, the buffer is still reachable
+   * from here so it can be zeroed then.
+   */
+  static final class Slot extends PhantomReference<SecretHandle> {
+    final ByteBuffer buffer;
+    final int sizeClass;
+
+    Slot( SecretHandle handle, ReferenceQueue<SecretHandle> queue, ByteBuffer buffer, int sizeClass ) {
+      super( handle, queue );
+      this.buffer = buffer;
+      this.sizeClass = sizeClass;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of {@link Encr} instances, one per tenant, each with the encoders and seeds of its tenant's settings,
+ * see {@link Encr#newInstance(Properties)}. Once the cache is full the least recently used tenant is evicted, its
+ * instance is created again when the tenant comes back. An instance is created once even when several threads ask for
+ * a new tenant at the same time, and threads asking for other tenants don't wait for it.
+ * <p>
+ * Evicted instances stop watching their plugin files and wipe their cached passwords, so look the instance up for
+ * every use rather than keeping it.
+ */
+public final class TenantEncrCache {
+  private final int maximumSize;
+  private final Function<String, Properties> settingsLookup;
+
+  /**
+   * The instances by tenant id, in the order they were used. Guarded by itself.
+   */
+  private final Map<String, FutureTask<Encr>> tenants;
+
+  /**
+   * @param maximumSize    the maximum number of tenants to keep
+   * @param settingsLookup returns the settings of a tenant, or null if there is no such tenant. Called once for every
+   *                       instance created.
+   */
+  public TenantEncrCache( final int maximumSize, Function<String, Properties> settingsLookup ) {
+    if ( maximumSize <= 0 ) {
+      throw new IllegalArgumentException( "The maximum size of the cache must be positive" );
+    }
+    this.maximumSize = maximumSize;
+    this.settingsLookup = settingsLookup;
+    this.tenants = new LinkedHashMap<String, FutureTask<Encr>>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<String, FutureTask<Encr>> eldest ) {
+        if ( size() > maximumSize ) {
+          shutdown( eldest.getValue() );
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param tenantId the id of the tenant
+   * @return the instance of the tenant, created if it isn't cached
+   * @throws PasswordEncoderException if the tenant is unknown or its instance can't be created, the next call tries
+   *                                  again
+   */
+  public Encr get( String tenantId ) throws PasswordEncoderException {
+    FutureTask<Encr> task;
+    boolean created = false;
+    synchronized ( tenants ) {
+      task = tenants.get( tenantId );
+      if ( task == null ) {
+        task = new FutureTask<>( () -> create( tenantId ) );
+        tenants.put( tenantId, task );
+        created = true;
+      }
+    }
+    if ( created ) {
+      // Created outside the lock, loading the plugins of one tenant doesn't hold up the others
+      task.run();
+    }
+    try {
+      Encr encr = task.get();
+      if ( created && !isCached( task ) ) {
+        // Evicted or invalidated while it was created
+        encr.shutdown();
+      }
+      return encr;
+    } catch ( ExecutionException e ) {
+      synchronized ( tenants ) {
+        tenants.remove( tenantId, task );
+      }
+      Throwable cause = e.getCause();
+      if ( cause instanceof PasswordEncoderException ) {
+        throw (PasswordEncoderException) cause;
+      }
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
+      }
+      if ( cause instanceof Error ) {
+        throw (Error) cause;
+      }
+      throw new PasswordEncoderException( "Unable to load the password encoders of tenant '" + tenantId + "'", cause );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new PasswordEncoderException(
+        "Interrupted while the password encoders of tenant '" + tenantId + "' were loaded", e );
+    }
+  }
+
+  /**
+   * Evict a tenant, for example after its settings changed. Its instance is created again when it is next used.
+   */
+  public void invalidate( String tenantId ) {
+    FutureTask<Encr> task;
+    synchronized ( tenants ) {
+      task = tenants.remove( tenantId );
+    }
+    shutdown( task );
+  }
+
+  /**
+   * Evict every tenant.
+   */
+  public void invalidateAll() {
+    List<FutureTask<Encr>> evicted;
+    synchronized ( tenants ) {
+      evicted = new ArrayList<>( tenants.values() );
+      tenants.clear();
+    }
+    for ( FutureTask<Encr> task : evicted ) {
+      shutdown( task );
+    }
+  }
+
+  /**
+   * @return the ids of the cached tenants, the least recently used first
+   */
+  public List<String> getTenantIds() {
+    synchronized ( tenants ) {
+      return new ArrayList<>( tenants.keySet() );
+    }
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  private Encr create( String tenantId ) throws PasswordEncoderException {
+    Properties settings = settingsLookup.apply( tenantId );
+    if ( settings == null ) {
+      throw new PasswordEncoderException( "Unknown tenant '" + tenantId + "'" );
+    }
+    return Encr.newInstance( settings );
+  }
+
+  private boolean isCached( FutureTask<Encr> task ) {
+    synchronized ( tenants ) {
+      // Not get(), which would count as a use
+      return tenants.containsValue( task );
+    }
+  }
+
+  /**
+   * Release the instance of an evicted tenant. One which is still being created is released by its creator.
+   */
+  private static void shutdown( FutureTask<Encr> task ) {
+    if ( task == null || !task.isDone() ) {
+      return;
+    }
+    try {
+      task.get().shutdown();
+    } catch ( ExecutionException | InterruptedException e ) {
+      // Failed, there is nothing to release
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes an index of the classes annotated with {@link TwoWayPasswordEncoderPlugin} to
+ * {@value #PLUGIN_INDEX_RESOURCE}, so {@link Encr} can register the encoders of a jar without a plugin xml file.
+ * <p>
+ * The index has one line per plugin: the comma separated ids, a tab and the binary class name. Lines starting with #
+ * are comments.
+ * <p>
+ * The processor is registered as a service, it runs for every module compiled with this jar on the class path.
+ */
+@SupportedAnnotationTypes( "org.pentaho.support.encryption.TwoWayPasswordEncoderPlugin" )
+public class TwoWayPasswordEncoderPluginProcessor extends AbstractProcessor {
+
+  /**
+   * The location of the plugin index in a jar
+   */
+  public static final String PLUGIN_INDEX_RESOURCE = "META-INF/kettle-password-encoder-plugins.index";
+
+  // class name -> ids, in the order the plugins were found
+  private final Map<String, String> plugins = new LinkedHashMap<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process( Set<? extends TypeElement> annotations, RoundEnvironment roundEnv ) {
+    if ( roundEnv.processingOver() ) {
+      if ( !plugins.isEmpty() ) {
+        writeIndex();
+      }
+      return false;
+    }
+    for ( Element element : roundEnv.getElementsAnnotatedWith( TwoWayPasswordEncoderPlugin.class ) ) {
+      if ( isValidPlugin( element ) ) {
+        TypeElement type = (TypeElement) element;
+        String ids = normalizeIds( type.getAnnotation( TwoWayPasswordEncoderPlugin.class ).id() );
+        if ( ids.isEmpty() ) {
+          error( element, "The id of a password encoder plugin can't be empty" );
+        } else {
+          plugins.put( processingEnv.getElementUtils().getBinaryName( type ).toString(), ids );
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean isValidPlugin( Element element ) {
+    if ( element.getKind() != ElementKind.CLASS || element.getModifiers().contains( Modifier.ABSTRACT ) ) {
+      error( element, "@TwoWayPasswordEncoderPlugin can only be used on concrete classes" );
+      return false;
+    }
+    if ( !element.getModifiers().contains( Modifier.PUBLIC ) ) {
+      error( element, "A password encoder plugin must be public" );
+      return false;
+    }
+    TypeMirror pluginInterface = processingEnv.getElementUtils()
+      .getTypeElement( TwoWayPasswordEncoderInterface.class.getCanonicalName() ).asType();
+    if ( !processingEnv.getTypeUtils().isAssignable( element.asType(), pluginInterface ) ) {
+      error( element, "A password encoder plugin must implement " + TwoWayPasswordEncoderInterface.class.getName() );
+      return false;
+    }
+    for ( ExecutableElement constructor : ElementFilter.constructorsIn( element.getEnclosedElements() ) ) {
+      if ( constructor.getParameters().isEmpty() && constructor.getModifiers().contains( Modifier.PUBLIC ) ) {
+        return true;
+      }
+    }
+    error( element, "A password encoder plugin needs a public constructor without arguments" );
+    return false;
+  }
+
+  private static String normalizeIds( String ids ) {
+    StringBuilder normalized = new StringBuilder();
+    for ( String id : ids.split( "," ) ) {
+      String trimmed = id.trim();
+      if ( !trimmed.isEmpty() ) {
+        if ( normalized.length() > 0 ) {
+          normalized.append( ',' );
+        }
+        normalized.append( trimmed );
+      }
+    }
+    return normalized.toString();
+  }
+
+  private void writeIndex() {
+    // An incremental build only hands over the recompiled classes, keep the plugins indexed before which still exist
+    Map<String, String> index = new LinkedHashMap<>();
+    for ( Map.Entry<String, String> entry : readPreviousIndex().entrySet() ) {
+      TypeElement type = processingEnv.getElementUtils().getTypeElement( entry.getKey().replace( '$', '.' ) );
+      if ( type != null && type.getAnnotation( TwoWayPasswordEncoderPlugin.class ) != null ) {
+        index.put( entry.getKey(), entry.getValue() );
+      }
+    }
+    index.putAll( plugins );
+
+    try {
+      FileObject resource =
+        processingEnv.getFiler().createResource( StandardLocation.CLASS_OUTPUT, "", PLUGIN_INDEX_RESOURCE );
+      try ( OutputStream out = resource.openOutputStream();
+            Writer writer = new OutputStreamWriter( out, StandardCharsets.UTF_8 ) ) {
+        writer.write( "# Generated by " + getClass().getName() + ", do not edit\n" );
+        for ( Map.Entry<String, String> entry : index.entrySet() ) {
+          writer.write( entry.getValue() + "\t" + entry.getKey() + "\n" );
+        }
+      }
+    } catch ( IOException e ) {
+      processingEnv.getMessager().printMessage( Diagnostic.Kind.ERROR,
+        "Unable to write " + PLUGIN_INDEX_RESOURCE + ": " + e.getMessage() );
+    }
+  }
+
+  private Map<String, String> readPreviousIndex() {
+    Map<String, String> index = new LinkedHashMap<>();
+    try {
+      FileObject resource =
+        processingEnv.getFiler().getResource( StandardLocation.CLASS_OUTPUT, "", PLUGIN_INDEX_RESOURCE );
+      try ( InputStream in = resource.openInputStream() ) {
+        readIndex( in, index );
+      }
+    } catch ( IOException | IllegalArgumentException e ) {
+      // No index yet
+    }
+    return index;
+  }
+
+  /**
+   * Read a plugin index.
+   *
+   * @param in    the index
+   * @param index receives the comma separated ids for every class name
+   * @throws IOException if the index can't be read
+   */
+  static void readIndex( InputStream in, Map<String, String> index ) throws IOException {
+    BufferedReader reader = new BufferedReader( new InputStreamReader( in, StandardCharsets.UTF_8 ) );
+    String line;
+    while ( ( line = reader.readLine() ) != null ) {
+      line = line.trim();
+      if ( line.isEmpty() || line.startsWith( "#" ) ) {
+        continue;
+      }
+      int tab = line.indexOf( '\t' );
+      if ( tab > 0 ) {
+        index.put( line.substring( tab + 1 ).trim(), line.substring( 0, tab ).trim() );
+      }
+    }
+  }
+
+  private void error( Element element, String message ) {
+    processingEnv.getMessager().printMessage( Diagnostic.Kind.ERROR, message, element );
+  }
+}
@@ -0,0 +1,101 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Unix domain socket channels, looked up at runtime as this module is compiled for Java versions which don't have
+ * them. Unix domain sockets need Java 16.
+ */
+final class UnixDomainSockets {
+  private static final Method ADDRESS_OF = findMethod( "java.net.UnixDomainSocketAddress", "of", Path.class );
+  private static final Method OPEN_SERVER = findMethod( ServerSocketChannel.class.getName(), "open",
+    ProtocolFamily.class );
+  private static final Method OPEN_CLIENT = findMethod( SocketChannel.class.getName(), "open", ProtocolFamily.class );
+
+  private UnixDomainSockets() {
+  }
+
+  static boolean isSupported() {
+    return ADDRESS_OF != null && OPEN_SERVER != null && OPEN_CLIENT != null && unixFamily() != null;
+  }
+
+  static SocketAddress address( Path path ) throws IOException {
+    return (SocketAddress) invoke( ADDRESS_OF, path );
+  }
+
+  static ServerSocketChannel openServerChannel() throws IOException {
+    return (ServerSocketChannel) invoke( OPEN_SERVER, unixFamily() );
+  }
+
+  static SocketChannel openChannel() throws IOException {
+    return (SocketChannel) invoke( OPEN_CLIENT, unixFamily() );
+  }
+
+  private static Object invoke( Method method, Object argument ) throws IOException {
+    if ( !isSupported() ) {
+      throw new IOException( "Unix domain sockets need Java 16 or later, this is Java "
+        + System.getProperty( "java.version" ) );
+    }
+    try {
+      return method.invoke( null, argument );
+    } catch ( IllegalAccessException e ) {
+      throw new IOException( e );
+    } catch ( InvocationTargetException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof IOException ) {
+        throw (IOException) cause;
+      }
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException( cause );
+    }
+  }
+
+  private static ProtocolFamily unixFamily() {
+    for ( StandardProtocolFamily family : StandardProtocolFamily.values() ) {
+      if ( family.name().equals( "UNIX" ) ) {
+        return family;
+      }
+    }
+    return null;
+  }
+
+  private static Method findMethod( String className, String name, Class<?>... parameterTypes ) {
+    try {
+      return Class.forName( className ).getMethod( name, parameterTypes );
+    } catch ( ClassNotFoundException | NoSuchMethodException e ) {
+      return null;
+    }
+  }
+}
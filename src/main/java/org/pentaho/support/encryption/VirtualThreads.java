@@ -0,0 +1,61 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, looked up at runtime as this module is compiled for Java versions which don't have them. Virtual
+ * threads need Java 21.
+ */
+final class VirtualThreads {
+  private static final Method NEW_EXECUTOR = findNewExecutor();
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return an executor starting a virtual thread per task, or null if the JVM has no virtual threads
+   */
+  static ExecutorService newExecutor() {
+    if ( NEW_EXECUTOR == null ) {
+      return null;
+    }
+    try {
+      return (ExecutorService) NEW_EXECUTOR.invoke( null );
+    } catch ( IllegalAccessException | InvocationTargetException e ) {
+      // A preview feature which isn't enabled
+      return null;
+    }
+  }
+
+  private static Method findNewExecutor() {
+    try {
+      return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+    } catch ( NoSuchMethodException e ) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.support.utils;
+
+/**
+ * Tells whether JDK Flight Recorder events can be used. Runtimes built without the jdk.jfr module don't have the event
+ * classes, code creating events has to check {@link #isAvailable()} first. Creating an event which isn't recorded
+ * costs next to nothing, so the events are always created when they can be.
+ */
+public final class FlightRecorderUtil {
+  private static final boolean AVAILABLE = isEventClassPresent();
+
+  private FlightRecorderUtil() {
+  }
+
+  /**
+   * @return true if the runtime has the jdk.jfr module
+   */
+  public static boolean isAvailable() {
+    return AVAILABLE;
+  }
+
+  private static boolean isEventClassPresent() {
+    try {
+      Class.forName( "jdk.jfr.Event" );
+      return true;
+    } catch ( ClassNotFoundException | LinkageError e ) {
+      return false;
+    }
+  }
+}
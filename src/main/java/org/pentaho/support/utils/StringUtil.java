@@ -23,7 +23,10 @@ package org.pentaho.support.utils;
  ******************************************************************************/
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A collection of utilities to manipulate strings.
@@ -31,14 +34,6 @@ import java.util.List;
  * @author wdeclerc
  */
 public class StringUtil {
-  private static final String UNIX_OPEN = "${";
-
-  private static final String UNIX_CLOSE = "}";
-
-  private static final String WINDOWS_OPEN = "%%";
-
-  private static final String WINDOWS_CLOSE = "%%";
-
   private static final String[] SYSTEM_PROPERTIES = new String[] {
     "java.version", "java.vendor", "java.vendor.url", "java.home", "java.vm.specification.version",
     "java.vm.specification.vendor", "java.vm.specification.name", "java.vm.version", "java.vm.vendor",
@@ -60,6 +55,9 @@ public class StringUtil {
     "sun.io.unicode.encoding", "sun.java.launcher", "sun.jnu.encoding", "sun.management.compiler",
     "sun.os.patch.level", };
 
+  private static final Set<String> SYSTEM_PROPERTY_SET =
+    Collections.unmodifiableSet( new HashSet<>( Arrays.asList( SYSTEM_PROPERTIES ) ) );
+
   private StringUtil() {
     throw new IllegalStateException( "Utility Class" );
   }
@@ -72,8 +70,7 @@ public class StringUtil {
    * @param includeSystemVariables also check for system variables.
    */
   public static void getUsedVariables( String aString, List<String> list, boolean includeSystemVariables ) {
-    getUsedVariables( aString, UNIX_OPEN, UNIX_CLOSE, list, includeSystemVariables );
-    getUsedVariables( aString, WINDOWS_OPEN, WINDOWS_CLOSE, list, includeSystemVariables );
+    VariableScanner.DEFAULT.getUsedVariables( aString, list, includeSystemVariables );
   }
 
   /**
@@ -90,33 +87,27 @@ public class StringUtil {
     if ( aString == null ) {
       return;
     }
+    new VariableScanner( new String[] { open }, new String[] { close } )
+      .getUsedVariables( aString, list, includeSystemVariables );
+  }
 
-    int p = 0;
-    while ( p < aString.length() ) {
-      // OK, we found something... : start of Unix variable
-      if ( aString.startsWith( open, p ) ) {
-        // See if it's closed...
-        int from = p + open.length();
-        int to = aString.indexOf( close, from + 1 );
-
-        if ( to >= 0 ) {
-          String variable = aString.substring( from, to );
-          if ( list.indexOf( variable ) < 0 ) {
-            // Either we include the system variables (all)
-            // Or the variable is not a system variable
-            // Or it's a system variable but the value has not been set (and we offer the user the option to set it)
-            //
-            if ( includeSystemVariables || Arrays.asList( SYSTEM_PROPERTIES ).indexOf( variable ) < 0
-              || System.getProperty( variable ) == null ) {
-              list.add( variable );
-            }
-          }
-          // OK, continue
-          p = to + close.length();
-        }
-      }
-      p++;
-    }
+  /**
+   * Check if the string uses ${VAR} or %%VAR%% variables. Cheaper than {@link #getUsedVariables(String, List,
+   * boolean)} when the variables themselves are not needed.
+   *
+   * @param value The string to search
+   * @return true if the string contains at least one variable
+   */
+  public static boolean containsVariables( CharSequence value ) {
+    return VariableScanner.DEFAULT.containsVariables( value );
+  }
+
+  /**
+   * @param name the name of a property
+   * @return true if the name is one of the well known Java system properties
+   */
+  static boolean isSystemProperty( String name ) {
+    return SYSTEM_PROPERTY_SET.contains( name );
   }
 
   /**
@@ -0,0 +1,223 @@
+package org.pentaho.support.utils;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2020 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds variable references like ${VAR} or %%VAR%% in a string. All the delimiter pairs are recognized in a single
+ * pass over the string.
+ *
+ * @see StringUtil#getUsedVariables(String, List, boolean)
+ */
+public final class VariableScanner {
+
+  /**
+   * Recognizes the Unix style ${VAR} and the Windows style %%VAR%% variables.
+   */
+  public static final VariableScanner DEFAULT = new VariableScanner( new String[] { "${", "%%" },
+    new String[] { "}", "%%" } );
+
+  /**
+   * Receives the variables found by {@link #scan(CharSequence, Visitor)}.
+   */
+  public interface Visitor {
+    /**
+     * @param source    the string being scanned
+     * @param start     the index of the first character of the variable name
+     * @param end       the index after the last character of the variable name
+     * @param delimiter the index of the delimiter pair which matched
+     */
+    void variable( CharSequence source, int start, int end, int delimiter );
+  }
+
+  private final String[] open;
+  private final String[] close;
+
+  /**
+   * @param open  the open or "start of variable" characters of every delimiter pair, ${ or %% for example
+   * @param close the close or "end of variable" characters of every delimiter pair, } or %% for example
+   */
+  public VariableScanner( String[] open, String[] close ) {
+    if ( open.length != close.length || open.length == 0 ) {
+      throw new IllegalArgumentException( "Every open delimiter needs a close delimiter" );
+    }
+    for ( int i = 0; i < open.length; i++ ) {
+      if ( StringUtil.isEmpty( open[ i ] ) || StringUtil.isEmpty( close[ i ] ) ) {
+        throw new IllegalArgumentException( "Delimiters can't be empty" );
+      }
+    }
+    this.open = open.clone();
+    this.close = close.clone();
+  }
+
+  /**
+   * Report every variable in the string to the visitor, in the order they are found. A scan for a delimiter pair
+   * resumes one character after the close of the previous variable found with that pair, the way
+   * {@link StringUtil#getUsedVariables(String, String, String, List, boolean)} always did.
+   *
+   * @param value   the string to search
+   * @param visitor receives the variables
+   */
+  public void scan( CharSequence value, Visitor visitor ) {
+    if ( value == null ) {
+      return;
+    }
+    int pairs = open.length;
+    int[] next = new int[ pairs ];
+    boolean[] done = new boolean[ pairs ];
+    int remaining = pairs;
+    int length = value.length();
+
+    for ( int p = 0; p < length && remaining > 0; p++ ) {
+      char c = value.charAt( p );
+      for ( int k = 0; k < pairs; k++ ) {
+        if ( done[ k ] || p < next[ k ] || c != open[ k ].charAt( 0 ) || !startsWith( value, open[ k ], p ) ) {
+          continue;
+        }
+        int from = p + open[ k ].length();
+        int to = indexOf( value, close[ k ], from + 1 );
+        if ( to < 0 ) {
+          // Later opens of this pair can't be closed either
+          done[ k ] = true;
+          remaining--;
+        } else {
+          visitor.variable( value, from, to, k );
+          next[ k ] = to + close[ k ].length() + 1;
+        }
+      }
+    }
+  }
+
+  /**
+   * Search the string and report back on the variables used in list. Variables already in the list are not added
+   * again. Variables are added grouped by delimiter pair, in the order the pairs were given.
+   *
+   * @param aString                The string to search
+   * @param list                   the list of variables to add to
+   * @param includeSystemVariables also check for system variables.
+   */
+  public void getUsedVariables( final String aString, List<String> list, final boolean includeSystemVariables ) {
+    if ( aString == null ) {
+      return;
+    }
+    final List<List<String>> found = new ArrayList<>( open.length );
+    for ( int i = 0; i < open.length; i++ ) {
+      found.add( null );
+    }
+    scan( aString, ( source, start, end, delimiter ) -> {
+      String variable = aString.substring( start, end );
+      // Either we include the system variables (all)
+      // Or the variable is not a system variable
+      // Or it's a system variable but the value has not been set (and we offer the user the option to set it)
+      //
+      if ( includeSystemVariables || !StringUtil.isSystemProperty( variable )
+        || System.getProperty( variable ) == null ) {
+        List<String> variables = found.get( delimiter );
+        if ( variables == null ) {
+          variables = new ArrayList<>();
+          found.set( delimiter, variables );
+        }
+        variables.add( variable );
+      }
+    } );
+
+    Set<String> seen = null;
+    for ( List<String> variables : found ) {
+      if ( variables == null ) {
+        continue;
+      }
+      if ( seen == null ) {
+        seen = new HashSet<>( list );
+      }
+      for ( String variable : variables ) {
+        if ( seen.add( variable ) ) {
+          list.add( variable );
+        }
+      }
+    }
+  }
+
+  /**
+   * Check whether a string contains at least one variable, without allocating anything.
+   *
+   * @param value the string to search
+   * @return true if {@link #getUsedVariables(String, List, boolean)} would find a variable
+   */
+  public boolean containsVariables( CharSequence value ) {
+    if ( value == null ) {
+      return false;
+    }
+    for ( int k = 0; k < open.length; k++ ) {
+      // If the first open isn't closed, none of the later ones is
+      int p = indexOf( value, open[ k ], 0 );
+      if ( p >= 0 && indexOf( value, close[ k ], p + open[ k ].length() + 1 ) >= 0 ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param c a character
+   * @return true if an open delimiter starts with the character, a string without any such character contains no
+   * variables
+   */
+  public boolean isOpenStart( char c ) {
+    for ( String delimiter : open ) {
+      if ( delimiter.charAt( 0 ) == c ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean startsWith( CharSequence value, String prefix, int offset ) {
+    if ( offset + prefix.length() > value.length() ) {
+      return false;
+    }
+    for ( int i = 0; i < prefix.length(); i++ ) {
+      if ( value.charAt( offset + i ) != prefix.charAt( i ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf( CharSequence value, String target, int from ) {
+    if ( value instanceof String ) {
+      return ( (String) value ).indexOf( target, from );
+    }
+    char first = target.charAt( 0 );
+    int max = value.length() - target.length();
+    for ( int i = Math.max( from, 0 ); i <= max; i++ ) {
+      if ( value.charAt( i ) == first && startsWith( value, target, i ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -31,6 +31,9 @@ import org.w3c.dom.NodeList;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +48,13 @@ import static javax.xml.XMLConstants.FEATURE_SECURE_PROCESSING;
  */
 public class XMLHandler {
 
+  /**
+   * The secure document builders of every thread, namespace unaware at 0 and namespace aware at 1. A builder is taken
+   * out of its slot while it is in use, so nested loads on the same thread get a builder of their own.
+   */
+  private static final ThreadLocal<DocumentBuilder[]> DOCUMENT_BUILDERS =
+    ThreadLocal.withInitial( () -> new DocumentBuilder[ 2 ] );
+
   /**
    * Load file input stream into an XML document
    *
@@ -53,13 +63,30 @@ public class XMLHandler {
    * @return the Document if all went well, null if an error occured!
    */
   public static Document loadXMLFile( InputStream inputStream, boolean namespaceAware ) throws XmlParseException {
+    if ( !FlightRecorderUtil.isAvailable() ) {
+      return parse( inputStream, namespaceAware );
+    }
+    XmlParseEvent event = new XmlParseEvent();
+    CountingInputStream counted = null;
+    if ( event.isEnabled() && inputStream != null ) {
+      inputStream = counted = new CountingInputStream( inputStream );
+    }
+    event.begin();
+    try {
+      Document doc = parse( inputStream, namespaceAware );
+      event.complete( namespaceAware, counted == null ? 0 : counted.count, null );
+      return doc;
+    } catch ( XmlParseException e ) {
+      event.complete( namespaceAware, counted == null ? 0 : counted.count, e.getCause() == null ? e : e.getCause() );
+      throw e;
+    }
+  }
+
+  private static Document parse( InputStream inputStream, boolean namespaceAware ) throws XmlParseException {
     try {
       // Check and open XML document
       //
-      DocumentBuilderFactory dbf = createSecureDocBuilderFactory();
-      dbf.setIgnoringComments( true );
-      dbf.setNamespaceAware( namespaceAware );
-      DocumentBuilder db = dbf.newDocumentBuilder();
+      DocumentBuilder db = borrowDocumentBuilder( namespaceAware );
 
       // even dbf.setValidating(false) will the parser NOT prevent from checking the existance of the DTD
       // thus we need to give the BaseURI (systemID) below to have a chance to get it
@@ -72,6 +99,7 @@ public class XMLHandler {
         //
         doc = db.parse( inputStream );
       } finally {
+        returnDocumentBuilder( db, namespaceAware );
         if ( inputStream != null ) {
           inputStream.close();
         }
@@ -83,6 +111,37 @@ public class XMLHandler {
     }
   }
 
+  /**
+   * Take the secure document builder of the current thread out of its slot, creating it with
+   * {@link #createSecureDocBuilderFactory()} the first time.
+   */
+  private static DocumentBuilder borrowDocumentBuilder( boolean namespaceAware ) throws ParserConfigurationException {
+    DocumentBuilder[] builders = DOCUMENT_BUILDERS.get();
+    int slot = namespaceAware ? 1 : 0;
+    DocumentBuilder db = builders[ slot ];
+    if ( db == null ) {
+      DocumentBuilderFactory dbf = createSecureDocBuilderFactory();
+      dbf.setIgnoringComments( true );
+      dbf.setNamespaceAware( namespaceAware );
+      return dbf.newDocumentBuilder();
+    }
+    builders[ slot ] = null;
+    return db;
+  }
+
+  /**
+   * Reset a builder to the configuration of its factory and put it back in the slot of the current thread.
+   */
+  private static void returnDocumentBuilder( DocumentBuilder db, boolean namespaceAware ) {
+    try {
+      db.reset();
+    } catch ( UnsupportedOperationException e ) {
+      // A builder which can't be reset is not reused
+      return;
+    }
+    DOCUMENT_BUILDERS.get()[ namespaceAware ? 1 : 0 ] = db;
+  }
+
   /**
    * Search for a subnode in the node with a certain tag.
    *
@@ -140,6 +199,17 @@ public class XMLHandler {
     return nodes;
   }
 
+  /**
+   * Build an index of the children of a node by tag name, for repeated lookups on the same node. The index is a snapshot
+   * of the children the caller keeps, its lookups don't walk the children.
+   *
+   * @param n The node to look in
+   * @return The index of the children of the node
+   */
+  public static XmlNodeIndex getNodeIndex( Node n ) {
+    return XmlNodeIndex.of( n );
+  }
+
   public static String getTagAttribute( Node node, String attribute ) {
     if ( node == null ) {
       return null;
@@ -198,4 +268,57 @@ public class XMLHandler {
 
     return docBuilderFactory;
   }
+
+  /**
+   * Creates an instance of {@link XMLInputFactory} for streaming (StAX) parsing with DTD processing and external
+   * entities disabled, the streaming counterpart of {@link #createSecureDocBuilderFactory()}.
+   */
+  public static XMLInputFactory createSecureXMLInputFactory() {
+    XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+    xmlInputFactory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+
+    return xmlInputFactory;
+  }
+
+  /**
+   * Counts the bytes read for {@link XmlParseEvent}.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream( InputStream in ) {
+      super( in );
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if ( b >= 0 ) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+      int read = super.read( b, off, len );
+      if ( read > 0 ) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException {
+      long skipped = super.skip( n );
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
 }
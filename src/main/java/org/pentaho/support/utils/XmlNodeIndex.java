@@ -0,0 +1,133 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.support.utils;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the children of a node by tag name, so {@link #getSubNode(String)}, {@link #getNodes(String)} and
+ * {@link #getTagValue(String)} don't have to walk the children on every call. The lookups give the same results as
+ * the static methods of {@link XMLHandler}, tag names are matched ignoring case.
+ * <p>
+ * An index is a snapshot of the children of the node when it was built, it doesn't follow later changes and the node is
+ * not modified. Build it once with {@link #of(Node)}, keep it for as long as the lookups are needed, and build it again
+ * after the children changed.
+ */
+public final class XmlNodeIndex {
+  private static final XmlNodeIndex EMPTY = new XmlNodeIndex( Collections.<String, Entry>emptyMap() );
+
+  private final Map<String, Entry> entries;
+
+  private XmlNodeIndex( Map<String, Entry> entries ) {
+    this.entries = entries;
+  }
+
+  /**
+   * Build the index of a node. Every call walks the children once, keep the index to look up several tags.
+   *
+   * @param node The node to index
+   * @return The index of the node, an empty index if the node is null
+   */
+  public static XmlNodeIndex of( Node node ) {
+    if ( node == null ) {
+      return EMPTY;
+    }
+    Map<String, Entry> entries = new HashMap<>();
+    NodeList children = node.getChildNodes();
+    for ( int i = 0; i < children.getLength(); i++ ) {
+      Node child = children.item( i );
+      Entry entry = entries.computeIfAbsent( fold( child.getNodeName() ), key -> new Entry() );
+      entry.nodes.add( child );
+      // Like XMLHandler.getTagValue: the value of the first matching child which has a child
+      if ( !entry.hasValue && child.getFirstChild() != null ) {
+        entry.hasValue = true;
+        entry.value = child.getFirstChild().getNodeValue();
+      }
+    }
+    return new XmlNodeIndex( entries );
+  }
+
+  /**
+   * @param tag The tag to look for
+   * @return The first child with this tag, or null if nothing was found.
+   * @see XMLHandler#getSubNode(Node, String)
+   */
+  public Node getSubNode( String tag ) {
+    Entry entry = entries.get( fold( tag ) );
+    return entry == null ? null : entry.nodes.get( 0 );
+  }
+
+  /**
+   * @param tag The tag to look for
+   * @return The children with this tag, the list can't be modified
+   * @see XMLHandler#getNodes(Node, String)
+   */
+  public List<Node> getNodes( String tag ) {
+    Entry entry = entries.get( fold( tag ) );
+    return entry == null ? Collections.<Node>emptyList() : Collections.unmodifiableList( entry.nodes );
+  }
+
+  /**
+   * @param tag The tag to look for
+   * @return The value of the tag or null if nothing was found.
+   * @see XMLHandler#getTagValue(Node, String)
+   */
+  public String getTagValue( String tag ) {
+    Entry entry = entries.get( fold( tag ) );
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * Fold the case of a tag name so that two names fold to the same string exactly when
+   * {@link String#equalsIgnoreCase(String)} considers them equal.
+   */
+  private static String fold( String name ) {
+    StringBuilder folded = null;
+    for ( int i = 0; i < name.length(); ) {
+      int c = name.codePointAt( i );
+      int f = Character.toLowerCase( Character.toUpperCase( c ) );
+      if ( f != c && folded == null ) {
+        folded = new StringBuilder( name.length() ).append( name, 0, i );
+      }
+      if ( folded != null ) {
+        folded.appendCodePoint( f );
+      }
+      i += Character.charCount( c );
+    }
+    return folded == null ? name : folded.toString();
+  }
+
+  private static final class Entry {
+    private final List<Node> nodes = new ArrayList<>( 1 );
+    private boolean hasValue;
+    private String value;
+  }
+}
@@ -0,0 +1,74 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.support.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * An XML document parsed by {@link XMLHandler#loadXMLFile(java.io.InputStream, boolean)}. Only create it after
+ * checking {@link FlightRecorderUtil#isAvailable()}.
+ */
+@Name( XmlParseEvent.NAME )
+@Label( "XML Document Parsed" )
+@Category( { "Pentaho", "Password Encoders" } )
+@Description( "An XML document parsed into a DOM, recorded when it took longer than the threshold" )
+@Threshold( "10 ms" )
+final class XmlParseEvent extends Event {
+  static final String NAME = "org.pentaho.support.utils.XmlParse";
+
+  @Label( "Namespace Aware" )
+  boolean namespaceAware;
+
+  @Label( "Bytes Read" )
+  @DataAmount
+  long bytesRead;
+
+  @Label( "Outcome" )
+  @Description( "\"ok\" or \"failed\"" )
+  String outcome;
+
+  @Label( "Error" )
+  @Description( "The class of the exception, when the document could not be parsed" )
+  String error;
+
+  /**
+   * Commit the event if it is recorded and took longer than its threshold.
+   */
+  void complete( boolean namespaceAware, long bytesRead, Throwable error ) {
+    end();
+    if ( shouldCommit() ) {
+      this.namespaceAware = namespaceAware;
+      this.bytesRead = bytesRead;
+      this.outcome = error == null ? "ok" : "failed";
+      this.error = error == null ? null : error.getClass().getName();
+      commit();
+    }
+  }
+}
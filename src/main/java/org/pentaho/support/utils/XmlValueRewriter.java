@@ -0,0 +1,460 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.support.utils;
+
+import org.pentaho.support.encryption.Encr;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Rewrites the text and attribute values of XML documents (.ktr, .kjb, shared.xml, ...) while streaming them through
+ * StAX, so memory use does not depend on the size of the document. Every value is passed through a stage function,
+ * values the stage returns unchanged are written as they were read. CDATA sections stay CDATA sections, a text value
+ * made of CDATA sections and plain text is written as one CDATA section when the stage changes it.
+ *
+ * @see #reEncrypting(Encr, String, String)
+ */
+public class XmlValueRewriter {
+
+  /**
+   * The file extensions picked up by {@link #rewriteDirectory(Path, int)}
+   */
+  public static final String[] DEFAULT_EXTENSIONS = new String[] { ".ktr", ".kjb", ".xml" };
+
+  private static final String DEFAULT_ENCODING = "UTF-8";
+  private static final String CDATA_END = "]]>";
+  private static final String REPORT_CDATA_EVENT = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+  private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+  private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+  private final UnaryOperator<String> stage;
+  private final String[] extensions;
+
+  /**
+   * @param stage the function applied to every text and attribute value
+   */
+  public XmlValueRewriter( UnaryOperator<String> stage ) {
+    this( stage, DEFAULT_EXTENSIONS );
+  }
+
+  /**
+   * @param stage      the function applied to every text and attribute value
+   * @param extensions the file extensions picked up by {@link #rewriteDirectory(Path, int)}
+   */
+  public XmlValueRewriter( UnaryOperator<String> stage, String[] extensions ) {
+    this.stage = stage;
+    this.extensions = extensions.clone();
+  }
+
+  /**
+   * Creates a rewriter which decodes every value encoded by one encoder and encodes it again with another one, for
+   * example when moving to a different encoder. Values without one of the prefixes of the source encoder are left
+   * alone, as are passwords using variables. Problems are reported on System.err.
+   *
+   * @param encr          the encoder registry
+   * @param fromEncoderId the id of the encoder the values are currently encoded with
+   * @param toEncoderId   the id of the encoder to encode the values with
+   * @return the rewriter
+   * @see #reEncrypting(Encr, String, String, PrintStream)
+   */
+  public static XmlValueRewriter reEncrypting( final Encr encr, final String fromEncoderId,
+                                               final String toEncoderId ) {
+    return reEncrypting( encr, fromEncoderId, toEncoderId, System.err );
+  }
+
+  /**
+   * Creates a rewriter which decodes every value encoded by one encoder and encodes it again with another one, for
+   * example when moving to a different encoder. Values without one of the prefixes of the source encoder are left
+   * alone, as are passwords using variables.
+   * <p>
+   * A value is only replaced when it decodes to a non empty password and the new value decodes to the same password
+   * again with the target encoder. Otherwise it is left unchanged and reported, the values themselves are never
+   * written to the report.
+   *
+   * @param encr          the encoder registry
+   * @param fromEncoderId the id of the encoder the values are currently encoded with
+   * @param toEncoderId   the id of the encoder to encode the values with
+   * @param errors        receives a message for every value which is left unchanged because of a problem
+   * @return the rewriter
+   */
+  public static XmlValueRewriter reEncrypting( final Encr encr, final String fromEncoderId,
+                                               final String toEncoderId, final PrintStream errors ) {
+    final String[] prefixes = encr.getPrefixes( fromEncoderId );
+    return new XmlValueRewriter( value -> {
+      for ( String prefix : prefixes ) {
+        if ( value.startsWith( prefix ) ) {
+          return reEncrypt( encr, fromEncoderId, toEncoderId, value, errors );
+        }
+      }
+      return value;
+    } );
+  }
+
+  private static String reEncrypt( Encr encr, String fromEncoderId, String toEncoderId, String value,
+                                   PrintStream errors ) {
+    String password;
+    try {
+      password = encr.decryptPasswordOptionallyEncrypted( fromEncoderId, value );
+    } catch ( RuntimeException e ) {
+      errors.println( "A value could not be decoded with '" + fromEncoderId + "', left as it is: "
+        + e.getMessage() );
+      return value;
+    }
+    if ( StringUtil.isEmpty( password ) ) {
+      // The Kettle encoder returns an empty password for values it can't decode
+      errors.println( "A value could not be decoded with '" + fromEncoderId + "', left as it is" );
+      return value;
+    }
+    if ( StringUtil.containsVariables( password ) ) {
+      // Encoding it with a prefix would write the password in clear
+      errors.println( "A password uses variables, left as it is" );
+      return value;
+    }
+    String reEncrypted;
+    try {
+      reEncrypted = encr.encryptPasswordIfNotUsingVariables( toEncoderId, password );
+      if ( !password.equals( encr.decryptPasswordOptionallyEncrypted( toEncoderId, reEncrypted ) ) ) {
+        errors.println( "A value does not decode to the same password with '" + toEncoderId + "', left as it is" );
+        return value;
+      }
+    } catch ( RuntimeException e ) {
+      errors.println( "A value could not be encoded with '" + toEncoderId + "', left as it is: " + e.getMessage() );
+      return value;
+    }
+    return reEncrypted;
+  }
+
+  /**
+   * Stream a document from in to out, rewriting its values. Neither stream is closed.
+   *
+   * @param in  the document to read
+   * @param out the stream to write the rewritten document to
+   * @return the number of values which were changed
+   * @throws XmlParseException if the document can't be read or written
+   */
+  public int rewrite( InputStream in, OutputStream out ) throws XmlParseException {
+    XMLStreamReader reader = null;
+    XMLStreamWriter writer = null;
+    int changed = 0;
+    try {
+      reader = INPUT_FACTORY.createXMLStreamReader( in );
+      String encoding = reader.getCharacterEncodingScheme();
+      if ( encoding == null ) {
+        encoding = DEFAULT_ENCODING;
+      }
+      writer = OUTPUT_FACTORY.createXMLStreamWriter( out, encoding );
+
+      int event = reader.getEventType();
+      while ( true ) {
+        switch ( event ) {
+          case XMLStreamConstants.START_DOCUMENT:
+            if ( reader.getVersion() != null ) {
+              writer.writeStartDocument( encoding, reader.getVersion() );
+            }
+            break;
+          case XMLStreamConstants.START_ELEMENT:
+            changed += copyStartElement( reader, writer );
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            writer.writeEndElement();
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+          case XMLStreamConstants.SPACE:
+            changed += copyText( reader, writer );
+            // copyText stops on the event following the text
+            event = reader.getEventType();
+            continue;
+          case XMLStreamConstants.COMMENT:
+            writer.writeComment( reader.getText() );
+            break;
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            writer.writeProcessingInstruction( reader.getPITarget(), reader.getPIData() );
+            break;
+          case XMLStreamConstants.ENTITY_REFERENCE:
+            writer.writeEntityRef( reader.getLocalName() );
+            break;
+          case XMLStreamConstants.DTD:
+            writer.writeDTD( reader.getText() );
+            break;
+          case XMLStreamConstants.END_DOCUMENT:
+            writer.writeEndDocument();
+            break;
+          default:
+            break;
+        }
+        if ( !reader.hasNext() ) {
+          break;
+        }
+        event = reader.next();
+      }
+      writer.flush();
+      return changed;
+    } catch ( XMLStreamException e ) {
+      throw new XmlParseException( "Error rewriting XML stream", e );
+    } finally {
+      closeQuietly( reader, writer );
+    }
+  }
+
+  /**
+   * Copy the text events starting at the current one as a single value, so a value split over several events by the
+   * parser or by CDATA sections is seen by the stage as a whole. Unchanged values are written as the events they were
+   * read from, changed ones as a CDATA section if the value held one. The reader is left on the next event.
+   */
+  private int copyText( XMLStreamReader reader, XMLStreamWriter writer ) throws XMLStreamException {
+    List<String> texts = new ArrayList<>( 1 );
+    List<Boolean> cdata = new ArrayList<>( 1 );
+    boolean whiteSpace = true;
+    int event = reader.getEventType();
+    while ( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+      || event == XMLStreamConstants.SPACE ) {
+      texts.add( reader.getText() );
+      cdata.add( event == XMLStreamConstants.CDATA );
+      whiteSpace &= reader.isWhiteSpace();
+      event = reader.next();
+    }
+
+    String value = texts.size() == 1 ? texts.get( 0 ) : String.join( "", texts );
+    String rewritten = whiteSpace ? value : stage.apply( value );
+    if ( value.equals( rewritten ) ) {
+      for ( int i = 0; i < texts.size(); i++ ) {
+        if ( cdata.get( i ) ) {
+          writer.writeCData( texts.get( i ) );
+        } else {
+          writer.writeCharacters( texts.get( i ) );
+        }
+      }
+      return 0;
+    }
+    if ( cdata.contains( Boolean.TRUE ) && !rewritten.contains( CDATA_END ) ) {
+      writer.writeCData( rewritten );
+    } else {
+      writer.writeCharacters( rewritten );
+    }
+    return 1;
+  }
+
+  private int copyStartElement( XMLStreamReader reader, XMLStreamWriter writer ) throws XMLStreamException {
+    writer.writeStartElement( nullToEmpty( reader.getPrefix() ), reader.getLocalName(),
+      nullToEmpty( reader.getNamespaceURI() ) );
+    for ( int i = 0; i < reader.getNamespaceCount(); i++ ) {
+      String prefix = reader.getNamespacePrefix( i );
+      if ( StringUtil.isEmpty( prefix ) ) {
+        writer.writeDefaultNamespace( reader.getNamespaceURI( i ) );
+      } else {
+        writer.writeNamespace( prefix, reader.getNamespaceURI( i ) );
+      }
+    }
+    int changed = 0;
+    for ( int i = 0; i < reader.getAttributeCount(); i++ ) {
+      String value = reader.getAttributeValue( i );
+      String rewritten = stage.apply( value );
+      if ( !value.equals( rewritten ) ) {
+        changed++;
+      }
+      String namespaceURI = reader.getAttributeNamespace( i );
+      if ( StringUtil.isEmpty( namespaceURI ) ) {
+        writer.writeAttribute( reader.getAttributeLocalName( i ), rewritten );
+      } else {
+        writer.writeAttribute( nullToEmpty( reader.getAttributePrefix( i ) ), namespaceURI,
+          reader.getAttributeLocalName( i ), rewritten );
+      }
+    }
+    return changed;
+  }
+
+  private static String nullToEmpty( String value ) {
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Rewrite a file in place. The result is written to a temporary file next to it which replaces the original only if
+   * something changed. On POSIX file systems the temporary file gets the permissions, owner and group of the original
+   * first, when they can't be set the original is left as it is.
+   *
+   * @param file the file to rewrite
+   * @return the number of values which were changed
+   * @throws XmlParseException if the file is not a valid XML document
+   * @throws IOException       if the file can't be read or replaced
+   */
+  public int rewrite( Path file ) throws XmlParseException, IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile( parent, file.getFileName().toString(), ".tmp" );
+    try {
+      int changed;
+      try ( InputStream in = new BufferedInputStream( Files.newInputStream( file ) );
+            OutputStream out = new BufferedOutputStream( Files.newOutputStream( temp ) ) ) {
+        changed = rewrite( in, out );
+      }
+      if ( changed > 0 ) {
+        copyPosixAttributes( file, temp );
+        Files.move( temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      return changed;
+    } finally {
+      Files.deleteIfExists( temp );
+    }
+  }
+
+  /**
+   * Give the replacement the permissions and ownership of the original, the temporary file is only readable by the
+   * current user.
+   */
+  private static void copyPosixAttributes( Path file, Path temp ) throws IOException {
+    PosixFileAttributeView view = Files.getFileAttributeView( temp, PosixFileAttributeView.class );
+    if ( view == null ) {
+      return;
+    }
+    PosixFileAttributes source = Files.readAttributes( file, PosixFileAttributes.class );
+    PosixFileAttributes target = view.readAttributes();
+    if ( !source.group().equals( target.group() ) ) {
+      view.setGroup( source.group() );
+    }
+    if ( !source.owner().equals( target.owner() ) ) {
+      view.setOwner( source.owner() );
+    }
+    // After the owner, changing it may clear the set-user-ID and set-group-ID bits
+    view.setPermissions( source.permissions() );
+  }
+
+  /**
+   * Rewrite every file with one of the configured extensions below a directory, using several threads. Every file is
+   * replaced on its own, so an error leaves the files processed until then rewritten.
+   *
+   * @param directory   the directory to process
+   * @param parallelism the number of files to process at the same time
+   * @return the number of values changed for every file which was rewritten
+   * @throws XmlParseException if one of the files is not a valid XML document
+   * @throws IOException       if a file can't be read or replaced
+   */
+  public Map<Path, Integer> rewriteDirectory( Path directory, int parallelism )
+    throws XmlParseException, IOException {
+    List<Path> files;
+    try ( Stream<Path> paths = Files.walk( directory ) ) {
+      files = paths.filter( Files::isRegularFile ).filter( this::hasExtension ).collect( Collectors.toList() );
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, parallelism ) );
+    try {
+      List<Future<Integer>> results = new ArrayList<>( files.size() );
+      for ( final Path file : files ) {
+        results.add( executor.submit( () -> rewrite( file ) ) );
+      }
+      Map<Path, Integer> changed = new LinkedHashMap<>();
+      for ( int i = 0; i < files.size(); i++ ) {
+        int count = getResult( files.get( i ), results.get( i ) );
+        if ( count > 0 ) {
+          changed.put( files.get( i ), count );
+        }
+      }
+      return changed;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static int getResult( Path file, Future<Integer> result ) throws XmlParseException, IOException {
+    try {
+      return result.get();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted while rewriting '" + file + "'", e );
+    } catch ( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof XmlParseException ) {
+        throw new XmlParseException( "Error rewriting '" + file + "'", cause );
+      }
+      if ( cause instanceof IOException ) {
+        throw (IOException) cause;
+      }
+      throw new IOException( "Error rewriting '" + file + "'", cause );
+    }
+  }
+
+  private boolean hasExtension( Path file ) {
+    String name = file.getFileName().toString().toLowerCase();
+    for ( String extension : extensions ) {
+      if ( name.endsWith( extension ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLHandler.createSecureXMLInputFactory();
+    // Not coalescing keeps CDATA sections apart from plain text, copyText joins the events of a value again
+    factory.setProperty( XMLInputFactory.IS_COALESCING, false );
+    // The JDK parser reports CDATA sections as plain text unless asked not to
+    if ( factory.isPropertySupported( REPORT_CDATA_EVENT ) ) {
+      factory.setProperty( REPORT_CDATA_EVENT, true );
+    }
+    return factory;
+  }
+
+  private static void closeQuietly( XMLStreamReader reader, XMLStreamWriter writer ) {
+    try {
+      if ( writer != null ) {
+        writer.close();
+      }
+    } catch ( XMLStreamException e ) {
+      //close quietly
+    }
+    try {
+      if ( reader != null ) {
+        reader.close();
+      }
+    } catch ( XMLStreamException e ) {
+      //close quietly
+    }
+  }
+}
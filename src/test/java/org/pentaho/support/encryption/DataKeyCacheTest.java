@@ -0,0 +1,228 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The data key cache calls the key service once per key for the threads asking for it at the same time, doesn't cache
+ * failed calls and unwraps keys again once they expired.
+ */
+public class DataKeyCacheTest {
+  private static final int THREADS = 8;
+  private static final byte[] WRAPPED_KEY = { 1, 2, 3, 4 };
+  private static final byte[] OTHER_WRAPPED_KEY = { 5, 6, 7, 8 };
+
+  private CountingKeyService keyService;
+  private ExecutorService executor;
+
+  /**
+   * Counts the unwrap calls, which wait until they are released and then fail or return the wrapped key repeated to 16
+   * bytes.
+   */
+  private static final class CountingKeyService implements KeyService {
+    private final AtomicInteger unwrapCalls = new AtomicInteger();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private volatile CountDownLatch release = new CountDownLatch( 0 );
+
+    @Override
+    public DataKey generateDataKey() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] unwrapDataKey( byte[] wrappedKey ) throws PasswordEncoderException {
+      unwrapCalls.incrementAndGet();
+      try {
+        if ( !release.await( 10, TimeUnit.SECONDS ) ) {
+          throw new PasswordEncoderException( "The unwrap call was not released" );
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new PasswordEncoderException( "Interrupted", e );
+      }
+      if ( failing.get() ) {
+        throw new PasswordEncoderException( "The key service is not available" );
+      }
+      return dataKey( wrappedKey );
+    }
+  }
+
+  @Before
+  public void setUp() {
+    keyService = new CountingKeyService();
+    executor = Executors.newFixedThreadPool( THREADS );
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination( 10, TimeUnit.SECONDS );
+  }
+
+  @Test
+  public void testConcurrentUnwrapsOfOneKeyShareOneCall() throws Exception {
+    DataKeyCache cache = new DataKeyCache( keyService, 10, 0 );
+    keyService.release = new CountDownLatch( 1 );
+    List<Future<SecretKey>> results = getConcurrently( cache );
+    awaitBlocked();
+    keyService.release.countDown();
+    for ( Future<SecretKey> result : results ) {
+      assertArrayEquals( dataKey( WRAPPED_KEY ), result.get( 10, TimeUnit.SECONDS ).getEncoded() );
+    }
+    assertEquals( 1, keyService.unwrapCalls.get() );
+
+    cache.get( WRAPPED_KEY.clone() );
+    assertEquals( 1, keyService.unwrapCalls.get() );
+  }
+
+  @Test
+  public void testFailedUnwrapsAreNotCached() throws Exception {
+    DataKeyCache cache = new DataKeyCache( keyService, 10, 0 );
+    keyService.failing.set( true );
+    keyService.release = new CountDownLatch( 1 );
+    List<Future<SecretKey>> results = getConcurrently( cache );
+    awaitBlocked();
+    keyService.release.countDown();
+    for ( Future<SecretKey> result : results ) {
+      try {
+        result.get( 10, TimeUnit.SECONDS );
+        fail( "A failed unwrap call returned a key" );
+      } catch ( ExecutionException e ) {
+        assertTrue( e.getCause() instanceof PasswordEncoderException );
+      }
+    }
+    assertEquals( 1, keyService.unwrapCalls.get() );
+
+    keyService.failing.set( false );
+    assertArrayEquals( dataKey( WRAPPED_KEY ), cache.get( WRAPPED_KEY.clone() ).getEncoded() );
+    assertEquals( 2, keyService.unwrapCalls.get() );
+    assertEquals( 1, cache.size() );
+  }
+
+  @Test
+  public void testKeysAreUnwrappedAgainWhenExpired() throws Exception {
+    DataKeyCache cache = new DataKeyCache( keyService, 10, 50 );
+    cache.get( WRAPPED_KEY.clone() );
+    cache.get( WRAPPED_KEY.clone() );
+    assertEquals( 1, keyService.unwrapCalls.get() );
+
+    Thread.sleep( 100 );
+    cache.get( WRAPPED_KEY.clone() );
+    assertEquals( 2, keyService.unwrapCalls.get() );
+  }
+
+  @Test
+  public void testKeysAreKeptWithoutTimeToLive() throws Exception {
+    DataKeyCache cache = new DataKeyCache( keyService, 10, 0 );
+    cache.get( WRAPPED_KEY.clone() );
+    Thread.sleep( 100 );
+    cache.get( WRAPPED_KEY.clone() );
+    assertEquals( 1, keyService.unwrapCalls.get() );
+  }
+
+  @Test
+  public void testLeastRecentlyUsedKeyIsEvicted() throws Exception {
+    DataKeyCache cache = new DataKeyCache( keyService, 1, 0 );
+    cache.get( WRAPPED_KEY.clone() );
+    cache.get( OTHER_WRAPPED_KEY.clone() );
+    cache.get( WRAPPED_KEY.clone() );
+    assertEquals( 3, keyService.unwrapCalls.get() );
+    assertEquals( 1, cache.size() );
+  }
+
+  private List<Future<SecretKey>> getConcurrently( final DataKeyCache cache ) {
+    List<Future<SecretKey>> results = new ArrayList<>();
+    for ( int i = 0; i < THREADS; i++ ) {
+      results.add( executor.submit( new Callable<SecretKey>() {
+        @Override
+        public SecretKey call() throws PasswordEncoderException {
+          return cache.get( WRAPPED_KEY.clone() );
+        }
+      } ) );
+    }
+    return results;
+  }
+
+  /**
+   * Wait until one thread is in the key service and all the others wait for its call.
+   */
+  private void awaitBlocked() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 10 );
+    while ( keyService.unwrapCalls.get() == 0 || countWaitingThreads() < THREADS ) {
+      if ( System.nanoTime() > deadline ) {
+        fail( "The threads did not all wait for the key service" );
+      }
+      Thread.sleep( 1 );
+    }
+  }
+
+  private static int countWaitingThreads() {
+    int waiting = 0;
+    for ( Thread thread : Thread.getAllStackTraces().keySet() ) {
+      Thread.State state = thread.getState();
+      if ( ( state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING ) && isWaitingForKey( thread ) ) {
+        waiting++;
+      }
+    }
+    return waiting;
+  }
+
+  private static boolean isWaitingForKey( Thread thread ) {
+    for ( StackTraceElement frame : thread.getStackTrace() ) {
+      if ( DataKeyCache.class.getName().equals( frame.getClassName() ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static byte[] dataKey( byte[] wrappedKey ) {
+    byte[] key = new byte[ 16 ];
+    for ( int i = 0; i < key.length; i++ ) {
+      key[ i ] = wrappedKey[ i % wrappedKey.length ];
+    }
+    return key;
+  }
+}
@@ -0,0 +1,158 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * The encoders registered by the plugin xml file get the seed set by it, not the default one.
+ */
+public class EncoderPluginSeedTest {
+  private static final String SEED = "4711471147114711";
+  private static final String PASSWORD = "Sup3r s3cret";
+
+  private Path pluginFile;
+  private Encr encr;
+
+  @Before
+  public void setUp() throws IOException, PasswordEncoderException {
+    pluginFile = Files.createTempFile( "kettle-password-encoder-plugins", ".xml" );
+    // The AEAD and Envelope encoders are not in the plugin index, they get the seed of the Kettle encoder before them
+    Files.write( pluginFile, ( "<password-encoder-plugins>\n"
+      + "  <password-encoder-plugin id=\"Kettle\">\n"
+      + "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n"
+      + "    <seed>" + SEED + "</seed>\n"
+      + "  </password-encoder-plugin>\n"
+      + "  <password-encoder-plugin id=\"AEAD\">\n"
+      + "    <classname>org.pentaho.support.encryption.AeadTwoWayPasswordEncoder</classname>\n"
+      + "  </password-encoder-plugin>\n"
+      + "  <password-encoder-plugin id=\"Envelope\">\n"
+      + "    <classname>org.pentaho.support.encryption.EnvelopeTwoWayPasswordEncoder</classname>\n"
+      + "  </password-encoder-plugin>\n"
+      + "</password-encoder-plugins>\n" ).getBytes( StandardCharsets.UTF_8 ) );
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    encr = Encr.newInstance( settings );
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    encr.shutdown();
+    Files.deleteIfExists( pluginFile );
+  }
+
+  @Test
+  public void testAeadUsesXmlSeed() throws PasswordEncoderException {
+    String encrypted = encr.encryptPasswordIfNotUsingVariables( "aead", PASSWORD );
+
+    AeadTwoWayPasswordEncoder defaultSeed = new AeadTwoWayPasswordEncoder( (String) null );
+    defaultSeed.init();
+    try {
+      defaultSeed.decode( encrypted, true );
+      fail( "An AEAD value encrypted with the seed of the plugin file was decrypted with the default seed" );
+    } catch ( IllegalArgumentException e ) {
+      // Expected
+    }
+
+    AeadTwoWayPasswordEncoder xmlSeed = new AeadTwoWayPasswordEncoder( SEED );
+    xmlSeed.init();
+    assertEquals( PASSWORD, xmlSeed.decode( encrypted, true ) );
+  }
+
+  @Test
+  public void testAeadAlgorithmComesFromInstanceSettings() throws PasswordEncoderException {
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    settings.setProperty( AeadTwoWayPasswordEncoder.KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM,
+      AeadTwoWayPasswordEncoder.CHACHA20_POLY1305 );
+    Encr chacha = Encr.newInstance( settings );
+    try {
+      String encrypted = chacha.encryptPasswordIfNotUsingVariables( "aead", PASSWORD );
+      byte[] value = Base64.getUrlDecoder()
+        .decode( encrypted.substring( AeadTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX.length() ) );
+      // The first byte records the cipher, 2 for ChaCha20-Poly1305
+      assertEquals( 2, value[ 0 ] );
+      assertEquals( PASSWORD, encr.decryptPasswordOptionallyEncrypted( "aead", encrypted ) );
+    } finally {
+      chacha.shutdown();
+    }
+    assertNull( System.getProperty( AeadTwoWayPasswordEncoder.KETTLE_AEAD_PASSWORD_ENCODER_ALGORITHM ) );
+  }
+
+  @Test( expected = RuntimeException.class )
+  public void testAeadIsNotIndexed() throws PasswordEncoderException {
+    encryptWithIndexOnly( "aead" );
+  }
+
+  @Test( expected = RuntimeException.class )
+  public void testEnvelopeIsNotIndexed() throws PasswordEncoderException {
+    encryptWithIndexOnly( "envelope" );
+  }
+
+  @Test
+  public void testEnvelopeUsesXmlSeed() throws PasswordEncoderException {
+    String encrypted = encr.encryptPasswordIfNotUsingVariables( "envelope", PASSWORD );
+
+    EnvelopeTwoWayPasswordEncoder otherSeed = new EnvelopeTwoWayPasswordEncoder( "1234" );
+    otherSeed.init();
+    try {
+      otherSeed.decode( encrypted, true );
+      fail( "An Envelope value encrypted with the seed of the plugin file was decrypted with another seed" );
+    } catch ( IllegalStateException e ) {
+      // Expected, the data key can't be unwrapped
+    }
+
+    EnvelopeTwoWayPasswordEncoder xmlSeed = new EnvelopeTwoWayPasswordEncoder( SEED );
+    xmlSeed.init();
+    assertEquals( PASSWORD, xmlSeed.decode( encrypted, true ) );
+  }
+
+  @Test
+  public void testSeedSystemPropertyIsLeftAlone() {
+    encr.encryptPasswordIfNotUsingVariables( "aead", PASSWORD );
+    encr.encryptPasswordIfNotUsingVariables( "envelope", PASSWORD );
+    assertNull( System.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED ) );
+  }
+
+  private static void encryptWithIndexOnly( String encoderId ) throws PasswordEncoderException {
+    Encr indexOnly = Encr.newInstance( new Properties() );
+    try {
+      indexOnly.encryptPasswordIfNotUsingVariables( encoderId, PASSWORD );
+    } finally {
+      indexOnly.shutdown();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Prefixes claimed by several encoders are reported by {@link Encr#getPrefixClashes()}, loading the encoders doesn't
+ * print them.
+ */
+public class EncoderPrefixClashTest {
+  private Path pluginFile;
+
+  @Before
+  public void setUp() throws IOException {
+    pluginFile = Files.createTempFile( "kettle-password-encoder-plugins", ".xml" );
+    Files.write( pluginFile, ( "<password-encoder-plugins>\n"
+      + "  <password-encoder-plugin id=\"Kettle\">\n"
+      + "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n"
+      + "  </password-encoder-plugin>\n"
+      + "  <password-encoder-plugin id=\"Other\">\n"
+      + "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n"
+      + "    <seed>4711471147114711</seed>\n"
+      + "  </password-encoder-plugin>\n"
+      + "</password-encoder-plugins>\n" ).getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists( pluginFile );
+  }
+
+  @Test
+  public void testClashesAreReportedNotPrinted() throws PasswordEncoderException {
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    PrintStream err = System.err;
+    Encr encr;
+    System.setErr( new PrintStream( printed, true ) );
+    try {
+      encr = Encr.newInstance( settings );
+    } finally {
+      System.setErr( err );
+    }
+    try {
+      assertEquals( "", new String( printed.toByteArray(), StandardCharsets.UTF_8 ) );
+      Map<String, List<String>> clashes = encr.getPrefixClashes();
+      assertEquals( 1, clashes.size() );
+      assertEquals( Arrays.asList( "kettle", "other" ),
+        clashes.get( KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX ) );
+    } finally {
+      encr.shutdown();
+    }
+  }
+}
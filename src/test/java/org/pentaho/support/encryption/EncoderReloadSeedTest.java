@@ -0,0 +1,129 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reloading the encoders keeps their keys: a plugin listed before the first plugin with a seed keeps the seed it had,
+ * it doesn't get the seed the previous load left in the seed system property.
+ */
+public class EncoderReloadSeedTest {
+  private static final String SEED = "4711471147114711";
+  private static final String PASSWORD = "secret";
+  // "secret" encrypted with the default seed of the Kettle encoder
+  private static final String DEFAULT_SEED_VALUE = "Encrypted 2be98afc86aa7f2e4cb79bd75dd80aace";
+
+  private static final String[] PROPERTIES = { Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED,
+    Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, Encr.KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX };
+
+  private final Properties savedProperties = new Properties();
+  private Encr savedInstance;
+  private Path pluginFile;
+  private Encr encr;
+
+  @Before
+  public void setUp() throws IOException {
+    for ( String name : PROPERTIES ) {
+      String value = System.getProperty( name );
+      if ( value != null ) {
+        savedProperties.setProperty( name, value );
+      }
+    }
+    savedInstance = Encr.instance;
+
+    pluginFile = Files.createTempFile( "kettle-password-encoder-plugins", ".xml" );
+    // "a" has no seed of its own and comes before "b", which has one
+    Files.write( pluginFile, ( "<password-encoder-plugins>\n"
+      + "  <password-encoder-plugin id=\"A\">\n"
+      + "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n"
+      + "    <default-encoder>Y</default-encoder>\n"
+      + "  </password-encoder-plugin>\n"
+      + "  <password-encoder-plugin id=\"B\">\n"
+      + "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n"
+      + "    <seed>" + SEED + "</seed>\n"
+      + "  </password-encoder-plugin>\n"
+      + "</password-encoder-plugins>\n" ).getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if ( encr != null ) {
+      encr.shutdown();
+    }
+    Encr.instance = savedInstance;
+    for ( String name : PROPERTIES ) {
+      if ( savedProperties.containsKey( name ) ) {
+        System.setProperty( name, savedProperties.getProperty( name ) );
+      } else {
+        System.clearProperty( name );
+      }
+    }
+    Files.deleteIfExists( pluginFile );
+  }
+
+  @Test
+  public void testReloadKeepsSeedsOfJvmWideInstance() throws Exception {
+    System.clearProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED );
+    System.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    System.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX, "N" );
+    Encr.instance = null;
+    encr = Encr.getInstance();
+
+    assertReloadKeepsSeeds();
+  }
+
+  @Test
+  public void testReloadKeepsSeedsOfInstance() throws Exception {
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX, "N" );
+    encr = Encr.newInstance( settings );
+
+    assertReloadKeepsSeeds();
+  }
+
+  private void assertReloadKeepsSeeds() throws PasswordEncoderException {
+    String encryptedB = encr.encryptPasswordIfNotUsingVariables( "b", PASSWORD );
+    KettleTwoWayPasswordEncoder seeded = new KettleTwoWayPasswordEncoder( SEED );
+    assertEquals( seeded.encode( PASSWORD, true ), encryptedB );
+
+    for ( int i = 0; i < 2; i++ ) {
+      assertEquals( PASSWORD, encr.decryptPasswordOptionallyEncrypted( "a", DEFAULT_SEED_VALUE ) );
+      assertEquals( DEFAULT_SEED_VALUE, encr.encryptPasswordIfNotUsingVariables( "a", PASSWORD ) );
+      assertEquals( PASSWORD, encr.decryptPasswordOptionallyEncrypted( "b", encryptedB ) );
+      assertEquals( encryptedB, encr.encryptPasswordIfNotUsingVariables( "b", PASSWORD ) );
+      encr.reloadPasswordEncoders();
+    }
+  }
+}
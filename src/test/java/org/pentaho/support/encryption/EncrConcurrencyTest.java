@@ -0,0 +1,172 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Threads decrypting while the encoders are reloaded always see a complete registry, and the JVM wide instance is
+ * created once however many threads ask for it at the same time.
+ */
+public class EncrConcurrencyTest {
+  private static final int READERS = 4;
+  private static final int RELOADS = 50;
+  private static final String PASSWORD = "Sup3r s3cret";
+
+  private Path pluginFile;
+  private Encr encr;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws IOException, PasswordEncoderException {
+    pluginFile = Files.createTempFile( "kettle-password-encoder-plugins", ".xml" );
+    writePluginFile( false );
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX, "N" );
+    encr = Encr.newInstance( settings );
+    executor = Executors.newFixedThreadPool( READERS + 1 );
+  }
+
+  @After
+  public void tearDown() throws IOException, InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination( 10, TimeUnit.SECONDS );
+    encr.shutdown();
+    Files.deleteIfExists( pluginFile );
+  }
+
+  @Test
+  public void testDecryptWhileReloading() throws Exception {
+    runWhileReloading();
+  }
+
+  @Test
+  public void testDecryptWithCacheWhileReloading() throws Exception {
+    encr.enableDecryptCache( 100, 0 );
+    runWhileReloading();
+  }
+
+  @Test
+  public void testGetInstanceFromManyThreads() throws Exception {
+    final CountDownLatch start = new CountDownLatch( 1 );
+    List<Future<Encr>> instances = new ArrayList<>();
+    for ( int i = 0; i < READERS + 1; i++ ) {
+      instances.add( executor.submit( () -> {
+        start.await();
+        return Encr.getInstance();
+      } ) );
+    }
+    start.countDown();
+    Encr first = instances.get( 0 ).get( 30, TimeUnit.SECONDS );
+    for ( Future<Encr> instance : instances ) {
+      assertSame( first, instance.get( 30, TimeUnit.SECONDS ) );
+    }
+  }
+
+  private void runWhileReloading() throws Exception {
+    final String[] encrypted = new String[ 16 ];
+    for ( int i = 0; i < encrypted.length; i++ ) {
+      encrypted[ i ] = encr.encryptPasswordIfNotUsingVariables( PASSWORD + i );
+    }
+    final AtomicBoolean reloading = new AtomicBoolean( true );
+    final AtomicLong reads = new AtomicLong();
+    List<Future<Void>> readers = new ArrayList<>();
+    for ( int r = 0; r < READERS; r++ ) {
+      readers.add( executor.submit( (Callable<Void>) () -> {
+        int i = 0;
+        do {
+          int n = i++ % encrypted.length;
+          // Every registry, whichever plugin file it was loaded from, has the Kettle encoder as its default owning
+          // the "Encrypted " prefix
+          assertEquals( PASSWORD + n, encr.decryptPasswordOptionallyEncrypted( encrypted[ n ] ) );
+          assertEquals( PASSWORD + n, encr.decryptPasswordOptionallyEncrypted( "kettle", encrypted[ n ] ) );
+          assertEquals( PASSWORD + n, encr.decryptPasswordByPrefix( encrypted[ n ] ) );
+          assertEquals( "kettle", encr.findEncoderIdByPrefix( encrypted[ n ] ) );
+          assertEquals( KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX, encr.getPrefixes( "kettle" )[ 0 ] );
+          reads.incrementAndGet();
+        } while ( reloading.get() );
+        return null;
+      } ) );
+    }
+    Future<Void> reloader = executor.submit( (Callable<Void>) () -> {
+      try {
+        for ( int i = 0; i < RELOADS; i++ ) {
+          // Alternate between two configurations, so readers would notice a mix of both
+          writePluginFile( i % 2 == 0 );
+          encr.reloadPasswordEncoders();
+        }
+      } finally {
+        reloading.set( false );
+      }
+      return null;
+    } );
+
+    // Rethrows the first failure of a thread, a NullPointerException from a partially built registry among them
+    reloader.get( 120, TimeUnit.SECONDS );
+    for ( Future<Void> reader : readers ) {
+      reader.get( 120, TimeUnit.SECONDS );
+    }
+    assertTrue( "The readers didn't run", reads.get() >= READERS );
+  }
+
+  /**
+   * @param withLegacy true to also register the Kettle encoder under a second id with its own prefix claim
+   */
+  private void writePluginFile( boolean withLegacy ) throws IOException {
+    StringBuilder xml = new StringBuilder( "<password-encoder-plugins>\n" );
+    xml.append( "  <password-encoder-plugin id=\"Kettle\">\n" )
+      .append( "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n" )
+      .append( "    <default-encoder>Y</default-encoder>\n" )
+      .append( "  </password-encoder-plugin>\n" );
+    if ( withLegacy ) {
+      xml.append( "  <password-encoder-plugin id=\"Legacy\">\n" )
+        .append( "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n" )
+        .append( "  </password-encoder-plugin>\n" );
+    }
+    xml.append( "</password-encoder-plugins>\n" );
+    Files.write( pluginFile, xml.toString().getBytes( StandardCharsets.UTF_8 ) );
+  }
+}
@@ -0,0 +1,135 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Instances created with settings of their own hand them to the encoders taking {@link Properties}, and refuse
+ * encoders which could only read the seed from the system properties.
+ */
+public class EncrInstanceSettingsTest {
+  private static final String PASSWORD = "Sup3r s3cret";
+  private static final String PREFIX_SETTING = "TEST_PASSWORD_ENCODER_PREFIX";
+
+  private final List<Path> pluginFiles = new ArrayList<>();
+  private final List<Encr> instances = new ArrayList<>();
+
+  /**
+   * Takes its seed and its prefix from the settings
+   */
+  public static class SettingsEncoder extends KettleTwoWayPasswordEncoder {
+    private final String prefix;
+
+    public SettingsEncoder( Properties settings ) {
+      super( settings.getProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED ) );
+      prefix = settings.getProperty( PREFIX_SETTING, PASSWORD_ENCRYPTED_PREFIX );
+    }
+
+    @Override
+    public String[] getPrefixes() {
+      return new String[] { prefix };
+    }
+  }
+
+  /**
+   * Can only read the seed system property
+   */
+  public static class SystemPropertyEncoder extends KettleTwoWayPasswordEncoder {
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for ( Encr encr : instances ) {
+      encr.shutdown();
+    }
+    for ( Path pluginFile : pluginFiles ) {
+      Files.deleteIfExists( pluginFile );
+    }
+  }
+
+  @Test
+  public void testEncodersGetTheSettingsOfTheirInstance() throws Exception {
+    Encr first = newInstance( SettingsEncoder.class, "1111", "First " );
+    Encr second = newInstance( SettingsEncoder.class, "2222", "Second " );
+
+    assertEquals( "First ", first.getPrefixes( "test" )[ 0 ] );
+    assertEquals( "Second ", second.getPrefixes( "test" )[ 0 ] );
+    String encrypted = first.encryptPassword( "test", PASSWORD );
+    assertEquals( new KettleTwoWayPasswordEncoder( "1111" ).encode( PASSWORD, false ), encrypted );
+    assertNotEquals( encrypted, second.encryptPassword( "test", PASSWORD ) );
+    assertEquals( PASSWORD, first.decryptPassword( "test", encrypted ) );
+  }
+
+  @Test
+  public void testEncoderWithoutSeedIsAccepted() throws Exception {
+    Encr encr = newInstance( SystemPropertyEncoder.class, null, null );
+    assertEquals( PASSWORD, encr.decryptPassword( "test", encr.encryptPassword( "test", PASSWORD ) ) );
+  }
+
+  @Test
+  public void testEncoderReadingTheSeedPropertyIsRefused() throws Exception {
+    try {
+      newInstance( SystemPropertyEncoder.class, "1111", null );
+      fail( "An instance with a seed of its own was created with an encoder reading the seed system property" );
+    } catch ( PasswordEncoderException e ) {
+      // Expected
+    }
+  }
+
+  private Encr newInstance( Class<?> encoderClass, String seed, String prefix )
+    throws IOException, PasswordEncoderException {
+    Path pluginFile = Files.createTempFile( "kettle-password-encoder-plugins", ".xml" );
+    pluginFiles.add( pluginFile );
+    Files.write( pluginFile, ( "<password-encoder-plugins>\n"
+      + "  <password-encoder-plugin id=\"Test\">\n"
+      + "    <classname>" + encoderClass.getName() + "</classname>\n"
+      + "  </password-encoder-plugin>\n"
+      + "</password-encoder-plugins>\n" ).getBytes( StandardCharsets.UTF_8 ) );
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGIN_INDEX, "N" );
+    if ( seed != null ) {
+      settings.setProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, seed );
+    }
+    if ( prefix != null ) {
+      settings.setProperty( PREFIX_SETTING, prefix );
+    }
+    Encr encr = Encr.newInstance( settings );
+    instances.add( encr );
+    return encr;
+  }
+}
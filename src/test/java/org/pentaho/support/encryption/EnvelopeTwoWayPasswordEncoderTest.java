@@ -0,0 +1,190 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Passwords survive a round trip through the envelope encoder, modified values are rejected, and the encoder refuses to
+ * start without a key service or a seed.
+ */
+public class EnvelopeTwoWayPasswordEncoderTest {
+  private static final String SEED = "4711471147114711";
+  private static final String PASSWORD = "Sup3r s3cret";
+
+  /**
+   * A local key service counting the data keys it generates, created by name from the settings
+   */
+  public static final class CountingKeyService implements KeyService {
+    static final AtomicInteger GENERATED = new AtomicInteger();
+
+    private final KeyService keyService;
+
+    public CountingKeyService() throws PasswordEncoderException {
+      keyService = new LocalKeyService( SEED );
+    }
+
+    @Override
+    public DataKey generateDataKey() throws PasswordEncoderException {
+      GENERATED.incrementAndGet();
+      return keyService.generateDataKey();
+    }
+
+    @Override
+    public byte[] unwrapDataKey( byte[] wrappedKey ) throws PasswordEncoderException {
+      return keyService.unwrapDataKey( wrappedKey );
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws PasswordEncoderException {
+    EnvelopeTwoWayPasswordEncoder encoder = newEncoder( SEED );
+    for ( String password : new String[] { PASSWORD, "p", "éè€ 🔑", "a\nb\tc" } ) {
+      String encrypted = encoder.encode( password );
+      assertTrue( encrypted.startsWith( EnvelopeTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX ) );
+      assertEquals( password, encoder.decode( encrypted ) );
+      assertEquals( password, encoder.decode( encrypted, true ) );
+      assertEquals( password, encoder.decode( encoder.encode( password, false ), false ) );
+    }
+    assertEquals( "", encoder.decode( encoder.encode( "" ) ) );
+    assertEquals( "${PASSWORD}", encoder.encode( "${PASSWORD}" ) );
+    assertEquals( PASSWORD, encoder.decode( PASSWORD, true ) );
+  }
+
+  @Test
+  public void testEncryptionsDiffer() throws PasswordEncoderException {
+    EnvelopeTwoWayPasswordEncoder encoder = newEncoder( SEED );
+    assertNotEquals( encoder.encode( PASSWORD ), encoder.encode( PASSWORD ) );
+  }
+
+  @Test
+  public void testOtherEncoderWithSameSeedDecrypts() throws PasswordEncoderException {
+    String encrypted = newEncoder( SEED ).encode( PASSWORD );
+    assertEquals( PASSWORD, newEncoder( SEED ).decode( encrypted ) );
+  }
+
+  @Test
+  public void testModifiedCipherTextIsRejected() throws PasswordEncoderException {
+    EnvelopeTwoWayPasswordEncoder encoder = newEncoder( SEED );
+    byte[] value = decodeValue( encoder.encode( PASSWORD ) );
+    value[ value.length - 1 ] ^= 1;
+    try {
+      encoder.decode( encodeValue( value ) );
+      fail( "A modified password was decrypted" );
+    } catch ( IllegalArgumentException e ) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testModifiedWrappedKeyIsRejected() throws PasswordEncoderException {
+    EnvelopeTwoWayPasswordEncoder encoder = newEncoder( SEED );
+    byte[] value = decodeValue( encoder.encode( PASSWORD ) );
+    // The last byte of the wrapped key, before the nonce and the cipher text
+    value[ value.length - 12 - PASSWORD.length() - 16 - 1 ] ^= 1;
+    try {
+      encoder.decode( encodeValue( value ) );
+      fail( "A password with a modified data key was decrypted" );
+    } catch ( IllegalStateException e ) {
+      // Expected, the key service can't unwrap the key
+    }
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testTruncatedValueIsRejected() throws PasswordEncoderException {
+    EnvelopeTwoWayPasswordEncoder encoder = newEncoder( SEED );
+    byte[] value = decodeValue( encoder.encode( PASSWORD ) );
+    encoder.decode( encodeValue( Arrays.copyOf( value, 20 ) ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testOtherVersionIsRejected() throws PasswordEncoderException {
+    EnvelopeTwoWayPasswordEncoder encoder = newEncoder( SEED );
+    byte[] value = decodeValue( encoder.encode( PASSWORD ) );
+    value[ 0 ] = 2;
+    encoder.decode( encodeValue( value ) );
+  }
+
+  @Test( expected = PasswordEncoderException.class )
+  public void testInitFailsWithoutSeedOrKeyService() throws PasswordEncoderException {
+    new EnvelopeTwoWayPasswordEncoder( new Properties() ).init();
+  }
+
+  @Test( expected = PasswordEncoderException.class )
+  public void testInitFailsWithoutSeedArgument() throws PasswordEncoderException {
+    new EnvelopeTwoWayPasswordEncoder( (String) null ).init();
+  }
+
+  @Test
+  public void testKeyServiceComesFromSettings() throws PasswordEncoderException {
+    Properties settings = new Properties();
+    settings.setProperty( EnvelopeTwoWayPasswordEncoder.KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_SERVICE,
+      CountingKeyService.class.getName() );
+    EnvelopeTwoWayPasswordEncoder encoder = new EnvelopeTwoWayPasswordEncoder( settings );
+    encoder.init();
+    assertTrue( encoder.getKeyService() instanceof CountingKeyService );
+    int generated = CountingKeyService.GENERATED.get();
+    String encrypted = encoder.encode( PASSWORD );
+    encoder.encode( PASSWORD );
+    assertEquals( generated + 1, CountingKeyService.GENERATED.get() );
+    // The counting service wraps with a local key service of the same seed
+    assertEquals( PASSWORD, newEncoder( SEED ).decode( encrypted ) );
+  }
+
+  @Test( expected = PasswordEncoderException.class )
+  public void testInvalidCacheSizeIsRejected() throws PasswordEncoderException {
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, SEED );
+    settings.setProperty( EnvelopeTwoWayPasswordEncoder.KETTLE_ENVELOPE_PASSWORD_ENCODER_KEY_CACHE_SIZE, "-1" );
+    new EnvelopeTwoWayPasswordEncoder( settings ).init();
+  }
+
+  private static EnvelopeTwoWayPasswordEncoder newEncoder( String seed ) throws PasswordEncoderException {
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_TWO_WAY_PASSWORD_ENCODER_SEED, seed );
+    EnvelopeTwoWayPasswordEncoder encoder = new EnvelopeTwoWayPasswordEncoder( settings );
+    encoder.init();
+    return encoder;
+  }
+
+  private static byte[] decodeValue( String encrypted ) {
+    return Base64.getUrlDecoder()
+      .decode( encrypted.substring( EnvelopeTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX.length() ) );
+  }
+
+  private static String encodeValue( byte[] value ) {
+    return EnvelopeTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+      + Base64.getUrlEncoder().withoutPadding().encodeToString( value );
+  }
+}
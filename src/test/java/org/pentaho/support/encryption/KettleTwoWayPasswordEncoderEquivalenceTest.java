@@ -0,0 +1,251 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link KettleXorCodec} and {@link KettleTwoWayPasswordEncoder} give exactly the same results as the original
+ * {@link BigInteger} based implementation, which is kept here as the reference.
+ */
+@RunWith( Parameterized.class )
+public class KettleTwoWayPasswordEncoderEquivalenceTest {
+  private static final String DEFAULT_SEED = "0933910847463829827159347601486730416058";
+
+  private static final String[] SEEDS = {
+    DEFAULT_SEED,
+    "1",
+    // Longer than most of the passwords
+    "98765432109876543210987654321098765432109876543210987654321098765432109876543210",
+    "0",
+    // Negative, their two's complement is sign extended with 0xff bytes
+    "-1",
+    "-128",
+    "-129",
+    "-933910847463829827159347601486730416058",
+    // The first byte of their BigInteger form is a 0x00 sign byte: 0x80, 0xff, 0xffff and 2^127
+    "128",
+    "255",
+    "65535",
+    "170141183460469231731687303715884105728",
+  };
+
+  private static final String[] VALUES = {
+    null,
+    "",
+    "a",
+    "ab",
+    "abc",
+    "password",
+    "Sup3r s3cret!",
+    "pässwörd",
+    "日本語のパスワード",
+    // Surrogate pairs
+    "🔑key🔒",
+    "😀",
+    // A lone surrogate
+    "x\ud800y",
+    "ÿþý",
+    "${PASSWORD}",
+    "Encrypted ",
+    "Encrypted 2be98afc86aa7f2e4cb79ce10df90acde",
+    "Encrypted zz",
+    "2be98afc86aa7f2e4cb79ce10df90acde",
+    "-1f",
+    "+7a",
+    "-",
+    "0",
+    "00ff",
+    "FFFF",
+    "١٢",
+    "a very long password which is longer than the seed and then some more, to be sure it really is longer",
+  };
+
+  private final String seed;
+  private final String value;
+
+  public KettleTwoWayPasswordEncoderEquivalenceTest( String seed, String value ) {
+    this.seed = seed;
+    this.value = value;
+  }
+
+  @Parameterized.Parameters( name = "seed {0}, value {1}" )
+  public static Collection<Object[]> parameters() {
+    List<Object[]> parameters = new ArrayList<>();
+    for ( String seed : SEEDS ) {
+      for ( String value : VALUES ) {
+        parameters.add( new Object[] { seed, value } );
+      }
+    }
+    return parameters;
+  }
+
+  @Test
+  public void testEncodeWithoutPrefix() {
+    assertEquals( referenceEncrypt( value ), encoder().encode( value, false ) );
+  }
+
+  @Test
+  public void testEncodeWithPrefix() {
+    assertEquals( referenceEncryptIfNotUsingVariables( value ), encoder().encode( value, true ) );
+    assertEquals( referenceEncryptIfNotUsingVariables( value ), encoder().encode( value ) );
+  }
+
+  @Test
+  public void testDecodeEncoded() {
+    String encoded = referenceEncrypt( value );
+    assertEquals( referenceDecrypt( encoded ), encoder().decode( encoded ) );
+    assertEquals( referenceDecrypt( encoded ), encoder().decode( encoded, false ) );
+    String prefixed = KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + encoded;
+    assertEquals( referenceDecrypt( encoded ), encoder().decode( prefixed ) );
+    assertEquals( referenceDecode( prefixed, true ), encoder().decode( prefixed, true ) );
+  }
+
+  /**
+   * The value itself as an encoded password, valid or not, with and without the prefix.
+   */
+  @Test
+  public void testDecodeValue() {
+    assertEquals( referenceDecode( value, false ), encoder().decode( value, false ) );
+    assertEquals( referenceDecode( value, true ), encoder().decode( value, true ) );
+    String withoutPrefix = value != null && value.startsWith( KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX )
+      ? value.substring( KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX.length() ) : value;
+    assertEquals( referenceDecrypt( withoutPrefix ), encoder().decode( value ) );
+  }
+
+  @Test
+  public void testCharMethods() {
+    if ( value == null ) {
+      return;
+    }
+    assertEquals( referenceEncryptIfNotUsingVariables( value ), encoder().encodeChars( value.toCharArray(), true ) );
+    String encoded = referenceEncryptIfNotUsingVariables( value );
+    String decoded = referenceDecode( encoded, true );
+    assertArrayEquals( decoded.toCharArray(), encoder().decodeToChars( encoded, true ) );
+  }
+
+  /**
+   * The codec bytes, before they are turned into a String.
+   */
+  @Test
+  public void testCodecBytes() {
+    if ( value == null || value.isEmpty() ) {
+      return;
+    }
+    KettleXorCodec codec = new KettleXorCodec( seed );
+    byte[] plain = value.getBytes();
+    String encoded = codec.encode( plain );
+    assertEquals( new BigInteger( seed ).xor( new BigInteger( plain ) ).toString( 16 ), encoded );
+
+    byte[] work = new byte[ codec.decodeWorkLength( encoded.length() ) ];
+    int length = codec.decode( encoded, 0, encoded.length(), work );
+    assertArrayEquals( new BigInteger( encoded, 16 ).xor( new BigInteger( seed ) ).toByteArray(),
+      Arrays.copyOf( work, length ) );
+
+    // The value itself, when it is a number BigInteger reads
+    work = new byte[ codec.decodeWorkLength( value.length() ) ];
+    length = codec.decode( value, 0, value.length(), work );
+    byte[] expected;
+    try {
+      expected = new BigInteger( value, 16 ).xor( new BigInteger( seed ) ).toByteArray();
+    } catch ( NumberFormatException e ) {
+      expected = null;
+    }
+    if ( expected == null ) {
+      assertEquals( -1, length );
+    } else {
+      assertArrayEquals( expected, Arrays.copyOf( work, length ) );
+    }
+  }
+
+  private KettleTwoWayPasswordEncoder encoder() {
+    return new KettleTwoWayPasswordEncoder( seed );
+  }
+
+  // The original implementation
+
+  private String referenceEncrypt( String password ) {
+    if ( password == null ) {
+      return "";
+    }
+    if ( password.length() == 0 ) {
+      return "";
+    }
+    BigInteger biPasswd = new BigInteger( password.getBytes() );
+    BigInteger biR0 = new BigInteger( seed );
+    BigInteger biR1 = biR0.xor( biPasswd );
+    return biR1.toString( 16 );
+  }
+
+  private String referenceDecrypt( String encrypted ) {
+    if ( encrypted == null ) {
+      return "";
+    }
+    if ( encrypted.length() == 0 ) {
+      return "";
+    }
+    BigInteger biConfuse = new BigInteger( seed );
+    try {
+      BigInteger biR1 = new BigInteger( encrypted, 16 );
+      BigInteger biR0 = biR1.xor( biConfuse );
+      return new String( biR0.toByteArray() );
+    } catch ( Exception e ) {
+      return "";
+    }
+  }
+
+  /**
+   * The values only use ${} variables, the variable check itself is not part of the codec.
+   */
+  private String referenceEncryptIfNotUsingVariables( String password ) {
+    if ( password != null && password.contains( "${" ) ) {
+      return password;
+    }
+    return KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + referenceEncrypt( password );
+  }
+
+  private String referenceDecode( String encodedPassword, boolean optionallyEncrypted ) {
+    if ( encodedPassword == null ) {
+      return null;
+    }
+    if ( optionallyEncrypted ) {
+      if ( encodedPassword.startsWith( KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX ) ) {
+        return referenceDecrypt(
+          encodedPassword.substring( KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX.length() ) );
+      }
+      return encodedPassword;
+    }
+    return referenceDecrypt( encodedPassword );
+  }
+}
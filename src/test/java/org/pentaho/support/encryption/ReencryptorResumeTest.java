@@ -0,0 +1,218 @@
+package org.pentaho.support.encryption;
+
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2021 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A re-encryption interrupted by a failing sink continues from its checkpoint file: the values written before the
+ * checkpoint are not written again, and the result is the same as for a run which was not interrupted.
+ */
+public class ReencryptorResumeTest {
+  private static final String SEED = "4711471147114711";
+  private static final int VALUES = 100;
+  private static final int FAIL_AT = 45;
+
+  private Path directory;
+  private Path checkpointFile;
+  private Encr encr;
+
+  /**
+   * Counts the values written and fails when the given one is reached, like a process killed while writing.
+   */
+  private static final class InterruptingSink implements ReencryptionSink {
+    private final ReencryptionSink sink;
+    private final int failAt;
+    private int written;
+
+    InterruptingSink( ReencryptionSink sink, int failAt ) {
+      this.sink = sink;
+      this.failAt = failAt;
+    }
+
+    @Override
+    public void open( String checkpoint ) throws IOException {
+      sink.open( checkpoint );
+    }
+
+    @Override
+    public void write( String key, String value ) throws IOException {
+      if ( ++written == failAt ) {
+        throw new IOException( "Interrupted at value " + failAt );
+      }
+      sink.write( key, value );
+    }
+
+    @Override
+    public String checkpoint() throws IOException {
+      return sink.checkpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+      sink.close();
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException, PasswordEncoderException {
+    directory = Files.createTempDirectory( "reencryption" );
+    checkpointFile = directory.resolve( "checkpoint.properties" );
+    Path pluginFile = directory.resolve( "kettle-password-encoder-plugins.xml" );
+    Files.write( pluginFile, ( "<password-encoder-plugins>\n"
+      + "  <password-encoder-plugin id=\"Kettle\">\n"
+      + "    <classname>org.pentaho.support.encryption.KettleTwoWayPasswordEncoder</classname>\n"
+      + "  </password-encoder-plugin>\n"
+      + "  <password-encoder-plugin id=\"AEAD\">\n"
+      + "    <classname>org.pentaho.support.encryption.AeadTwoWayPasswordEncoder</classname>\n"
+      + "    <seed>" + SEED + "</seed>\n"
+      + "  </password-encoder-plugin>\n"
+      + "</password-encoder-plugins>\n" ).getBytes( StandardCharsets.UTF_8 ) );
+    Properties settings = new Properties();
+    settings.setProperty( Encr.KETTLE_PASSWORD_ENCODER_PLUGINS_FILE, pluginFile.toString() );
+    encr = Encr.newInstance( settings );
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    encr.shutdown();
+    try ( Stream<Path> files = Files.list( directory ) ) {
+      for ( Path file : (Iterable<Path>) files::iterator ) {
+        Files.delete( file );
+      }
+    }
+    Files.delete( directory );
+  }
+
+  @Test
+  public void testListResumesFromCheckpoint() throws IOException {
+    List<String> passwords = new ArrayList<>();
+    List<String> values = new ArrayList<>();
+    for ( int i = 0; i < VALUES; i++ ) {
+      passwords.add( "password " + i );
+      // Every third value is not encrypted and is written as it is
+      values.add( i % 3 == 0 ? passwords.get( i )
+        : encr.encryptPasswordIfNotUsingVariables( "kettle", passwords.get( i ) ) );
+    }
+    List<String> results = new ArrayList<>();
+
+    try {
+      newReencryptor().run( ReencryptionStores.listSource( values ),
+        new InterruptingSink( ReencryptionStores.listSink( results ), FAIL_AT ) );
+      fail( "The interrupted run completed" );
+    } catch ( IOException e ) {
+      // Expected
+    }
+    assertTrue( Files.exists( checkpointFile ) );
+
+    InterruptingSink resumed = new InterruptingSink( ReencryptionStores.listSink( results ), -1 );
+    ReencryptionProgress progress = newReencryptor().run( ReencryptionStores.listSource( values ), resumed );
+    assertTrue( progress.getResumedAt() > 0 && progress.getResumedAt() < FAIL_AT );
+    assertEquals( VALUES - progress.getResumedAt(), resumed.written );
+    assertEquals( VALUES, progress.getPosition() );
+    assertEquals( 0, progress.getFailed() );
+    assertFalse( Files.exists( checkpointFile ) );
+
+    assertEquals( VALUES, results.size() );
+    for ( int i = 0; i < VALUES; i++ ) {
+      if ( i % 3 == 0 ) {
+        assertEquals( passwords.get( i ), results.get( i ) );
+      } else {
+        assertTrue( results.get( i ).startsWith( AeadTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX ) );
+        assertEquals( passwords.get( i ), encr.decryptPasswordOptionallyEncrypted( "aead", results.get( i ) ) );
+      }
+    }
+  }
+
+  @Test
+  public void testPropertiesFileResumesFromCheckpoint() throws IOException {
+    Path in = directory.resolve( "in.properties" );
+    Path out = directory.resolve( "out.properties" );
+    Properties expected = new Properties();
+    StringBuilder file = new StringBuilder( "# Passwords\n\n" );
+    for ( int i = 0; i < VALUES; i++ ) {
+      // Keys and passwords which have to be escaped
+      String key = "db " + i + ".password=é";
+      String password = "pass: " + i + " #!=";
+      expected.setProperty( key, password );
+      String value = encr.encryptPasswordIfNotUsingVariables( "kettle", password );
+      file.append( "db\\ " ).append( i ).append( ".password\\=\\u00e9 = \\\n    " ).append( value ).append( '\n' );
+    }
+    Files.write( in, file.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+
+    try ( ReencryptionSource source = ReencryptionStores.propertiesSource( in );
+          ReencryptionSink sink = new InterruptingSink( ReencryptionStores.propertiesSink( out ), FAIL_AT ) ) {
+      newReencryptor().run( source, sink );
+      fail( "The interrupted run completed" );
+    } catch ( IOException e ) {
+      // Expected
+    }
+    assertTrue( Files.exists( checkpointFile ) );
+
+    ReencryptionProgress progress;
+    try ( ReencryptionSource source = ReencryptionStores.propertiesSource( in );
+          ReencryptionSink sink = ReencryptionStores.propertiesSink( out ) ) {
+      progress = newReencryptor().run( source, sink );
+    }
+    assertTrue( progress.getResumedAt() > 0 );
+    assertEquals( VALUES, progress.getReencrypted() );
+    assertFalse( Files.exists( checkpointFile ) );
+
+    Properties written = new Properties();
+    try ( InputStream stream = Files.newInputStream( out ) ) {
+      written.load( stream );
+    }
+    assertEquals( VALUES, Files.readAllLines( out, StandardCharsets.ISO_8859_1 ).size() );
+    assertEquals( expected.stringPropertyNames(), written.stringPropertyNames() );
+    for ( String key : expected.stringPropertyNames() ) {
+      assertEquals( expected.getProperty( key ),
+        encr.decryptPasswordOptionallyEncrypted( "aead", written.getProperty( key ) ) );
+    }
+  }
+
+  private Reencryptor newReencryptor() {
+    Reencryptor reencryptor = new Reencryptor( encr, "kettle", "aead" );
+    reencryptor.setThreads( 2 );
+    reencryptor.setBatchSize( 4 );
+    reencryptor.setCheckpoint( checkpointFile, 10 );
+    return reencryptor;
+  }
+}